@@ -122,7 +122,7 @@ public class BartsCsvHelper implements HasServiceSystemAndExchangeIdI, CsvAudito
     private ProcedurePojoCache procedurecache = new ProcedurePojoCache(this);
     private SusPatientCache susPatientCache = new SusPatientCache(this);
     private SusPatientTailCache susPatientTailCache = new SusPatientTailCache(this);
-    private ThreadPool utilityThreadPool = null;
+    private volatile ThreadPool utilityThreadPool = null;
 
     private UUID serviceId = null;
     private UUID systemId = null;
@@ -239,6 +239,24 @@ public class BartsCsvHelper implements HasServiceSystemAndExchangeIdI, CsvAudito
         internalIdDal.save(batch);
     }
 
+    /**
+     * saves anything left in the batch, taking it under the lock so phases running at the same time
+     * don't save the same mappings twice or miss ones added while saving
+     */
+    private void saveRemainingInternalIds() throws Exception {
+        List<InternalIdMap> batchToSave = null;
+        try {
+            cacheLock.lock();
+            batchToSave = new ArrayList<>(internalIdSaveBatch);
+            internalIdSaveBatch.clear();
+
+        } finally {
+            cacheLock.unlock();
+        }
+
+        saveInternalIdBatch(batchToSave);
+    }
+
 
     public String getInternalId(String idType, String sourceId) throws Exception {
         Set<String> hs = new HashSet<>();
@@ -1420,9 +1438,12 @@ public class BartsCsvHelper implements HasServiceSystemAndExchangeIdI, CsvAudito
 
 
     public void submitToThreadPool(Callable callable) throws Exception {
-        if (this.utilityThreadPool == null) {
-            int threadPoolSize = ConnectionManager.getPublisherTransformConnectionPoolMaxSize(serviceId);
-            this.utilityThreadPool = new ThreadPool(threadPoolSize, 1000, "BartsCsvHelper"); //lower from 50k to save memory
+        //phases may run at the same time, so make sure only one pool is created
+        synchronized (this) {
+            if (this.utilityThreadPool == null) {
+                int threadPoolSize = ConnectionManager.getPublisherTransformConnectionPoolMaxSize(serviceId);
+                this.utilityThreadPool = new ThreadPool(threadPoolSize, 1000, "BartsCsvHelper"); //lower from 50k to save memory
+            }
         }
 
         List<ThreadPoolError> errors = utilityThreadPool.submit(callable);
@@ -1432,7 +1453,7 @@ public class BartsCsvHelper implements HasServiceSystemAndExchangeIdI, CsvAudito
     public void waitUntilThreadPoolIsEmpty() throws Exception {
 
         //commit any unsaved internal IDs to the DB
-        saveInternalIdBatch(internalIdSaveBatch);
+        saveRemainingInternalIds();
 
         if (this.utilityThreadPool != null) {
             List<ThreadPoolError> errors = utilityThreadPool.waitUntilEmpty();
@@ -1443,7 +1464,7 @@ public class BartsCsvHelper implements HasServiceSystemAndExchangeIdI, CsvAudito
     public void stopThreadPool() throws Exception {
 
         //commit any unsaved internal IDs to the DB
-        saveInternalIdBatch(internalIdSaveBatch);
+        saveRemainingInternalIds();
 
         if (this.utilityThreadPool != null) {
             List<ThreadPoolError> errors = utilityThreadPool.waitAndStop();
@@ -40,6 +40,8 @@ public abstract class BartsCsvToFhirTransformer {
     public static final String PRIMARY_ORG_HL7_OID = "2.16.840.1.113883.3.2540.1";
     public static final String BARTS_RESOURCE_ID_SCOPE = "B";
 
+    private static final int PHASE_SCHEDULER_THREADS = 4;
+
     //public static final int VERSION_2_2_FILE_COUNT = 14;
 
     public static void transform(String exchangeBody, FhirResourceFiler fhirResourceFiler, String version) throws Exception {
@@ -86,6 +88,19 @@ public abstract class BartsCsvToFhirTransformer {
         Map<String, List<ParserI>> parserMap = hashFilesByType(files, exchangeDirectory, csvHelper);
 
         try {
+            //if using the phase scheduler, log the plan, and if not a dry run, use it instead of the below
+            if (TransformConfig.instance().isBartsPhaseSchedulerEnabled()
+                    || TransformConfig.instance().isBartsPhaseSchedulerDryRun()) {
+
+                TransformPhaseScheduler scheduler = BartsPhasePlan.create(parserMap, files, fhirResourceFiler, csvHelper);
+                scheduler.logPlan();
+
+                if (!TransformConfig.instance().isBartsPhaseSchedulerDryRun()) {
+                    scheduler.run(PHASE_SCHEDULER_THREADS);
+                    return;
+                }
+            }
+
             //admin transformers
             LOG.trace("Starting admin transformers");
             ORGREFPreTransformer.transform(getParsers(parserMap, csvHelper, fhirResourceFiler, "ORGREF", false), fhirResourceFiler, csvHelper);
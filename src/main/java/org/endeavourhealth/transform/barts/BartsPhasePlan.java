@@ -0,0 +1,372 @@
+package org.endeavourhealth.transform.barts;
+
+import org.endeavourhealth.transform.barts.transforms.*;
+import org.endeavourhealth.transform.common.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * declares the phases of the Barts CSV transform for TransformPhaseScheduler, in the same order as the sequential
+ * code in BartsCsvToFhirTransformer, with what each reads and writes. Where a transformer's dependencies weren't
+ * clear, it's declared as reading or writing more than it needs to, since that only costs concurrency.
+ */
+public class BartsPhasePlan {
+
+    //reference data
+    private static final String REF_ORGANISATIONS = "ref:organisations";
+    private static final String REF_CODE_VALUES = "ref:codeValues";
+    private static final String REF_NOMENCLATURE = "ref:nomenclature";
+    private static final String REF_PERSONNEL = "ref:personnel";
+
+    //internal ID mappings
+    private static final String MAP_PERSON = "map:person";
+    private static final String MAP_ENCOUNTER = "map:encounter";
+    private static final String MAP_SURGICAL_CASE = "map:surgicalCase";
+    private static final String MAP_RELATIONSHIP_TYPE = "map:patientRelationshipType";
+
+    //BartsCsvHelper caches
+    private static final String CACHE_LOCATION = "cache:location";
+    private static final String CACHE_PATIENT = "cache:patient";
+    private static final String CACHE_EPISODE_OF_CARE = "cache:episodeOfCare";
+    private static final String CACHE_CLINICAL_EVENT_LINKS = "cache:clinicalEventLinks";
+    private static final String CACHE_CONSULTATION_LINKS = "cache:consultationLinks";
+
+    //staging and target tables
+    private static final String STAGING_CLINICAL_EVENTS = "staging:clinicalEvents";
+    private static final String STAGING_EMERGENCY_CDS = "staging:emergencyCds";
+    private static final String STAGING_INPATIENT_CDS = "staging:inpatientCds";
+    private static final String STAGING_OUTPATIENT_CDS = "staging:outpatientCds";
+    private static final String STAGING_CRITICAL_CARE_CDS = "staging:criticalCareCds";
+    private static final String STAGING_PROCEDURES = "staging:procedures";
+    private static final String STAGING_CONDITIONS = "staging:conditions";
+    private static final String TARGET_CLINICAL_EVENTS = "target:clinicalEvents";
+    private static final String TARGET_EMERGENCY_CDS = "target:emergencyCds";
+    private static final String TARGET_INPATIENT_CDS = "target:inpatientCds";
+    private static final String TARGET_OUTPATIENT_CDS = "target:outpatientCds";
+    private static final String TARGET_CRITICAL_CARE_CDS = "target:criticalCareCds";
+    private static final String TARGET_PROCEDURES = "target:procedures";
+    private static final String TARGET_CONDITIONS = "target:conditions";
+
+    //saved FHIR resources, which need a barrier before anything can read them from the DB
+    private static final String FHIR_PREFIX = "fhir:";
+    private static final String FHIR_ADMIN = FHIR_PREFIX + "admin";
+    private static final String FHIR_PATIENT = FHIR_PREFIX + "patient";
+    private static final String FHIR_ENCOUNTER = FHIR_PREFIX + "encounter";
+    private static final String FHIR_CLINICAL = FHIR_PREFIX + "clinical";
+
+    private final Map<String, List<ParserI>> parserMap;
+    private final Map<String, Long> fileSizes = new HashMap<>();
+    private final FhirResourceFiler fhirResourceFiler;
+    private final BartsCsvHelper csvHelper;
+    private final TransformPhaseScheduler scheduler = new TransformPhaseScheduler("Barts CSV transform");
+
+    private BartsPhasePlan(Map<String, List<ParserI>> parserMap, List<ExchangePayloadFile> files,
+                           FhirResourceFiler fhirResourceFiler, BartsCsvHelper csvHelper) {
+        this.parserMap = parserMap;
+        this.fhirResourceFiler = fhirResourceFiler;
+        this.csvHelper = csvHelper;
+
+        for (ExchangePayloadFile file: files) {
+            Long size = file.getSize();
+            Long total = fileSizes.get(file.getType());
+            long newTotal = (total != null ? total.longValue() : 0) + (size != null ? size.longValue() : 1);
+            fileSizes.put(file.getType(), new Long(newTotal));
+        }
+    }
+
+    /**
+     * note the parser map must not be changed while the phases are running, as they don't lock it
+     */
+    public static TransformPhaseScheduler create(Map<String, List<ParserI>> parserMap, List<ExchangePayloadFile> files,
+                                                 FhirResourceFiler fhirResourceFiler, BartsCsvHelper csvHelper) throws Exception {
+        BartsPhasePlan plan = new BartsPhasePlan(parserMap, files, fhirResourceFiler, csvHelper);
+        plan.addPhases();
+        return plan.scheduler;
+    }
+
+    private void addPhases() throws Exception {
+
+        //anything reading saved resources from the DB needs them all saved first
+        scheduler.addBarrier(FHIR_PREFIX, () -> fhirResourceFiler.waitUntilEverythingIsSaved());
+
+        //admin transformers
+        addPhase("ORGREF pre", () -> ORGREFPreTransformer.transform(parsers("ORGREF"), fhirResourceFiler, csvHelper), "ORGREF")
+                .writes(REF_ORGANISATIONS);
+        addPhase("ORGREF", () -> ORGREFTransformer.transform(parsers("ORGREF"), fhirResourceFiler, csvHelper), "ORGREF")
+                .reads(REF_ORGANISATIONS)
+                .writes(FHIR_ADMIN);
+        addPhase("CVREF", () -> CVREFTransformer.transform(parsers("CVREF"), fhirResourceFiler, csvHelper), "CVREF")
+                .reads(REF_ORGANISATIONS)
+                .writes(REF_CODE_VALUES, FHIR_ADMIN);
+        addPhase("NOMREF", () -> NOMREFTransformer.transform(parsers("NOMREF"), fhirResourceFiler, csvHelper), "NOMREF")
+                .writes(REF_NOMENCLATURE);
+        addPhase("LOREF", () -> LOREFTransformer.transform(parsers("LOREF"), fhirResourceFiler, csvHelper), "LOREF")
+                .reads(REF_ORGANISATIONS, REF_CODE_VALUES)
+                .writes(CACHE_LOCATION);
+        addPhase("file locations", () -> csvHelper.getLocationCache().fileLocationResources(fhirResourceFiler))
+                .reads(CACHE_LOCATION)
+                .writes(CACHE_LOCATION, FHIR_ADMIN);
+        addPhase("PRSNLREF pre", () -> PRSNLREFPreTransformer.transform(parsers("PRSNLREF"), fhirResourceFiler, csvHelper), "PRSNLREF")
+                .writes(REF_PERSONNEL);
+        addPhase("PRSNLREF", () -> PRSNLREFTransformer.transform(parsers("PRSNLREF"), fhirResourceFiler, csvHelper), "PRSNLREF")
+                .reads(REF_CODE_VALUES, REF_PERSONNEL)
+                .writes(FHIR_ADMIN);
+
+        //patient pre-transformers, with PPALI first as it creates the person ID mappings
+        addPhase("PPALI pre", () -> PPALIPreTransformer.transform(parsers("PPALI"), fhirResourceFiler, csvHelper), "PPALI")
+                .reads(REF_CODE_VALUES)
+                .writes(MAP_PERSON, CACHE_PATIENT, FHIR_PATIENT);
+        addPhase("PPADD pre", () -> PPADDPreTransformer.transform(parsers("PPADD"), fhirResourceFiler, csvHelper), "PPADD")
+                .writes(MAP_PERSON, CACHE_PATIENT);
+        addPhase("PPNAM pre", () -> PPNAMPreTransformer.transform(parsers("PPNAM"), fhirResourceFiler, csvHelper), "PPNAM")
+                .writes(MAP_PERSON, CACHE_PATIENT);
+        addPhase("PPPHO pre", () -> PPPHOPreTransformer.transform(parsers("PPPHO"), fhirResourceFiler, csvHelper), "PPPHO")
+                .writes(MAP_PERSON, CACHE_PATIENT);
+        addPhase("PPREL pre", () -> PPRELPreTransformer.transform(parsers("PPREL"), fhirResourceFiler, csvHelper), "PPREL")
+                .writes(MAP_PERSON, MAP_RELATIONSHIP_TYPE, CACHE_PATIENT);
+        addPhase("PPATI pre", () -> PPATIPreTransformer.transform(parsers("PPATI"), fhirResourceFiler, csvHelper), "PPATI")
+                .reads(MAP_PERSON)
+                .writes(CACHE_PATIENT);
+
+        //patient transformers
+        addPhase("PPATI", () -> PPATITransformer.transform(parsers("PPATI"), fhirResourceFiler, csvHelper), "PPATI")
+                .reads(REF_CODE_VALUES, MAP_PERSON)
+                .writes(CACHE_PATIENT);
+        addPhase("PPALI", () -> PPALITransformer.transform(parsers("PPALI"), fhirResourceFiler, csvHelper), "PPALI")
+                .reads(REF_CODE_VALUES, MAP_PERSON)
+                .writes(CACHE_PATIENT);
+        addPhase("PPADD", () -> PPADDTransformer.transform(parsers("PPADD"), fhirResourceFiler, csvHelper), "PPADD")
+                .reads(REF_CODE_VALUES, MAP_PERSON)
+                .writes(CACHE_PATIENT);
+        addPhase("PPNAM", () -> PPNAMTransformer.transform(parsers("PPNAM"), fhirResourceFiler, csvHelper), "PPNAM")
+                .reads(REF_CODE_VALUES, MAP_PERSON)
+                .writes(CACHE_PATIENT);
+        addPhase("PPPHO", () -> PPPHOTransformer.transform(parsers("PPPHO"), fhirResourceFiler, csvHelper), "PPPHO")
+                .reads(REF_CODE_VALUES, MAP_PERSON)
+                .writes(CACHE_PATIENT);
+        addPhase("PPREL", () -> PPRELTransformer.transform(parsers("PPREL"), fhirResourceFiler, csvHelper), "PPREL")
+                .reads(REF_CODE_VALUES, MAP_PERSON)
+                .writes(MAP_RELATIONSHIP_TYPE, CACHE_PATIENT);
+        addPhase("PPAGP", () -> PPAGPTransformer.transform(parsers("PPAGP"), fhirResourceFiler, csvHelper), "PPAGP")
+                .reads(REF_CODE_VALUES, REF_ORGANISATIONS, REF_PERSONNEL, MAP_PERSON)
+                .writes(CACHE_PATIENT);
+        addPhase("file patients", () -> csvHelper.getPatientCache().filePatientResources(fhirResourceFiler))
+                .reads(CACHE_PATIENT)
+                .writes(CACHE_PATIENT, FHIR_PATIENT);
+
+        //clinical events
+        addPhase("CLEVE pre", () -> CLEVEPreTransformer.transform(parsers("CLEVE"), fhirResourceFiler, csvHelper), "CLEVE")
+                .reads(REF_CODE_VALUES, MAP_PERSON, MAP_ENCOUNTER)
+                .writes(STAGING_CLINICAL_EVENTS);
+        addPhase("CLEVE staging to target", () -> {
+                    if (hasParsers("CLEVE")) {
+                        csvHelper.processStagingForTargetClinicalEvents();
+                    }
+                })
+                .reads(STAGING_CLINICAL_EVENTS)
+                .writes(TARGET_CLINICAL_EVENTS);
+        addPhase("CLEVE target", () -> {
+                    if (hasParsers("CLEVE")) {
+                        ClinicalEventTargetTransformer.transform(fhirResourceFiler, csvHelper);
+                    }
+                })
+                .reads(TARGET_CLINICAL_EVENTS, REF_CODE_VALUES, FHIR_PATIENT, FHIR_ENCOUNTER)
+                .writes(CACHE_CLINICAL_EVENT_LINKS, FHIR_CLINICAL);
+
+        //encounters, which may update existing resources
+        addPhase("ENCNT pre", () -> ENCNTPreTransformer.transform(parsers("ENCNT"), fhirResourceFiler, csvHelper), "ENCNT")
+                .reads(MAP_PERSON)
+                .writes(MAP_ENCOUNTER, CACHE_EPISODE_OF_CARE, FHIR_ENCOUNTER);
+
+        //CDS and procedure staging, where the order of the procedure files is significant, going from less to more rich
+        addPhase("SusEmergencyCareDataSetTail pre", () -> SusEmergencyCareDataSetTailPreTransformer.transform(parsers("SusEmergencyCareDataSetTail"), fhirResourceFiler, csvHelper), "SusEmergencyCareDataSetTail")
+                .writes(STAGING_EMERGENCY_CDS);
+        addPhase("SusEmergencyCareDataSet pre", () -> SusEmergencyCareDataSetPreTransformer.transform(parsers("SusEmergencyCareDataSet"), fhirResourceFiler, csvHelper), "SusEmergencyCareDataSet")
+                .reads(REF_ORGANISATIONS, REF_PERSONNEL, MAP_PERSON)
+                .writes(STAGING_EMERGENCY_CDS);
+        addPhase("CriticalCare pre", () -> CriticalCarePreTransformer.transform(parsers("CriticalCare"), fhirResourceFiler, csvHelper), "CriticalCare")
+                .reads(REF_ORGANISATIONS, REF_PERSONNEL, MAP_PERSON)
+                .writes(STAGING_CRITICAL_CARE_CDS);
+        addPhase("PROCE pre", () -> PROCEPreTransformer.transform(parsers("PROCE"), fhirResourceFiler, csvHelper), "PROCE")
+                .reads(MAP_PERSON, MAP_ENCOUNTER)
+                .writes(STAGING_PROCEDURES);
+        addPhase("Procedure pre", () -> ProcedurePreTransformer.transform(parsers("Procedure"), fhirResourceFiler, csvHelper), "Procedure")
+                .reads(REF_PERSONNEL, MAP_ENCOUNTER)
+                .writes(STAGING_PROCEDURES);
+        addPhase("SusInpatientTail pre", () -> SusInpatientTailPreTransformer.transform(parsers("SusInpatientTail"), fhirResourceFiler, csvHelper), "SusInpatientTail")
+                .writes(STAGING_INPATIENT_CDS);
+        addPhase("SusOutpatientTail pre", () -> SusOutpatientTailPreTransformer.transform(parsers("SusOutpatientTail"), fhirResourceFiler, csvHelper), "SusOutpatientTail")
+                .writes(STAGING_OUTPATIENT_CDS);
+        addPhase("SusEmergencyTail pre", () -> SusEmergencyTailPreTransformer.transform(parsers("SusEmergencyTail"), fhirResourceFiler, csvHelper), "SusEmergencyTail")
+                .writes(STAGING_EMERGENCY_CDS);
+        addPhase("SusInpatient pre", () -> SusInpatientPreTransformer.transform(parsers("SusInpatient"), fhirResourceFiler, csvHelper), "SusInpatient")
+                .reads(REF_ORGANISATIONS, REF_PERSONNEL, MAP_PERSON)
+                .writes(STAGING_INPATIENT_CDS, STAGING_PROCEDURES, STAGING_CONDITIONS);
+        addPhase("SusOutpatient pre", () -> SusOutpatientPreTransformer.transform(parsers("SusOutpatient"), fhirResourceFiler, csvHelper), "SusOutpatient")
+                .reads(REF_ORGANISATIONS, REF_PERSONNEL, MAP_PERSON)
+                .writes(STAGING_OUTPATIENT_CDS, STAGING_PROCEDURES, STAGING_CONDITIONS);
+        addPhase("SusEmergency pre", () -> SusEmergencyPreTransformer.transform(parsers("SusEmergency"), fhirResourceFiler, csvHelper), "SusEmergency")
+                .reads(REF_ORGANISATIONS, REF_PERSONNEL, MAP_PERSON)
+                .writes(STAGING_EMERGENCY_CDS, STAGING_PROCEDURES, STAGING_CONDITIONS);
+        addPhase("SURCC pre", () -> SURCCPreTransformer.transform(parsers("SURCC"), fhirResourceFiler, csvHelper), "SURCC")
+                .writes(MAP_SURGICAL_CASE, STAGING_PROCEDURES);
+        addPhase("SURCP pre", () -> SURCPPreTransformer.transform(parsers("SURCP"), fhirResourceFiler, csvHelper), "SURCP")
+                .reads(REF_CODE_VALUES, MAP_SURGICAL_CASE)
+                .writes(STAGING_PROCEDURES);
+
+        //CDS staging to target, only if the specific files are present
+        addPhase("Emergency CDS staging to target", () -> {
+                    if (hasParsers("SusEmergencyCareDataSet") || hasParsers("SusEmergencyCareDataSetTail")) {
+                        csvHelper.processStagingForTargetEmergencyCds();
+                    }
+                })
+                .reads(STAGING_EMERGENCY_CDS)
+                .writes(TARGET_EMERGENCY_CDS);
+        addPhase("Inpatient CDS staging to target", () -> {
+                    if (hasParsers("SusInpatient") || hasParsers("SusInpatientTail")) {
+                        csvHelper.processStagingForTargetInpatientCds();
+                    }
+                })
+                .reads(STAGING_INPATIENT_CDS)
+                .writes(TARGET_INPATIENT_CDS);
+        addPhase("Outpatient CDS staging to target", () -> {
+                    if (hasParsers("SusOutpatient") || hasParsers("SusOutpatientTail")) {
+                        csvHelper.processStagingForTargetOutpatientCds();
+                    }
+                })
+                .reads(STAGING_OUTPATIENT_CDS)
+                .writes(TARGET_OUTPATIENT_CDS);
+        addPhase("Critical Care CDS staging to target", () -> {
+                    if (hasParsers("CriticalCare")) {
+                        csvHelper.processStagingForTargetCriticalCareCds();
+                    }
+                })
+                .reads(STAGING_CRITICAL_CARE_CDS)
+                .writes(TARGET_CRITICAL_CARE_CDS);
+
+        //procedures and conditions, only if the CDS Encounters only config filter is NOT set
+        boolean cdsEncountersOnly = TransformConfig.instance().isCernerCDSEncountersOnly();
+        addPhase("procedures staging to target", () -> {
+                    if (!cdsEncountersOnly) {
+                        csvHelper.processStagingForTargetProcedures();
+                    }
+                })
+                .reads(STAGING_PROCEDURES)
+                .writes(TARGET_PROCEDURES);
+        addPhase("procedures target", () -> {
+                    if (!cdsEncountersOnly) {
+                        ProcedureTargetTransformer.transform(fhirResourceFiler, csvHelper);
+                    }
+                })
+                .reads(TARGET_PROCEDURES, REF_CODE_VALUES, REF_PERSONNEL, MAP_ENCOUNTER, FHIR_PATIENT, FHIR_ENCOUNTER)
+                .writes(FHIR_CLINICAL);
+        addPhase("DIAGN pre", () -> DIAGNPreTransformer.transform(parsers("DIAGN"), fhirResourceFiler, csvHelper), "DIAGN")
+                .reads(MAP_PERSON, MAP_ENCOUNTER)
+                .writes(STAGING_CONDITIONS, CACHE_CONSULTATION_LINKS);
+        addPhase("Diagnosis pre", () -> DiagnosisPreTransformer.transform(parsers("Diagnosis"), fhirResourceFiler, csvHelper), "Diagnosis")
+                .reads(REF_PERSONNEL, MAP_PERSON)
+                .writes(STAGING_CONDITIONS);
+        addPhase("Problem pre", () -> ProblemPreTransformer.transform(parsers("Problem"), fhirResourceFiler, csvHelper), "Problem")
+                .reads(REF_PERSONNEL, MAP_PERSON)
+                .writes(STAGING_CONDITIONS);
+        addPhase("conditions staging to target", () -> {
+                    if (!cdsEncountersOnly) {
+                        csvHelper.processStagingForTargetConditions();
+                    }
+                })
+                .reads(STAGING_CONDITIONS)
+                .writes(TARGET_CONDITIONS);
+        addPhase("conditions target", () -> {
+                    if (!cdsEncountersOnly) {
+                        ConditionTargetTransformer.transform(fhirResourceFiler, csvHelper);
+                    }
+                })
+                .reads(TARGET_CONDITIONS, REF_CODE_VALUES, FHIR_PATIENT, FHIR_ENCOUNTER)
+                .writes(FHIR_CLINICAL);
+
+        //CDS target transformers, which look up existing resources from the DB
+        addPhase("Emergency CDS target", () -> {
+                    if (hasParsers("SusEmergencyCareDataSet")) {
+                        EmergencyCdsTargetTransformer.transform(fhirResourceFiler, csvHelper);
+                    }
+                })
+                .reads(TARGET_EMERGENCY_CDS, FHIR_PATIENT, FHIR_ENCOUNTER, FHIR_CLINICAL)
+                .writes(CACHE_EPISODE_OF_CARE, FHIR_ENCOUNTER);
+        addPhase("Inpatient CDS target", () -> {
+                    if (hasParsers("SusInpatient")) {
+                        InpatientCdsTargetTransformer.transform(fhirResourceFiler, csvHelper);
+                    }
+                })
+                .reads(TARGET_INPATIENT_CDS, FHIR_PATIENT, FHIR_ENCOUNTER, FHIR_CLINICAL)
+                .writes(CACHE_EPISODE_OF_CARE, FHIR_ENCOUNTER);
+        addPhase("Outpatient CDS target", () -> {
+                    if (hasParsers("SusOutpatient")) {
+                        OutpatientCdsTargetTransformer.transform(fhirResourceFiler, csvHelper);
+                    }
+                })
+                .reads(TARGET_OUTPATIENT_CDS, FHIR_PATIENT, FHIR_ENCOUNTER, FHIR_CLINICAL)
+                .writes(CACHE_EPISODE_OF_CARE, FHIR_ENCOUNTER);
+        addPhase("Critical Care CDS target", () -> {
+                    if (hasParsers("CriticalCare")) {
+                        CriticalCareCdsTargetTransformer.transform(fhirResourceFiler, csvHelper);
+                    }
+                })
+                .reads(TARGET_CRITICAL_CARE_CDS, FHIR_PATIENT, FHIR_ENCOUNTER, FHIR_CLINICAL)
+                .writes(FHIR_ENCOUNTER);
+        addPhase("file episodes of care", () -> csvHelper.getEpisodeOfCareCache().fileResources(fhirResourceFiler))
+                .reads(CACHE_EPISODE_OF_CARE)
+                .writes(CACHE_EPISODE_OF_CARE, FHIR_ENCOUNTER);
+
+        //other clinical transformers
+        addPhase("FamilyHistory", () -> FamilyHistoryTransformer.transform(parsers("FamilyHistory"), fhirResourceFiler, csvHelper), "FamilyHistory")
+                .reads(REF_CODE_VALUES, REF_NOMENCLATURE, REF_PERSONNEL, MAP_PERSON, MAP_RELATIONSHIP_TYPE)
+                .writes(FHIR_CLINICAL);
+
+        //updates to existing resources that haven't been handled in an above transform
+        addPhase("remaining clinical event links", () -> csvHelper.processRemainingClinicalEventParentChildLinks(fhirResourceFiler))
+                .reads(CACHE_CLINICAL_EVENT_LINKS, FHIR_CLINICAL)
+                .writes(CACHE_CLINICAL_EVENT_LINKS, FHIR_CLINICAL);
+        addPhase("remaining consultation relationships", () -> csvHelper.processRemainingNewConsultationRelationships(fhirResourceFiler))
+                .reads(CACHE_CONSULTATION_LINKS, FHIR_CLINICAL, FHIR_ENCOUNTER)
+                .writes(CACHE_CONSULTATION_LINKS, FHIR_CLINICAL, FHIR_ENCOUNTER);
+    }
+
+    /**
+     * adds a phase that reads the given file types, which waits for anything it submitted to the thread pool
+     * to finish before it's complete
+     */
+    private TransformPhase addPhase(String name, TransformPhaseBodyI body, String... fileTypes) {
+
+        TransformPhase phase = scheduler.addPhase(name, () -> {
+            body.run();
+            csvHelper.waitUntilThreadPoolIsEmpty();
+            fhirResourceFiler.failIfAnyErrors();
+        });
+
+        long cost = 0;
+        for (String fileType: fileTypes) {
+            //parsers aren't thread safe, so phases sharing a file are declared as writing it to keep them in order
+            phase.writes("file:" + fileType);
+            Long size = fileSizes.get(fileType);
+            if (size != null) {
+                cost += size.longValue();
+            }
+        }
+        return phase.withCost(cost);
+    }
+
+    private List<ParserI> parsers(String fileType) {
+        List<ParserI> ret = parserMap.get(fileType);
+        if (ret == null) {
+            ret = new ArrayList<>();
+        }
+        return ret;
+    }
+
+    private boolean hasParsers(String fileType) {
+        return !parsers(fileType).isEmpty();
+    }
+}
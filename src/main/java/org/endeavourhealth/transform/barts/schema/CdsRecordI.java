@@ -2,6 +2,7 @@ package org.endeavourhealth.transform.barts.schema;
 
 import org.endeavourhealth.transform.common.CsvCell;
 import org.endeavourhealth.transform.common.CsvCurrentState;
+import org.endeavourhealth.transform.common.CsvDateParser;
 
 import java.text.DateFormat;
 
@@ -28,4 +29,5 @@ public interface CdsRecordI {
 
     CsvCurrentState getCurrentState();
     DateFormat getDateFormat();
+    CsvDateParser getDateParser();
 }
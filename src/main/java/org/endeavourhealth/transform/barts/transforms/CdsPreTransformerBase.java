@@ -434,7 +434,7 @@ public abstract class CdsPreTransformerBase {
             }
 
             if (!Strings.isNullOrEmpty(dateStr)) {
-                Date date = parser.getDateFormat().parse(dateStr);
+                Date date = parser.getDateParser().parse(dateStr);
                 cdsRemainder.setProcedureDate(date);
             } else {
                 //if we have no secondary date, use the primary date
@@ -3,7 +3,6 @@ package org.endeavourhealth.transform.common;
 import com.google.common.base.Strings;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVParser;
-import org.apache.commons.csv.CSVRecord;
 import org.endeavourhealth.common.utility.FileHelper;
 import org.endeavourhealth.core.csv.CsvHelper;
 import org.endeavourhealth.core.database.dal.audit.models.PublishedFileColumn;
@@ -13,6 +12,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.StringReader;
 import java.nio.charset.Charset;
@@ -33,12 +33,14 @@ public abstract class AbstractCsvParser implements AutoCloseable, ParserI {
     private final DateFormat dateFormat;
     private final DateFormat timeFormat;
     private final DateFormat dateTimeFormat;
+    private final CsvDateParser dateParser;
+    private final CsvDateParser timeParser;
+    private final CsvDateParser dateTimeParser;
     //private final SourceFileMappingDalI dal = DalProvider.factorySourceFileMappingDal();
 
-    private CSVParser csvReader = null;
-    private Iterator<CSVRecord> csvIterator = null;
-    private CSVRecord csvRecord = null;
+    private CsvRecordReaderI csvReader = null;
     private int csvRecordLineNumber = -1;
+    private int csvRecordsRead = 0;
     //private Set<Long> recordNumbersToProcess = null;
     private final static String REMOVED_DATA_HEADER = "RemovedData";
     private Charset encoding = null;
@@ -47,7 +49,7 @@ public abstract class AbstractCsvParser implements AutoCloseable, ParserI {
     private Integer fileAuditId = null;
     //private long[] cellAuditIds = new long[10000]; //default to 10k audits
     private Integer numLines = null; //only set if we audit the file
-    private Map<String, Integer> cachedHeaderMap = null;
+    private FusedFileAuditor fusedFileAuditor = null; //only set if we're auditing the file as we parse it
     //private CsvAuditorCallbackI auditorCallback = null; //allows selective auditing of records
 
 
@@ -72,26 +74,34 @@ public abstract class AbstractCsvParser implements AutoCloseable, ParserI {
 
         if (!Strings.isNullOrEmpty(dateFormat)) {
             this.dateFormat = new SimpleDateFormat(dateFormat);
+            this.dateParser = CsvDateParser.factory(dateFormat);
         } else {
             this.dateFormat = null;
+            this.dateParser = null;
         }
 
         if (!Strings.isNullOrEmpty(timeFormat)) {
             this.timeFormat = new SimpleDateFormat(timeFormat);
+            this.timeParser = CsvDateParser.factory(timeFormat);
         } else {
             this.timeFormat = null;
+            this.timeParser = null;
         }
 
         if (!Strings.isNullOrEmpty(dateFormat) && !Strings.isNullOrEmpty(timeFormat)) {
 
+            String dateTimePattern;
             if (!timeFormat.startsWith("'T'")) {
-                this.dateTimeFormat = new SimpleDateFormat(dateFormat + " " + timeFormat);
+                dateTimePattern = dateFormat + " " + timeFormat;
             } else {
                 //handle "yyyy-MM-dd'T'HH:mm:ss" date time format omitting the space to accommodate the 'T'
-                this.dateTimeFormat = new SimpleDateFormat(dateFormat + timeFormat);
+                dateTimePattern = dateFormat + timeFormat;
             }
+            this.dateTimeFormat = new SimpleDateFormat(dateTimePattern);
+            this.dateTimeParser = CsvDateParser.factory(dateTimePattern);
         } else {
             this.dateTimeFormat = null;
+            this.dateTimeParser = null;
         }
 
     }
@@ -126,6 +136,21 @@ public abstract class AbstractCsvParser implements AutoCloseable, ParserI {
         return dateTimeFormat;
     }
 
+    @Override
+    public CsvDateParser getDateParser() {
+        return dateParser;
+    }
+
+    @Override
+    public CsvDateParser getTimeParser() {
+        return timeParser;
+    }
+
+    @Override
+    public CsvDateParser getDateTimeParser() {
+        return dateTimeParser;
+    }
+
     public String getVersion() {
         return version;
     }
@@ -142,21 +167,11 @@ public abstract class AbstractCsvParser implements AutoCloseable, ParserI {
         } else {
             LOG.info(action + " " + filePath + " (" + numLines + " lines)");
         }
-        InputStreamReader isr;
-        if (encoding != null) {
-            isr = FileHelper.readFileReaderFromSharedStorage(filePath, encoding);
-
-        } else {
-            isr = FileHelper.readFileReaderFromSharedStorage(filePath);
-        }
-
-        this.csvReader = new CSVParser(isr, csvFormat);
+        this.csvReader = createRecordReader();
         try {
-            this.csvIterator = csvReader.iterator();
-
             String[] expectedHeaders = getCsvHeaders(version);
             try {
-                CsvHelper.validateCsvHeaders(csvReader, filePath, expectedHeaders);
+                csvReader.validateHeaders(filePath, expectedHeaders);
             } catch (Exception e) {
                 LOG.info(e.getMessage());
                 if (filePath.toUpperCase().contains("TPP")) {
@@ -170,11 +185,12 @@ public abstract class AbstractCsvParser implements AutoCloseable, ParserI {
                     expectedHeaders = new String[headers.size()];
                     expectedHeaders = headers.toArray(expectedHeaders);
 
-                    CsvHelper.validateCsvHeaders(csvReader, filePath, expectedHeaders);
+                    csvReader.validateHeaders(filePath, expectedHeaders);
                 }
             }
 
             csvRecordLineNumber = 0;
+            csvRecordsRead = 0;
 
         } catch (Exception e) {
             //if we get any exception thrown during the constructor, make sure to close the reader
@@ -183,6 +199,56 @@ public abstract class AbstractCsvParser implements AutoCloseable, ParserI {
         }
     }
 
+    /**
+     * creates the reader to tokenise the file, using our own lightweight tokenizer unless it's been disabled
+     * or the CSV format uses features only supported by the Commons CSV library. If enabled, and we can find the
+     * record boundaries in the raw bytes, the reader can resume from the last record if we get an IO error.
+     */
+    private CsvRecordReaderI createRecordReader() throws Exception {
+
+        boolean useFastReader = TransformConfig.instance().isFastCsvParserEnabled()
+                && FastCsvRecordReader.isSupported(csvFormat);
+
+        if (TransformConfig.instance().isResumableCsvReaderEnabled()
+                && CsvByteScanner.isSupported(csvFormat, encoding)) {
+            Charset charset = encoding != null ? encoding : Charset.defaultCharset();
+
+            //if auditing as we parse, the auditor needs to see the raw bytes too
+            List<CsvByteScannerListenerI> listeners = new ArrayList<>();
+            if (fusedFileAuditor != null) {
+                listeners.add(fusedFileAuditor);
+            }
+
+            return new ResumableCsvRecordReader(filePath, csvFormat, charset, useFastReader,
+                    byteOffset -> ResumableCsvRecordReader.openSharedStorageFile(filePath, byteOffset), listeners);
+        }
+
+        InputStreamReader isr;
+        if (fusedFileAuditor != null) {
+            //if auditing as we parse, we need to get at the raw bytes, so scan the stream before decoding it
+            CsvByteScanner scanner = new CsvByteScanner(csvFormat);
+            scanner.addListener(fusedFileAuditor);
+            InputStream inputStream = scanner.wrap(FileHelper.readFileFromSharedStorage(filePath));
+            if (encoding != null) {
+                isr = new InputStreamReader(inputStream, encoding);
+            } else {
+                isr = new InputStreamReader(inputStream, Charset.defaultCharset());
+            }
+
+        } else if (encoding != null) {
+            isr = FileHelper.readFileReaderFromSharedStorage(filePath, encoding);
+        } else {
+            isr = FileHelper.readFileReaderFromSharedStorage(filePath);
+        }
+
+        if (useFastReader) {
+            return new FastCsvRecordReader(isr, csvFormat);
+
+        } else {
+            return new CommonsCsvRecordReader(isr, csvFormat);
+        }
+    }
+
     @Override
     public List<String> getColumnHeaders() {
         String[] expectedHeaders = getCsvHeaders(version);
@@ -232,7 +298,21 @@ public abstract class AbstractCsvParser implements AutoCloseable, ParserI {
             publishedFileType.getColumns().add(publishedFileColumn);
         }
 
-        this.fileAuditId = new Integer(PublishedFileAuditHelper.auditPublishedFileRecord(this, firstRecordContainsHeaders, publishedFileType));
+        //if possible, audit the records as we parse the file, rather than reading through it twice
+        if (TransformConfig.instance().isFusedFileAuditEnabled()
+                && CsvByteScanner.isSupported(csvFormat, encoding)) {
+
+            FusedFileAuditor auditor = new FusedFileAuditor(this);
+            this.fileAuditId = new Integer(PublishedFileAuditHelper.auditPublishedFileRecord(this, firstRecordContainsHeaders, publishedFileType, auditor));
+
+            //if the file was previously fully audited, the auditor won't have been started
+            if (auditor.isStarted()) {
+                this.fusedFileAuditor = auditor;
+            }
+
+        } else {
+            this.fileAuditId = new Integer(PublishedFileAuditHelper.auditPublishedFileRecord(this, firstRecordContainsHeaders, publishedFileType));
+        }
         return this.fileAuditId;
     }
 
@@ -244,14 +324,22 @@ public abstract class AbstractCsvParser implements AutoCloseable, ParserI {
             LOG.info("Completed " + filePath);
         }
 
+        closeReader();
+
+        //if we're closed before reaching the end of the file, the audit won't be complete, so just stop the auditor
+        if (fusedFileAuditor != null) {
+            fusedFileAuditor.abort();
+            fusedFileAuditor = null;
+        }
+    }
+
+    private void closeReader() throws IOException {
         if (csvReader != null) {
             csvReader.close();
             csvReader = null;
         }
 
-        //may as well clear these as well
-        this.csvIterator = null;
-        this.csvRecord = null;
+        //may as well clear this as well
         this.csvRecordLineNumber = -1;
     }
 
@@ -375,8 +463,8 @@ public abstract class AbstractCsvParser implements AutoCloseable, ParserI {
             open("Starting");
         }
 
-        //if the source file couldn't be found, the iterator will be null
-        if (csvIterator == null) {
+        //if the source file couldn't be found, the reader will be null
+        if (csvReader == null) {
             return false;
         }
 
@@ -407,6 +495,12 @@ public abstract class AbstractCsvParser implements AutoCloseable, ParserI {
             throw new TransformException("ArrayIndexOutOfBoundsException at line " + csvRecordLineNumber, ex);
         }
 
+        //if auditing as we parse, wait until all the records are audited
+        if (fusedFileAuditor != null) {
+            fusedFileAuditor.finish();
+            fusedFileAuditor = null;
+        }
+
         //automatically close the parser once we reach the end, to cut down on memory use
         close();
 
@@ -428,13 +522,19 @@ public abstract class AbstractCsvParser implements AutoCloseable, ParserI {
     private boolean advanceToNextRow() throws Exception {
 
         try {
-            this.csvRecord = this.csvIterator.next();
+            if (!this.csvReader.nextRecord()) {
+                return false;
+            }
             this.csvRecordLineNumber = (int) this.csvReader.getCurrentLineNumber(); //safe cast as no CSV file is 2B rows
+            this.csvRecordsRead ++;
             return true;
 
-        } catch (NoSuchElementException nse) {
-            //a NoSuchElementException is thrown if next() is called when there is no next
-            return false;
+        } catch (IOException ioe) {
+            //probably an S3 timeout, in which case we should re-open the file and read forward to where we left off
+            LOG.error("Had an IO Exception reading " + filePath);
+            LOG.error("" + ioe.getClass().getName() + ": " + ioe.getMessage());
+
+            return reopenAndResumeOnNextLine();
 
         } catch (Throwable t) {
             //if we get a throwable that wraps up an IO exception, then it's
@@ -455,32 +555,33 @@ public abstract class AbstractCsvParser implements AutoCloseable, ParserI {
     }
 
     /**
-     * if we had an S3 timeout, this function is called to resume where we left off
+     * if we had an S3 timeout that the reader couldn't resume from itself, this function is called to re-read
+     * the file from the start and resume where we left off
      * returns false if there was no next line (i.e. we failed on the last line)
      */
     private boolean reopenAndResumeOnNextLine() throws Exception {
 
-        int nextDesiredRecordNumber = this.csvRecordLineNumber + 1;
-        LOG.info("Going to re-open and try to resume on line " + nextDesiredRecordNumber);
+        //skip by record count rather than line number, since records with embedded newlines span multiple lines
+        int recordsToSkip = this.csvRecordsRead;
+        LOG.info("Going to re-open and try to resume after line " + this.csvRecordLineNumber + " (record " + recordsToSkip + ")");
 
-        //close everything down
-        close();
+        //close everything down, but leave any fused auditor running since it'll pick up where it left off
+        closeReader();
 
         //open the file again
         open("Resuming");
 
-        //now read through the rows until we reach the next line number after the last one
+        //now read through the rows until we reach the next record after the last one
         while (true) {
-            try {
-                this.csvRecord = this.csvIterator.next();
-            } catch (NoSuchElementException nse) {
-                //if we get this exception, we've actually reached the end of the file (i.e. we failed on the last line)
+            if (!this.csvReader.nextRecord()) {
+                //if we get here, we've actually reached the end of the file (i.e. we failed on the last line)
                 return false;
             }
 
             this.csvRecordLineNumber = (int) this.csvReader.getCurrentLineNumber();
+            this.csvRecordsRead ++;
 
-            if (csvRecordLineNumber == nextDesiredRecordNumber) {
+            if (csvRecordsRead > recordsToSkip) {
                 LOG.info("Resuming on line " + csvRecordLineNumber);
                 break;
             }
@@ -511,25 +612,21 @@ public abstract class AbstractCsvParser implements AutoCloseable, ParserI {
 
     @Override
     public CsvCell getCell(String column) {
-        String value;
-        try {
-            value = csvRecord.get(column);
-        } catch (IllegalArgumentException ex) {
-            //if the column doesn't exist, then we'll get this exception, in which case return null
+
+        //if the column doesn't exist, then return null
+        Integer colIndexObj = getCsvReaderHeaderMap().get(column);
+        if (colIndexObj == null) {
             return null;
         }
+        int colIndex = colIndexObj.intValue();
 
-        //to save messy handling of non-empty but "empty" strings, trim whitespace of any non-null value
-        if (value != null) {
-            value = value.replace("\\u00a0", " ").trim(); // replace nbsp with normal space.
-
-            //strip out any high ascii values, i.e. those outside of range 0-127
-            value = value.replaceAll("[^\\x00-\\x7F]", "");
+        //the reader trims whitespace and strips out any high ascii values, to save messy handling of non-empty but "empty" strings,
+        //and returns null if the current record doesn't have this column
+        String value = csvReader.getCleanedValue(colIndex);
+        if (value == null) {
+            return null;
         }
 
-        Integer colIndexObj = getCsvReaderHeaderMap().get(column);
-        int colIndex = colIndexObj.intValue();
-
         //ensure we're not exceeding our supported max column count
         if (colIndex > (int)Short.MAX_VALUE) {
             throw new RuntimeException("Column index greater than " + Short.MAX_VALUE);
@@ -543,13 +640,7 @@ public abstract class AbstractCsvParser implements AutoCloseable, ParserI {
     }
 
     public Map<String, Integer> getCsvReaderHeaderMap() {
-
-        //calling getHeaderMap() on the reader will create and return a copy of the map, which
-        //is pretty expensive for the number of times that function is called. So we cache a copy and use that.
-        if (cachedHeaderMap == null) {
-            cachedHeaderMap = csvReader.getHeaderMap();
-        }
-        return cachedHeaderMap;
+        return csvReader.getHeaderMap();
     }
 
     /*public long getSourceFileRecordIdForCurrentRow() {
@@ -5,40 +5,46 @@ import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVPrinter;
 
 import java.io.BufferedWriter;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.math.BigDecimal;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public abstract class AbstractCsvWriter {
 
+    private static final DateTimeFormatter DATE_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd kk:mm:ss");
+
     private final String fileName;
     private final CSVFormat csvFormat;
-    private final DateFormat dateFormat;
-    private final DateFormat timeFormat;
-    private final DateFormat dateTimeFormat;
+    private final DateTimeFormatter dateFormat;
+    private final DateTimeFormatter timeFormat;
+    private boolean perThreadBuffers;
 
-    private ByteArrayOutputStream byteOutput = null;
+    private FileSpillingOutputStream byteOutput = null;
+    private BufferedWriter bufferedWriter = null;
     private CSVPrinter csvPrinter;
-    private int rowCount;
+    private AtomicInteger rowCount;
+    private long spillThreshold = 0;
+    private Map<Long, ThreadBuffer> threadBuffers = new ConcurrentHashMap<>();
 
     public AbstractCsvWriter(String fileName, CSVFormat csvFormat, String dateFormat, String timeFormat) throws Exception {
 
         this.fileName = fileName;
         this.csvFormat = csvFormat;
-        this.dateFormat = new SimpleDateFormat(dateFormat);
-        this.timeFormat = new SimpleDateFormat(timeFormat);
-        this.dateTimeFormat = new SimpleDateFormat(dateFormat + " " + timeFormat);
-        this.rowCount = 0;
+        this.dateFormat = DateTimeFormatter.ofPattern(dateFormat);
+        this.timeFormat = DateTimeFormatter.ofPattern(timeFormat);
+        this.perThreadBuffers = TransformConfig.instance().isCsvWriterPerThreadBuffers();
+        this.rowCount = new AtomicInteger();
     }
 
-    /**
-     * syncrhonized so we can transform multiple resources to CSV in parallel, but not have problems writing them to file
-     */
-    protected synchronized void printRecord(String... columns) throws IOException {
+    protected void printRecord(String... columns) throws IOException {
 
         //validate the number of values matches the column declarations so if there's a mismatch we don't end up sending bad CSV content onwards
         if (columns.length != 2 //when deleting, only two cols are present
@@ -46,42 +52,142 @@ public abstract class AbstractCsvWriter {
             throw new RuntimeException("Unexpected number of columns in " + getClass().getSimpleName() + ", printing " + columns.length + ", expecting " + getCsvHeaders().length);
         }
 
+        if (perThreadBuffers) {
+            printRecordToThreadBuffer(columns);
+        } else {
+            printRecordToOutput(columns);
+        }
+        rowCount.incrementAndGet();
+    }
+
+    /**
+     * syncrhonized so we can transform multiple resources to CSV in parallel, but not have problems writing them to file
+     */
+    private synchronized void printRecordToOutput(String... columns) throws IOException {
+        createPrinterIfNecessary();
+        csvPrinter.printRecord((Object[])columns);
+    }
+
+    /**
+     * formats the record into a buffer only used by the current thread, so there's no locking,
+     * with the buffers all merged into the output when closed. The buffers are held in memory until then,
+     * so aren't used if a spill threshold is set.
+     */
+    private void printRecordToThreadBuffer(String... columns) throws IOException {
+        Long threadId = new Long(Thread.currentThread().getId());
+        ThreadBuffer threadBuffer = threadBuffers.get(threadId);
+        if (threadBuffer == null) {
+            threadBuffer = new ThreadBuffer(csvFormat);
+            threadBuffers.put(threadId, threadBuffer);
+        }
+
+        threadBuffer.printRecord(columns);
+    }
+
+    private void createPrinterIfNecessary() throws IOException {
+
         //changed to create the printer lazily, so the pseudonymised boolean is set in the Patient class
         //before we try to get the headers
         if (csvPrinter == null) {
-            byteOutput = new ByteArrayOutputStream();
+            byteOutput = new FileSpillingOutputStream(spillThreshold);
             OutputStreamWriter writer = new OutputStreamWriter(byteOutput);
-            BufferedWriter bufferedWriter = new BufferedWriter(writer);
+            bufferedWriter = new BufferedWriter(writer);
 
             csvPrinter = new CSVPrinter(bufferedWriter, csvFormat.withHeader(getCsvHeaders()));
         }
-
-        csvPrinter.printRecord((Object[])columns);
-        rowCount ++;
     }
 
     /**
-     * DateFormat class isn't thread safe, so synchronize all calls on it
+     * writes the records from each thread's buffer to the output. The record ID (the second column, after the
+     * upsert/delete flag) comes from the resource it was transformed from, so sorting on it gives the same output
+     * however the resources were split between threads. Each thread's records for the same ID are kept together,
+     * in the order they were written.
      */
-    protected synchronized String convertDate(Date d) {
+    private void mergeThreadBuffers() throws IOException {
+        if (threadBuffers.isEmpty()) {
+            return;
+        }
+
+        createPrinterIfNecessary();
+        csvPrinter.flush();
+
+        List<ThreadBuffer> buffers = new ArrayList<>(threadBuffers.values());
+        threadBuffers.clear();
+
+        //sorting is stable, so each thread's records for the same ID stay in order
+        for (ThreadBuffer buffer: buffers) {
+            Collections.sort(buffer.records);
+        }
+
+        int[] positions = new int[buffers.size()];
+        List<Integer> matches = new ArrayList<>();
+        while (true) {
+
+            //find the lowest ID at the head of any buffer, and all buffers with that ID
+            BufferedRecord lowest = null;
+            matches.clear();
+            for (int i=0; i<buffers.size(); i++) {
+                List<BufferedRecord> records = buffers.get(i).records;
+                if (positions[i] >= records.size()) {
+                    continue;
+                }
+
+                BufferedRecord head = records.get(positions[i]);
+                int comp = lowest == null ? -1 : head.compareTo(lowest);
+                if (comp < 0) {
+                    lowest = head;
+                    matches.clear();
+                }
+                if (comp <= 0) {
+                    matches.add(new Integer(i));
+                }
+            }
+
+            if (lowest == null) {
+                break;
+            }
+
+            //if more than one thread wrote a record for the same ID, order their runs by the record content
+            if (matches.size() > 1) {
+                matches.sort((a, b) -> buffers.get(a.intValue()).records.get(positions[a.intValue()]).line
+                        .compareTo(buffers.get(b.intValue()).records.get(positions[b.intValue()]).line));
+            }
+
+            for (Integer match: matches) {
+                int i = match.intValue();
+                List<BufferedRecord> records = buffers.get(i).records;
+                while (positions[i] < records.size()
+                        && records.get(positions[i]).compareTo(lowest) == 0) {
+                    bufferedWriter.write(records.get(positions[i]).line);
+                    positions[i] ++;
+                }
+            }
+        }
+    }
+
+    protected String convertDate(Date d) {
         if (d == null) {
             return null;
         } else {
-            return dateFormat.format(d);
+            return dateFormat.format(toLocal(d));
         }
     }
 
-    /**
-     * DateFormat class isn't thread safe, so synchronize all calls on it
-     */
-    protected synchronized String convertTime(Date d) {
+    protected String convertTime(Date d) {
         if (d == null) {
             return null;
         } else {
-            return timeFormat.format(d);
+            return timeFormat.format(toLocal(d));
         }
     }
 
+    /**
+     * java.sql.Date doesn't support toInstant(), so go via the millis
+     */
+    private static ZonedDateTime toLocal(Date d) {
+        return Instant.ofEpochMilli(d.getTime()).atZone(ZoneId.systemDefault());
+    }
+
     protected String convertInt(Integer i) {
         if (i == null) {
             return null;
@@ -90,11 +196,11 @@ public abstract class AbstractCsvWriter {
         }
     }
 
-    protected synchronized String convertDateTime(Date d) {
+    protected String convertDateTime(Date d) {
         if (d == null) {
             return null;
         } else {
-            return new SimpleDateFormat("yyyy-MM-dd kk:mm:ss").format(d);
+            return DATE_TIME_FORMAT.format(toLocal(d));
         }
     }
 
@@ -149,10 +255,55 @@ public abstract class AbstractCsvWriter {
     }
 
     public byte[] close() throws IOException {
+        mergeThreadBuffers();
+        csvPrinter.flush();
+        csvPrinter.close();
+
+        try {
+            return byteOutput.toByteArray();
+        } finally {
+            byteOutput.delete();
+        }
+    }
+
+    /**
+     * alternative to close() that streams the CSV content to the given stream rather than returning it as one array
+     */
+    public void closeTo(OutputStream outputStream) throws IOException {
+        mergeThreadBuffers();
         csvPrinter.flush();
         csvPrinter.close();
 
-        return byteOutput.toByteArray();
+        try {
+            byteOutput.writeTo(outputStream);
+        } finally {
+            byteOutput.delete();
+        }
+    }
+
+    /**
+     * deletes any temp file the CSV content has been spilled to, for when the content isn't going to be read
+     * (e.g. writing the zip failed part way). Does nothing if already closed.
+     */
+    public void discard() {
+        if (byteOutput != null) {
+            byteOutput.delete();
+        }
+    }
+
+    /**
+     * if set, once the CSV content goes over this many bytes it's written to a temp file rather than kept in memory.
+     * Must be set before the first record is printed.
+     *
+     * Per-thread buffers hold every record in memory until they're merged (sorted by ID) on close, which would
+     * defeat the threshold, so setting one turns them off for this writer and records are written straight to
+     * the output instead.
+     */
+    public void setSpillThreshold(long spillThreshold) {
+        this.spillThreshold = spillThreshold;
+        if (spillThreshold > 0) {
+            this.perThreadBuffers = false;
+        }
     }
 
     public String getFileName() {
@@ -176,6 +327,68 @@ public abstract class AbstractCsvWriter {
     protected abstract String[] getCsvHeaders();
 
     public boolean isEmpty() {
-        return rowCount == 0;
+        return rowCount.get() == 0;
+    }
+
+    /**
+     * the records written by a single thread, each already formatted as CSV
+     */
+    static class ThreadBuffer {
+        private final StringBuilder sb = new StringBuilder();
+        private final CSVPrinter printer;
+        private final List<BufferedRecord> records = new ArrayList<>();
+
+        ThreadBuffer(CSVFormat csvFormat) throws IOException {
+            this.printer = new CSVPrinter(sb, csvFormat);
+        }
+
+        void printRecord(String... columns) throws IOException {
+            printer.printRecord((Object[])columns);
+            String line = sb.toString();
+            sb.setLength(0);
+
+            //the first column is the upsert/delete flag, so the second is the ID
+            String id = columns.length > 1 ? columns[1] : columns[0];
+            records.add(new BufferedRecord(id, line));
+        }
+    }
+
+    static class BufferedRecord implements Comparable<BufferedRecord> {
+        private final String id;
+        private final long numericId;
+        private final boolean isNumeric;
+        private final String line;
+
+        BufferedRecord(String id, String line) {
+            this.line = line;
+
+            if (id == null) {
+                id = "";
+            }
+            this.id = id;
+
+            long numericId = 0;
+            boolean isNumeric = false;
+            try {
+                numericId = Long.parseLong(id);
+                isNumeric = true;
+            } catch (NumberFormatException ex) {
+                //not all tables have numeric IDs, so just compare as strings
+            }
+            this.numericId = numericId;
+            this.isNumeric = isNumeric;
+        }
+
+        @Override
+        public int compareTo(BufferedRecord o) {
+            if (isNumeric && o.isNumeric) {
+                return Long.compare(numericId, o.numericId);
+            } else if (isNumeric != o.isNumeric) {
+                //numeric IDs before anything else
+                return isNumeric ? -1 : 1;
+            } else {
+                return id.compareTo(o.id);
+            }
+        }
     }
 }
@@ -25,6 +25,9 @@ public abstract class AbstractFixedParser implements AutoCloseable, ParserI {
     private final DateFormat dateFormat;
     private final DateFormat timeFormat;
     private final DateFormat dateTimeFormat;
+    private final CsvDateParser dateParser;
+    private final CsvDateParser timeParser;
+    private final CsvDateParser dateTimeParser;
     private String curentLine;
     private BufferedReader br;
     private int currentLineNumber;
@@ -49,20 +52,26 @@ public abstract class AbstractFixedParser implements AutoCloseable, ParserI {
 
         if (!Strings.isNullOrEmpty(dateFormat)) {
             this.dateFormat = new SimpleDateFormat(dateFormat);
+            this.dateParser = CsvDateParser.factory(dateFormat);
         } else {
             this.dateFormat = null;
+            this.dateParser = null;
         }
 
         if (!Strings.isNullOrEmpty(timeFormat)) {
             this.timeFormat = new SimpleDateFormat(timeFormat);
+            this.timeParser = CsvDateParser.factory(timeFormat);
         } else {
             this.timeFormat = null;
+            this.timeParser = null;
         }
 
         if (!Strings.isNullOrEmpty(dateFormat) && !Strings.isNullOrEmpty(timeFormat)) {
             this.dateTimeFormat = new SimpleDateFormat(dateFormat + " " + timeFormat);
+            this.dateTimeParser = CsvDateParser.factory(dateFormat + " " + timeFormat);
         } else {
             this.dateTimeFormat = null;
+            this.dateTimeParser = null;
         }
 
 
@@ -135,6 +144,21 @@ public abstract class AbstractFixedParser implements AutoCloseable, ParserI {
         return dateTimeFormat;
     }
 
+    @Override
+    public CsvDateParser getDateParser() {
+        return dateParser;
+    }
+
+    @Override
+    public CsvDateParser getTimeParser() {
+        return timeParser;
+    }
+
+    @Override
+    public CsvDateParser getDateTimeParser() {
+        return dateTimeParser;
+    }
+
     @Override
     public String getVersion() {
         return version;
@@ -0,0 +1,281 @@
+package org.endeavourhealth.transform.common;
+
+import com.google.common.base.Strings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * optional read-only file of Read2 terms, CTV3 to Snomed mappings and Snomed terms, built by CodeMappingFileBuilder,
+ * which is memory-mapped so the code caches can find the codes every exchange uses without going to the DB or
+ * holding them on the heap. Each table is sorted by code, so lookups are a binary search directly against the
+ * mapped file. Anything not in the file is still looked up from the DB by the caches, as before.
+ *
+ * The file is a header of the date it was built, counts and positions, then the three tables of fixed-width entries,
+ * then a table of the strings (codes and terms) they refer to, each stored as a two byte length followed by the
+ * UTF-8 bytes. As the file is only a copy of the DB tables, one older than the configured maximum age is ignored.
+ * The file is checked again every minute, so a long-running transform stops using it once it's too old and picks
+ * up a new one when it's rebuilt.
+ */
+public class CodeMappingFile {
+    private static final Logger LOG = LoggerFactory.getLogger(CodeMappingFile.class);
+
+    static final int MAGIC = 0x434D4631; //"CMF1"
+    static final int VERSION = 2;
+    static final int HEADER_SIZE = 44;
+    static final int READ2_TERM_ENTRY_SIZE = 8; //code offset, term offset
+    static final int CTV3_SNOMED_ENTRY_SIZE = 12; //code offset, concept ID
+    static final int SNOMED_TERM_ENTRY_SIZE = 12; //concept ID, term offset
+
+    //the file is checked again this often, so a file that's gone past the max age stops being used and one
+    //that's been rebuilt (or deleted) is picked up by a long-running transform
+    private static final long CHECK_INTERVAL_MS = 60 * 1000;
+
+    //singleton
+    private static volatile CodeMappingFile instance;
+    private static volatile long nextCheck = 0;
+    private static final Object sync = new Object();
+
+    //the last file mapped, which may not be the instance if it's too old, so it's not mapped again every check
+    private static CodeMappingFile mapped;
+    private static long mappedLastModified;
+    private static long mappedLength;
+    private static String lastWarning;
+
+    private final MappedByteBuffer buffer;
+    private final long buildDate;
+    private final int read2Count;
+    private final int read2Pos;
+    private final int ctv3Count;
+    private final int ctv3Pos;
+    private final int snomedCount;
+    private final int snomedPos;
+    private final int stringsPos;
+
+    /**
+     * returns the code mapping file if one is configured, could be loaded and isn't too old, or null otherwise
+     */
+    public static CodeMappingFile instance() {
+        long now = System.currentTimeMillis();
+        if (now >= nextCheck) {
+            synchronized (sync) {
+                if (now >= nextCheck) {
+                    instance = checkFile();
+                    nextCheck = System.currentTimeMillis() + CHECK_INTERVAL_MS;
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * the file is only there to save time, so any problem reading it is logged and the file ignored. Anyone
+     * still using a previous instance can carry on, as a file replaced by CodeMappingFileBuilder is moved
+     * over the old one rather than written into it, so the old mapping stays valid.
+     */
+    private static CodeMappingFile checkFile() {
+
+        String path = TransformConfig.instance().getCodeMappingFile();
+        if (Strings.isNullOrEmpty(path)) {
+            return null;
+        }
+
+        File file = new File(path);
+        if (!file.exists()) {
+            mapped = null;
+            warnOnce("No code mapping file found at " + file, null);
+            return null;
+        }
+
+        //if the file has changed since we last mapped it, map it again
+        long lastModified = file.lastModified();
+        long length = file.length();
+        if (mapped == null
+                || mappedLastModified != lastModified
+                || mappedLength != length) {
+
+            mapped = null;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                 FileChannel channel = raf.getChannel()) {
+
+                //the mapping remains valid after the channel is closed
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                mapped = new CodeMappingFile(buffer);
+                mappedLastModified = lastModified;
+                mappedLength = length;
+
+            } catch (Exception ex) {
+                warnOnce("Failed to load code mapping file " + file, ex);
+                return null;
+            }
+
+            LOG.info("Loaded code mapping file " + file + " version " + VERSION + " built on " + new Date(mapped.buildDate)
+                    + " with " + mapped.read2Count + " Read2 terms, " + mapped.ctv3Count + " CTV3 to Snomed mappings and "
+                    + mapped.snomedCount + " Snomed terms");
+        }
+
+        //the age is checked every time, as a file can go past the max age while we're running
+        int maxAgeDays = TransformConfig.instance().getCodeMappingFileMaxAgeDays();
+        long ageMs = System.currentTimeMillis() - mapped.buildDate;
+        if (maxAgeDays > 0
+                && ageMs > TimeUnit.DAYS.toMillis(maxAgeDays)) {
+            warnOnce("Ignoring code mapping file " + file + " built on " + new Date(mapped.buildDate)
+                    + " as it's older than " + maxAgeDays + " days", null);
+            return null;
+        }
+
+        lastWarning = null;
+        return mapped;
+    }
+
+    /**
+     * the file is checked every minute, so only log a problem when it's not the same as last time
+     */
+    private static void warnOnce(String msg, Exception ex) {
+        if (msg.equals(lastWarning)) {
+            return;
+        }
+        lastWarning = msg;
+        if (ex == null) {
+            LOG.warn(msg);
+        } else {
+            LOG.warn(msg, ex);
+        }
+    }
+
+    CodeMappingFile(MappedByteBuffer buffer) throws Exception {
+
+        if (buffer.capacity() < HEADER_SIZE
+                || buffer.getInt(0) != MAGIC) {
+            throw new Exception("Not a code mapping file");
+        }
+        int version = buffer.getInt(4);
+        if (version != VERSION) {
+            throw new Exception("Unsupported code mapping file version " + version);
+        }
+
+        this.buffer = buffer;
+        this.buildDate = buffer.getLong(8);
+        this.read2Count = buffer.getInt(16);
+        this.read2Pos = buffer.getInt(20);
+        this.ctv3Count = buffer.getInt(24);
+        this.ctv3Pos = buffer.getInt(28);
+        this.snomedCount = buffer.getInt(32);
+        this.snomedPos = buffer.getInt(36);
+        this.stringsPos = buffer.getInt(40);
+
+        if (stringsPos > buffer.capacity()) {
+            throw new Exception("Code mapping file is truncated");
+        }
+    }
+
+    /**
+     * returns the preferred term for a Read2 code, or null if not in the file
+     */
+    public String getRead2Term(String code) {
+        int index = findStringKey(code, read2Pos, read2Count, READ2_TERM_ENTRY_SIZE);
+        if (index < 0) {
+            return null;
+        }
+
+        int termOffset = buffer.getInt(read2Pos + (index * READ2_TERM_ENTRY_SIZE) + 4);
+        return readString(termOffset);
+    }
+
+    /**
+     * returns the Snomed concept ID a CTV3 code maps to, or null if not in the file
+     */
+    public Long getSnomedConceptForCtv3(String code) {
+        int index = findStringKey(code, ctv3Pos, ctv3Count, CTV3_SNOMED_ENTRY_SIZE);
+        if (index < 0) {
+            return null;
+        }
+
+        return new Long(buffer.getLong(ctv3Pos + (index * CTV3_SNOMED_ENTRY_SIZE) + 4));
+    }
+
+    /**
+     * returns the term for a Snomed concept ID, or null if not in the file
+     */
+    public String getSnomedTerm(long conceptId) {
+        int low = 0;
+        int high = snomedCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int entryPos = snomedPos + (mid * SNOMED_TERM_ENTRY_SIZE);
+            long midConceptId = buffer.getLong(entryPos);
+
+            if (midConceptId < conceptId) {
+                low = mid + 1;
+            } else if (midConceptId > conceptId) {
+                high = mid - 1;
+            } else {
+                int termOffset = buffer.getInt(entryPos + 8);
+                return readString(termOffset);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * binary search of a table keyed by a string offset, comparing the code against the mapped bytes so nothing
+     * is created while searching. Codes are all ASCII, so are compared a char to a byte.
+     */
+    private int findStringKey(String code, int tablePos, int count, int entrySize) {
+        if (code == null) {
+            return -1;
+        }
+
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int keyOffset = buffer.getInt(tablePos + (mid * entrySize));
+            int cmp = compareString(keyOffset, code);
+
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private int compareString(int offset, String code) {
+        int pos = stringsPos + offset;
+        int length = buffer.getShort(pos) & 0xFFFF;
+        pos += 2;
+
+        int n = Math.min(length, code.length());
+        for (int i=0; i<n; i++) {
+            int b = buffer.get(pos + i) & 0xFF;
+            int c = code.charAt(i);
+            if (b != c) {
+                return b - c;
+            }
+        }
+        return length - code.length();
+    }
+
+    private String readString(int offset) {
+        int pos = stringsPos + offset;
+        int length = buffer.getShort(pos) & 0xFFFF;
+        pos += 2;
+
+        byte[] bytes = new byte[length];
+        for (int i=0; i<length; i++) {
+            bytes[i] = buffer.get(pos + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,226 @@
+package org.endeavourhealth.transform.common;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * builds the file read by CodeMappingFile from CSV exports of the Read2, CTV3 and Snomed reference tables. Each
+ * CSV has a header row, with the code in the first column and the term or concept ID in the second:
+ *
+ *     Read2 terms: Read2 code, preferred term
+ *     CTV3 to Snomed: CTV3 code, Snomed concept ID
+ *     Snomed terms: Snomed concept ID, term
+ *
+ * Usage: CodeMappingFileBuilder <read2 terms csv> <ctv3 to snomed csv> <snomed terms csv> <output file>
+ */
+public class CodeMappingFileBuilder {
+    private static final Logger LOG = LoggerFactory.getLogger(CodeMappingFileBuilder.class);
+
+    private static final int MAX_STRING_BYTES = 0xFFFF;
+
+    private final Map<String, String> read2Terms = new TreeMap<>();
+    private final Map<String, Long> ctv3ToSnomed = new TreeMap<>();
+    private final Map<Long, String> snomedTerms = new TreeMap<>();
+
+    public static void main(String[] args) throws Exception {
+
+        if (args.length != 4) {
+            LOG.error("Usage: CodeMappingFileBuilder <read2 terms csv> <ctv3 to snomed csv> <snomed terms csv> <output file>");
+            System.exit(-1);
+        }
+
+        CodeMappingFileBuilder builder = new CodeMappingFileBuilder();
+        builder.readRead2Terms(new File(args[0]));
+        builder.readCtv3ToSnomed(new File(args[1]));
+        builder.readSnomedTerms(new File(args[2]));
+        builder.write(new File(args[3]));
+    }
+
+    public void readRead2Terms(File file) throws Exception {
+        try (CSVParser parser = openCsv(file)) {
+            for (CSVRecord record: parser) {
+                addRead2Term(record.get(0), record.get(1));
+            }
+        }
+        LOG.info("Read " + read2Terms.size() + " Read2 terms from " + file);
+    }
+
+    public void readCtv3ToSnomed(File file) throws Exception {
+        try (CSVParser parser = openCsv(file)) {
+            for (CSVRecord record: parser) {
+                addCtv3ToSnomed(record.get(0), Long.valueOf(record.get(1)));
+            }
+        }
+        LOG.info("Read " + ctv3ToSnomed.size() + " CTV3 to Snomed mappings from " + file);
+    }
+
+    public void readSnomedTerms(File file) throws Exception {
+        try (CSVParser parser = openCsv(file)) {
+            for (CSVRecord record: parser) {
+                addSnomedTerm(Long.valueOf(record.get(0)), record.get(1));
+            }
+        }
+        LOG.info("Read " + snomedTerms.size() + " Snomed terms from " + file);
+    }
+
+    private static CSVParser openCsv(File file) throws Exception {
+        Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8);
+        return new CSVParser(reader, CSVFormat.DEFAULT.withHeader());
+    }
+
+    public void addRead2Term(String code, String term) {
+        if (isValidCode(code)
+                && isValidString(term)) {
+            read2Terms.put(code, term);
+        }
+    }
+
+    public void addCtv3ToSnomed(String code, Long conceptId) {
+        if (isValidCode(code)
+                && conceptId != null) {
+            ctv3ToSnomed.put(code, conceptId);
+        }
+    }
+
+    public void addSnomedTerm(Long conceptId, String term) {
+        if (conceptId != null
+                && isValidString(term)) {
+            snomedTerms.put(conceptId, term);
+        }
+    }
+
+    /**
+     * codes are compared a char to a byte when looked up, so anything that isn't ASCII is left out (and will
+     * just be looked up from the DB)
+     */
+    private static boolean isValidCode(String code) {
+        if (code == null
+                || code.isEmpty()) {
+            return false;
+        }
+        for (int i=0; i<code.length(); i++) {
+            if (code.charAt(i) > 127) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isValidString(String s) {
+        return s != null
+                && s.getBytes(StandardCharsets.UTF_8).length <= MAX_STRING_BYTES;
+    }
+
+    /**
+     * writes to a temp file then atomically moves it over the old one, so a running transform never maps a partial
+     * file. The current time is recorded as the build date, so stale files can be spotted.
+     */
+    public void write(File file) throws Exception {
+
+        //build the string table first, so the tables can refer to offsets in it
+        ByteArrayOutputStream strings = new ByteArrayOutputStream();
+        DataOutputStream stringsOut = new DataOutputStream(strings);
+        Map<String, Integer> hmStringOffsets = new HashMap<>();
+
+        int[] read2CodeOffsets = new int[read2Terms.size()];
+        int[] read2TermOffsets = new int[read2Terms.size()];
+        int i = 0;
+        for (Map.Entry<String, String> entry: read2Terms.entrySet()) {
+            read2CodeOffsets[i] = addString(entry.getKey(), stringsOut, hmStringOffsets);
+            read2TermOffsets[i] = addString(entry.getValue(), stringsOut, hmStringOffsets);
+            i ++;
+        }
+
+        int[] ctv3CodeOffsets = new int[ctv3ToSnomed.size()];
+        i = 0;
+        for (String code: ctv3ToSnomed.keySet()) {
+            ctv3CodeOffsets[i] = addString(code, stringsOut, hmStringOffsets);
+            i ++;
+        }
+
+        int[] snomedTermOffsets = new int[snomedTerms.size()];
+        i = 0;
+        for (String term: snomedTerms.values()) {
+            snomedTermOffsets[i] = addString(term, stringsOut, hmStringOffsets);
+            i ++;
+        }
+        stringsOut.flush();
+
+        long read2Pos = CodeMappingFile.HEADER_SIZE;
+        long ctv3Pos = read2Pos + ((long)read2Terms.size() * CodeMappingFile.READ2_TERM_ENTRY_SIZE);
+        long snomedPos = ctv3Pos + ((long)ctv3ToSnomed.size() * CodeMappingFile.CTV3_SNOMED_ENTRY_SIZE);
+        long stringsPos = snomedPos + ((long)snomedTerms.size() * CodeMappingFile.SNOMED_TERM_ENTRY_SIZE);
+        if (stringsPos + strings.size() > Integer.MAX_VALUE) {
+            throw new Exception("Code mapping file would be too large");
+        }
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+
+            out.writeInt(CodeMappingFile.MAGIC);
+            out.writeInt(CodeMappingFile.VERSION);
+            out.writeLong(System.currentTimeMillis());
+            out.writeInt(read2Terms.size());
+            out.writeInt((int)read2Pos);
+            out.writeInt(ctv3ToSnomed.size());
+            out.writeInt((int)ctv3Pos);
+            out.writeInt(snomedTerms.size());
+            out.writeInt((int)snomedPos);
+            out.writeInt((int)stringsPos);
+
+            for (i=0; i<read2CodeOffsets.length; i++) {
+                out.writeInt(read2CodeOffsets[i]);
+                out.writeInt(read2TermOffsets[i]);
+            }
+
+            i = 0;
+            for (Long conceptId: ctv3ToSnomed.values()) {
+                out.writeInt(ctv3CodeOffsets[i]);
+                out.writeLong(conceptId.longValue());
+                i ++;
+            }
+
+            i = 0;
+            for (Long conceptId: snomedTerms.keySet()) {
+                out.writeLong(conceptId.longValue());
+                out.writeInt(snomedTermOffsets[i]);
+                i ++;
+            }
+
+            strings.writeTo(out);
+        }
+
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        LOG.info("Written code mapping file " + file + " of " + file.length() + " bytes");
+    }
+
+    /**
+     * terms are repeated a lot (e.g. Read2 and Snomed), so each distinct string is only stored once
+     */
+    private static int addString(String s, DataOutputStream stringsOut, Map<String, Integer> hmStringOffsets) throws IOException {
+
+        Integer offset = hmStringOffsets.get(s);
+        if (offset != null) {
+            return offset.intValue();
+        }
+
+        int ret = stringsOut.size();
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        stringsOut.writeShort(bytes.length);
+        stringsOut.write(bytes);
+
+        hmStringOffsets.put(s, new Integer(ret));
+        return ret;
+    }
+}
@@ -0,0 +1,106 @@
+package org.endeavourhealth.transform.common;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.endeavourhealth.core.csv.CsvHelper;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * CsvRecordReaderI implementation that uses the Apache Commons CSV library. This is the original way of
+ * reading CSV files and is still used for any CSVFormat that FastCsvRecordReader doesn't support
+ */
+public class CommonsCsvRecordReader implements CsvRecordReaderI {
+
+    private final CSVParser csvParser;
+    private final Iterator<CSVRecord> csvIterator;
+    private CSVRecord csvRecord = null;
+    private Map<String, Integer> cachedHeaderMap = null;
+    private final long lineNumberOffset;
+
+    public CommonsCsvRecordReader(Reader reader, CSVFormat csvFormat) throws IOException {
+        this.csvParser = new CSVParser(reader, csvFormat);
+        this.csvIterator = csvParser.iterator();
+        this.lineNumberOffset = 0;
+    }
+
+    /**
+     * creates a reader that resumes part way through a file, where the reader is positioned at the start of a record.
+     * The CSVParser is told there's no header, so it doesn't try to read one, and we use the header map we already have.
+     */
+    public CommonsCsvRecordReader(Reader reader, CSVFormat csvFormat, Map<String, Integer> headerMap, long startLineNumber) throws IOException {
+        this.csvParser = new CSVParser(reader, csvFormat.withHeader((String[])null));
+        this.csvIterator = csvParser.iterator();
+        this.cachedHeaderMap = headerMap;
+        this.lineNumberOffset = startLineNumber;
+    }
+
+    @Override
+    public boolean nextRecord() throws IOException {
+        try {
+            this.csvRecord = csvIterator.next();
+            return true;
+
+        } catch (NoSuchElementException nse) {
+            //a NoSuchElementException is thrown if next() is called when there is no next
+            return false;
+
+        } catch (IllegalStateException ex) {
+            //the CSVParser iterator wraps any IOException up, so unwrap it so it can be handled the same as our other reader
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException)ex.getCause();
+            }
+            throw ex;
+        }
+    }
+
+    @Override
+    public long getCurrentLineNumber() {
+        return csvParser.getCurrentLineNumber() + lineNumberOffset;
+    }
+
+    @Override
+    public Map<String, Integer> getHeaderMap() {
+
+        //calling getHeaderMap() on the reader will create and return a copy of the map, which
+        //is pretty expensive for the number of times that function is called. So we cache a copy and use that.
+        if (cachedHeaderMap == null) {
+            cachedHeaderMap = csvParser.getHeaderMap();
+        }
+        return cachedHeaderMap;
+    }
+
+    @Override
+    public void validateHeaders(String filePath, String[] expectedHeaders) throws Exception {
+        CsvHelper.validateCsvHeaders(csvParser, filePath, expectedHeaders);
+    }
+
+    @Override
+    public String getCleanedValue(int colIndex) {
+        if (colIndex >= csvRecord.size()) {
+            return null;
+        }
+
+        String value = csvRecord.get(colIndex);
+
+        //to save messy handling of non-empty but "empty" strings, trim whitespace of any non-null value
+        if (value != null) {
+            value = value.replace("\\u00a0", " ").trim(); // replace nbsp with normal space.
+
+            //strip out any high ascii values, i.e. those outside of range 0-127
+            value = value.replaceAll("[^\\x00-\\x7F]", "");
+        }
+
+        return value;
+    }
+
+    @Override
+    public void close() throws IOException {
+        csvParser.close();
+    }
+}
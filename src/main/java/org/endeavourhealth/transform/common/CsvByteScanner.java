@@ -0,0 +1,289 @@
+package org.endeavourhealth.transform.common;
+
+import org.apache.commons.csv.CSVFormat;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * finds the byte range of each record in a CSV file by scanning the raw bytes as they're read by the parser,
+ * using the same quote and line terminator rules as the CSV parser, so record numbers match the line numbers
+ * the parser gives each CsvCell and quoted embedded newlines don't split records.
+ *
+ * Each record's range starts from the end of the previous record, so any blank lines that the parser skips
+ * are included in the following record. This only works on the raw bytes for charsets where bytes below 128 are
+ * always ASCII characters, so isSupported(..) should be checked first.
+ */
+public class CsvByteScanner {
+
+    private static final Set<String> SUPPORTED_CHARSETS = new HashSet<>(Arrays.asList("UTF-8", "windows-1252", "ISO-8859-1", "US-ASCII"));
+
+    private static final int STATE_FIELD_START = 0;
+    private static final int STATE_UNQUOTED = 1;
+    private static final int STATE_QUOTED = 2;
+    private static final int STATE_QUOTE_IN_QUOTED = 3;
+    private static final int STATE_AFTER_QUOTED = 4;
+
+    private final int delimiter;
+    private final int quote;
+    private final boolean ignoreEmptyLines;
+    private final List<CsvByteScannerListenerI> listeners = new ArrayList<>();
+
+    //scan state
+    private long bytePos;
+    private long recordStart;
+    private long eolCounter;
+    private int prevByte;
+    private int state;
+    private boolean recordHasContent;
+    private boolean carriageReturnPending;
+
+    public CsvByteScanner(CSVFormat csvFormat) {
+        this.delimiter = csvFormat.getDelimiter();
+        Character quoteChar = csvFormat.getQuoteCharacter();
+        this.quote = quoteChar != null ? quoteChar.charValue() : -1;
+        this.ignoreEmptyLines = csvFormat.getIgnoreEmptyLines();
+
+        reset(0, 0);
+    }
+
+    /**
+     * returns true if the format and encoding allow us to find record boundaries from the raw bytes
+     */
+    public static boolean isSupported(CSVFormat csvFormat, Charset encoding) {
+        if (!FastCsvRecordReader.isSupported(csvFormat)
+                || csvFormat.getDelimiter() > 127) {
+            return false;
+        }
+
+        Character quoteChar = csvFormat.getQuoteCharacter();
+        if (quoteChar != null && quoteChar.charValue() > 127) {
+            return false;
+        }
+
+        //if no encoding is specified, the file is read using the platform default
+        if (encoding == null) {
+            encoding = Charset.defaultCharset();
+        }
+        return SUPPORTED_CHARSETS.contains(encoding.name());
+    }
+
+    public void addListener(CsvByteScannerListenerI listener) {
+        this.listeners.add(listener);
+    }
+
+    /**
+     * resets the scanner to start from the given byte offset, which must be the end of a record,
+     * with the line number being that of the record ending there
+     */
+    public void reset(long byteOffset, long lineNumber) {
+        this.bytePos = byteOffset;
+        this.recordStart = byteOffset;
+        this.eolCounter = lineNumber;
+        this.prevByte = -1;
+        this.state = STATE_FIELD_START;
+        this.recordHasContent = false;
+        this.carriageReturnPending = false;
+    }
+
+    /**
+     * wraps the stream so that everything read through it is scanned
+     */
+    public InputStream wrap(InputStream inputStream) {
+        return new ScanningInputStream(inputStream);
+    }
+
+    public void scan(byte[] bytes, int offset, int len) throws Exception {
+
+        for (int i=offset; i<offset+len; i++) {
+            int b = bytes[i] & 0xFF;
+
+            if (carriageReturnPending) {
+                carriageReturnPending = false;
+                if (b == '\n') {
+                    //LF after CR is part of the same line terminator
+                    bytePos ++;
+                    prevByte = b;
+                    endOfLine();
+                    continue;
+                }
+                endOfLine();
+            }
+
+            bytePos ++;
+            if (b == '\r' || (b == '\n' && prevByte != '\r')) {
+                eolCounter ++;
+            }
+            prevByte = b;
+
+            switch (state) {
+                case STATE_FIELD_START:
+                    if (b == quote) {
+                        state = STATE_QUOTED;
+                        recordHasContent = true;
+                    } else if (b == delimiter) {
+                        recordHasContent = true;
+                    } else if (b == '\r' || b == '\n') {
+                        lineTerminator(b);
+                    } else {
+                        state = STATE_UNQUOTED;
+                        recordHasContent = true;
+                    }
+                    break;
+
+                case STATE_UNQUOTED:
+                    if (b == delimiter) {
+                        state = STATE_FIELD_START;
+                    } else if (b == '\r' || b == '\n') {
+                        lineTerminator(b);
+                    }
+                    break;
+
+                case STATE_QUOTED:
+                    //line terminators are just part of the value when quoted
+                    if (b == quote) {
+                        state = STATE_QUOTE_IN_QUOTED;
+                    }
+                    break;
+
+                case STATE_QUOTE_IN_QUOTED:
+                case STATE_AFTER_QUOTED:
+                    if (b == quote && state == STATE_QUOTE_IN_QUOTED) {
+                        //double quote is an escaped quote
+                        state = STATE_QUOTED;
+                    } else if (b == delimiter) {
+                        state = STATE_FIELD_START;
+                    } else if (b == '\r' || b == '\n') {
+                        lineTerminator(b);
+                    } else if (b < 128 && Character.isWhitespace((char)b)) {
+                        state = STATE_AFTER_QUOTED;
+                    } else {
+                        //the parser will fail on this, but just treat as unquoted so we don't get stuck
+                        state = STATE_UNQUOTED;
+                    }
+                    break;
+
+                default:
+                    throw new IllegalStateException("Unexpected state " + state);
+            }
+        }
+    }
+
+    private void lineTerminator(int b) throws Exception {
+        if (b == '\r') {
+            //need to see the next byte to know if this is CR or CRLF
+            carriageReturnPending = true;
+        } else {
+            endOfLine();
+        }
+    }
+
+    private void endOfLine() throws Exception {
+
+        //blank lines are skipped by the parser, so just become part of the next record
+        if (recordHasContent || !ignoreEmptyLines) {
+            recordFound((int)eolCounter);
+        }
+
+        state = STATE_FIELD_START;
+        recordHasContent = false;
+    }
+
+    private void recordFound(int recordNumber) throws Exception {
+        for (CsvByteScannerListenerI listener: listeners) {
+            listener.recordFound(recordNumber, recordStart, bytePos);
+        }
+        recordStart = bytePos;
+    }
+
+    public void endOfStream() throws Exception {
+
+        if (carriageReturnPending) {
+            carriageReturnPending = false;
+            endOfLine();
+        }
+
+        if (recordHasContent) {
+            //a final record without a line terminator
+            recordFound((int)eolCounter + 1);
+        }
+
+        for (CsvByteScannerListenerI listener: listeners) {
+            listener.endOfStream(bytePos);
+        }
+    }
+
+    class ScanningInputStream extends FilterInputStream {
+
+        private boolean reachedEnd = false;
+
+        ScanningInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1) {
+                onEnd();
+            } else {
+                onBytes(new byte[]{(byte)b}, 0, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read == -1) {
+                onEnd();
+            } else {
+                onBytes(b, off, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            throw new IOException("Skipping not supported when scanning CSV bytes");
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        //any failure in a listener is NOT thrown as an IOException, since the parser would treat that as an S3 timeout and re-open the file
+        private void onBytes(byte[] b, int off, int len) {
+            try {
+                scan(b, off, len);
+            } catch (RuntimeException re) {
+                throw re;
+            } catch (Exception ex) {
+                throw new RuntimeException("Error scanning CSV bytes", ex);
+            }
+        }
+
+        private void onEnd() {
+            if (reachedEnd) {
+                return;
+            }
+            reachedEnd = true;
+
+            try {
+                endOfStream();
+            } catch (RuntimeException re) {
+                throw re;
+            } catch (Exception ex) {
+                throw new RuntimeException("Error scanning CSV bytes", ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package org.endeavourhealth.transform.common;
+
+/**
+ * callback for CsvByteScanner, told of each record found in the raw bytes of a CSV file
+ */
+public interface CsvByteScannerListenerI {
+
+    /**
+     * called for each record found, with the start byte (inclusive) and end byte (exclusive) including the line terminator
+     */
+    void recordFound(int recordNumber, long byteStart, long byteEnd) throws Exception;
+
+    /**
+     * called when the end of the stream is reached, with the total bytes scanned
+     */
+    void endOfStream(long byteEnd) throws Exception;
+}
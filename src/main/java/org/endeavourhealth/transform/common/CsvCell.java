@@ -7,16 +7,13 @@ import org.hl7.fhir.instance.model.DateTimeType;
 import org.hl7.fhir.instance.model.TemporalPrecisionEnum;
 
 import java.nio.charset.Charset;
-import java.text.DateFormat;
 import java.text.ParseException;
 import java.util.Date;
 import java.util.List;
-import java.util.concurrent.locks.ReentrantLock;
 
 public class CsvCell {
 
     public static final Charset CHARSET = Charset.forName("UTF-8");
-    private static final ReentrantLock dateFormatLock = new ReentrantLock();
     //changed to store as a UTF-8 encoded byte array to save 50% memory; the additional
     //CPU needed to decode seems minimal (100M encodes & decodes took 20s in testing)
     private byte[] valueBytes;
@@ -119,22 +116,20 @@ public class CsvCell {
             throw new IllegalArgumentException("Can't get getDate on CsvCell that didn't come from a ParserI");
         }
 
-        DateFormat dateFormat = parentParser.getDateFormat();
+        CsvDateParser dateParser = parentParser.getDateParser();
 
         //in Barts data, we have a special helper function for parsing dates because they use different formats
         //and are affected by a BST issue (i.e. data is always supplied as UTC), so we give those parsers a null date format to prevent mistakes
-        if (dateFormat == null) {
+        if (dateParser == null) {
             throw new IllegalArgumentException("No date format on cell - should there be another way of parsing dates for this transform?");
         }
 
+        //the date parser is thread-safe, so no locking is needed
         try {
-            dateFormatLock.lock();
-            return dateFormat.parse(getString());
+            return dateParser.parse(getString());
         } catch (ParseException pe) {
             throw new FileFormatException("", "Invalid date format [" + getString() + "]", pe);
-        }  finally {
-           dateFormatLock.unlock();
-    }
+        }
     }
     public Date getTime() throws TransformException {
         if (isEmpty()) {
@@ -145,21 +140,18 @@ public class CsvCell {
             throw new IllegalArgumentException("Can't get getTime on CsvCell that didn't come from a ParserI");
         }
 
-        DateFormat timeFormat = parentParser.getTimeFormat();
+        CsvDateParser timeParser = parentParser.getTimeParser();
 
         //in Barts data, we have a special helper function for parsing dates because they use different formats
         //and are affected by a BST issue (i.e. data is always supplied as UTC), so we give those parsers a null date format to prevent mistakes
-        if (timeFormat == null) {
+        if (timeParser == null) {
             throw new IllegalArgumentException("No date format on cell - should there be another way of parsing dates for this transform?");
         }
 
         try {
-            dateFormatLock.lock();
-            return timeFormat.parse(getString());
+            return timeParser.parse(getString());
         } catch (ParseException pe) {
             throw new FileFormatException("", "Invalid time format [" + getString() + "]", pe);
-        } finally {
-            dateFormatLock.unlock();
         }
     }
     public Date getDateTime() throws TransformException {
@@ -171,21 +163,18 @@ public class CsvCell {
             throw new IllegalArgumentException("Can't get getDateTime on CsvCell that didn't come from a ParserI");
         }
 
-        DateFormat dateTimeFormat = parentParser.getDateTimeFormat();
+        CsvDateParser dateTimeParser = parentParser.getDateTimeParser();
 
         //in Barts data, we have a special helper function for parsing dates because they use different formats
         //and are affected by a BST issue (i.e. data is always supplied as UTC), so we give those parsers a null date format to prevent mistakes
-        if (dateTimeFormat == null) {
+        if (dateTimeParser == null) {
             throw new IllegalArgumentException("No date format on cell - should there be another way of parsing dates for this transform?");
         }
 
         try {
-            dateFormatLock.lock();
-            return dateTimeFormat.parse(getString());
+            return dateTimeParser.parse(getString());
         } catch (ParseException pe) {
             throw new FileFormatException("", "Invalid date time format [" + getString() + "]", pe);
-        } finally {
-            dateFormatLock.unlock();
         }
     }
     public boolean getBoolean() {
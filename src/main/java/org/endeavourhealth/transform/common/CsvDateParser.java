@@ -0,0 +1,270 @@
+package org.endeavourhealth.transform.common;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Date;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * thread-safe replacement for sharing a SimpleDateFormat between threads behind a lock. Each instance
+ * is shared by all parsers using the same pattern and has:
+ * 1. a hand-rolled parser for simple fixed-width numeric patterns (e.g. yyyy-MM-dd, HH:mm:ss), only used when
+ *    the value exactly matches the pattern and every field is in range, so there's no leniency to replicate
+ * 2. a per-thread clone of the SimpleDateFormat for anything else, so all lenient parsing behaviour is unchanged
+ * 3. a small memo of recently parsed values, since the same dates are repeated heavily in extract files
+ */
+public class CsvDateParser {
+
+    private static final int MEMO_SIZE = 1024; //must be a power of two
+    private static final int MIN_FIXED_WIDTH_YEAR = 1950; //avoid any calendar or local mean time differences between java.util and java.time
+    private static final long NOT_PARSED = Long.MIN_VALUE;
+
+    private static final Map<String, CsvDateParser> cache = new ConcurrentHashMap<>();
+
+    private final String pattern;
+    private final SimpleDateFormat template;
+    private final ThreadLocal<DateFormat> threadLocalFormat;
+    private final ZoneId zoneId;
+    private final MemoEntry[] memo = new MemoEntry[MEMO_SIZE];
+
+    //fixed-width parsing, with the position of each field in the pattern or -1 if not present
+    private final boolean fixedWidth;
+    private final char[] fixedWidthTemplate;
+    private int yearPos = -1;
+    private int monthPos = -1;
+    private int dayPos = -1;
+    private int hourPos = -1;
+    private int minutePos = -1;
+    private int secondPos = -1;
+
+    private CsvDateParser(String pattern) {
+        this.pattern = pattern;
+        this.template = new SimpleDateFormat(pattern);
+        this.threadLocalFormat = ThreadLocal.withInitial(() -> (DateFormat)template.clone());
+        this.zoneId = template.getTimeZone().toZoneId();
+        this.fixedWidthTemplate = compileFixedWidthTemplate(pattern);
+        this.fixedWidth = fixedWidthTemplate != null;
+    }
+
+    /**
+     * returns the shared parser for the given SimpleDateFormat pattern in the default time zone
+     */
+    public static CsvDateParser factory(String pattern) {
+        String key = pattern + "|" + TimeZone.getDefault().getID();
+        CsvDateParser ret = cache.get(key);
+        if (ret == null) {
+            ret = new CsvDateParser(pattern);
+            CsvDateParser existing = cache.putIfAbsent(key, ret);
+            if (existing != null) {
+                ret = existing;
+            }
+        }
+        return ret;
+    }
+
+    public String getPattern() {
+        return pattern;
+    }
+
+    /**
+     * parses the String, returning the same result as SimpleDateFormat.parse(..) would
+     */
+    public Date parse(String s) throws ParseException {
+
+        int memoIndex = spreadHash(s.hashCode()) & (MEMO_SIZE - 1);
+        MemoEntry entry = memo[memoIndex];
+        if (entry != null && entry.value.equals(s)) {
+            return new Date(entry.millis);
+        }
+
+        long millis = NOT_PARSED;
+        if (fixedWidth) {
+            millis = parseFixedWidth(s);
+        }
+
+        if (millis == NOT_PARSED) {
+            DateFormat dateFormat = threadLocalFormat.get();
+            millis = dateFormat.parse(s).getTime();
+        }
+
+        //entries are immutable, so this is safe to do without any locking
+        memo[memoIndex] = new MemoEntry(s, millis);
+        return new Date(millis);
+    }
+
+    /**
+     * parses the String if it exactly matches our fixed-width template, returning NOT_PARSED if it doesn't
+     */
+    private long parseFixedWidth(String s) {
+        int len = fixedWidthTemplate.length;
+        if (s.length() != len) {
+            return NOT_PARSED;
+        }
+
+        for (int i=0; i<len; i++) {
+            char expected = fixedWidthTemplate[i];
+            char c = s.charAt(i);
+            if (expected == 0) {
+                if (c < '0' || c > '9') {
+                    return NOT_PARSED;
+                }
+            } else if (c != expected) {
+                return NOT_PARSED;
+            }
+        }
+
+        //anything not in the pattern is defaulted the same as SimpleDateFormat does, to 1970-01-01 00:00:00
+        int year = readNumber(s, yearPos, 4, 1970);
+        int month = readNumber(s, monthPos, 2, 1);
+        int day = readNumber(s, dayPos, 2, 1);
+        int hour = readNumber(s, hourPos, 2, 0);
+        int minute = readNumber(s, minutePos, 2, 0);
+        int second = readNumber(s, secondPos, 2, 0);
+
+        //if any field is out of range, let SimpleDateFormat deal with it, so its lenient parsing is preserved
+        if (year < MIN_FIXED_WIDTH_YEAR
+                || month < 1 || month > 12
+                || day < 1 || day > daysInMonth(year, month)
+                || hour > 23
+                || minute > 59
+                || second > 59) {
+            return NOT_PARSED;
+        }
+
+        //for times that fall in a DST overlap, SimpleDateFormat uses the later (i.e. standard time) offset
+        return LocalDateTime.of(year, month, day, hour, minute, second)
+                .atZone(zoneId)
+                .withLaterOffsetAtOverlap()
+                .toInstant()
+                .toEpochMilli();
+    }
+
+    private static int readNumber(String s, int pos, int len, int defaultValue) {
+        if (pos == -1) {
+            return defaultValue;
+        }
+        int ret = 0;
+        for (int i=pos; i<pos+len; i++) {
+            ret = (ret * 10) + (s.charAt(i) - '0');
+        }
+        return ret;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        switch (month) {
+            case 2:
+                boolean leap = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+                return leap ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    /**
+     * compiles the pattern into a template where each digit position is zero and each literal is the expected char,
+     * returning null if the pattern uses anything other than yyyy, MM, dd, HH, mm and ss and literals
+     */
+    private char[] compileFixedWidthTemplate(String pattern) {
+
+        StringBuilder sb = new StringBuilder();
+        int i = 0;
+        int len = pattern.length();
+        while (i < len) {
+            char c = pattern.charAt(i);
+
+            if (c == '\'') {
+                //quoted literal text, where two single quotes represent a single quote
+                int end = i + 1;
+                if (end < len && pattern.charAt(end) == '\'') {
+                    sb.append('\'');
+                    i += 2;
+                    continue;
+                }
+                while (true) {
+                    if (end >= len) {
+                        return null;
+                    }
+                    char q = pattern.charAt(end);
+                    if (q == '\'') {
+                        if (end + 1 < len && pattern.charAt(end + 1) == '\'') {
+                            sb.append('\'');
+                            end += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    sb.append(q);
+                    end ++;
+                }
+                i = end + 1;
+
+            } else if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) {
+                int runEnd = i;
+                while (runEnd < len && pattern.charAt(runEnd) == c) {
+                    runEnd ++;
+                }
+                int count = runEnd - i;
+                int pos = sb.length();
+
+                if (c == 'y' && count == 4 && yearPos == -1) {
+                    yearPos = pos;
+                } else if (c == 'M' && count == 2 && monthPos == -1) {
+                    monthPos = pos;
+                } else if (c == 'd' && count == 2 && dayPos == -1) {
+                    dayPos = pos;
+                } else if (c == 'H' && count == 2 && hourPos == -1) {
+                    hourPos = pos;
+                } else if (c == 'm' && count == 2 && minutePos == -1) {
+                    minutePos = pos;
+                } else if (c == 's' && count == 2 && secondPos == -1) {
+                    secondPos = pos;
+                } else {
+                    return null;
+                }
+
+                for (int j=0; j<count; j++) {
+                    sb.append((char)0);
+                }
+                i = runEnd;
+
+            } else {
+                sb.append(c);
+                i ++;
+            }
+        }
+
+        //literal digits in the pattern would be ambiguous with our digit placeholders, so don't support them
+        for (int j=0; j<sb.length(); j++) {
+            char c = sb.charAt(j);
+            if (c >= '0' && c <= '9') {
+                return null;
+            }
+        }
+
+        return sb.toString().toCharArray();
+    }
+
+    private static int spreadHash(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    static class MemoEntry {
+        private final String value;
+        private final long millis;
+
+        MemoEntry(String value, long millis) {
+            this.value = value;
+            this.millis = millis;
+        }
+    }
+}
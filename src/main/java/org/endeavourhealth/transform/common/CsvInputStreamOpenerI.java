@@ -0,0 +1,12 @@
+package org.endeavourhealth.transform.common;
+
+import java.io.InputStream;
+
+/**
+ * opens the raw bytes of a file starting from a given byte offset, used by ResumableCsvRecordReader
+ * to open a file initially and to re-open it part way through after an IO error
+ */
+public interface CsvInputStreamOpenerI {
+
+    InputStream open(long byteOffset) throws Exception;
+}
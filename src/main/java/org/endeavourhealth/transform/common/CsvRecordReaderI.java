@@ -0,0 +1,36 @@
+package org.endeavourhealth.transform.common;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * abstraction over the low-level tokenising of a CSV file, so AbstractCsvParser can use either
+ * the Apache Commons CSV library or our own lighter-weight tokenizer
+ */
+public interface CsvRecordReaderI extends AutoCloseable {
+
+    /**
+     * advances to the next record, returning false if the end of the file has been reached
+     */
+    boolean nextRecord() throws IOException;
+
+    /**
+     * returns the line number of the current record, using the same counting as CSVParser.getCurrentLineNumber()
+     */
+    long getCurrentLineNumber();
+
+    Map<String, Integer> getHeaderMap();
+
+    /**
+     * validates the headers found in the file against those expected, throwing an IllegalArgumentException if they don't match
+     */
+    void validateHeaders(String filePath, String[] expectedHeaders) throws Exception;
+
+    /**
+     * returns the trimmed value for the given column index in the current record, stripped of any non-ASCII characters.
+     * Returns null if the current record doesn't have that many columns.
+     */
+    String getCleanedValue(int colIndex);
+
+    void close() throws IOException;
+}
@@ -0,0 +1,401 @@
+package org.endeavourhealth.transform.common;
+
+import org.apache.commons.csv.CSVFormat;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * lightweight CSV tokenizer that reads into a reusable char buffer and just records the start and end offsets
+ * of each column in the current record, only creating Strings when a cell is actually requested. Its behaviour
+ * (including line number counting) mirrors the Apache Commons CSV parser for the subset of CSVFormat features
+ * that our parsers use, and isSupported(..) should be used to check a format can be handled.
+ */
+public class FastCsvRecordReader implements CsvRecordReaderI {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int END_OF_STREAM = -1;
+    private static final int UNDEFINED = -2;
+    private static final int NO_QUOTE = -3;
+
+    private static final char[] LITERAL_NBSP = "\\u00a0".toCharArray();
+
+    private final Reader reader;
+    private final char delimiter;
+    private final int quote;
+    private final boolean ignoreEmptyLines;
+    private final CSVFormat csvFormat;
+    private Map<String, Integer> headerMap;
+
+    //read state
+    private final char[] readBuffer = new char[READ_BUFFER_SIZE];
+    private int readPos = 0;
+    private int readLimit = 0;
+    private int lastChar = UNDEFINED;
+    private long eolCounter = 0;
+
+    //current record state, re-used for each record
+    private char[] rowBuffer = new char[4 * 1024];
+    private int rowLength = 0;
+    private int[] colStarts = new int[64];
+    private int[] colEnds = new int[64];
+    private int colCount = 0;
+    private final StringBuilder cleanBuffer = new StringBuilder();
+
+    public FastCsvRecordReader(Reader reader, CSVFormat csvFormat) throws IOException {
+        this(reader, csvFormat, null, 0);
+    }
+
+    /**
+     * creates a reader that resumes part way through a file, where the reader is positioned at the start of a record,
+     * so the headers are already known and the line number counting carries on from the end of the previous record
+     */
+    public FastCsvRecordReader(Reader reader, CSVFormat csvFormat, Map<String, Integer> headerMap, long startLineNumber) throws IOException {
+        if (!isSupported(csvFormat)) {
+            throw new IllegalArgumentException("CSV format not supported by " + getClass().getSimpleName() + " " + csvFormat);
+        }
+
+        this.reader = reader;
+        this.csvFormat = csvFormat;
+        this.delimiter = csvFormat.getDelimiter();
+        this.ignoreEmptyLines = csvFormat.getIgnoreEmptyLines();
+
+        Character quoteChar = csvFormat.getQuoteCharacter();
+        if (quoteChar == null) {
+            this.quote = NO_QUOTE;
+        } else {
+            this.quote = quoteChar.charValue();
+        }
+
+        if (headerMap == null) {
+            initHeaders();
+        } else {
+            this.headerMap = headerMap;
+            this.eolCounter = startLineNumber;
+        }
+    }
+
+    /**
+     * returns true if the CSV format only uses features that this class supports. Anything else
+     * should be read using CommonsCsvRecordReader.
+     */
+    public static boolean isSupported(CSVFormat csvFormat) {
+        Character quoteChar = csvFormat.getQuoteCharacter();
+        return csvFormat.getHeader() != null
+                && csvFormat.getEscapeCharacter() == null
+                && csvFormat.getCommentMarker() == null
+                && csvFormat.getNullString() == null
+                && !csvFormat.getIgnoreSurroundingSpaces()
+                && !csvFormat.getIgnoreHeaderCase()
+                && !csvFormat.getTrim()
+                && !csvFormat.getTrailingDelimiter()
+                && csvFormat.getDelimiter() != '\r'
+                && csvFormat.getDelimiter() != '\n'
+                && (quoteChar == null || quoteChar.charValue() != csvFormat.getDelimiter());
+    }
+
+    private void initHeaders() throws IOException {
+
+        String[] formatHeader = csvFormat.getHeader();
+        String[] headers;
+
+        if (formatHeader.length == 0) {
+            //if the format has an empty header array, the first record contains the headers
+            if (nextRecord()) {
+                headers = new String[colCount];
+                for (int i=0; i<colCount; i++) {
+                    headers[i] = new String(rowBuffer, colStarts[i], colEnds[i] - colStarts[i]);
+                }
+            } else {
+                headers = new String[0];
+            }
+
+        } else {
+            headers = formatHeader;
+
+            if (csvFormat.getSkipHeaderRecord()) {
+                nextRecord();
+            }
+        }
+
+        Map<String, Integer> map = new LinkedHashMap<>();
+        for (int i=0; i<headers.length; i++) {
+            String header = headers[i];
+            boolean emptyHeader = header == null || header.trim().isEmpty();
+            if (map.containsKey(header)
+                    && (!emptyHeader || !csvFormat.getAllowMissingColumnNames())) {
+                throw new IllegalArgumentException("The header contains a duplicate name: \"" + header + "\" in " + Arrays.toString(headers));
+            }
+            map.put(header, new Integer(i));
+        }
+        this.headerMap = Collections.unmodifiableMap(map);
+    }
+
+    @Override
+    public Map<String, Integer> getHeaderMap() {
+        return headerMap;
+    }
+
+    @Override
+    public void validateHeaders(String filePath, String[] expectedHeaders) throws Exception {
+
+        //to ensure validation is exactly the same as when using the Commons CSV library, create a CSVParser
+        //with no content that just has our headers, and validate that in the normal way
+        String[] headers = headerMap.keySet().toArray(new String[0]);
+        CommonsCsvRecordReader headerReader = new CommonsCsvRecordReader(new StringReader(""), csvFormat.withHeader(headers));
+        try {
+            headerReader.validateHeaders(filePath, expectedHeaders);
+        } finally {
+            headerReader.close();
+        }
+    }
+
+    @Override
+    public long getCurrentLineNumber() {
+        //same logic as the Commons CSV ExtendedBufferedReader, which only increments the counter when the line terminator is read
+        if (lastChar == '\r' || lastChar == '\n' || lastChar == UNDEFINED || lastChar == END_OF_STREAM) {
+            return eolCounter;
+        }
+        return eolCounter + 1;
+    }
+
+    @Override
+    public boolean nextRecord() throws IOException {
+
+        rowLength = 0;
+        colCount = 0;
+
+        int c = read();
+
+        if (ignoreEmptyLines) {
+            while (isEndOfLine(c)) {
+                consumeLineFeedAfterCarriageReturn(c);
+                c = read();
+            }
+        }
+
+        if (c == END_OF_STREAM) {
+            return false;
+        }
+
+        while (true) {
+            int colStart = rowLength;
+
+            if (c == quote) {
+                c = readQuotedColumn();
+
+            } else {
+                while (c != delimiter
+                        && c != END_OF_STREAM
+                        && !isEndOfLine(c)) {
+                    append((char)c);
+                    c = read();
+                }
+            }
+
+            addColumn(colStart, rowLength);
+
+            if (c == delimiter) {
+                c = read();
+
+            } else {
+                consumeLineFeedAfterCarriageReturn(c);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * reads a quoted column, returning the first character after it (which will be a delimiter, line terminator or end of stream)
+     */
+    private int readQuotedColumn() throws IOException {
+
+        long startLine = getCurrentLineNumber();
+
+        while (true) {
+            int c = read();
+            if (c == END_OF_STREAM) {
+                throw new IOException("(startline " + startLine + ") EOF reached before encapsulated token finished");
+
+            } else if (c == quote) {
+                if (peek() == quote) {
+                    //double quote is an escaped quote
+                    append((char)read());
+
+                } else {
+                    //end of the quoted column, so skip over any whitespace until the end of the column
+                    while (true) {
+                        c = read();
+                        if (c == delimiter
+                                || c == END_OF_STREAM
+                                || isEndOfLine(c)) {
+                            return c;
+
+                        } else if (!Character.isWhitespace((char)c)) {
+                            throw new IOException("(line " + getCurrentLineNumber() + ") invalid char between encapsulated token and delimiter");
+                        }
+                    }
+                }
+
+            } else {
+                append((char)c);
+            }
+        }
+    }
+
+    @Override
+    public String getCleanedValue(int colIndex) {
+        if (colIndex >= colCount) {
+            return null;
+        }
+
+        return cleanValue(rowBuffer, colStarts[colIndex], colEnds[colIndex], cleanBuffer);
+    }
+
+    /**
+     * returns a String equivalent to value.replace("\\u00a0", " ").trim().replaceAll("[^\\x00-\\x7F]", "") but
+     * without any regex or intermediate Strings. Since almost all values are plain ASCII without any backslashes,
+     * the first scan is usually the only one needed.
+     */
+    static String cleanValue(char[] chars, int start, int end, StringBuilder sb) {
+
+        boolean needsCleaning = false;
+        for (int i=start; i<end; i++) {
+            char c = chars[i];
+            if (c > 0x7F || c == '\\') {
+                needsCleaning = true;
+                break;
+            }
+        }
+
+        if (!needsCleaning) {
+            while (start < end && chars[start] <= ' ') {
+                start ++;
+            }
+            while (end > start && chars[end - 1] <= ' ') {
+                end --;
+            }
+            return new String(chars, start, end - start);
+        }
+
+        //replace any literal backslash-u00a0 text with a space (note this is the six character text, not an actual NBSP)
+        sb.setLength(0);
+        for (int i=start; i<end; i++) {
+            if (chars[i] == '\\'
+                    && matchesLiteralNbsp(chars, i, end)) {
+                sb.append(' ');
+                i += LITERAL_NBSP.length - 1;
+            } else {
+                sb.append(chars[i]);
+            }
+        }
+
+        //trim, then strip any high ascii values, in that order, as the legacy code did
+        int trimStart = 0;
+        int trimEnd = sb.length();
+        while (trimStart < trimEnd && sb.charAt(trimStart) <= ' ') {
+            trimStart ++;
+        }
+        while (trimEnd > trimStart && sb.charAt(trimEnd - 1) <= ' ') {
+            trimEnd --;
+        }
+
+        int len = 0;
+        for (int i=trimStart; i<trimEnd; i++) {
+            char c = sb.charAt(i);
+            if (c <= 0x7F) {
+                sb.setCharAt(len, c);
+                len ++;
+            }
+        }
+        return sb.substring(0, len);
+    }
+
+    private static boolean matchesLiteralNbsp(char[] chars, int pos, int end) {
+        if (pos + LITERAL_NBSP.length > end) {
+            return false;
+        }
+        for (int i=0; i<LITERAL_NBSP.length; i++) {
+            if (chars[pos + i] != LITERAL_NBSP[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void addColumn(int start, int end) {
+        if (colCount == colStarts.length) {
+            colStarts = Arrays.copyOf(colStarts, colCount * 2);
+            colEnds = Arrays.copyOf(colEnds, colCount * 2);
+        }
+        colStarts[colCount] = start;
+        colEnds[colCount] = end;
+        colCount ++;
+    }
+
+    private void append(char c) {
+        if (rowLength == rowBuffer.length) {
+            rowBuffer = Arrays.copyOf(rowBuffer, rowLength * 2);
+        }
+        rowBuffer[rowLength] = c;
+        rowLength ++;
+    }
+
+    private static boolean isEndOfLine(int c) {
+        return c == '\r' || c == '\n';
+    }
+
+    /**
+     * treats CRLF as a single line terminator
+     */
+    private void consumeLineFeedAfterCarriageReturn(int c) throws IOException {
+        if (c == '\r' && peek() == '\n') {
+            read();
+        }
+    }
+
+    private boolean fillBuffer() throws IOException {
+        int read = reader.read(readBuffer, 0, readBuffer.length);
+        if (read <= 0) {
+            return false;
+        }
+        readPos = 0;
+        readLimit = read;
+        return true;
+    }
+
+    private int read() throws IOException {
+        int c;
+        if (readPos >= readLimit && !fillBuffer()) {
+            c = END_OF_STREAM;
+
+        } else {
+            c = readBuffer[readPos];
+            readPos ++;
+
+            if (c == '\r' || (c == '\n' && lastChar != '\r')) {
+                eolCounter ++;
+            }
+        }
+
+        lastChar = c;
+        return c;
+    }
+
+    private int peek() throws IOException {
+        if (readPos >= readLimit && !fillBuffer()) {
+            return END_OF_STREAM;
+        }
+        return readBuffer[readPos];
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
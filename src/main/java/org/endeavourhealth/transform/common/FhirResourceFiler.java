@@ -35,6 +35,8 @@ public class FhirResourceFiler implements FhirResourceFilerI, HasServiceSystemAn
 
     private static final Logger LOG = LoggerFactory.getLogger(FhirResourceFiler.class);
 
+    private static final long QUEUE_SPACE_WAIT_MS = 1000;
+
     private static Set<ResourceType> patientResourceTypes = null;
     private static Map<Class, ResourceValidatorBase> resourceValidators = new ConcurrentHashMap<>();
 
@@ -61,6 +63,10 @@ public class FhirResourceFiler implements FhirResourceFilerI, HasServiceSystemAn
     private FileResourceTask nextDeleteResourceTask = new FileResourceTask(true);
     private ThreadPool threadPoolIdMapper = null;
     private ThreadPool threadPoolFiler = null;
+    private FhirResourceFilerBackPressure backPressure = null;
+    private AtomicInteger idMappingQueueDepth = new AtomicInteger();
+    private AtomicInteger savingQueueDepth = new AtomicInteger();
+    private FhirResourceFilerListenerI listener = null;
 
     //counts
     private Map<UUID, AtomicInteger> countResourcesTrySaved = new ConcurrentHashMap<>();
@@ -88,6 +94,7 @@ public class FhirResourceFiler implements FhirResourceFilerI, HasServiceSystemAn
         int maxFilingThreads = ConnectionManager.getEhrConnectionPoolMaxSize(serviceId) - 2;
         this.threadPoolIdMapper = new ThreadPool(maxFilingThreads, 500, "FhirFilerIdMapper");
         this.threadPoolFiler = new ThreadPool(maxFilingThreads, 500, "FhirFilerSaver");
+        this.backPressure = new FhirResourceFilerBackPressure(TransformConfig.instance().getFhirFilerMaxQueuedBytes());
         this.creationTime = System.currentTimeMillis();
     }
 
@@ -97,7 +104,7 @@ public class FhirResourceFiler implements FhirResourceFilerI, HasServiceSystemAn
     }
 
     public void saveAdminResource(CsvCurrentState parserState, boolean mapIds, ResourceBuilderBase... resources) throws Exception {
-        validateResources(serviceId, mapIds, false, resources);
+        validate(mapIds, false, resources);
         ExchangeBatch batch = getAdminBatch();
         addResourceToQueue(parserState, false, mapIds, batch, false, resources);
     }
@@ -107,7 +114,7 @@ public class FhirResourceFiler implements FhirResourceFilerI, HasServiceSystemAn
     }
 
     public void deleteAdminResource(CsvCurrentState parserState, boolean mapIds, ResourceBuilderBase... resources) throws Exception {
-        validateResources(serviceId, mapIds, true, resources);
+        validate(mapIds, true, resources);
         ExchangeBatch batch = getAdminBatch();
         addResourceToQueue(parserState, false, mapIds, batch, true, resources);
     }
@@ -117,7 +124,7 @@ public class FhirResourceFiler implements FhirResourceFilerI, HasServiceSystemAn
     }
 
     public void savePatientResource(CsvCurrentState parserState, boolean mapIds, ResourceBuilderBase... resources) throws Exception {
-        validateResources(serviceId, mapIds, false, resources);
+        validate(mapIds, false, resources);
         ExchangeBatch batch = getPatientBatch(mapIds, resources);
         addResourceToQueue(parserState, true, mapIds, batch, false, resources);
     }
@@ -127,11 +134,27 @@ public class FhirResourceFiler implements FhirResourceFilerI, HasServiceSystemAn
     }
 
     public void deletePatientResource(CsvCurrentState parserState, boolean mapIds, ResourceBuilderBase... resources) throws Exception {
-        validateResources(serviceId, mapIds, true, resources);
+        validate(mapIds, true, resources);
         ExchangeBatch batch = getPatientBatch(mapIds, resources);
         addResourceToQueue(parserState, true, mapIds, batch, true, resources);
     }
 
+    /**
+     * sets a listener to be told how long each stage of filing is taking, which should be done before anything is saved
+     */
+    public void setListener(FhirResourceFilerListenerI listener) {
+        this.listener = listener;
+    }
+
+    private void validate(boolean mapIds, boolean deleting, ResourceBuilderBase... resourceBuilders) throws Exception {
+        long start = System.currentTimeMillis();
+        validateResources(serviceId, mapIds, deleting, resourceBuilders);
+
+        if (listener != null) {
+            listener.stageCompleted(FhirResourceFilerListenerI.Stage.VALIDATE, resourceBuilders.length, 0, System.currentTimeMillis() - start, 0);
+        }
+    }
+
     private void addResourceToQueue(CsvCurrentState parserState,
                                     boolean expectingPatientResource,
                                     boolean mapIds,
@@ -174,29 +197,70 @@ public class FhirResourceFiler implements FhirResourceFilerI, HasServiceSystemAn
             }
         }
 
+        List<ResourceJob> jobs = new ArrayList<>();
+        long payloadBytes = 0;
+        for (ResourceBuilderBase builder : resourceBuilders) {
+            if (builder != null) {
+                ResourceJob job = new ResourceJob(parserState, isDelete, exchangeBatch, builder);
+                //LOG.trace("Adding job for " + builder.getResource().getResourceType() + " " + builder.getResource().getId() + " isDelete = " + isDelete);
+
+                //serialising is the only real measure of how much memory the resource is taking, so only do it if we need to
+                if (backPressure.isEnabled()) {
+                    job.setPayloadBytes(FhirSerializationHelper.serializeResource(builder.getResource()).length());
+                    payloadBytes += job.getPayloadBytes();
+                }
+                jobs.add(job);
+            }
+        }
+
+        if (backPressure.isEnabled()
+                && !jobs.isEmpty()) {
+            waitForQueueSpace(payloadBytes);
+        }
+
         //if we want to map IDs then put in the ID mapping queue, otherwise go straight to the filing queue
         if (mapIds) {
-            addToIdMappingQueue(parserState, isDelete, exchangeBatch, resourceBuilders);
+            addToIdMappingQueue(jobs);
 
         } else {
-            addToFilingQueue(parserState, isDelete, exchangeBatch, resourceBuilders);
+            for (ResourceJob job : jobs) {
+                addToFilingQueue(job);
+            }
         }
     }
 
+    /**
+     * blocks until the queues have room for the given size of resources, so the transform can't get too
+     * far ahead of the filing threads
+     */
+    private void waitForQueueSpace(long payloadBytes) throws Exception {
 
+        long start = System.currentTimeMillis();
+        boolean blocked = !backPressure.hasRoomFor(payloadBytes);
 
-    private void addToIdMappingQueue(CsvCurrentState parserState, boolean isDelete,
-                                     ExchangeBatch exchangeBatch, ResourceBuilderBase[] resourceBuilders) throws Exception {
+        while (!backPressure.tryAcquire(payloadBytes, QUEUE_SPACE_WAIT_MS)) {
+            //still no room after waiting, so make sure the queued resources
+            //aren't just sitting in part-full tasks that nothing will submit
+            runNextMapIdTask();
+            runNextSaveResourceTask();
+            runNextDeleteResourceTask();
+        }
+
+        if (blocked
+                && listener != null) {
+            listener.producerBlocked(backPressure.getQueuedBytes(), System.currentTimeMillis() - start);
+        }
+    }
+
+    private void addToIdMappingQueue(List<ResourceJob> jobs) throws Exception {
 
         //lock since this may be called from multiple threads and array lists aren't thread safe for adding
         try {
             mapIdTaskLock.lock();
 
-            for (ResourceBuilderBase builder : resourceBuilders) {
-                if (builder != null) {
-                    ResourceJob job = new ResourceJob(parserState, isDelete, exchangeBatch, builder);
-                    nextMapIdTask.addJob(job);
-                }
+            for (ResourceJob job : jobs) {
+                nextMapIdTask.addJob(job);
+                idMappingQueueDepth.incrementAndGet();
             }
 
             //if the task is full, then execute it
@@ -217,6 +281,7 @@ public class FhirResourceFiler implements FhirResourceFilerI, HasServiceSystemAn
             nextMapIdTask = new MapIdTask();
 
             if (!task.isEmpty()) {
+                task.setQueuedAt(System.currentTimeMillis());
                 List<ThreadPoolError> errors = threadPoolIdMapper.submit(task);
                 handleErrors(errors);
             }
@@ -225,18 +290,6 @@ public class FhirResourceFiler implements FhirResourceFilerI, HasServiceSystemAn
         }
     }
 
-    private void addToFilingQueue(CsvCurrentState parserState, boolean isDelete,
-                                  ExchangeBatch exchangeBatch, ResourceBuilderBase[] resourceBuilders) throws Exception {
-
-        for (ResourceBuilderBase builder : resourceBuilders) {
-            if (builder != null) {
-                ResourceJob job = new ResourceJob(parserState, isDelete, exchangeBatch, builder);
-                //LOG.trace("Adding filing job for " + builder.getResource().getResourceType() + " " + builder.getResource().getId() + " isDelete = " + isDelete);
-                addToFilingQueue(job);
-            }
-        }
-    }
-
     private void addToFilingQueue(ResourceJob job) throws Exception {
         //lock since this may be called from multiple threads and array lists aren't thread safe for adding
         try {
@@ -247,6 +300,7 @@ public class FhirResourceFiler implements FhirResourceFilerI, HasServiceSystemAn
             } else {
                 nextSaveResourceTask.addJob(job);
             }
+            savingQueueDepth.incrementAndGet();
 
             if (job.isDelete()) {
                 if (nextDeleteResourceTask.isFull()) {
@@ -273,6 +327,7 @@ public class FhirResourceFiler implements FhirResourceFilerI, HasServiceSystemAn
             nextSaveResourceTask = new FileResourceTask(false);
 
             if (!task.isEmpty()) {
+                task.setQueuedAt(System.currentTimeMillis());
                 List<ThreadPoolError> errors = threadPoolFiler.submit(task);
                 handleErrors(errors);
             }
@@ -291,6 +346,7 @@ public class FhirResourceFiler implements FhirResourceFilerI, HasServiceSystemAn
             nextDeleteResourceTask = new FileResourceTask(true);
 
             if (!task.isEmpty()) {
+                task.setQueuedAt(System.currentTimeMillis());
                 List<ThreadPoolError> errors = threadPoolFiler.submit(task);
                 handleErrors(errors);
             }
@@ -614,6 +670,10 @@ public class FhirResourceFiler implements FhirResourceFilerI, HasServiceSystemAn
                 + " saved " + adminActuallySaved + "/" + adminTrySaved + ", deleted " + adminActuallyDeleted + "/" + adminTryDeleted + "]"
                 + ", patient resources ["
                 + " saved " + patientActuallySaved + "/" + patientTrySaved + ", deleted " + patientActuallyDeleted + "/" + patientTryDeleted + " over " + patientCount + " patients]");
+
+        if (backPressure.isEnabled()) {
+            LOG.info("Transform waited " + backPressure.getBlockedCount() + " times for " + (backPressure.getBlockedMs() / 1000L) + "s for queued resources to be saved");
+        }
     }
 
 
@@ -754,6 +814,7 @@ public class FhirResourceFiler implements FhirResourceFilerI, HasServiceSystemAn
         private ExchangeBatch exchangeBatch = null;
         private ResourceBuilderBase resourceBuilder = null;
         private boolean isDefinitelyNewResource = false;
+        private long payloadBytes = 0;
 
         ResourceJob(CsvCurrentState parserState, boolean isDelete, ExchangeBatch exchangeBatch, ResourceBuilderBase resourceBuilder) {
             this.parserState = parserState;
@@ -786,6 +847,14 @@ public class FhirResourceFiler implements FhirResourceFilerI, HasServiceSystemAn
             isDefinitelyNewResource = definitelyNewResource;
         }
 
+        public long getPayloadBytes() {
+            return payloadBytes;
+        }
+
+        public void setPayloadBytes(long payloadBytes) {
+            this.payloadBytes = payloadBytes;
+        }
+
         @Override
         public String toString() {
             StringBuilder sb = new StringBuilder();
@@ -829,16 +898,22 @@ public class FhirResourceFiler implements FhirResourceFilerI, HasServiceSystemAn
     class MapIdTask implements Callable {
 
         private List<ResourceJob> jobs = new ArrayList<>();
+        private long queuedAt = 0;
 
         public MapIdTask() {
         }
 
+        public void setQueuedAt(long queuedAt) {
+            this.queuedAt = queuedAt;
+        }
+
         public void addJob(ResourceJob job) {
             jobs.add(job);
         }
 
         public boolean isFull() {
-            return jobs.size() >= 10;
+            //larger batches mean more references are de-duplicated and looked up in a single go
+            return jobs.size() >= TransformConfig.instance().getIdMappingBatchSize();
         }
 
         public boolean isEmpty() {
@@ -848,6 +923,9 @@ public class FhirResourceFiler implements FhirResourceFilerI, HasServiceSystemAn
         @Override
         public Object call() throws Exception {
 
+            long start = System.currentTimeMillis();
+            int queueDepth = idMappingQueueDepth.addAndGet(-jobs.size());
+
             //collate all the resources from the jobs into a single list, with a map for reverse lookups
             List<Resource> resources = new ArrayList<>();
             Map<Resource, ResourceJob> hmJobsByResource = new HashMap<>();
@@ -889,9 +967,21 @@ public class FhirResourceFiler implements FhirResourceFilerI, HasServiceSystemAn
                 }
                 LOG.error("Parser states:" + sb.toString());
                 LOG.error(err, ex);
+
+                //these jobs won't get as far as being saved, so stop counting them as queued
+                long payloadBytes = 0;
+                for (ResourceJob job : jobs) {
+                    payloadBytes += job.getPayloadBytes();
+                }
+                backPressure.release(payloadBytes);
+
                 throw new FilingAndMappingException(err, parserStates, ex);
             }
 
+            if (listener != null) {
+                listener.stageCompleted(FhirResourceFilerListenerI.Stage.ID_MAPPING, jobs.size(), start - queuedAt, System.currentTimeMillis() - start, queueDepth);
+            }
+
             //then bump onto the filing queue
             for (ResourceBuilderBase resourceBuilder : resourceBuilders) {
                 Resource resource = resourceBuilder.getResource();
@@ -962,6 +1052,7 @@ public class FhirResourceFiler implements FhirResourceFilerI, HasServiceSystemAn
 
         private boolean isDelete;
         private List<ResourceJob> jobs;
+        private long queuedAt = 0;
 
         public FileResourceTask(boolean isDelete) {
             this.isDelete = isDelete;
@@ -980,9 +1071,16 @@ public class FhirResourceFiler implements FhirResourceFilerI, HasServiceSystemAn
             jobs.add(job);
         }
 
+        public void setQueuedAt(long queuedAt) {
+            this.queuedAt = queuedAt;
+        }
+
         @Override
         public Object call() throws Exception {
 
+            long start = System.currentTimeMillis();
+            int queueDepth = savingQueueDepth.addAndGet(-jobs.size());
+
             try {
                 //LOG.trace("In save resource task for " + jobs.size() + " jobs");
                 Map<Resource, ExchangeBatch> hmResourcesAndBatches = new HashMap<>();
@@ -1027,6 +1125,12 @@ public class FhirResourceFiler implements FhirResourceFilerI, HasServiceSystemAn
                 } else {
                     wrappersUpdated = storageService.saveResources(exchangeId, hmResourcesAndBatches, definitelyNewResources);
                 }
+
+                long saved = System.currentTimeMillis();
+                if (listener != null) {
+                    listener.stageCompleted(FhirResourceFilerListenerI.Stage.SAVING, jobs.size(), start - queuedAt, saved - start, queueDepth);
+                }
+
                 //LOG.trace("Done save and " + wrappersUpdated.size() + " wrappers were updated");
                 //store our audit trail if we actually saved the resource
                 SourceFileMappingDalI dal = DalProvider.factorySourceFileMappingDal();
@@ -1047,6 +1151,10 @@ public class FhirResourceFiler implements FhirResourceFilerI, HasServiceSystemAn
 
                 dal.saveResourceMappings(hmAuditsToSave);
 
+                if (listener != null) {
+                    listener.stageCompleted(FhirResourceFilerListenerI.Stage.SOURCE_FILE_MAPPING, hmAuditsToSave.size(), 0, System.currentTimeMillis() - saved, 0);
+                }
+
             } catch (Exception ex) {
 
                 String err = "Exception filing resources: ";
@@ -1072,6 +1180,14 @@ public class FhirResourceFiler implements FhirResourceFilerI, HasServiceSystemAn
                 LOG.error("Parser states:" + sb.toString());
                 LOG.error(err, ex);
                 throw new FilingAndMappingException(err, parserStates, ex);
+
+            } finally {
+                //whether saved or not, these jobs are no longer queued
+                long payloadBytes = 0;
+                for (ResourceJob job : jobs) {
+                    payloadBytes += job.getPayloadBytes();
+                }
+                backPressure.release(payloadBytes);
             }
 
             return null;
@@ -0,0 +1,125 @@
+package org.endeavourhealth.transform.common;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * limits the size of the resources queued in FhirResourceFiler for ID mapping and saving, so a slow
+ * database makes the transform wait rather than build up everything it's transformed in memory. Bytes are
+ * acquired when resources are queued and released once they've been saved (or failed to be).
+ */
+public class FhirResourceFilerBackPressure {
+
+    private final long maxQueuedBytes;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition bytesReleased = lock.newCondition();
+    private long queuedBytes = 0;
+    private long blockedMs = 0;
+    private int blockedCount = 0;
+
+    public FhirResourceFilerBackPressure(long maxQueuedBytes) {
+        this.maxQueuedBytes = maxQueuedBytes;
+    }
+
+    public boolean isEnabled() {
+        return maxQueuedBytes > 0;
+    }
+
+    public boolean hasRoomFor(long bytes) {
+        try {
+            lock.lock();
+            return queuedBytes == 0
+                    || queuedBytes + bytes <= maxQueuedBytes;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * adds the bytes to the queued total, waiting up to the timeout for enough to be released if over the limit.
+     * Returns false if still no room, so the caller can make sure nothing it's queued is stuck in a part-full batch.
+     * If nothing is queued, the bytes are always accepted, so a single resource bigger than the limit doesn't block forever.
+     */
+    public boolean tryAcquire(long bytes, long timeoutMs) throws InterruptedException {
+        try {
+            lock.lock();
+
+            long start = System.currentTimeMillis();
+            long remainingNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            boolean blocked = false;
+
+            while (queuedBytes > 0
+                    && queuedBytes + bytes > maxQueuedBytes) {
+
+                if (remainingNanos <= 0) {
+                    recordBlocked(blocked, start);
+                    return false;
+                }
+                blocked = true;
+                remainingNanos = bytesReleased.awaitNanos(remainingNanos);
+            }
+
+            queuedBytes += bytes;
+            recordBlocked(blocked, start);
+            return true;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void release(long bytes) {
+        if (bytes == 0) {
+            return;
+        }
+
+        try {
+            lock.lock();
+
+            queuedBytes -= bytes;
+            bytesReleased.signalAll();
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void recordBlocked(boolean blocked, long start) {
+        if (blocked) {
+            blockedMs += System.currentTimeMillis() - start;
+            blockedCount ++;
+        }
+    }
+
+    public long getQueuedBytes() {
+        try {
+            lock.lock();
+            return queuedBytes;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getBlockedMs() {
+        try {
+            lock.lock();
+            return blockedMs;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getBlockedCount() {
+        try {
+            lock.lock();
+            return blockedCount;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+}
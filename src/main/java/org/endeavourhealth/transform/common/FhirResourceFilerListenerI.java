@@ -0,0 +1,26 @@
+package org.endeavourhealth.transform.common;
+
+/**
+ * callback for FhirResourceFiler, told how long each stage of filing took and how much is queued up behind it.
+ * Called from the transform and filing threads at the same time, so implementations must be thread safe.
+ */
+public interface FhirResourceFilerListenerI {
+
+    enum Stage {
+        VALIDATE,
+        ID_MAPPING,
+        SAVING,
+        SOURCE_FILE_MAPPING
+    }
+
+    /**
+     * called when a stage finishes a batch of jobs, with how long the batch waited to start, how long it took
+     * and the number of jobs still queued for the stage
+     */
+    void stageCompleted(Stage stage, int jobCount, long waitMs, long runMs, int queueDepth);
+
+    /**
+     * called when a transform thread had to wait for queued resources to be saved before it could add more
+     */
+    void producerBlocked(long queuedBytes, long blockedMs);
+}
@@ -0,0 +1,138 @@
+package org.endeavourhealth.transform.common;
+
+import org.endeavourhealth.common.utility.FileHelper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * output stream that buffers in memory until it goes over a size threshold, then moves everything written
+ * to a temp file and writes to that instead, so large CSV output doesn't have to be held on the heap.
+ * A threshold of zero or less means it never spills, and is just a ByteArrayOutputStream.
+ */
+public class FileSpillingOutputStream extends OutputStream {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final long spillThreshold;
+    private ByteArrayOutputStream memoryOutput = new ByteArrayOutputStream();
+    private File file = null;
+    private OutputStream fileOutput = null;
+    private long size = 0;
+
+    public FileSpillingOutputStream(long spillThreshold) {
+        this.spillThreshold = spillThreshold;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        getOutput(1).write(b);
+        size ++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        getOutput(len).write(b, off, len);
+        size += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (fileOutput != null) {
+            fileOutput.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (fileOutput != null) {
+            fileOutput.close();
+        }
+    }
+
+    private OutputStream getOutput(int len) throws IOException {
+        if (fileOutput != null) {
+            return fileOutput;
+        }
+
+        if (spillThreshold > 0
+                && size + len > spillThreshold) {
+            File tempDir = FileHelper.getTempDir();
+            file = File.createTempFile("CsvWriter", ".csv", tempDir);
+
+            try {
+                fileOutput = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+                memoryOutput.writeTo(fileOutput);
+            } catch (IOException ex) {
+                delete();
+                throw ex;
+            }
+            memoryOutput = null;
+            return fileOutput;
+        }
+
+        return memoryOutput;
+    }
+
+    public boolean isSpilled() {
+        return file != null;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * copies everything written to the given stream. Should only be called after this stream has been closed.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        if (file == null) {
+            memoryOutput.writeTo(out);
+            return;
+        }
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream is = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE)) {
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+    }
+
+    /**
+     * returns everything written as a single array. Should only be called after this stream has been closed.
+     */
+    public byte[] toByteArray() throws IOException {
+        if (file == null) {
+            return memoryOutput.toByteArray();
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream((int)size);
+        writeTo(baos);
+        return baos.toByteArray();
+    }
+
+    /**
+     * deletes the temp file, if one was used, closing it first in case this stream wasn't closed
+     */
+    public void delete() {
+        if (fileOutput != null) {
+            try {
+                fileOutput.close();
+            } catch (IOException ex) {
+                //we're deleting it anyway
+            }
+        }
+        if (file != null) {
+            file.delete();
+        }
+    }
+}
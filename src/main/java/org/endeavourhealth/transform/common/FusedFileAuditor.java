@@ -0,0 +1,156 @@
+package org.endeavourhealth.transform.common;
+
+import org.endeavourhealth.common.utility.ThreadPool;
+import org.endeavourhealth.common.utility.ThreadPoolError;
+import org.endeavourhealth.core.database.dal.audit.models.PublishedFileRecord;
+import org.endeavourhealth.core.database.rdbms.ConnectionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+
+/**
+ * audits the records of a CSV file as it's being parsed, rather than PublishedFileAuditHelper reading
+ * the whole file in a separate pass first. This listens to the CsvByteScanner that the file is read through
+ * (either ResumableCsvRecordReader's or one AbstractCsvParser wraps around the stream itself), so each record is
+ * audited as the parser reads it, with batches of PublishedFileRecords sent off
+ * to a thread pool to be saved.
+ *
+ * The scanner uses the same quote and line terminator rules as the CSV parser, so records with quoted embedded
+ * newlines are audited as a single record, and record numbers match the line numbers the parser gives each CsvCell.
+ * This only works where CsvByteScanner.isSupported(..) is true.
+ */
+public class FusedFileAuditor implements CsvByteScannerListenerI {
+    private static final Logger LOG = LoggerFactory.getLogger(FusedFileAuditor.class);
+
+    private final ParserI parser;
+    private int fileAuditId;
+    private boolean firstRecordContainsHeaders;
+    private ThreadPool threadPool = null;
+    private PublishedFileAuditHelper.AuditRowTask nextTask = new PublishedFileAuditHelper.AuditRowTask();
+
+    //the last record found is held back until we know there's nothing after it
+    private PublishedFileRecord heldRecord = null;
+    private int lastRecordNumber = 0;
+    private boolean finished = false;
+
+    public FusedFileAuditor(ParserI parser) {
+        this.parser = parser;
+    }
+
+    /**
+     * called by PublishedFileAuditHelper if the file's records need auditing
+     */
+    void start(int fileAuditId, boolean firstRecordContainsHeaders) {
+        this.fileAuditId = fileAuditId;
+        this.firstRecordContainsHeaders = firstRecordContainsHeaders;
+
+        //use the thread pool for saving these record audit objects, so we can get better throughput
+        int threadPoolSize = ConnectionManager.getPublisherCommonConnectionPoolMaxSize();
+        this.threadPool = new ThreadPool(threadPoolSize, 1000, "FusedFileAuditor");
+    }
+
+    public boolean isStarted() {
+        return threadPool != null;
+    }
+
+    /**
+     * if the file is re-opened part way through after an IOException, records will be found again,
+     * but any already audited won't be re-sent
+     */
+    @Override
+    public void recordFound(int recordNumber, long byteStart, long byteEnd) throws Exception {
+
+        //don't audit the header record
+        if (firstRecordContainsHeaders
+                && byteStart == 0) {
+            return;
+        }
+
+        PublishedFileRecord fileRecord = new PublishedFileRecord();
+        fileRecord.setPublishedFileId(fileAuditId);
+        fileRecord.setRecordNumber(recordNumber);
+        fileRecord.setByteStart(byteStart);
+        fileRecord.setByteLength((int)(byteEnd - byteStart));
+
+        //if we've re-opened the file, we'll find the held record again, so just replace it
+        if (heldRecord != null
+                && recordNumber <= heldRecord.getRecordNumber()) {
+            heldRecord = null;
+        } else {
+            releaseHeldRecord();
+        }
+        heldRecord = fileRecord;
+    }
+
+    private void releaseHeldRecord() throws Exception {
+        if (heldRecord == null) {
+            return;
+        }
+
+        //if we've re-opened the file, we'll have already audited the earlier records
+        int recordNumber = heldRecord.getRecordNumber();
+        if (recordNumber > lastRecordNumber) {
+            lastRecordNumber = recordNumber;
+
+            nextTask.addRecord(heldRecord);
+            if (nextTask.isFull()) {
+                List<ThreadPoolError> errors = threadPool.submit(nextTask);
+                PublishedFileAuditHelper.handleErrors(errors);
+                nextTask = new PublishedFileAuditHelper.AuditRowTask();
+            }
+        }
+
+        heldRecord = null;
+    }
+
+    @Override
+    public void endOfStream(long byteEnd) throws Exception {
+
+        //any trailing blank lines are included in the last record, so the audit covers the full file
+        if (heldRecord != null) {
+            heldRecord.setByteLength((int)(byteEnd - heldRecord.getByteStart()));
+        }
+
+        releaseHeldRecord();
+    }
+
+    /**
+     * called once the parser has read the full file, to wait until all records are saved
+     */
+    public void finish() throws Exception {
+        if (finished) {
+            return;
+        }
+        finished = true;
+
+        try {
+            if (!nextTask.isEmpty()) {
+                List<ThreadPoolError> errors = threadPool.submit(nextTask);
+                PublishedFileAuditHelper.handleErrors(errors);
+            }
+
+        } finally {
+            List<ThreadPoolError> errors = threadPool.waitAndStop();
+            PublishedFileAuditHelper.handleErrors(errors);
+        }
+
+        parser.setNumLines(new Integer(lastRecordNumber));
+    }
+
+    /**
+     * called if the parser is closed before reading the full file, to stop the thread pool. The file audit
+     * won't be complete, so will be audited again next time the file is processed.
+     */
+    public void abort() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+
+        List<ThreadPoolError> errors = threadPool.waitAndStop();
+        if (errors != null && !errors.isEmpty()) {
+            LOG.error("Error auditing records in " + parser.getFilePath(), errors.get(0).getException());
+        }
+    }
+}
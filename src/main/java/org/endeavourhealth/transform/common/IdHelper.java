@@ -1,8 +1,6 @@
 package org.endeavourhealth.transform.common;
 
 import com.google.common.base.Strings;
-import org.apache.jcs.JCS;
-import org.apache.jcs.access.exception.CacheException;
 import org.endeavourhealth.common.fhir.ReferenceComponents;
 import org.endeavourhealth.common.fhir.ReferenceHelper;
 import org.endeavourhealth.core.database.dal.DalProvider;
@@ -21,22 +19,19 @@ import java.util.concurrent.ConcurrentHashMap;
 public class IdHelper {
     private static final Logger LOG = LoggerFactory.getLogger(IdHelper.class);
 
-    private static JCS cache = null;
+    private static IdMappingCacheI cache = createCache();
     private static Map<Class, BaseIdMapper> idMappers = new ConcurrentHashMap<>();
     private static ResourceIdTransformDalI repository = DalProvider.factoryResourceIdTransformDal();
+    private static IdMappingStoreI idMappingStore = new ResourceIdTransformMappingStore(repository);
 
-    static {
+    private static IdMappingCacheI createCache() {
+        TransformConfig config = TransformConfig.instance();
+        if (config.isOffHeapIdCacheEnabled()) {
+            LOG.info("Using off-heap ID mapping cache with max size " + config.getOffHeapIdCacheMaxSize());
+            return new OffHeapIdMappingCache(config.getOffHeapIdCacheMaxSize());
 
-        //init the cache
-        try {
-            //by default the Java Caching System has a load of logging enabled, which is really slow, so turn it off
-            //not longer required, since it no longer uses log4J and the new default doesn't have debug enabled
-            /*org.apache.log4j.Logger logger = org.apache.log4j.Logger.getLogger("org.apache.jcs");
-            logger.setLevel(org.apache.log4j.Level.OFF);*/
-
-            cache = JCS.getInstance("ResourceIdentifiers");
-        } catch (CacheException ex) {
-            throw new RuntimeException("Error initialising cache", ex);
+        } else {
+            return new JcsIdMappingCache();
         }
     }
 
@@ -135,29 +130,19 @@ public class IdHelper {
         return ret;
     }
 
-    private static UUID checkCache(UUID serviceId, String referenceValue) {
-        String cacheKey = createCacheKey(serviceId, referenceValue);
-        return (UUID)cache.get(cacheKey);
+    /**
+     * allows the store used for batch ID mapping to be replaced, e.g. with one that supports bulk inserts
+     */
+    public static void setIdMappingStore(IdMappingStoreI idMappingStore) {
+        IdHelper.idMappingStore = idMappingStore;
     }
 
-    private static void addToCache(UUID serviceId, String referenceValue, UUID id) {
-        String cacheKey = createCacheKey(serviceId, referenceValue);
-        try {
-            cache.put(cacheKey, id);
-        } catch (Exception ex) {
-            //don't suppress this
-            throw new RuntimeException("Error adding key ["+ referenceValue + "] value [" + id + "] to ID map cache", ex);
-            //LOG.error("Error adding key ["+ referenceValue + "] value [" + id + "] to ID map cache", ex);
-        }
+    private static UUID checkCache(UUID serviceId, String referenceValue) {
+        return cache.get(serviceId, referenceValue);
     }
 
-    private static String createCacheKey(UUID serviceId, String referenceValue) {
-        //quick optimisation to cut on string creation
-        StringBuilder sb = new StringBuilder();
-        sb.append(serviceId.toString());
-        sb.append("/");
-        sb.append(referenceValue);
-        return sb.toString();
+    private static void addToCache(UUID serviceId, String referenceValue, UUID id) {
+        cache.put(serviceId, referenceValue, id);
     }
 
 
@@ -221,6 +206,11 @@ public class IdHelper {
         return definitelyNewResources;
     }
 
+    /**
+     * finds or creates mappings for all the source references, doing a single lookup for all those not
+     * in the cache, then passing all those still not found to the store to create (which the default store
+     * still does one reference at a time)
+     */
     private static Set<String> populateResourceIdMappings(UUID serviceId, UUID systemId, Set<String> sourceReferencesToMap,
                                                                    Set<String> resourceIdSourceReferenceStrings,
                                                                    Map<String, String> mappingsToPopulate) throws Exception {
@@ -246,17 +236,19 @@ public class IdHelper {
             }
         }
 
-        //call to the cache and DB to find existing mappings
-        Map<Reference, Reference> referenceMappingsFromDb = repository.findEdsReferencesFromSourceReferences(serviceId, referencesToHitDb);
+        if (referencesToHitDb.isEmpty()) {
+            return definitelyNewResourceIdSourceReferences;
+        }
+
+        //find all existing mappings in one go
+        Map<Reference, Reference> referenceMappingsFromDb = idMappingStore.findEdsReferences(serviceId, referencesToHitDb);
+
+        List<Reference> referencesToCreate = new ArrayList<>();
 
-        //ensure we've got a mapping for every reference we started with and create where not
         for (Reference sourceReference: referencesToHitDb) {
             String sourceReferenceValue = sourceReference.getReference();
             Reference mappedReference = referenceMappingsFromDb.get(sourceReference);
 
-            UUID edsId = null;
-            String mappedReferenceValue = null;
-
             //if we don't have a pre-existing mapping for this source reference, we need to create one
             if (mappedReference == null) {
 
@@ -265,25 +257,35 @@ public class IdHelper {
                     definitelyNewResourceIdSourceReferences.add(sourceReferenceValue);
                 }
 
-                ReferenceComponents comps = ReferenceHelper.getReferenceComponents(sourceReference);
-                String resourceType = comps.getResourceType().toString();
-                String sourceId = comps.getId();
-
-                edsId = repository.findOrCreate(serviceId, resourceType, sourceId);
-                mappedReferenceValue = ReferenceHelper.createResourceReference(resourceType, edsId.toString());
+                referencesToCreate.add(sourceReference);
 
             } else {
                 //if we do have a mapping, extract the ID as a UUID so we can cache it
                 String edsIdStr = ReferenceHelper.getReferenceId(mappedReference);
-                edsId = UUID.fromString(edsIdStr);
-                mappedReferenceValue = mappedReference.getReference();
+                UUID edsId = UUID.fromString(edsIdStr);
+
+                mappingsToPopulate.put(sourceReferenceValue, mappedReference.getReference());
+                addToCache(serviceId, sourceReferenceValue, edsId);
             }
+        }
 
-            //add to our map of mappings
-            mappingsToPopulate.put(sourceReferenceValue, mappedReferenceValue);
+        //then create all the missing mappings in one go
+        if (!referencesToCreate.isEmpty()) {
+            Map<Reference, UUID> createdIds = idMappingStore.createEdsIds(serviceId, referencesToCreate);
 
-            //and add to our cache for next time
-            addToCache(serviceId, sourceReferenceValue, edsId);
+            for (Reference sourceReference: referencesToCreate) {
+                String sourceReferenceValue = sourceReference.getReference();
+                UUID edsId = createdIds.get(sourceReference);
+                if (edsId == null) {
+                    throw new TransformException("Failed to create ID mapping for " + sourceReferenceValue);
+                }
+
+                ResourceType resourceType = ReferenceHelper.getResourceType(sourceReference);
+                String mappedReferenceValue = ReferenceHelper.createResourceReference(resourceType, edsId.toString());
+
+                mappingsToPopulate.put(sourceReferenceValue, mappedReferenceValue);
+                addToCache(serviceId, sourceReferenceValue, edsId);
+            }
         }
 
         return definitelyNewResourceIdSourceReferences;
@@ -388,11 +390,7 @@ public class IdHelper {
      * after completing an inbound transform, we clear the cache as there's no point keeping mappings around
      */
     public static void clearCache() {
-        try {
-            cache.clear();
-        } catch (CacheException ce) {
-            LOG.error("Error clearing cache", ce);
-        }
+        cache.clear();
     }
 
 }
@@ -0,0 +1,19 @@
+package org.endeavourhealth.transform.common;
+
+import java.util.UUID;
+
+/**
+ * cache of source reference (in the format ResourceType/SourceId) to Discovery ID mappings, used by IdHelper
+ * to avoid hitting the DB. Implementations must be thread safe.
+ */
+public interface IdMappingCacheI {
+
+    /**
+     * returns the cached Discovery ID or null if not cached
+     */
+    UUID get(UUID serviceId, String referenceValue);
+
+    void put(UUID serviceId, String referenceValue, UUID id);
+
+    void clear();
+}
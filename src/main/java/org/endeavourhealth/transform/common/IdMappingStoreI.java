@@ -0,0 +1,26 @@
+package org.endeavourhealth.transform.common;
+
+import org.hl7.fhir.instance.model.Reference;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * storage for the mappings between source and Discovery resource IDs used by IdHelper, so the ID mapping
+ * can work on whole batches of references at a time
+ */
+public interface IdMappingStoreI {
+
+    /**
+     * finds existing mappings for the source references, returning a map of source reference to Discovery
+     * reference, with no entry for any that aren't mapped
+     */
+    Map<Reference, Reference> findEdsReferences(UUID serviceId, List<Reference> sourceReferences) throws Exception;
+
+    /**
+     * creates mappings for source references not found by findEdsReferences(..), returning a map of source
+     * reference to Discovery ID. If another thread has created a mapping in the meantime, that ID must be returned.
+     */
+    Map<Reference, UUID> createEdsIds(UUID serviceId, List<Reference> sourceReferences) throws Exception;
+}
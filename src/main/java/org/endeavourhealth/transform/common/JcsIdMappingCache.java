@@ -0,0 +1,65 @@
+package org.endeavourhealth.transform.common;
+
+import org.apache.jcs.JCS;
+import org.apache.jcs.access.exception.CacheException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.UUID;
+
+/**
+ * IdMappingCacheI implementation using the ResourceIdentifiers JCS region, as configured in cache.ccf
+ */
+public class JcsIdMappingCache implements IdMappingCacheI {
+    private static final Logger LOG = LoggerFactory.getLogger(JcsIdMappingCache.class);
+
+    private final JCS cache;
+
+    public JcsIdMappingCache() {
+        try {
+            //by default the Java Caching System has a load of logging enabled, which is really slow, so turn it off
+            //not longer required, since it no longer uses log4J and the new default doesn't have debug enabled
+            /*org.apache.log4j.Logger logger = org.apache.log4j.Logger.getLogger("org.apache.jcs");
+            logger.setLevel(org.apache.log4j.Level.OFF);*/
+
+            cache = JCS.getInstance("ResourceIdentifiers");
+        } catch (CacheException ex) {
+            throw new RuntimeException("Error initialising cache", ex);
+        }
+    }
+
+    @Override
+    public UUID get(UUID serviceId, String referenceValue) {
+        String cacheKey = createCacheKey(serviceId, referenceValue);
+        return (UUID)cache.get(cacheKey);
+    }
+
+    @Override
+    public void put(UUID serviceId, String referenceValue, UUID id) {
+        String cacheKey = createCacheKey(serviceId, referenceValue);
+        try {
+            cache.put(cacheKey, id);
+        } catch (Exception ex) {
+            //don't suppress this
+            throw new RuntimeException("Error adding key ["+ referenceValue + "] value [" + id + "] to ID map cache", ex);
+        }
+    }
+
+    @Override
+    public void clear() {
+        try {
+            cache.clear();
+        } catch (CacheException ce) {
+            LOG.error("Error clearing cache", ce);
+        }
+    }
+
+    private static String createCacheKey(UUID serviceId, String referenceValue) {
+        //quick optimisation to cut on string creation
+        StringBuilder sb = new StringBuilder();
+        sb.append(serviceId.toString());
+        sb.append("/");
+        sb.append(referenceValue);
+        return sb.toString();
+    }
+}
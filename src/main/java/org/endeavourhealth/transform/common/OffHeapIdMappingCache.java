@@ -0,0 +1,330 @@
+package org.endeavourhealth.transform.common;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+/**
+ * IdMappingCacheI implementation that stores the mappings outside of the Java heap, to avoid the GC cost of
+ * having a million String keys and UUID values in the JCS cache. The mappings are held in fixed-size slots
+ * in direct ByteBuffers, using open addressing with linear probing, split into segments that are each
+ * locked separately.
+ *
+ * Each slot holds a 128-bit hash of the key, the service ID, the Discovery ID and the reference bytes, so a hit
+ * is only returned if the full key matches. When a segment is full, an entry is evicted using the CLOCK algorithm,
+ * so anything looked up since the clock hand last passed gets a second chance. References that are too long or
+ * contain non-Latin-1 characters aren't cached.
+ */
+public class OffHeapIdMappingCache implements IdMappingCacheI {
+
+    private static final int SEGMENT_COUNT = 64; //must be a power of two
+    private static final double LOAD_FACTOR = 0.8;
+
+    //slot layout
+    private static final int OFFSET_HASH_HI = 0;
+    private static final int OFFSET_HASH_LO = 8;
+    private static final int OFFSET_SERVICE_MSB = 16;
+    private static final int OFFSET_SERVICE_LSB = 24;
+    private static final int OFFSET_VALUE_MSB = 32;
+    private static final int OFFSET_VALUE_LSB = 40;
+    private static final int OFFSET_FLAGS = 48;
+    private static final int OFFSET_KEY_LENGTH = 50;
+    private static final int OFFSET_KEY = 52;
+    private static final int SLOT_SIZE = 144; //must be a multiple of 8
+    static final int MAX_KEY_LENGTH = SLOT_SIZE - OFFSET_KEY;
+
+    private static final byte FLAG_OCCUPIED = 1;
+    private static final byte FLAG_REFERENCED = 2;
+
+    private final Segment[] segments = new Segment[SEGMENT_COUNT];
+
+    public OffHeapIdMappingCache(int maxEntries) {
+        int maxEntriesPerSegment = Math.max(1, maxEntries / SEGMENT_COUNT);
+        for (int i=0; i<SEGMENT_COUNT; i++) {
+            segments[i] = new Segment(maxEntriesPerSegment);
+        }
+    }
+
+    @Override
+    public UUID get(UUID serviceId, String referenceValue) {
+        if (!isCacheable(referenceValue)) {
+            return null;
+        }
+
+        long serviceMsb = serviceId.getMostSignificantBits();
+        long serviceLsb = serviceId.getLeastSignificantBits();
+        long hashHi = hashHi(serviceMsb, serviceLsb, referenceValue);
+        long hashLo = hashLo(serviceMsb, serviceLsb, referenceValue);
+
+        return getSegment(hashHi).get(hashHi, hashLo, serviceMsb, serviceLsb, referenceValue);
+    }
+
+    @Override
+    public void put(UUID serviceId, String referenceValue, UUID id) {
+        if (!isCacheable(referenceValue)) {
+            return;
+        }
+
+        long serviceMsb = serviceId.getMostSignificantBits();
+        long serviceLsb = serviceId.getLeastSignificantBits();
+        long hashHi = hashHi(serviceMsb, serviceLsb, referenceValue);
+        long hashLo = hashLo(serviceMsb, serviceLsb, referenceValue);
+
+        getSegment(hashHi).put(hashHi, hashLo, serviceMsb, serviceLsb, referenceValue, id);
+    }
+
+    @Override
+    public void clear() {
+        for (Segment segment: segments) {
+            segment.clear();
+        }
+    }
+
+    public int size() {
+        int ret = 0;
+        for (Segment segment: segments) {
+            ret += segment.size();
+        }
+        return ret;
+    }
+
+    private Segment getSegment(long hashHi) {
+        return segments[(int)(hashHi >>> 32) & (SEGMENT_COUNT - 1)];
+    }
+
+    /**
+     * we store the reference as a single byte per char, so anything else can't be cached
+     */
+    private static boolean isCacheable(String referenceValue) {
+        int len = referenceValue.length();
+        if (len > MAX_KEY_LENGTH) {
+            return false;
+        }
+        for (int i=0; i<len; i++) {
+            if (referenceValue.charAt(i) > 0xFF) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * the two halves of the 128-bit hash use different seeds and multipliers, so are independent of each other
+     */
+    private static long hashHi(long serviceMsb, long serviceLsb, String referenceValue) {
+        long h = 0x9E3779B97F4A7C15L ^ serviceMsb;
+        h = mix(h ^ serviceLsb);
+        for (int i=0; i<referenceValue.length(); i++) {
+            h = (h ^ referenceValue.charAt(i)) * 0x100000001B3L;
+        }
+        return mix(h ^ referenceValue.length());
+    }
+
+    private static long hashLo(long serviceMsb, long serviceLsb, String referenceValue) {
+        long h = 0xC2B2AE3D27D4EB4FL ^ serviceLsb;
+        h = mix(h ^ serviceMsb);
+        for (int i=0; i<referenceValue.length(); i++) {
+            h = Long.rotateLeft(h + referenceValue.charAt(i), 31) * 0x87C37B91114253D5L;
+        }
+        return mix(h ^ referenceValue.length());
+    }
+
+    /**
+     * the MurmurHash3 64-bit finaliser
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    static class Segment {
+
+        private final ByteBuffer buffer;
+        private final int capacity;
+        private final int maxEntries;
+        private int count = 0;
+        private int clockHand = 0;
+
+        Segment(int maxEntries) {
+            this.maxEntries = maxEntries;
+            this.capacity = (int)(maxEntries / LOAD_FACTOR) + 1;
+            this.buffer = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+        }
+
+        synchronized UUID get(long hashHi, long hashLo, long serviceMsb, long serviceLsb, String referenceValue) {
+            int slot = findSlot(hashHi, hashLo, serviceMsb, serviceLsb, referenceValue);
+            int pos = slot * SLOT_SIZE;
+            byte flags = buffer.get(pos + OFFSET_FLAGS);
+            if ((flags & FLAG_OCCUPIED) == 0) {
+                return null;
+            }
+
+            //mark as referenced, so the clock gives it a second chance
+            buffer.put(pos + OFFSET_FLAGS, (byte)(flags | FLAG_REFERENCED));
+            return new UUID(buffer.getLong(pos + OFFSET_VALUE_MSB), buffer.getLong(pos + OFFSET_VALUE_LSB));
+        }
+
+        synchronized void put(long hashHi, long hashLo, long serviceMsb, long serviceLsb, String referenceValue, UUID id) {
+            int slot = findSlot(hashHi, hashLo, serviceMsb, serviceLsb, referenceValue);
+            int pos = slot * SLOT_SIZE;
+
+            //if already cached, just update the value
+            if ((buffer.get(pos + OFFSET_FLAGS) & FLAG_OCCUPIED) != 0) {
+                buffer.putLong(pos + OFFSET_VALUE_MSB, id.getMostSignificantBits());
+                buffer.putLong(pos + OFFSET_VALUE_LSB, id.getLeastSignificantBits());
+                return;
+            }
+
+            //if full, evict something first, which will move entries around so we need to find our slot again
+            if (count >= maxEntries) {
+                evict();
+                slot = findSlot(hashHi, hashLo, serviceMsb, serviceLsb, referenceValue);
+                pos = slot * SLOT_SIZE;
+            }
+
+            buffer.putLong(pos + OFFSET_HASH_HI, hashHi);
+            buffer.putLong(pos + OFFSET_HASH_LO, hashLo);
+            buffer.putLong(pos + OFFSET_SERVICE_MSB, serviceMsb);
+            buffer.putLong(pos + OFFSET_SERVICE_LSB, serviceLsb);
+            buffer.putLong(pos + OFFSET_VALUE_MSB, id.getMostSignificantBits());
+            buffer.putLong(pos + OFFSET_VALUE_LSB, id.getLeastSignificantBits());
+            int len = referenceValue.length();
+            buffer.putShort(pos + OFFSET_KEY_LENGTH, (short)len);
+            for (int i=0; i<len; i++) {
+                buffer.put(pos + OFFSET_KEY + i, (byte)referenceValue.charAt(i));
+            }
+            buffer.put(pos + OFFSET_FLAGS, FLAG_OCCUPIED);
+            count ++;
+        }
+
+        synchronized void clear() {
+            for (int slot=0; slot<capacity; slot++) {
+                buffer.put(slot * SLOT_SIZE + OFFSET_FLAGS, (byte)0);
+            }
+            count = 0;
+            clockHand = 0;
+        }
+
+        synchronized int size() {
+            return count;
+        }
+
+        /**
+         * returns the slot containing the key or the empty slot where it should go
+         */
+        private int findSlot(long hashHi, long hashLo, long serviceMsb, long serviceLsb, String referenceValue) {
+            int slot = homeSlot(hashLo);
+            while (true) {
+                int pos = slot * SLOT_SIZE;
+                if ((buffer.get(pos + OFFSET_FLAGS) & FLAG_OCCUPIED) == 0
+                        || matches(pos, hashHi, hashLo, serviceMsb, serviceLsb, referenceValue)) {
+                    return slot;
+                }
+
+                slot ++;
+                if (slot == capacity) {
+                    slot = 0;
+                }
+            }
+        }
+
+        private int homeSlot(long hashLo) {
+            return (int)((hashLo >>> 1) % capacity);
+        }
+
+        private boolean matches(int pos, long hashHi, long hashLo, long serviceMsb, long serviceLsb, String referenceValue) {
+            if (buffer.getLong(pos + OFFSET_HASH_LO) != hashLo
+                    || buffer.getLong(pos + OFFSET_HASH_HI) != hashHi
+                    || buffer.getLong(pos + OFFSET_SERVICE_MSB) != serviceMsb
+                    || buffer.getLong(pos + OFFSET_SERVICE_LSB) != serviceLsb) {
+                return false;
+            }
+
+            //the hash is almost certainly unique, but verify the full key so we never return the wrong ID
+            int len = referenceValue.length();
+            if (buffer.getShort(pos + OFFSET_KEY_LENGTH) != len) {
+                return false;
+            }
+            for (int i=0; i<len; i++) {
+                if (buffer.get(pos + OFFSET_KEY + i) != (byte)referenceValue.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * evicts one entry, clearing the referenced flag on any entries passed over
+         */
+        private void evict() {
+            while (true) {
+                int slot = clockHand;
+                clockHand ++;
+                if (clockHand == capacity) {
+                    clockHand = 0;
+                }
+
+                int pos = slot * SLOT_SIZE;
+                byte flags = buffer.get(pos + OFFSET_FLAGS);
+                if ((flags & FLAG_OCCUPIED) == 0) {
+                    continue;
+                }
+
+                if ((flags & FLAG_REFERENCED) != 0) {
+                    buffer.put(pos + OFFSET_FLAGS, FLAG_OCCUPIED);
+                } else {
+                    remove(slot);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * removes the entry from the slot, shifting back any later entries in the same probe sequence
+         * so that there are no gaps that would stop them being found
+         */
+        private void remove(int slot) {
+            int hole = slot;
+            int next = slot;
+            while (true) {
+                next ++;
+                if (next == capacity) {
+                    next = 0;
+                }
+
+                int nextPos = next * SLOT_SIZE;
+                if ((buffer.get(nextPos + OFFSET_FLAGS) & FLAG_OCCUPIED) == 0) {
+                    break;
+                }
+
+                //the entry can only move back to the hole if its home slot isn't between the hole and where it is now
+                int home = homeSlot(buffer.getLong(nextPos + OFFSET_HASH_LO));
+                boolean canMove;
+                if (hole <= next) {
+                    canMove = home <= hole || home > next;
+                } else {
+                    canMove = home <= hole && home > next;
+                }
+
+                if (canMove) {
+                    copySlot(next, hole);
+                    hole = next;
+                }
+            }
+
+            buffer.put(hole * SLOT_SIZE + OFFSET_FLAGS, (byte)0);
+            count --;
+        }
+
+        private void copySlot(int from, int to) {
+            int fromPos = from * SLOT_SIZE;
+            int toPos = to * SLOT_SIZE;
+            for (int i=0; i<SLOT_SIZE; i+=8) {
+                buffer.putLong(toPos + i, buffer.getLong(fromPos + i));
+            }
+        }
+    }
+}
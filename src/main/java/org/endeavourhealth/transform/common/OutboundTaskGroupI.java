@@ -0,0 +1,23 @@
+package org.endeavourhealth.transform.common;
+
+import java.util.concurrent.Callable;
+
+/**
+ * the tasks for transforming one batch of resources to a subscriber, run either on a dedicated ThreadPool or
+ * on the shared workers of OutboundTransformExecutor. Any of the methods throw the first error from a
+ * previously submitted task.
+ */
+public interface OutboundTaskGroupI {
+
+    void submit(Callable callable) throws Exception;
+
+    /**
+     * blocks until every task submitted so far has completed, so acts as a barrier between stages of a transform
+     */
+    void waitUntilEmpty() throws Exception;
+
+    /**
+     * blocks until every task has completed and releases the group, which can't be used after this
+     */
+    void waitAndStop() throws Exception;
+}
@@ -0,0 +1,257 @@
+package org.endeavourhealth.transform.common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * process-wide set of worker threads for the outbound (subscriber and enterprise) transforms, so each batch
+ * doesn't have to create and tear down its own thread pool, which is expensive when a batch is often just one patient.
+ *
+ * Each batch gets its own task group, with its own queue of tasks. Workers take one task at a time from each
+ * group with tasks queued, in turn, so a large batch can't hold up a small one that arrives after it.
+ */
+public class OutboundTransformExecutor {
+    private static final Logger LOG = LoggerFactory.getLogger(OutboundTransformExecutor.class);
+
+    private static final int MAX_QUEUED_PER_GROUP = 1000;
+
+    //singleton
+    private static OutboundTransformExecutor instance;
+    private static Object sync = new Object();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition taskAvailable = lock.newCondition();
+    private final LinkedList<SharedTaskGroup> readyGroups = new LinkedList<>();
+
+    /**
+     * creates a task group for a batch of the given size, using the shared workers if configured to,
+     * otherwise a dedicated ThreadPool just for the batch
+     */
+    public static OutboundTaskGroupI createTaskGroup(String name, int resourceCount) {
+
+        int sharedThreads = TransformConfig.instance().getOutboundTransformThreads();
+        if (sharedThreads > 0) {
+            return instance(sharedThreads).createSharedTaskGroup(name);
+        }
+
+        int threads = Math.min(10, resourceCount/10); //limit to 10 threads, but don't create too many unnecessarily if we only have a few resources
+        threads = Math.max(threads, 1); //make sure we have a min of 1
+        return new ThreadPoolTaskGroup(threads, name);
+    }
+
+    private static OutboundTransformExecutor instance(int threads) {
+        if (instance == null) {
+            synchronized (sync) {
+                if (instance == null) {
+                    instance = new OutboundTransformExecutor(threads);
+                }
+            }
+        }
+        return instance;
+    }
+
+    private OutboundTransformExecutor(int threads) {
+        LOG.info("Starting " + threads + " shared outbound transform threads");
+
+        for (int i=0; i<threads; i++) {
+            Thread thread = new Thread(new Worker(), "OutboundTransform-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public OutboundTaskGroupI createSharedTaskGroup(String name) {
+        return new SharedTaskGroup(name);
+    }
+
+    /**
+     * the cause may be an Exception or Error so we need to explicitly
+     * cast to the right type to throw it without changing the method signature
+     */
+    private static void rethrow(Throwable cause) throws Exception {
+        if (cause instanceof Exception) {
+            throw (Exception)cause;
+        } else if (cause instanceof Error) {
+            throw (Error)cause;
+        } else {
+            throw new Exception(cause);
+        }
+    }
+
+    class SharedTaskGroup implements OutboundTaskGroupI {
+
+        private final String name;
+        private final LinkedList<Callable> pending = new LinkedList<>();
+        private final Condition spaceAvailable = lock.newCondition();
+        private final Condition idle = lock.newCondition();
+        private int running = 0;
+        private boolean ready = false;
+        private boolean stopped = false;
+        private Throwable error = null;
+
+        SharedTaskGroup(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void submit(Callable callable) throws Exception {
+            try {
+                lock.lock();
+
+                if (stopped) {
+                    throw new IllegalStateException("Task group " + name + " has been stopped");
+                }
+
+                //block if this group already has plenty queued, same as a full ThreadPool would
+                while (pending.size() >= MAX_QUEUED_PER_GROUP
+                        && error == null) {
+                    spaceAvailable.await();
+                }
+
+                if (error != null) {
+                    rethrow(error);
+                }
+
+                pending.addLast(callable);
+                if (!ready) {
+                    ready = true;
+                    readyGroups.addLast(this);
+                }
+                taskAvailable.signal();
+
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void waitUntilEmpty() throws Exception {
+            try {
+                lock.lock();
+
+                while (!pending.isEmpty()
+                        || running > 0) {
+                    idle.await();
+                }
+
+                if (error != null) {
+                    rethrow(error);
+                }
+
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void waitAndStop() throws Exception {
+            try {
+                waitUntilEmpty();
+
+            } finally {
+                try {
+                    lock.lock();
+                    stopped = true;
+
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        /**
+         * called by a worker, with the lock held, to take the next task from the group
+         */
+        private Callable takeTask() {
+            Callable ret = pending.removeFirst();
+            running ++;
+
+            //if the group has more tasks, it goes to the back of the line so other groups get a turn
+            if (pending.isEmpty()) {
+                ready = false;
+            } else {
+                readyGroups.addLast(this);
+                taskAvailable.signal();
+            }
+
+            spaceAvailable.signalAll();
+            return ret;
+        }
+
+        /**
+         * called by a worker, with the lock held, when a task has finished
+         */
+        private void taskFinished(Throwable t) {
+            running --;
+
+            if (t != null
+                    && error == null) {
+                LOG.error("Error in task group " + name, t);
+                error = t;
+
+                //the batch has failed, so don't bother running anything else in it
+                if (ready) {
+                    readyGroups.remove(this);
+                    ready = false;
+                }
+                pending.clear();
+                spaceAvailable.signalAll();
+            }
+
+            if (pending.isEmpty()
+                    && running == 0) {
+                idle.signalAll();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    class Worker implements Runnable {
+
+        @Override
+        public void run() {
+            while (true) {
+
+                SharedTaskGroup group = null;
+                Callable task = null;
+                try {
+                    lock.lock();
+
+                    while (readyGroups.isEmpty()) {
+                        taskAvailable.awaitUninterruptibly();
+                    }
+
+                    group = readyGroups.removeFirst();
+                    task = group.takeTask();
+
+                } finally {
+                    lock.unlock();
+                }
+
+                Throwable error = null;
+                try {
+                    task.call();
+                } catch (Throwable t) {
+                    error = t;
+                }
+
+                try {
+                    lock.lock();
+                    group.taskFinished(error);
+
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+}
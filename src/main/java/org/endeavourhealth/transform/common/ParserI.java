@@ -13,6 +13,9 @@ public interface ParserI extends HasServiceSystemAndExchangeIdI {
     DateFormat getDateFormat();
     DateFormat getTimeFormat();
     DateFormat getDateTimeFormat();
+    CsvDateParser getDateParser();
+    CsvDateParser getTimeParser();
+    CsvDateParser getDateTimeParser();
     //void setAuditorCallback(CsvAuditorCallbackI auditorCallback);
     List<String> getColumnHeaders();
     CsvCell getCell(String column);
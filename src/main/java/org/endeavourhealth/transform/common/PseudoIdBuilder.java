@@ -1,6 +1,5 @@
 package org.endeavourhealth.transform.common;
 
-import OpenPseudonymiser.Crypto;
 import com.google.common.base.Strings;
 import org.endeavourhealth.common.fhir.IdentifierHelper;
 import org.endeavourhealth.core.database.dal.DalProvider;
@@ -20,26 +19,22 @@ public class PseudoIdBuilder {
 
     private String subscriberConfigName;
     private String saltKeyName;
-    private byte[] saltBytes;
+    private String saltBase64;
     private TreeMap<String, String> treeMap;
 
     private PseudoIdBuilder(String subscriberConfigName, String saltKeyName, String saltBase64) {
-        this(subscriberConfigName, saltKeyName, Base64.getDecoder().decode(saltBase64));
-    }
-
-    private PseudoIdBuilder(String subscriberConfigName, String saltKeyName, byte[] saltBytes) {
         if (Strings.isNullOrEmpty(subscriberConfigName)) {
             throw new RuntimeException("Null or empty subscriber config name");
         }
         if (Strings.isNullOrEmpty(saltKeyName)) {
             throw new RuntimeException("Null or empty salt key name");
         }
-        if (saltBytes == null) {
-            throw new RuntimeException("Null salt key bytes");
+        if (Strings.isNullOrEmpty(saltBase64)) {
+            throw new RuntimeException("Null or empty salt");
         }
         this.subscriberConfigName = subscriberConfigName;
         this.saltKeyName = saltKeyName;
-        this.saltBytes = saltBytes;
+        this.saltBase64 = saltBase64;
     }
 
     private boolean addValue(String fieldName, String fieldValue) {
@@ -70,10 +65,8 @@ public class PseudoIdBuilder {
             return null;
         }
 
-        Crypto crypto = new Crypto();
-        crypto.SetEncryptedSalt(saltBytes);
-        String pseudoId = crypto.GetDigest(this.treeMap);
-
+        //the engine re-uses a Crypto with the salt already set, as setting it is the expensive part
+        String pseudoId = PseudonymisationEngine.digest(saltBase64, this.treeMap);
 
         return pseudoId;
     }
@@ -127,7 +120,7 @@ public class PseudoIdBuilder {
             fieldFormat = "dd-MM-yyyy";
         }
 
-        SimpleDateFormat sdf = new SimpleDateFormat(fieldFormat);
+        SimpleDateFormat sdf = PseudonymisationEngine.getDateFormat(fieldFormat);
         String value = sdf.format(d);
         return addValue(fieldLabel, value);
     }
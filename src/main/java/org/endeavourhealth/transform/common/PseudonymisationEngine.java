@@ -0,0 +1,70 @@
+package org.endeavourhealth.transform.common;
+
+import OpenPseudonymiser.Crypto;
+
+import java.text.SimpleDateFormat;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * generates pseudo IDs and RALFs using Crypto objects that have already had their salt set, since setting
+ * the salt (which decrypts it) is far more expensive than generating a digest. Neither Crypto nor SimpleDateFormat
+ * are thread safe, so each thread keeps its own, one per salt and one per date format.
+ */
+public class PseudonymisationEngine {
+
+    //there are only ever a handful of salts and formats, so this is just a safety net in case that changes
+    private static final int MAX_CACHED_PER_THREAD = 100;
+
+    private static final ThreadLocal<Map<String, Crypto>> cryptoPool = ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<Map<String, SimpleDateFormat>> dateFormatPool = ThreadLocal.withInitial(HashMap::new);
+
+    /**
+     * generates the digest of the given fields using the Base64 encoded salt, giving the same result
+     * as creating a new Crypto, setting the salt on it and calling GetDigest
+     */
+    public static String digest(String saltBase64, TreeMap<String, String> keys) throws Exception {
+        if (keys == null
+                || keys.isEmpty()) {
+            return null;
+        }
+
+        Crypto crypto = getCrypto(saltBase64);
+        return crypto.GetDigest(keys);
+    }
+
+    private static Crypto getCrypto(String saltBase64) throws Exception {
+        Map<String, Crypto> pool = cryptoPool.get();
+        Crypto crypto = pool.get(saltBase64);
+        if (crypto == null) {
+            byte[] saltBytes = Base64.getDecoder().decode(saltBase64);
+            crypto = new Crypto();
+            crypto.SetEncryptedSalt(saltBytes);
+
+            if (pool.size() >= MAX_CACHED_PER_THREAD) {
+                pool.clear();
+            }
+            pool.put(saltBase64, crypto);
+        }
+        return crypto;
+    }
+
+    /**
+     * returns a date format for this thread, which must not be passed to other threads
+     */
+    public static SimpleDateFormat getDateFormat(String format) {
+        Map<String, SimpleDateFormat> pool = dateFormatPool.get();
+        SimpleDateFormat sdf = pool.get(format);
+        if (sdf == null) {
+            sdf = new SimpleDateFormat(format);
+
+            if (pool.size() >= MAX_CACHED_PER_THREAD) {
+                pool.clear();
+            }
+            pool.put(format, sdf);
+        }
+        return sdf;
+    }
+}
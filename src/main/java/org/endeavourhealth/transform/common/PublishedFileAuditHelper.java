@@ -28,6 +28,14 @@ public class PublishedFileAuditHelper {
     private static final PublishedFileDalI dal = DalProvider.factoryPublishedFileDal();
 
     public static int auditPublishedFileRecord(ParserI parser, boolean firstRecordContainsHeaders, PublishedFileType publishedFileType) throws Exception {
+        return auditPublishedFileRecord(parser, firstRecordContainsHeaders, publishedFileType, null);
+    }
+
+    /**
+     * if a FusedFileAuditor is passed in, the records aren't audited in a separate pass over the file, but the
+     * auditor is started, so they get audited as the file is parsed
+     */
+    public static int auditPublishedFileRecord(ParserI parser, boolean firstRecordContainsHeaders, PublishedFileType publishedFileType, FusedFileAuditor fusedFileAuditor) throws Exception {
 
         String filePath = parser.getFilePath();
         LOG.info("Auditing " + filePath);
@@ -68,7 +76,11 @@ public class PublishedFileAuditHelper {
         }
 
         //then actually audit the records
-        auditRecords(filePath, fileAuditId, firstRecordContainsHeaders, parser);
+        if (fusedFileAuditor != null) {
+            fusedFileAuditor.start(fileAuditId, firstRecordContainsHeaders);
+        } else {
+            auditRecords(filePath, fileAuditId, firstRecordContainsHeaders, parser);
+        }
 
         return fileAuditId;
     }
@@ -209,7 +221,7 @@ public class PublishedFileAuditHelper {
         throw new Exception("Failed to find file size for " + filePath);
     }
 
-    private static void handleErrors(List<ThreadPoolError> errors) throws Exception {
+    static void handleErrors(List<ThreadPoolError> errors) throws Exception {
         if (errors == null || errors.isEmpty()) {
             return;
         }
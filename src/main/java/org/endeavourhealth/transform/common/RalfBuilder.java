@@ -1,6 +1,5 @@
 package org.endeavourhealth.transform.common;
 
-import OpenPseudonymiser.Crypto;
 import com.google.common.base.Strings;
 import org.endeavourhealth.core.database.dal.DalProvider;
 import org.endeavourhealth.core.database.dal.subscriberTransform.PseudoIdDalI;
@@ -15,14 +14,10 @@ public class RalfBuilder {
     private String uprn;
     private String subscriberConfigName;
     private String saltKeyName;
-    private byte[] saltBytes;
+    private String saltBase64;
     private TreeMap<String, String> treeMap;
 
     private RalfBuilder(String uprn, String subscriberConfigName, String saltKeyName, String saltBase64) {
-        this(uprn, subscriberConfigName, saltKeyName, Base64.getDecoder().decode(saltBase64));
-    }
-
-    private RalfBuilder(String uprn, String subscriberConfigName, String saltKeyName, byte[] saltBytes) {
         if (Strings.isNullOrEmpty(uprn)) {
             throw new RuntimeException("Null or empty uprn");
         }
@@ -32,13 +27,13 @@ public class RalfBuilder {
         if (Strings.isNullOrEmpty(saltKeyName)) {
             throw new RuntimeException("Null or empty salt key name");
         }
-        if (saltBytes == null) {
-            throw new RuntimeException("Null salt key bytes");
+        if (Strings.isNullOrEmpty(saltBase64)) {
+            throw new RuntimeException("Null or empty salt");
         }
         this.uprn = uprn;
         this.subscriberConfigName = subscriberConfigName;
         this.saltKeyName = saltKeyName;
-        this.saltBytes = saltBytes;
+        this.saltBase64 = saltBase64;
     }
 
      private boolean addValue(String fieldName, String fieldValue) {
@@ -65,9 +60,7 @@ public class RalfBuilder {
             return null;
         }
 
-        Crypto crypto = new Crypto();
-        crypto.SetEncryptedSalt(saltBytes);
-        String ralf = crypto.GetDigest(this.treeMap);
+        String ralf = PseudonymisationEngine.digest(saltBase64, this.treeMap);
 
         return ralf;
     }
@@ -101,4 +94,4 @@ public class RalfBuilder {
         }
         return ret;
     }
-}
\ No newline at end of file
+}
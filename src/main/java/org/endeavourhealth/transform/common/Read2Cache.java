@@ -9,6 +9,7 @@ import org.endeavourhealth.core.terminology.TerminologyService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
@@ -28,6 +29,15 @@ public class Read2Cache {
 
     public static String lookUpRead2TermForCode(String code) throws Exception {
 
+        //if we've a code mapping file, check that first
+        CodeMappingFile codeMappingFile = CodeMappingFile.instance();
+        if (codeMappingFile != null) {
+            String term = codeMappingFile.getRead2Term(code);
+            if (term != null) {
+                return term;
+            }
+        }
+
         StringMemorySaver cached = hmRead2CodeToTerm.get(code);
         if (cached != null) {
             return cached.toString();
@@ -54,4 +64,45 @@ public class Read2Cache {
         }
     }
 
+    /**
+     * looks up any of the codes not already cached in a single DB call, so a block of records can then be
+     * processed without going to the DB for each code in turn
+     */
+    public static void prefetchRead2Codes(Set<String> codes) throws Exception {
+
+        CodeMappingFile codeMappingFile = CodeMappingFile.instance();
+
+        Set<String> codesForDb = new HashSet<>();
+        for (String code: codes) {
+            if (codeMappingFile != null
+                    && codeMappingFile.getRead2Term(code) != null) {
+                continue;
+            }
+
+            if (hmRead2CodeToTerm.get(code) != null
+                    || hsNonValidRead2Codes.contains(code)) {
+                continue;
+            }
+
+            codesForDb.add(code);
+        }
+
+        if (codesForDb.isEmpty()) {
+            return;
+        }
+
+        Read2ToSnomedMapDalI dal = DalProvider.factoryRead2ToSnomedMapDal();
+        Map<String, Read2Code> dbMap = dal.getRead2Codes(codesForDb);
+
+        //add to one of the caches, the same as for a single lookup
+        for (String code: codesForDb) {
+            Read2Code read2Code = dbMap.get(code);
+            if (read2Code == null) {
+                hsNonValidRead2Codes.add(code);
+            } else {
+                hmRead2CodeToTerm.put(code, new StringMemorySaver(read2Code.getPreferredTerm()));
+            }
+        }
+    }
+
 }
@@ -0,0 +1,123 @@
+package org.endeavourhealth.transform.common;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * size-limited cache for reference data looked up from the DB, for use in static fields that live as long as
+ * the queue reader. Each cache is a named region, limited to the max size set in config, evicting the least
+ * recently used entries when full. Keys not found in the DB are also cached (for a limited time, in case the
+ * reference data is updated) so we don't keep going back to the DB for the same missing key.
+ *
+ * Hit, miss and eviction counts for all regions can be logged with logStats()
+ */
+public class ReferenceDataCache<K, V> {
+    private static final Logger LOG = LoggerFactory.getLogger(ReferenceDataCache.class);
+
+    private static final long NOT_FOUND_DURATION_MINS = 60;
+
+    private static final List<ReferenceDataCache> regions = new ArrayList<>();
+
+    private final String name;
+    private final Cache<K, V> found;
+    private final Cache<K, Boolean> notFound;
+
+    public ReferenceDataCache(String name) {
+        this(name, TransformConfig.instance().getReferenceCacheMaxSize());
+    }
+
+    public ReferenceDataCache(String name, long maxSize) {
+        this.name = name;
+        this.found = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .recordStats()
+                .build();
+        this.notFound = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(NOT_FOUND_DURATION_MINS, TimeUnit.MINUTES)
+                .recordStats()
+                .build();
+
+        synchronized (regions) {
+            regions.add(this);
+        }
+    }
+
+    /**
+     * returns the cached value for the key, calling the loader if not cached. Returns null if the key is
+     * cached as not found, or the loader returns null.
+     */
+    public V get(K key, LoaderI<K, V> loader) throws Exception {
+
+        V ret = found.getIfPresent(key);
+        if (ret != null) {
+            return ret;
+        }
+
+        if (notFound.getIfPresent(key) != null) {
+            return null;
+        }
+
+        //concurrent misses for the same key may both hit the DB, which is fine for reference data
+        ret = loader.load(key);
+        if (ret == null) {
+            notFound.put(key, Boolean.TRUE);
+        } else {
+            found.put(key, ret);
+        }
+
+        return ret;
+    }
+
+    /**
+     * returns the value if cached, without loading it
+     */
+    public V getIfPresent(K key) {
+        return found.getIfPresent(key);
+    }
+
+    public void put(K key, V value) {
+        found.put(key, value);
+        notFound.invalidate(key);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getStats() {
+        CacheStats foundStats = found.stats();
+        CacheStats notFoundStats = notFound.stats();
+
+        //a lookup that misses the found cache checks the not-found one, so its hits aren't real misses
+        long hits = foundStats.hitCount() + notFoundStats.hitCount();
+        long misses = notFoundStats.missCount();
+
+        return name + ": size " + found.size() + " (+" + notFound.size() + " not found)"
+                + ", hits " + hits
+                + ", misses " + misses
+                + ", evictions " + (foundStats.evictionCount() + notFoundStats.evictionCount());
+    }
+
+    public static void logStats() {
+        List<ReferenceDataCache> copy;
+        synchronized (regions) {
+            copy = new ArrayList<>(regions);
+        }
+
+        for (ReferenceDataCache region: copy) {
+            LOG.info("Reference data cache " + region.getStats());
+        }
+    }
+
+    public interface LoaderI<K, V> {
+        V load(K key) throws Exception;
+    }
+}
@@ -9,8 +9,11 @@ import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.locks.ReentrantLock;
@@ -21,17 +24,39 @@ import java.util.zip.GZIPOutputStream;
  * cache for FHIR ResourceBuilders the uses compression to minimise memory footprint
  * NOTE: due to how the cache works, there is no GET-only method. To use this cache,
  * you getAndRemove(..) and then addToCache(..) when you want to return it.
+ *
+ * The entries are split over a number of stripes, each with its own lock. If spilling to disk is enabled, then
+ * once a stripe has more than its share of the max size in memory, the compressed bytes of its oldest entries
+ * are moved to a ResourceCacheSpillFile until they're removed.
  */
 public class ResourceCache<T, S extends ResourceBuilderBase> {
     private static final Logger LOG = LoggerFactory.getLogger(ResourceCache.class);
 
-    private Map<T, CacheEntryProxy> cache = new HashMap<>();
-    private ReentrantLock lock = new ReentrantLock();
+    private static final int STRIPE_COUNT = 16;
 
-    /**
-     * if no offloadToDiskPath is specified, it'll offload to the queued_message DB table
-     */
-    public ResourceCache() {}
+    private final Stripe[] stripes;
+    private final int maxInMemoryPerStripe;
+    private final boolean spillToDisk;
+    private final boolean binaryAudit;
+    private ResourceCacheSpillFile spillFile = null; //created when first needed
+
+    public ResourceCache() {
+        TransformConfig config = TransformConfig.instance();
+        this.spillToDisk = config.isResourceCacheSpillToDisk();
+        this.binaryAudit = config.isResourceCacheBinaryAudit();
+        this.maxInMemoryPerStripe = Math.max(1, config.getResourceCacheMaxSizeInMemory() / STRIPE_COUNT);
+
+        this.stripes = new ResourceCache.Stripe[STRIPE_COUNT];
+        for (int i=0; i<STRIPE_COUNT; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    private Stripe getStripe(T key) {
+        int hash = key == null ? 0 : key.hashCode();
+        hash ^= (hash >>> 16);
+        return stripes[(hash & 0x7FFFFFFF) % STRIPE_COUNT];
+    }
 
     public void addToCache(T key, S resourceBuilder) throws Exception {
 
@@ -39,149 +64,235 @@ public class ResourceCache<T, S extends ResourceBuilderBase> {
             throw new Exception("Can't add null resourceBuilder to ResourceCache");
         }
 
+        //compress before locking, so other threads using the same stripe aren't held up
+        CacheEntryProxy entry = new CacheEntryProxy(resourceBuilder);
+
+        Stripe stripe = getStripe(key);
         try {
-            lock.lock();
+            stripe.lock.lock();
 
             //release any existing entry for the same key
-            CacheEntryProxy existingEntry = cache.get(key);
+            CacheEntryProxy existingEntry = stripe.remove(key);
             if (existingEntry != null) {
                 existingEntry.release();
             }
 
             //add the new resource to the map
-            CacheEntryProxy entry = new CacheEntryProxy(resourceBuilder);
-            cache.put(key, entry);
+            stripe.inMemory.put(key, entry);
+
+            //see if we need to offload anything to disk
+            offloadResourcesIfNecessary(stripe);
 
         } finally {
-            lock.unlock();
+            stripe.lock.unlock();
         }
-
-        //see if we need to offload anything to the DB
-        //offloadResourcesIfNecessary();
     }
 
     public boolean contains(T key) {
+        Stripe stripe = getStripe(key);
         try {
-            lock.lock();
-            return cache.containsKey(key);
+            stripe.lock.lock();
+            return stripe.inMemory.containsKey(key)
+                    || stripe.spilled.containsKey(key);
 
         } finally {
-            lock.unlock();
+            stripe.lock.unlock();
         }
     }
 
     public int size() {
-        try {
-            lock.lock();
-            return cache.size();
-
-        } finally {
-            lock.unlock();
+        int ret = 0;
+        for (Stripe stripe: stripes) {
+            try {
+                stripe.lock.lock();
+                ret += stripe.inMemory.size() + stripe.spilled.size();
+
+            } finally {
+                stripe.lock.unlock();
+            }
         }
+        return ret;
     }
 
     public Set<T> keySet() {
-        try {
-            lock.lock();
-            return new HashSet<>(cache.keySet());
-
-        } finally {
-            lock.unlock();
+        Set<T> ret = new HashSet<>();
+        for (Stripe stripe: stripes) {
+            try {
+                stripe.lock.lock();
+                ret.addAll(stripe.inMemory.keySet());
+                ret.addAll(stripe.spilled.keySet());
+
+            } finally {
+                stripe.lock.unlock();
+            }
         }
+        return ret;
     }
 
     public S getAndRemoveFromCache(T key) throws Exception {
 
-        try {
-            lock.lock();
+        CacheEntryProxy existingEntry = null;
 
-            CacheEntryProxy existingEntry = cache.remove(key);
+        Stripe stripe = getStripe(key);
+        try {
+            stripe.lock.lock();
+            existingEntry = stripe.remove(key);
 
-            if (existingEntry == null) {
-                return null;
+        } finally {
+            stripe.lock.unlock();
+        }
 
-            } else {
-                return existingEntry.getResourceBuilder();
-            }
+        if (existingEntry == null) {
+            return null;
+        }
 
+        //now it's out of the map, no other thread can get the entry, so decompress it without holding the lock
+        try {
+            return existingEntry.getResourceBuilder();
         } finally {
-            lock.unlock();
+            existingEntry.release();
         }
     }
 
     public void removeFromCache(T key) throws Exception {
 
-        try {
-            lock.lock();
+        CacheEntryProxy existingEntry = null;
 
-            CacheEntryProxy existingEntry = cache.remove(key);
-            if (existingEntry != null) {
-                existingEntry.release();
-            }
+        Stripe stripe = getStripe(key);
+        try {
+            stripe.lock.lock();
+            existingEntry = stripe.remove(key);
 
         } finally {
-            lock.unlock();
+            stripe.lock.unlock();
         }
 
+        if (existingEntry != null) {
+            existingEntry.release();
+        }
     }
 
     public void clear() throws Exception {
 
-        try {
-            lock.lock();
+        for (Stripe stripe: stripes) {
+            try {
+                stripe.lock.lock();
+
+                for (CacheEntryProxy entryProxy: stripe.inMemory.values()) {
+                    entryProxy.release();
+                }
+                for (CacheEntryProxy entryProxy: stripe.spilled.values()) {
+                    entryProxy.release();
+                }
+                stripe.inMemory.clear();
+                stripe.spilled.clear();
 
-            for (T key : cache.keySet()) {
-                CacheEntryProxy entryProxy = cache.get(key);
-                entryProxy.release();
+            } finally {
+                stripe.lock.unlock();
             }
-            cache.clear();
+        }
 
-        } finally {
-            lock.unlock();
+        ResourceCacheSpillFile spillFile = getSpillFile(false);
+        if (spillFile != null) {
+            spillFile.clear();
         }
     }
 
     /**
-     * we have a max limit on the number of EncounterBuilders we can keep in memory, since keeping too many
-     * will result in memory problems. So whenever the cache state changes, check
+     * we have a max limit on the number of ResourceBuilders we can keep in memory, since keeping too many
+     * will result in memory problems. So whenever a stripe gets more than its share, the oldest entries
+     * are offloaded to disk. Must be called with the stripe locked.
      */
-    /*private void offloadResourcesIfNecessary() throws Exception {
+    private void offloadResourcesIfNecessary(Stripe stripe) throws Exception {
 
-        try {
-            lock.lock();
-
-            int maxSizeInMemory = TransformConfig.instance().getResourceCacheMaxSizeInMemory();
-            if (keysInMemory.size() > maxSizeInMemory) {
-                int toOffload = keysInMemory.size() - maxSizeInMemory;
-
-                for (T key : keysInMemory) {
-                    CacheEntryProxy entry = cache.get(key);
-                    if (entry == null) {
-                        continue;
-                    }
-                    //LOG.debug("Offloading key " + key + " with entry " + entry);
-                    entry.offloadFromMemory();
-
-                    toOffload--;
-                    if (toOffload <= 0) {
-                        break;
-                    }
-                }
+        if (!spillToDisk) {
+            return;
+        }
+
+        int toOffload = stripe.inMemory.size() - maxInMemoryPerStripe;
+        if (toOffload <= 0) {
+            return;
+        }
+
+        ResourceCacheSpillFile spillFile = getSpillFile(true);
+
+        //the map is in insertion order, and anything in use is removed and re-added, so the first ones are the coldest
+        Iterator<Map.Entry<T, CacheEntryProxy>> it = stripe.inMemory.entrySet().iterator();
+        while (toOffload > 0 && it.hasNext()) {
+            Map.Entry<T, CacheEntryProxy> mapEntry = it.next();
+            it.remove();
+
+            CacheEntryProxy entry = mapEntry.getValue();
+            entry.offloadFromMemory(spillFile);
+            stripe.spilled.put(mapEntry.getKey(), entry);
+
+            toOffload --;
+        }
+    }
+
+    private synchronized ResourceCacheSpillFile getSpillFile(boolean create) {
+        if (spillFile == null && create) {
+            spillFile = new ResourceCacheSpillFile(getClass().getSimpleName());
+        }
+        return spillFile;
+    }
+
+    private static byte[] compress(byte[] bytes) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(bytes);
+        gzip.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] decompress(byte[] compressedBytes, int originalLen) throws Exception {
+
+        byte[] bytesOut = new byte[originalLen];
+        ByteArrayInputStream in = new ByteArrayInputStream(compressedBytes);
+        GZIPInputStream gzipInputStream = new GZIPInputStream(in);
+
+        int pos = 0;
+        int remaining = bytesOut.length;
+        while (remaining > 0) {
+            int read = gzipInputStream.read(bytesOut, pos, remaining);
+            if (read == -1) {
+                throw new EOFException("Compressed bytes ended after " + pos + " of " + originalLen + " bytes");
             }
+            pos += read;
+            remaining -= read;
+        }
 
-        } finally {
-            lock.unlock();
+        return bytesOut;
+    }
+
+    /**
+     * each stripe holds the entries in memory, in the order they were added, and those offloaded to disk
+     */
+    class Stripe {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final LinkedHashMap<T, CacheEntryProxy> inMemory = new LinkedHashMap<>();
+        private final Map<T, CacheEntryProxy> spilled = new HashMap<>();
+
+        CacheEntryProxy remove(T key) {
+            CacheEntryProxy ret = inMemory.remove(key);
+            if (ret == null) {
+                ret = spilled.remove(key);
+            }
+            return ret;
         }
-    }*/
+    }
 
     /**
-     * proxy class to hold the reference to a Resource or the UUID used to store it in the DB
+     * proxy class to hold the compressed bytes of a ResourceBuilder, or where they are on disk
      */
     class CacheEntryProxy {
         private byte[] compressedBytes = null;
         private int originalLen = -1;
         private byte[] compressedAuditBytes = null;
         private int originalAuditLen = -1;
+        private boolean auditIsBinary = false;
+        private ResourceCacheSpillFile spillFile = null;
+        private ResourceCacheSpillFile.SpillLocation spillLocation = null;
 
         public CacheEntryProxy(S resourceBuilder) throws Exception {
             compressBytes(resourceBuilder);
@@ -202,76 +313,74 @@ public class ResourceCache<T, S extends ResourceBuilderBase> {
             String json = FhirSerializationHelper.serializeResource(resource);
             byte[] bytes = json.getBytes("UTF-8");
 
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            GZIPOutputStream gzip = new GZIPOutputStream(out);
-            gzip.write(bytes);
-            gzip.close();
-
             this.originalLen = bytes.length;
-            this.compressedBytes = out.toByteArray();
+            this.compressedBytes = compress(bytes);
 
             ResourceFieldMappingAudit audit = resourceBuilder.getAuditWrapper();
-            json = audit.writeToJson();
-            bytes = json.getBytes("UTF-8");
-
-            out = new ByteArrayOutputStream();
-            gzip = new GZIPOutputStream(out);
-            gzip.write(bytes);
-            gzip.close();
+            bytes = null;
+            if (binaryAudit) {
+                bytes = ResourceFieldMappingAuditCodec.encode(audit);
+            }
+            if (bytes != null) {
+                this.auditIsBinary = true;
+            } else {
+                json = audit.writeToJson();
+                bytes = json.getBytes("UTF-8");
+            }
 
             this.originalAuditLen = bytes.length;
-            this.compressedAuditBytes = out.toByteArray();
+            this.compressedAuditBytes = compress(bytes);
         }
 
         private ResourceBuilderBase decompressBytes() throws Exception {
-            //create local reference in case another thread nulls the class reference
+            //create local references in case another thread nulls the class references
             byte[] bytes = this.compressedBytes;
+            byte[] auditBytes = this.compressedAuditBytes;
+            ResourceCacheSpillFile.SpillLocation spillLocation = this.spillLocation;
+
+            if (spillLocation != null) {
+                byte[][] spilledBytes = spillFile.read(spillLocation);
+                bytes = spilledBytes[0];
+                auditBytes = spilledBytes[1];
+            }
             if (bytes == null) {
                 return null;
             }
 
-            byte[] bytesOut = new byte[this.originalLen];
-            ByteArrayInputStream in = new ByteArrayInputStream(this.compressedBytes);
-            GZIPInputStream gzipInputStream = new GZIPInputStream(in);
-
-            int pos = 0;
-            int remaining = bytesOut.length;
-            while (true) {
-                int read = gzipInputStream.read(bytesOut, pos, remaining);
-                pos += read;
-                remaining -= read;
-                if (remaining <= 0) {
-                    break;
-                }
-            }
-
+            byte[] bytesOut = decompress(bytes, this.originalLen);
             String resourceJson = new String(bytesOut, "UTF-8");
             Resource resource = FhirSerializationHelper.deserializeResource(resourceJson);
 
-            bytesOut = new byte[this.originalAuditLen];
-            in = new ByteArrayInputStream(this.compressedAuditBytes);
-            gzipInputStream = new GZIPInputStream(in);
-
-            pos = 0;
-            remaining = bytesOut.length;
-            while (true) {
-                int read = gzipInputStream.read(bytesOut, pos, remaining);
-                pos += read;
-                remaining -= read;
-                if (remaining <= 0) {
-                    break;
-                }
+            bytesOut = decompress(auditBytes, this.originalAuditLen);
+            ResourceFieldMappingAudit audit;
+            if (auditIsBinary) {
+                audit = ResourceFieldMappingAuditCodec.decode(bytesOut);
+            } else {
+                String auditJson = new String(bytesOut, "UTF-8");
+                audit = ResourceFieldMappingAudit.readFromJson(auditJson);
             }
 
-            String auditJson = new String(bytesOut, "UTF-8");
-            ResourceFieldMappingAudit audit = ResourceFieldMappingAudit.readFromJson(auditJson);
-
             return ResourceBuilderBase.factory(resource, audit);
         }
 
+        /**
+         * moves the compressed bytes to disk
+         */
+        public void offloadFromMemory(ResourceCacheSpillFile spillFile) throws Exception {
+            this.spillLocation = spillFile.write(compressedBytes, compressedAuditBytes);
+            this.spillFile = spillFile;
+            this.compressedBytes = null;
+            this.compressedAuditBytes = null;
+        }
+
         public void release() throws Exception {
             this.compressedBytes = null;
             this.compressedAuditBytes = null;
+
+            if (spillLocation != null) {
+                spillFile.remove(spillLocation);
+                this.spillLocation = null;
+            }
         }
     }
 
@@ -0,0 +1,277 @@
+package org.endeavourhealth.transform.common;
+
+import org.endeavourhealth.common.utility.FileHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * local disk store for the compressed bytes of ResourceCache entries that don't fit in memory. Entries are
+ * appended to segment files in the temp dir, and each entry is only ever found using the SpillLocation
+ * returned when it was written, so the index is just those locations.
+ *
+ * Removed entries leave dead bytes in their segment, so once most of a segment is dead, the remaining live entries
+ * are copied to the end of the current segment and the old file deleted. Segment files are written and read with
+ * positional FileChannel IO rather than being memory-mapped, since Java 8 has no way to unmap a MappedByteBuffer
+ * so compacted segments couldn't be reliably deleted until the next GC.
+ */
+public class ResourceCacheSpillFile {
+    private static final Logger LOG = LoggerFactory.getLogger(ResourceCacheSpillFile.class);
+
+    private static final long MAX_SEGMENT_SIZE = 64L * 1024L * 1024L;
+    private static final double COMPACT_LIVE_RATIO = 0.5;
+
+    private final String name;
+    private final List<Segment> segments = new ArrayList<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private Segment currentSegment = null;
+
+    public ResourceCacheSpillFile(String name) {
+        this.name = name;
+    }
+
+    /**
+     * appends the two byte arrays to the current segment, returning the location to read them back from
+     */
+    public SpillLocation write(byte[] bytes, byte[] auditBytes) throws Exception {
+        try {
+            lock.writeLock().lock();
+
+            SpillLocation location = new SpillLocation(bytes.length, auditBytes.length);
+            append(location, bytes, auditBytes);
+            return location;
+
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * reads back the bytes written to the given location, returning an array of two arrays
+     */
+    public byte[][] read(SpillLocation location) throws Exception {
+        try {
+            lock.readLock().lock();
+
+            if (location.segment == null) {
+                throw new IllegalStateException("Spilled entry has already been removed from " + name);
+            }
+            return readFromSegment(location);
+
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * marks the bytes at the location as dead, deleting or compacting its segment if mostly dead
+     */
+    public void remove(SpillLocation location) throws Exception {
+        try {
+            lock.writeLock().lock();
+
+            Segment segment = location.segment;
+            if (segment == null) {
+                return;
+            }
+            segment.removeLocation(location);
+
+            //the current segment is still being written to, so leave it alone unless there's nothing in it
+            if (segment == currentSegment) {
+                if (segment.liveLocations.isEmpty()) {
+                    segment.writePos = 0;
+                    segment.totalBytes = 0;
+                }
+
+            } else if (segment.liveLocations.isEmpty()) {
+                deleteSegment(segment);
+
+            } else if (segment.liveBytes < segment.totalBytes * COMPACT_LIVE_RATIO) {
+                compact(segment);
+            }
+
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * deletes all segment files
+     */
+    public void clear() {
+        try {
+            lock.writeLock().lock();
+
+            for (Segment segment: new ArrayList<>(segments)) {
+                for (SpillLocation location: segment.liveLocations) {
+                    location.segment = null;
+                }
+                segment.liveLocations.clear();
+                deleteSegment(segment);
+            }
+            currentSegment = null;
+
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int getSegmentCount() {
+        try {
+            lock.readLock().lock();
+            return segments.size();
+
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * copies the live entries from the segment to the current one and deletes it
+     */
+    private void compact(Segment segment) throws Exception {
+
+        List<SpillLocation> toMove = new ArrayList<>(segment.liveLocations);
+        LOG.debug("Compacting " + segment.file + " in " + name + " with " + toMove.size() + " live entries ("
+                + segment.liveBytes + " of " + segment.totalBytes + " bytes)");
+
+        for (SpillLocation location: toMove) {
+            byte[][] bytes = readFromSegment(location);
+            segment.removeLocation(location);
+            append(location, bytes[0], bytes[1]);
+        }
+
+        deleteSegment(segment);
+    }
+
+    private void append(SpillLocation location, byte[] bytes, byte[] auditBytes) throws Exception {
+
+        long len = (long)bytes.length + (long)auditBytes.length;
+        if (currentSegment == null
+                || (currentSegment.writePos > 0 && currentSegment.writePos + len > MAX_SEGMENT_SIZE)) {
+            currentSegment = createSegment();
+        }
+
+        Segment segment = currentSegment;
+        long offset = segment.writePos;
+        writeFully(segment.channel, bytes, offset);
+        writeFully(segment.channel, auditBytes, offset + bytes.length);
+        segment.writePos += len;
+        segment.totalBytes += len;
+
+        location.segment = segment;
+        location.offset = offset;
+        segment.addLocation(location);
+    }
+
+    private byte[][] readFromSegment(SpillLocation location) throws Exception {
+
+        byte[] bytes = new byte[location.length];
+        byte[] auditBytes = new byte[location.auditLength];
+        readFully(location.segment.channel, bytes, location.offset);
+        readFully(location.segment.channel, auditBytes, location.offset + location.length);
+        return new byte[][]{bytes, auditBytes};
+    }
+
+    private Segment createSegment() throws Exception {
+
+        File tempDir = FileHelper.getTempDir();
+        File file = File.createTempFile("ResourceCache", ".seg", tempDir);
+        file.deleteOnExit();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        Segment segment = new Segment(file, raf);
+        segments.add(segment);
+        LOG.debug("Created spill segment " + file + " for " + name + " (" + segments.size() + " segments)");
+        return segment;
+    }
+
+    private void deleteSegment(Segment segment) {
+        segments.remove(segment);
+        if (segment == currentSegment) {
+            currentSegment = null;
+        }
+
+        try {
+            segment.raf.close();
+        } catch (IOException ex) {
+            LOG.warn("Failed to close " + segment.file, ex);
+        }
+
+        if (!segment.file.delete()) {
+            LOG.warn("Failed to delete " + segment.file);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, byte[] bytes, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static void readFully(FileChannel channel, byte[] bytes, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read == -1) {
+                throw new EOFException("Reached end of spill segment at byte " + position);
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * where a spilled entry's bytes are. The segment and offset change if the entry is moved by compaction.
+     */
+    public static class SpillLocation {
+        private final int length;
+        private final int auditLength;
+        private Segment segment;
+        private long offset;
+
+        SpillLocation(int length, int auditLength) {
+            this.length = length;
+            this.auditLength = auditLength;
+        }
+    }
+
+    static class Segment {
+        private final File file;
+        private final RandomAccessFile raf;
+        private final FileChannel channel;
+        private final Set<SpillLocation> liveLocations = new HashSet<>();
+        private long writePos = 0;
+        private long totalBytes = 0;
+        private long liveBytes = 0;
+
+        Segment(File file, RandomAccessFile raf) {
+            this.file = file;
+            this.raf = raf;
+            this.channel = raf.getChannel();
+        }
+
+        void addLocation(SpillLocation location) {
+            liveLocations.add(location);
+            liveBytes += location.length + location.auditLength;
+        }
+
+        void removeLocation(SpillLocation location) {
+            if (liveLocations.remove(location)) {
+                liveBytes -= location.length + location.auditLength;
+            }
+            location.segment = null;
+        }
+    }
+}
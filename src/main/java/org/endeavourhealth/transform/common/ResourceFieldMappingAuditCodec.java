@@ -0,0 +1,123 @@
+package org.endeavourhealth.transform.common;
+
+import org.endeavourhealth.core.database.dal.publisherTransform.models.ResourceFieldMappingAudit;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * compact binary alternative to ResourceFieldMappingAudit.writeToJson(), used by ResourceCache so cached builders
+ * don't need their audits converted to and from JSON. Each row is written as its file ID, record number and
+ * columns, with each distinct field name only written once and referred to by index after that. Rows without
+ * any columns (i.e. from auditRecord(..)) and columns without a field name are kept as they are.
+ */
+public class ResourceFieldMappingAuditCodec {
+
+    private static final byte VERSION = 2;
+
+    private static final int NEW_FIELD = -1;
+    private static final int NULL_FIELD = -2;
+
+    /**
+     * returns the audit as bytes, or null if it contains anything that can't be encoded (i.e. old-style audits
+     * without a published file ID), in which case the JSON should be used instead
+     */
+    public static byte[] encode(ResourceFieldMappingAudit audit) throws Exception {
+
+        List<ResourceFieldMappingAudit.ResourceFieldMappingAuditRow> rows = new ArrayList<>();
+        for (ResourceFieldMappingAudit.ResourceFieldMappingAuditRow rowAudit: audit.getAudits()) {
+            if (rowAudit.getFileId() <= 0) {
+                return null;
+            }
+            rows.add(rowAudit);
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeByte(VERSION);
+        out.writeInt(rows.size());
+
+        Map<String, Integer> fieldIndexes = new HashMap<>();
+        for (ResourceFieldMappingAudit.ResourceFieldMappingAuditRow rowAudit: rows) {
+            out.writeInt(rowAudit.getFileId());
+            out.writeInt(rowAudit.getRecord());
+
+            List<ResourceFieldMappingAudit.ResourceFieldMappingAuditCol> cols = new ArrayList<>();
+            for (ResourceFieldMappingAudit.ResourceFieldMappingAuditCol colAudit: rowAudit.getCols()) {
+                cols.add(colAudit);
+            }
+            out.writeInt(cols.size());
+            for (ResourceFieldMappingAudit.ResourceFieldMappingAuditCol colAudit: cols) {
+                out.writeShort(colAudit.getCol());
+
+                //a new field is written as -1 followed by the name, a repeated one as its index, and a null one as -2
+                String field = colAudit.getField();
+                if (field == null) {
+                    out.writeInt(NULL_FIELD);
+                    continue;
+                }
+
+                Integer index = fieldIndexes.get(field);
+                if (index == null) {
+                    fieldIndexes.put(field, new Integer(fieldIndexes.size()));
+                    out.writeInt(NEW_FIELD);
+                    out.writeUTF(field);
+                } else {
+                    out.writeInt(index.intValue());
+                }
+            }
+        }
+
+        out.close();
+        return baos.toByteArray();
+    }
+
+    public static ResourceFieldMappingAudit decode(byte[] bytes) throws Exception {
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        byte version = in.readByte();
+        if (version != VERSION) {
+            throw new Exception("Unexpected audit codec version " + version);
+        }
+
+        ResourceFieldMappingAudit audit = new ResourceFieldMappingAudit();
+        List<String> fields = new ArrayList<>();
+
+        int rowCount = in.readInt();
+        for (int i=0; i<rowCount; i++) {
+            int fileId = in.readInt();
+            int record = in.readInt();
+
+            int colCount = in.readInt();
+            if (colCount == 0) {
+                //the row was audited without any columns, so make sure it's not lost
+                audit.auditRecord(fileId, record);
+            }
+
+            for (int j=0; j<colCount; j++) {
+                short col = in.readShort();
+
+                String field;
+                int index = in.readInt();
+                if (index == NEW_FIELD) {
+                    field = in.readUTF();
+                    fields.add(field);
+                } else if (index == NULL_FIELD) {
+                    field = null;
+                } else {
+                    field = fields.get(index);
+                }
+
+                audit.auditValue(fileId, record, col, field);
+            }
+        }
+
+        return audit;
+    }
+}
@@ -0,0 +1,52 @@
+package org.endeavourhealth.transform.common;
+
+import org.endeavourhealth.common.fhir.ReferenceComponents;
+import org.endeavourhealth.common.fhir.ReferenceHelper;
+import org.endeavourhealth.core.database.dal.DalProvider;
+import org.endeavourhealth.core.database.dal.publisherTransform.ResourceIdTransformDalI;
+import org.hl7.fhir.instance.model.Reference;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * IdMappingStoreI implementation using the resource ID map table via ResourceIdTransformDalI. Lookups are done
+ * in bulk, but the DAL doesn't have a bulk insert, so createEdsIds(..) still makes one findOrCreate(..) call per
+ * reference, which handles any race with another thread creating the same mapping.
+ */
+public class ResourceIdTransformMappingStore implements IdMappingStoreI {
+
+    private final ResourceIdTransformDalI repository;
+
+    public ResourceIdTransformMappingStore() {
+        this(DalProvider.factoryResourceIdTransformDal());
+    }
+
+    public ResourceIdTransformMappingStore(ResourceIdTransformDalI repository) {
+        this.repository = repository;
+    }
+
+    @Override
+    public Map<Reference, Reference> findEdsReferences(UUID serviceId, List<Reference> sourceReferences) throws Exception {
+        return repository.findEdsReferencesFromSourceReferences(serviceId, sourceReferences);
+    }
+
+    @Override
+    public Map<Reference, UUID> createEdsIds(UUID serviceId, List<Reference> sourceReferences) throws Exception {
+
+        Map<Reference, UUID> ret = new HashMap<>();
+
+        for (Reference sourceReference: sourceReferences) {
+            ReferenceComponents comps = ReferenceHelper.getReferenceComponents(sourceReference);
+            String resourceType = comps.getResourceType().toString();
+            String sourceId = comps.getId();
+
+            UUID edsId = repository.findOrCreate(serviceId, resourceType, sourceId);
+            ret.put(sourceReference, edsId);
+        }
+
+        return ret;
+    }
+}
@@ -0,0 +1,350 @@
+package org.endeavourhealth.transform.common;
+
+import org.apache.commons.csv.CSVFormat;
+import org.endeavourhealth.common.utility.FileHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * CsvRecordReaderI that can carry on reading a file after an IO error (e.g. an S3 timeout) without
+ * having to parse the file again from the start. The raw bytes are scanned as they're read, so we know the byte
+ * offset of the end of every record the parser has given us, and if we get an IOException, the file is re-opened
+ * from the end of the last record and a new reader created that carries on from there. See openSharedStorageFile(..)
+ * for what re-opening costs for local and S3 files.
+ *
+ * Since we only ever resume at the end of a record, there's never any quote state to restore, and the line number
+ * counting carries on from the last record so CsvCells still get the same record numbers. CsvByteScanner.isSupported(..)
+ * should be checked before using this. It's only used by AbstractCsvParser if resumable_csv_reader is enabled
+ * in the common config.
+ */
+public class ResumableCsvRecordReader implements CsvRecordReaderI {
+    private static final Logger LOG = LoggerFactory.getLogger(ResumableCsvRecordReader.class);
+
+    private static final int MAX_RESUME_ATTEMPTS = 5;
+
+    private final String filePath;
+    private final CSVFormat csvFormat;
+    private final Charset encoding;
+    private final boolean useFastReader;
+    private final CsvInputStreamOpenerI opener;
+    private final CsvByteScanner scanner;
+    private final RecordOffsetTracker tracker;
+    private CsvRecordReaderI reader;
+    private Map<String, Integer> headerMap;
+    private int resumeAttempts = 0;
+
+    public ResumableCsvRecordReader(String filePath, CSVFormat csvFormat, Charset encoding, boolean useFastReader,
+                                    CsvInputStreamOpenerI opener, List<CsvByteScannerListenerI> listeners) throws Exception {
+        this.filePath = filePath;
+        this.csvFormat = csvFormat;
+        this.encoding = encoding;
+        this.useFastReader = useFastReader;
+        this.opener = opener;
+
+        this.tracker = new RecordOffsetTracker();
+        this.scanner = new CsvByteScanner(csvFormat);
+        this.scanner.addListener(tracker);
+        if (listeners != null) {
+            for (CsvByteScannerListenerI listener: listeners) {
+                this.scanner.addListener(listener);
+            }
+        }
+
+        //the headers are read when the reader is created, so we may get an IO error here too
+        while (true) {
+            try {
+                openFromStart();
+                resumeAttempts = 0;
+                break;
+
+            } catch (IOException ioe) {
+                if (resumeAttempts >= MAX_RESUME_ATTEMPTS) {
+                    throw ioe;
+                }
+                resumeAttempts ++;
+
+                LOG.error("Had an IO Exception opening " + filePath + " so will try again (attempt " + resumeAttempts + ")");
+                LOG.error("" + ioe.getClass().getName() + ": " + ioe.getMessage());
+            }
+        }
+    }
+
+    private void openFromStart() throws Exception {
+
+        scanner.reset(0, 0);
+        tracker.reset();
+
+        InputStream inputStream = opener.open(0);
+        InputStreamReader isr = new InputStreamReader(scanner.wrap(inputStream), encoding);
+        try {
+            if (useFastReader) {
+                this.reader = new FastCsvRecordReader(isr, csvFormat);
+            } else {
+                this.reader = new CommonsCsvRecordReader(isr, csvFormat);
+            }
+        } catch (IOException ex) {
+            closeQuietly(inputStream);
+            throw ex;
+        }
+        this.headerMap = reader.getHeaderMap();
+
+        //if the reader read a header record, then that's the first completed record
+        if (csvFormat.getHeader().length == 0
+                || csvFormat.getSkipHeaderRecord()) {
+            tracker.headerCompleted();
+        }
+    }
+
+    /**
+     * opens a file in shared storage starting from the given byte offset. Local files are opened and positioned
+     * at the offset directly. FileHelper doesn't support ranged reads from S3, so S3 files are opened from the start
+     * and the earlier bytes skipped, which means they ARE downloaded again - only the decoding and parsing of them
+     * is saved. A resume late in a large S3 file still costs re-reading almost the whole file from S3.
+     */
+    public static InputStream openSharedStorageFile(String filePath, long byteOffset) throws Exception {
+
+        File file = new File(filePath);
+        if (file.isFile()) {
+            FileInputStream fis = new FileInputStream(file);
+            try {
+                fis.getChannel().position(byteOffset);
+            } catch (IOException ex) {
+                fis.close();
+                throw ex;
+            }
+            return fis;
+        }
+
+        InputStream inputStream = FileHelper.readFileFromSharedStorage(filePath);
+        try {
+            skipFully(inputStream, byteOffset);
+        } catch (IOException ex) {
+            inputStream.close();
+            throw ex;
+        }
+        return inputStream;
+    }
+
+    private static void skipFully(InputStream inputStream, long bytesToSkip) throws IOException {
+        byte[] buffer = null;
+        while (bytesToSkip > 0) {
+            long skipped = inputStream.skip(bytesToSkip);
+            if (skipped <= 0) {
+                //skip(..) isn't guaranteed to make progress, so fall back on reading
+                if (buffer == null) {
+                    buffer = new byte[8 * 1024];
+                }
+                int read = inputStream.read(buffer, 0, (int)Math.min(buffer.length, bytesToSkip));
+                if (read == -1) {
+                    throw new EOFException("Reached end of stream skipping to byte " + bytesToSkip);
+                }
+                skipped = read;
+            }
+            bytesToSkip -= skipped;
+        }
+    }
+
+    @Override
+    public boolean nextRecord() throws IOException {
+
+        while (true) {
+            try {
+                if (!reader.nextRecord()) {
+                    return false;
+                }
+                tracker.recordCompleted();
+                resumeAttempts = 0;
+                return true;
+
+            } catch (IOException ioe) {
+                //probably an S3 timeout, so re-open the file and carry on from the last record
+                resumeAfterError(ioe);
+            }
+        }
+    }
+
+    private void resumeAfterError(IOException ioe) throws IOException {
+
+        while (true) {
+            //if we can't resume, throw the exception up so the parser can fall back on re-reading the whole file
+            if (resumeAttempts >= MAX_RESUME_ATTEMPTS
+                    || !tracker.isValid()) {
+                throw ioe;
+            }
+            resumeAttempts ++;
+
+            LOG.error("Had an IO Exception reading " + filePath + " so will resume from byte " + tracker.getLastCompletedByteEnd()
+                    + " (attempt " + resumeAttempts + ")");
+            LOG.error("" + ioe.getClass().getName() + ": " + ioe.getMessage());
+
+            try {
+                resume();
+                return;
+            } catch (IOException ex) {
+                ioe = ex;
+            }
+        }
+    }
+
+    /**
+     * re-opens the file from the end of the last completed record
+     */
+    private void resume() throws IOException {
+
+        //the stream is probably already broken, so ignore any error closing it
+        closeQuietly(reader);
+
+        long byteOffset = tracker.getLastCompletedByteEnd();
+        long lineNumber = tracker.getLastCompletedRecordNumber();
+        scanner.reset(byteOffset, lineNumber);
+        tracker.reset();
+
+        InputStream inputStream;
+        try {
+            inputStream = opener.open(byteOffset);
+        } catch (IOException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new IOException("Failed to re-open " + filePath + " at byte " + byteOffset, ex);
+        }
+
+        InputStreamReader isr = new InputStreamReader(scanner.wrap(inputStream), encoding);
+        if (useFastReader) {
+            this.reader = new FastCsvRecordReader(isr, csvFormat, headerMap, lineNumber);
+        } else {
+            this.reader = new CommonsCsvRecordReader(isr, csvFormat, headerMap, lineNumber);
+        }
+    }
+
+    private static void closeQuietly(AutoCloseable closeable) {
+        try {
+            closeable.close();
+        } catch (Exception ex) {
+            //ignore
+        }
+    }
+
+    @Override
+    public long getCurrentLineNumber() {
+        return reader.getCurrentLineNumber();
+    }
+
+    @Override
+    public Map<String, Integer> getHeaderMap() {
+        return headerMap;
+    }
+
+    @Override
+    public void validateHeaders(String filePath, String[] expectedHeaders) throws Exception {
+        reader.validateHeaders(filePath, expectedHeaders);
+    }
+
+    @Override
+    public String getCleanedValue(int colIndex) {
+        return reader.getCleanedValue(colIndex);
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    /**
+     * tracks the end byte of the last record the parser has given us. The scanner sees the bytes before the parser
+     * has parsed them, so the records it finds are queued up until the parser has completed them.
+     */
+    static class RecordOffsetTracker implements CsvByteScannerListenerI {
+
+        private int[] recordNumbers = new int[1024];
+        private long[] byteEnds = new long[1024];
+        private int head = 0;
+        private int size = 0;
+        private boolean valid = true;
+
+        private int lastCompletedRecordNumber = 0;
+        private long lastCompletedByteEnd = 0;
+
+        @Override
+        public void recordFound(int recordNumber, long byteStart, long byteEnd) {
+            if (size == byteEnds.length) {
+                grow();
+            }
+            int index = (head + size) % byteEnds.length;
+            recordNumbers[index] = recordNumber;
+            byteEnds[index] = byteEnd;
+            size ++;
+        }
+
+        @Override
+        public void endOfStream(long byteEnd) {
+            //nothing to do
+        }
+
+        private void grow() {
+            int[] newRecordNumbers = new int[recordNumbers.length * 2];
+            long[] newByteEnds = new long[byteEnds.length * 2];
+            for (int i=0; i<size; i++) {
+                int index = (head + i) % byteEnds.length;
+                newRecordNumbers[i] = recordNumbers[index];
+                newByteEnds[i] = byteEnds[index];
+            }
+            this.recordNumbers = newRecordNumbers;
+            this.byteEnds = newByteEnds;
+            this.head = 0;
+        }
+
+        /**
+         * called when the parser has read a record, which will always be the next one found by the scanner
+         */
+        void recordCompleted() {
+            if (size == 0) {
+                //should never happen, but if the scanner and parser disagree then we can't safely resume
+                valid = false;
+                return;
+            }
+            lastCompletedRecordNumber = recordNumbers[head];
+            lastCompletedByteEnd = byteEnds[head];
+            head = (head + 1) % byteEnds.length;
+            size --;
+        }
+
+        /**
+         * called when the reader has read the header record, which won't exist if the file is empty
+         */
+        void headerCompleted() {
+            if (size > 0) {
+                recordCompleted();
+            }
+        }
+
+        /**
+         * called when re-opening the file, as anything found after the last completed record will be found again
+         */
+        void reset() {
+            head = 0;
+            size = 0;
+        }
+
+        boolean isValid() {
+            return valid;
+        }
+
+        int getLastCompletedRecordNumber() {
+            return lastCompletedRecordNumber;
+        }
+
+        long getLastCompletedByteEnd() {
+            return lastCompletedByteEnd;
+        }
+    }
+}
@@ -24,6 +24,16 @@ public class SnomedCache {
 
     public static String lookUpSnomedTermForConcept(Long conceptId) throws Exception {
 
+        //if we've a code mapping file, check that first
+        CodeMappingFile codeMappingFile = CodeMappingFile.instance();
+        if (codeMappingFile != null
+                && conceptId != null) {
+            String term = codeMappingFile.getSnomedTerm(conceptId.longValue());
+            if (term != null) {
+                return term;
+            }
+        }
+
         StringMemorySaver cached = hmSnomedConceptToTerm.get(conceptId);
         if (cached != null) {
             return cached.toString();
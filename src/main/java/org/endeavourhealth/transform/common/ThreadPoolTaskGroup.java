@@ -0,0 +1,54 @@
+package org.endeavourhealth.transform.common;
+
+import org.endeavourhealth.common.utility.ThreadPool;
+import org.endeavourhealth.common.utility.ThreadPoolError;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * OutboundTaskGroupI that runs tasks on a ThreadPool created just for the one batch
+ */
+public class ThreadPoolTaskGroup implements OutboundTaskGroupI {
+
+    private final ThreadPool threadPool;
+
+    public ThreadPoolTaskGroup(int threads, String name) {
+        this.threadPool = new ThreadPool(threads, 1000, name);
+    }
+
+    @Override
+    public void submit(Callable callable) throws Exception {
+        List<ThreadPoolError> errors = threadPool.submit(callable);
+        handleErrors(errors);
+    }
+
+    @Override
+    public void waitUntilEmpty() throws Exception {
+        List<ThreadPoolError> errors = threadPool.waitUntilEmpty();
+        handleErrors(errors);
+    }
+
+    @Override
+    public void waitAndStop() throws Exception {
+        List<ThreadPoolError> errors = threadPool.waitAndStop();
+        handleErrors(errors);
+    }
+
+    private static void handleErrors(List<ThreadPoolError> errors) throws Exception {
+        if (errors == null || errors.isEmpty()) {
+            return;
+        }
+
+        //if we've had multiple errors, just throw the first one, since they'll most-likely be the same
+        ThreadPoolError first = errors.get(0);
+        Throwable cause = first.getException();
+        //the cause may be an Exception or Error so we need to explicitly
+        //cast to the right type to throw it without changing the method signature
+        if (cause instanceof Exception) {
+            throw (Exception)cause;
+        } else if (cause instanceof Error) {
+            throw (Error)cause;
+        }
+    }
+}
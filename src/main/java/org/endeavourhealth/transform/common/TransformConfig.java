@@ -34,6 +34,31 @@ public class TransformConfig {
     private int rabbitMessagePerSecondThrottle;
     private Map<String, String> emisOdsCodesAndStartDates;
     private int adminBatchMaxSize;
+    private boolean fastCsvParserEnabled;
+    private boolean fusedFileAuditEnabled;
+    private boolean resumableCsvReaderEnabled;
+    private int idMappingBatchSize;
+    private boolean offHeapIdCacheEnabled;
+    private int offHeapIdCacheMaxSize;
+    private boolean resourceCacheSpillToDisk;
+    private boolean resourceCacheBinaryAudit;
+    private boolean bartsPhaseSchedulerEnabled;
+    private boolean bartsPhaseSchedulerDryRun;
+    private boolean emisParallelPreTransform;
+    private long fhirFilerMaxQueuedBytes;
+    private int outboundTransformThreads;
+    private long subscriberCsvSpillBytes;
+    private boolean csvWriterPerThreadBuffers;
+    private int imPrefetchThreads;
+    private String imCacheSnapshotFile;
+    private String postcodeSnapshotFile;
+    private int addressCacheSize;
+    private boolean subscriberIdPrefetch;
+    private boolean patientHistoryDigest;
+    private int referenceCacheMaxSize;
+    private int tppPreTransformThreads;
+    private String codeMappingFile;
+    private int codeMappingFileMaxAgeDays;
 
     //singleton
     private static TransformConfig instance;
@@ -75,6 +100,31 @@ public class TransformConfig {
         this.rabbitMessagePerSecondThrottle = 5000;
         this.emisOdsCodesAndStartDates = new HashMap<>();
         this.adminBatchMaxSize = 30000; //largest known patient has 14k resources, so cap at double
+        this.fastCsvParserEnabled = true;
+        this.fusedFileAuditEnabled = false;
+        this.resumableCsvReaderEnabled = false;
+        this.idMappingBatchSize = 10;
+        this.offHeapIdCacheEnabled = false;
+        this.offHeapIdCacheMaxSize = 1000000; //same as the JCS ResourceIdentifiers region
+        this.resourceCacheSpillToDisk = false;
+        this.resourceCacheBinaryAudit = false;
+        this.bartsPhaseSchedulerEnabled = false;
+        this.bartsPhaseSchedulerDryRun = false;
+        this.emisParallelPreTransform = false;
+        this.fhirFilerMaxQueuedBytes = 0; //unbounded
+        this.outboundTransformThreads = 0; //each batch creates its own thread pool
+        this.subscriberCsvSpillBytes = 0; //never spill to disk
+        this.csvWriterPerThreadBuffers = false; //ignored by subscriber CSV writers if subscriber_csv_spill_bytes is set
+        this.imPrefetchThreads = 0; //concepts looked up one at a time as needed
+        this.imCacheSnapshotFile = null;
+        this.postcodeSnapshotFile = null;
+        this.addressCacheSize = 0; //no caching of postcode and UPRN lookups
+        this.subscriberIdPrefetch = false;
+        this.patientHistoryDigest = false; //build patient history from full resource history each time
+        this.referenceCacheMaxSize = 100000; //per reference data cache region
+        this.tppPreTransformThreads = 0; //TPP pre-transforms run one after the other
+        this.codeMappingFile = null; //Read2, CTV3 and Snomed codes looked up from the DB
+        this.codeMappingFileMaxAgeDays = 0; //code mapping file used however old it is
 
         try {
 
@@ -255,6 +305,131 @@ public class TransformConfig {
         if (node != null) {
             this.adminBatchMaxSize = node.asInt();
         }
+
+        node = json.get("fast_csv_parser");
+        if (node != null) {
+            this.fastCsvParserEnabled = node.asBoolean();
+        }
+
+        node = json.get("fused_file_audit");
+        if (node != null) {
+            this.fusedFileAuditEnabled = node.asBoolean();
+        }
+
+        node = json.get("resumable_csv_reader");
+        if (node != null) {
+            this.resumableCsvReaderEnabled = node.asBoolean();
+        }
+
+        node = json.get("id_mapping_batch_size");
+        if (node != null) {
+            this.idMappingBatchSize = node.asInt();
+        }
+
+        node = json.get("off_heap_id_cache");
+        if (node != null) {
+            this.offHeapIdCacheEnabled = node.asBoolean();
+        }
+
+        node = json.get("off_heap_id_cache_max_size");
+        if (node != null) {
+            this.offHeapIdCacheMaxSize = node.asInt();
+        }
+
+        node = json.get("resource_cache_spill_to_disk");
+        if (node != null) {
+            this.resourceCacheSpillToDisk = node.asBoolean();
+        }
+
+        node = json.get("resource_cache_binary_audit");
+        if (node != null) {
+            this.resourceCacheBinaryAudit = node.asBoolean();
+        }
+
+        node = json.get("barts_phase_scheduler");
+        if (node != null) {
+            this.bartsPhaseSchedulerEnabled = node.asBoolean();
+        }
+
+        node = json.get("barts_phase_scheduler_dry_run");
+        if (node != null) {
+            this.bartsPhaseSchedulerDryRun = node.asBoolean();
+        }
+
+        node = json.get("emis_parallel_pre_transform");
+        if (node != null) {
+            this.emisParallelPreTransform = node.asBoolean();
+        }
+
+        node = json.get("fhir_filer_max_queued_bytes");
+        if (node != null) {
+            this.fhirFilerMaxQueuedBytes = node.asLong();
+        }
+
+        node = json.get("outbound_transform_threads");
+        if (node != null) {
+            this.outboundTransformThreads = node.asInt();
+        }
+
+        node = json.get("subscriber_csv_spill_bytes");
+        if (node != null) {
+            this.subscriberCsvSpillBytes = node.asLong();
+        }
+
+        node = json.get("csv_writer_per_thread_buffers");
+        if (node != null) {
+            this.csvWriterPerThreadBuffers = node.asBoolean();
+        }
+
+        node = json.get("im_prefetch_threads");
+        if (node != null) {
+            this.imPrefetchThreads = node.asInt();
+        }
+
+        node = json.get("im_cache_snapshot_file");
+        if (node != null) {
+            this.imCacheSnapshotFile = node.asText();
+        }
+
+        node = json.get("postcode_snapshot_file");
+        if (node != null) {
+            this.postcodeSnapshotFile = node.asText();
+        }
+
+        node = json.get("address_cache_size");
+        if (node != null) {
+            this.addressCacheSize = node.asInt();
+        }
+
+        node = json.get("subscriber_id_prefetch");
+        if (node != null) {
+            this.subscriberIdPrefetch = node.asBoolean();
+        }
+
+        node = json.get("patient_history_digest");
+        if (node != null) {
+            this.patientHistoryDigest = node.asBoolean();
+        }
+
+        node = json.get("reference_cache_max_size");
+        if (node != null) {
+            this.referenceCacheMaxSize = node.asInt();
+        }
+
+        node = json.get("tpp_pre_transform_threads");
+        if (node != null) {
+            this.tppPreTransformThreads = node.asInt();
+        }
+
+        node = json.get("code_mapping_file");
+        if (node != null) {
+            this.codeMappingFile = node.asText();
+        }
+
+        node = json.get("code_mapping_file_max_age_days");
+        if (node != null) {
+            this.codeMappingFileMaxAgeDays = node.asInt();
+        }
     }
 
     private void loadEmisConfig(JsonNode json) throws Exception {
@@ -395,6 +570,106 @@ public class TransformConfig {
         return adminBatchMaxSize;
     }
 
+    public boolean isFastCsvParserEnabled() {
+        return fastCsvParserEnabled;
+    }
+
+    public boolean isFusedFileAuditEnabled() {
+        return fusedFileAuditEnabled;
+    }
+
+    public boolean isResumableCsvReaderEnabled() {
+        return resumableCsvReaderEnabled;
+    }
+
+    public int getIdMappingBatchSize() {
+        return idMappingBatchSize;
+    }
+
+    public boolean isOffHeapIdCacheEnabled() {
+        return offHeapIdCacheEnabled;
+    }
+
+    public int getOffHeapIdCacheMaxSize() {
+        return offHeapIdCacheMaxSize;
+    }
+
+    public boolean isResourceCacheSpillToDisk() {
+        return resourceCacheSpillToDisk;
+    }
+
+    public boolean isResourceCacheBinaryAudit() {
+        return resourceCacheBinaryAudit;
+    }
+
+    public boolean isBartsPhaseSchedulerEnabled() {
+        return bartsPhaseSchedulerEnabled;
+    }
+
+    public boolean isBartsPhaseSchedulerDryRun() {
+        return bartsPhaseSchedulerDryRun;
+    }
+
+    public boolean isEmisParallelPreTransform() {
+        return emisParallelPreTransform;
+    }
+
+    public long getFhirFilerMaxQueuedBytes() {
+        return fhirFilerMaxQueuedBytes;
+    }
+
+    public int getOutboundTransformThreads() {
+        return outboundTransformThreads;
+    }
+
+    public long getSubscriberCsvSpillBytes() {
+        return subscriberCsvSpillBytes;
+    }
+
+    public boolean isCsvWriterPerThreadBuffers() {
+        return csvWriterPerThreadBuffers;
+    }
+
+    public int getImPrefetchThreads() {
+        return imPrefetchThreads;
+    }
+
+    public String getImCacheSnapshotFile() {
+        return imCacheSnapshotFile;
+    }
+
+    public String getPostcodeSnapshotFile() {
+        return postcodeSnapshotFile;
+    }
+
+    public int getAddressCacheSize() {
+        return addressCacheSize;
+    }
+
+    public boolean isSubscriberIdPrefetch() {
+        return subscriberIdPrefetch;
+    }
+
+    public boolean isPatientHistoryDigest() {
+        return patientHistoryDigest;
+    }
+
+    public int getReferenceCacheMaxSize() {
+        return referenceCacheMaxSize;
+    }
+
+    public int getTppPreTransformThreads() {
+        return tppPreTransformThreads;
+    }
+
+    public String getCodeMappingFile() {
+        return codeMappingFile;
+    }
+
+    public int getCodeMappingFileMaxAgeDays() {
+        return codeMappingFileMaxAgeDays;
+    }
+
     /*public boolean isEmisSkipAdminData() {
         return emisSkipAdminData;
     }*/
@@ -0,0 +1,144 @@
+package org.endeavourhealth.transform.common;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * one step of a transform run by TransformPhaseScheduler, declaring the things it reads and writes (e.g. file types,
+ * helper caches, staging tables) so the scheduler can work out which phases depend on each other
+ */
+public class TransformPhase {
+
+    private final String name;
+    private final int index;
+    private final TransformPhaseBodyI body;
+    private final Set<String> reads = new LinkedHashSet<>();
+    private final Set<String> writes = new LinkedHashSet<>();
+    private long cost = 1;
+
+    //set when the plan is built
+    private final List<TransformPhase> dependencies = new ArrayList<>();
+    private final List<TransformPhase> dependents = new ArrayList<>();
+    private final List<TransformPhaseBodyI> barriers = new ArrayList<>();
+    private final List<String> barrierKeys = new ArrayList<>();
+    private int stage;
+    private long pathCost;
+    private TransformPhase criticalDependency;
+
+    TransformPhase(String name, int index, TransformPhaseBodyI body) {
+        this.name = name;
+        this.index = index;
+        this.body = body;
+    }
+
+    public TransformPhase reads(String... keys) {
+        for (String key: keys) {
+            this.reads.add(key);
+        }
+        return this;
+    }
+
+    public TransformPhase writes(String... keys) {
+        for (String key: keys) {
+            this.writes.add(key);
+        }
+        return this;
+    }
+
+    /**
+     * relative cost of the phase (e.g. bytes of input files), only used to work out the critical path
+     */
+    public TransformPhase withCost(long cost) {
+        this.cost = Math.max(1, cost);
+        return this;
+    }
+
+    /**
+     * if this phase must run after the earlier one, i.e. one writes something the other reads or writes
+     */
+    boolean conflictsWith(TransformPhase earlier) {
+        for (String key: earlier.writes) {
+            if (reads.contains(key)
+                    || writes.contains(key)) {
+                return true;
+            }
+        }
+        for (String key: earlier.reads) {
+            if (writes.contains(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    int getIndex() {
+        return index;
+    }
+
+    TransformPhaseBodyI getBody() {
+        return body;
+    }
+
+    Set<String> getReads() {
+        return reads;
+    }
+
+    Set<String> getWrites() {
+        return writes;
+    }
+
+    long getCost() {
+        return cost;
+    }
+
+    List<TransformPhase> getDependencies() {
+        return dependencies;
+    }
+
+    List<TransformPhase> getDependents() {
+        return dependents;
+    }
+
+    List<TransformPhaseBodyI> getBarriers() {
+        return barriers;
+    }
+
+    List<String> getBarrierKeys() {
+        return barrierKeys;
+    }
+
+    int getStage() {
+        return stage;
+    }
+
+    void setStage(int stage) {
+        this.stage = stage;
+    }
+
+    long getPathCost() {
+        return pathCost;
+    }
+
+    void setPathCost(long pathCost) {
+        this.pathCost = pathCost;
+    }
+
+    TransformPhase getCriticalDependency() {
+        return criticalDependency;
+    }
+
+    void setCriticalDependency(TransformPhase criticalDependency) {
+        this.criticalDependency = criticalDependency;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,9 @@
+package org.endeavourhealth.transform.common;
+
+/**
+ * the work done by a TransformPhase, or a barrier run at the end of one
+ */
+public interface TransformPhaseBodyI {
+
+    void run() throws Exception;
+}
@@ -0,0 +1,304 @@
+package org.endeavourhealth.transform.common;
+
+import org.endeavourhealth.common.utility.ThreadPool;
+import org.endeavourhealth.common.utility.ThreadPoolError;
+import org.endeavourhealth.core.exceptions.TransformException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * runs the phases of a transform, where each phase declares what it reads and writes rather than relying
+ * on the order phases are called in. A phase depends on every earlier phase that writes something it reads
+ * or writes, or reads something it writes, so running phases as soon as their dependencies are complete gives
+ * the same result as running them in the order they were added, but lets independent phases run at the same time.
+ *
+ * Barriers (e.g. waiting for all resources to be saved) are registered against a key prefix and only run at the
+ * end of a phase if a dependent phase reads something the phase wrote with that prefix.
+ */
+public class TransformPhaseScheduler {
+    private static final Logger LOG = LoggerFactory.getLogger(TransformPhaseScheduler.class);
+
+    private final String name;
+    private final List<TransformPhase> phases = new ArrayList<>();
+    private final Map<String, TransformPhaseBodyI> barriers = new LinkedHashMap<>();
+    private boolean planBuilt = false;
+
+    public TransformPhaseScheduler(String name) {
+        this.name = name;
+    }
+
+    public TransformPhase addPhase(String phaseName, TransformPhaseBodyI body) {
+        if (planBuilt) {
+            throw new IllegalStateException("Can't add phases after the plan has been built");
+        }
+        TransformPhase phase = new TransformPhase(phaseName, phases.size(), body);
+        phases.add(phase);
+        return phase;
+    }
+
+    public void addBarrier(String keyPrefix, TransformPhaseBodyI barrier) {
+        if (planBuilt) {
+            throw new IllegalStateException("Can't add barriers after the plan has been built");
+        }
+        barriers.put(keyPrefix, barrier);
+    }
+
+    /**
+     * works out the dependencies, barriers and critical path of each phase
+     */
+    private void buildPlan() {
+        if (planBuilt) {
+            return;
+        }
+        planBuilt = true;
+
+        for (int j=0; j<phases.size(); j++) {
+            TransformPhase phase = phases.get(j);
+
+            int stage = 1;
+            long pathCost = 0;
+            for (int i=0; i<j; i++) {
+                TransformPhase earlier = phases.get(i);
+                if (!phase.conflictsWith(earlier)) {
+                    continue;
+                }
+
+                phase.getDependencies().add(earlier);
+                earlier.getDependents().add(phase);
+                addBarriers(earlier, phase);
+
+                stage = Math.max(stage, earlier.getStage() + 1);
+                if (earlier.getPathCost() > pathCost) {
+                    pathCost = earlier.getPathCost();
+                    phase.setCriticalDependency(earlier);
+                }
+            }
+
+            phase.setStage(stage);
+            phase.setPathCost(pathCost + phase.getCost());
+        }
+    }
+
+    private void addBarriers(TransformPhase earlier, TransformPhase phase) {
+        for (String key: earlier.getWrites()) {
+            if (!phase.getReads().contains(key)) {
+                continue;
+            }
+            for (Map.Entry<String, TransformPhaseBodyI> entry: barriers.entrySet()) {
+                String prefix = entry.getKey();
+                if (key.startsWith(prefix)
+                        && !earlier.getBarrierKeys().contains(prefix)) {
+                    earlier.getBarrierKeys().add(prefix);
+                    earlier.getBarriers().add(entry.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * runs each phase once all the phases it depends on are complete, using up to the given number of threads
+     */
+    public void run(int threads) throws Exception {
+        buildPlan();
+        LOG.info("Running " + phases.size() + " phases of " + name + " using " + threads + " threads");
+
+        int[] remainingDependencies = new int[phases.size()];
+        for (TransformPhase phase: phases) {
+            remainingDependencies[phase.getIndex()] = phase.getDependencies().size();
+        }
+
+        LinkedBlockingQueue<PhaseResult> results = new LinkedBlockingQueue<>();
+        ThreadPool threadPool = new ThreadPool(threads, 1000, "TransformPhaseScheduler");
+        int running = 0;
+        int completed = 0;
+        Throwable firstError = null;
+        TransformPhase failedPhase = null;
+
+        try {
+            for (TransformPhase phase: phases) {
+                if (remainingDependencies[phase.getIndex()] == 0) {
+                    submit(threadPool, phase, results);
+                    running ++;
+                }
+            }
+
+            while (running > 0) {
+                PhaseResult result = results.take();
+                running --;
+
+                if (result.error != null) {
+                    //let anything else running finish, but don't start anything new
+                    if (firstError == null) {
+                        firstError = result.error;
+                        failedPhase = result.phase;
+                    }
+                    continue;
+                }
+
+                completed ++;
+                if (firstError != null) {
+                    continue;
+                }
+
+                for (TransformPhase dependent: result.phase.getDependents()) {
+                    int remaining = --remainingDependencies[dependent.getIndex()];
+                    if (remaining == 0) {
+                        submit(threadPool, dependent, results);
+                        running ++;
+                    }
+                }
+            }
+
+        } finally {
+            List<ThreadPoolError> errors = threadPool.waitAndStop();
+            if (firstError == null) {
+                AbstractCsvCallable.handleErrors(errors);
+            }
+        }
+
+        if (firstError != null) {
+            throw new TransformException("Phase " + failedPhase + " of " + name + " failed", firstError);
+        }
+        if (completed != phases.size()) {
+            throw new Exception("Only completed " + completed + " of " + phases.size() + " phases of " + name);
+        }
+    }
+
+    /**
+     * runs each phase in the order added, on the calling thread
+     */
+    public void runSequentially() throws Exception {
+        buildPlan();
+
+        for (TransformPhase phase: phases) {
+            runPhase(phase);
+        }
+    }
+
+    private static void submit(ThreadPool threadPool, TransformPhase phase, LinkedBlockingQueue<PhaseResult> results) throws Exception {
+        List<ThreadPoolError> errors = threadPool.submit(new PhaseCallable(phase, results));
+        AbstractCsvCallable.handleErrors(errors);
+    }
+
+    private static void runPhase(TransformPhase phase) throws Exception {
+        LOG.trace("Starting phase " + phase);
+        phase.getBody().run();
+
+        for (TransformPhaseBodyI barrier: phase.getBarriers()) {
+            barrier.run();
+        }
+        LOG.trace("Finished phase " + phase);
+    }
+
+    /**
+     * logs the stages that phases will run in, what each depends on, and the critical path
+     */
+    public void logPlan() {
+        buildPlan();
+
+        //ancestors of each phase, so we only log the dependencies that aren't implied by other ones
+        BitSet[] ancestors = new BitSet[phases.size()];
+        for (TransformPhase phase: phases) {
+            BitSet bits = new BitSet();
+            for (TransformPhase dependency: phase.getDependencies()) {
+                bits.or(ancestors[dependency.getIndex()]);
+                bits.set(dependency.getIndex());
+            }
+            ancestors[phase.getIndex()] = bits;
+        }
+
+        int stages = 0;
+        long totalCost = 0;
+        TransformPhase last = null;
+        for (TransformPhase phase: phases) {
+            stages = Math.max(stages, phase.getStage());
+            totalCost += phase.getCost();
+            if (last == null
+                    || phase.getPathCost() > last.getPathCost()) {
+                last = phase;
+            }
+        }
+
+        LOG.info("Plan for " + name + ": " + phases.size() + " phases in " + stages + " stages, critical path cost "
+                + (last != null ? last.getPathCost() : 0) + " of " + totalCost + " total");
+
+        for (int stage=1; stage<=stages; stage++) {
+            LOG.info("Stage " + stage + ":");
+
+            for (TransformPhase phase: phases) {
+                if (phase.getStage() != stage) {
+                    continue;
+                }
+
+                List<TransformPhase> direct = new ArrayList<>();
+                for (TransformPhase dependency: phase.getDependencies()) {
+                    boolean implied = false;
+                    for (TransformPhase other: phase.getDependencies()) {
+                        if (other != dependency
+                                && ancestors[other.getIndex()].get(dependency.getIndex())) {
+                            implied = true;
+                            break;
+                        }
+                    }
+                    if (!implied) {
+                        direct.add(dependency);
+                    }
+                }
+
+                String s = "    " + phase + " (cost " + phase.getCost() + ") after " + direct;
+                if (!phase.getBarrierKeys().isEmpty()) {
+                    s += " with barriers " + phase.getBarrierKeys();
+                }
+                LOG.info(s);
+            }
+        }
+
+        List<TransformPhase> criticalPath = new ArrayList<>();
+        for (TransformPhase phase = last; phase != null; phase = phase.getCriticalDependency()) {
+            criticalPath.add(0, phase);
+        }
+        LOG.info("Critical path: " + criticalPath);
+    }
+
+    static class PhaseResult {
+        private final TransformPhase phase;
+        private final Throwable error;
+
+        PhaseResult(TransformPhase phase, Throwable error) {
+            this.phase = phase;
+            this.error = error;
+        }
+    }
+
+    static class PhaseCallable implements Callable {
+
+        private final TransformPhase phase;
+        private final LinkedBlockingQueue<PhaseResult> results;
+
+        PhaseCallable(TransformPhase phase, LinkedBlockingQueue<PhaseResult> results) {
+            this.phase = phase;
+            this.results = results;
+        }
+
+        @Override
+        public Object call() throws Exception {
+            //always report back, so the scheduler isn't left waiting
+            Throwable error = null;
+            try {
+                runPhase(phase);
+            } catch (Throwable t) {
+                error = t;
+            }
+            results.add(new PhaseResult(phase, error));
+            return null;
+        }
+    }
+}
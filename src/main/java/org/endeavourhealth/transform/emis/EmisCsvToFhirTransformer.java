@@ -45,6 +45,8 @@ public abstract class EmisCsvToFhirTransformer {
     public static final String TIME_FORMAT = "HH:mm:ss";
     public static final CSVFormat CSV_FORMAT = CSVFormat.DEFAULT.withHeader();   //EMIS csv files always contain a header
 
+    private static final int PRE_TRANSFORM_THREADS = 4;
+
     public static void transform(Exchange exchange, FhirResourceFiler processor, String version) throws Exception {
 
         //get service
@@ -306,14 +308,19 @@ public abstract class EmisCsvToFhirTransformer {
         if (processPatientData) {
 
             LOG.trace("Starting patient pre-transforms");
-            PatientPreTransformer.transform(parsers, fhirResourceFiler, csvHelper); //generate patient UUIDs and cache reg status data
-            ProblemPreTransformer.transform(parsers, fhirResourceFiler, csvHelper);
-            ObservationPreTransformer.transform(parsers, fhirResourceFiler, csvHelper);
-            IssueRecordPreTransformer.transform(parsers, fhirResourceFiler, csvHelper); //must be done before DrugRecord pre-transformer
-            DrugRecordPreTransformer.transform(parsers, fhirResourceFiler, csvHelper);
-            DiaryPreTransformer.transform(parsers, fhirResourceFiler, csvHelper);
-            ConsultationPreTransformer.transform(parsers, fhirResourceFiler, csvHelper);
-            SlotPreTransformer.transform(parsers, fhirResourceFiler, csvHelper);
+            if (TransformConfig.instance().isEmisParallelPreTransform()) {
+                createPreTransformScheduler(parsers, fhirResourceFiler, csvHelper).run(PRE_TRANSFORM_THREADS);
+
+            } else {
+                PatientPreTransformer.transform(parsers, fhirResourceFiler, csvHelper); //generate patient UUIDs and cache reg status data
+                ProblemPreTransformer.transform(parsers, fhirResourceFiler, csvHelper);
+                ObservationPreTransformer.transform(parsers, fhirResourceFiler, csvHelper);
+                IssueRecordPreTransformer.transform(parsers, fhirResourceFiler, csvHelper); //must be done before DrugRecord pre-transformer
+                DrugRecordPreTransformer.transform(parsers, fhirResourceFiler, csvHelper);
+                DiaryPreTransformer.transform(parsers, fhirResourceFiler, csvHelper);
+                ConsultationPreTransformer.transform(parsers, fhirResourceFiler, csvHelper);
+                SlotPreTransformer.transform(parsers, fhirResourceFiler, csvHelper);
+            }
 
             //note the order of these transforms is important, as consultations should be before obs etc.
             LOG.trace("Starting patient transforms");
@@ -354,6 +361,48 @@ public abstract class EmisCsvToFhirTransformer {
         csvHelper.stopThreadPool();
     }
 
+    /**
+     * the patient pre-transformers each read a different file and only cache data for the main transformers, so
+     * most can run at the same time. Each declares the EmisCsvHelper caches it reads and writes, so those that
+     * depend on each other (e.g. Observation needs to know which observations are problems) still run in order.
+     * The problem and consultation child maps are declared as written by every pre-transformer that adds to them,
+     * so the children are still added in the same order as when run one after the other.
+     */
+    private static TransformPhaseScheduler createPreTransformScheduler(Map<Class, AbstractCsvParser> parsers,
+                                                                       FhirResourceFiler fhirResourceFiler,
+                                                                       EmisCsvHelper csvHelper) {
+
+        TransformPhaseScheduler scheduler = new TransformPhaseScheduler("EMIS patient pre-transforms");
+
+        scheduler.addPhase("Patient", () -> PatientPreTransformer.transform(parsers, fhirResourceFiler, csvHelper))
+                .reads("file:Patient")
+                .writes("cache:registrationStatuses");
+        scheduler.addPhase("Problem", () -> ProblemPreTransformer.transform(parsers, fhirResourceFiler, csvHelper))
+                .reads("file:Problem")
+                .writes("cache:problemObservationGuids", "cache:problemPreviousLinks");
+        scheduler.addPhase("Observation", () -> ObservationPreTransformer.transform(parsers, fhirResourceFiler, csvHelper))
+                .reads("file:Observation", "cache:problemObservationGuids")
+                .writes("cache:problemObservationGuids", "cache:parentObservations", "cache:bpComponents",
+                        "cache:ethnicities", "cache:maritalStatuses", "cache:newProblemChildren", "cache:consultationNewChildren");
+        scheduler.addPhase("IssueRecord", () -> IssueRecordPreTransformer.transform(parsers, fhirResourceFiler, csvHelper))
+                .reads("file:IssueRecord")
+                .writes("cache:newDrugRecordIssueDates", "cache:newProblemChildren");
+        scheduler.addPhase("DrugRecord", () -> DrugRecordPreTransformer.transform(parsers, fhirResourceFiler, csvHelper))
+                .reads("file:DrugRecord", "cache:newDrugRecordIssueDates")
+                .writes("cache:existingDrugRecordIssueDates", "cache:newProblemChildren");
+        scheduler.addPhase("Diary", () -> DiaryPreTransformer.transform(parsers, fhirResourceFiler, csvHelper))
+                .reads("file:Diary")
+                .writes("cache:consultationNewChildren");
+        scheduler.addPhase("Consultation", () -> ConsultationPreTransformer.transform(parsers, fhirResourceFiler, csvHelper))
+                .reads("file:Consultation")
+                .writes("cache:consultationPreviousLinks");
+        scheduler.addPhase("Slot", () -> SlotPreTransformer.transform(parsers, fhirResourceFiler, csvHelper))
+                .reads("file:Slot")
+                .writes("fhir:appointments");
+
+        return scheduler;
+    }
+
     /*private static void auditSkippingAdminData(HasServiceSystemAndExchangeIdI fhirFiler) throws Exception {
 
         LOG.info("Skipping admin data for exchange " + fhirFiler.getExchangeId());
@@ -94,7 +94,7 @@ public class EmisCsvHelper implements HasServiceSystemAndExchangeIdI {
     private Map<StringMemorySaver, ResourceType> parentObservationResourceTypes = new HashMap<>();
     private Map<StringMemorySaver, ReferenceList> problemPreviousLinkedResources = new ConcurrentHashMap<>(); //written to by many threads
     private Map<StringMemorySaver, List<List_.ListEntryComponent>> existingRegsitrationStatues = new ConcurrentHashMap<>();
-    private ThreadPool utilityThreadPool = null;
+    private volatile ThreadPool utilityThreadPool = null;
     private Map<String, String> latestEpisodeStartDateCache = new HashMap<>();
     private EmisAdminHelper adminHelper = new EmisAdminHelper();
 
@@ -526,7 +526,12 @@ public class EmisCsvHelper implements HasServiceSystemAndExchangeIdI {
             //we know there will only be a single cell, so use this reference list class to save memory
             referenceList = new ReferenceListSingleCsvCells();
             //referenceList = new ReferenceList();
-            newProblemChildren.put(key, referenceList);
+
+            //the DrugRecord pre-transformer calls this from the utility thread pool, so use whichever list got in first
+            ReferenceList existing = newProblemChildren.putIfAbsent(key, referenceList);
+            if (existing != null) {
+                referenceList = existing;
+            }
         }
 
         String resourceLocalUniqueId = createUniqueId(patientGuid, resourceGuid);
@@ -1298,9 +1303,12 @@ public class EmisCsvHelper implements HasServiceSystemAndExchangeIdI {
     }
 
     public void submitToThreadPool(Callable callable) throws Exception {
-        if (this.utilityThreadPool == null) {
-            int threadPoolSize = ConnectionManager.getPublisherTransformConnectionPoolMaxSize(serviceId);
-            this.utilityThreadPool = new ThreadPool(threadPoolSize, 1000, "EmisCsvHelper"); //lower from 50k to save memory
+        //the pre-transformers may run at the same time, so make sure only one pool is created
+        synchronized (this) {
+            if (this.utilityThreadPool == null) {
+                int threadPoolSize = ConnectionManager.getPublisherTransformConnectionPoolMaxSize(serviceId);
+                this.utilityThreadPool = new ThreadPool(threadPoolSize, 1000, "EmisCsvHelper"); //lower from 50k to save memory
+            }
         }
 
         List<ThreadPoolError> errors = utilityThreadPool.submit(callable);
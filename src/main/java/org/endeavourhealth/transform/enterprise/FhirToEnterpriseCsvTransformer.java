@@ -2,8 +2,6 @@ package org.endeavourhealth.transform.enterprise;
 
 import org.endeavourhealth.common.fhir.ReferenceComponents;
 import org.endeavourhealth.common.fhir.ReferenceHelper;
-import org.endeavourhealth.common.utility.ThreadPool;
-import org.endeavourhealth.common.utility.ThreadPoolError;
 import org.endeavourhealth.core.database.dal.DalProvider;
 import org.endeavourhealth.core.database.dal.ehr.ResourceDalI;
 import org.endeavourhealth.core.database.dal.ehr.models.ResourceWrapper;
@@ -11,6 +9,8 @@ import org.endeavourhealth.core.database.dal.subscriberTransform.SubscriberInsta
 import org.endeavourhealth.core.database.dal.subscriberTransform.SubscriberOrgMappingDalI;
 import org.endeavourhealth.core.exceptions.TransformException;
 import org.endeavourhealth.transform.common.FhirToXTransformerBase;
+import org.endeavourhealth.transform.common.OutboundTaskGroupI;
+import org.endeavourhealth.transform.common.OutboundTransformExecutor;
 import org.endeavourhealth.transform.enterprise.outputModels.AbstractEnterpriseCsvWriter;
 import org.endeavourhealth.transform.enterprise.outputModels.OutputContainer;
 import org.endeavourhealth.transform.enterprise.transforms.*;
@@ -141,56 +141,51 @@ public class FhirToEnterpriseCsvTransformer extends FhirToXTransformerBase {
     private static void runTransforms(EnterpriseTransformHelper params) throws Exception {
 
         int resourceCount = params.getResourceCount();
-        int threads = Math.min(10, resourceCount/10); //limit to 10 threads, but don't create too many unnecessarily if we only have a few resources
-        threads = Math.max(threads, 1); //make sure we have a min of 1
-
-        ThreadPool threadPool = new ThreadPool(threads, 1000, "FhirToEnterprise");
+        OutboundTaskGroupI taskGroup = OutboundTransformExecutor.createTaskGroup("FhirToEnterprise", resourceCount);
         try {
 
             //we detect whether we're doing an update or insert, based on whether we're previously mapped
             //a reference to a resource, so we need to transform the resources in a specific order, so
             //that we transform resources before we ones that refer to them
-            transformResources(ResourceType.Organization, threadPool, params);
-            transformResources(ResourceType.Location, threadPool, params);
-            transformResources(ResourceType.Practitioner, threadPool, params);
-            transformResources(ResourceType.Schedule, threadPool, params);
-            transformResources(ResourceType.Patient, threadPool, params);
+            transformResources(ResourceType.Organization, taskGroup, params);
+            transformResources(ResourceType.Location, taskGroup, params);
+            transformResources(ResourceType.Practitioner, taskGroup, params);
+            transformResources(ResourceType.Schedule, taskGroup, params);
+            transformResources(ResourceType.Patient, taskGroup, params);
 
             //if we transformed a patient resource, we need to guarantee that the patient is fully transformed and saved before continuing
             //so we need to close the thread pool and wait. Then re-open for any remaining resources.
-            List<ThreadPoolError> errors = threadPool.waitUntilEmpty();
-            handleErrors(errors);
+            taskGroup.waitUntilEmpty();
 
             //having done any patient resource in our batch, we should have created an enterprise patient ID and person ID that we can use for all remaining resources
             params.populatePatientAndPersonIds();
 
-            transformResources(ResourceType.EpisodeOfCare, threadPool, params);
-            transformResources(ResourceType.Appointment, threadPool, params);
-            transformResources(ResourceType.Encounter, threadPool, params);
-            transformResources(ResourceType.Condition, threadPool, params);
-            transformResources(ResourceType.Procedure, threadPool, params);
-            transformResources(ResourceType.ReferralRequest, threadPool, params);
-            transformResources(ResourceType.ProcedureRequest, threadPool, params);
-            transformResources(ResourceType.Observation, threadPool, params);
-            transformResources(ResourceType.MedicationStatement, threadPool, params);
-            transformResources(ResourceType.MedicationOrder, threadPool, params);
-            transformResources(ResourceType.Immunization, threadPool, params);
-            transformResources(ResourceType.FamilyMemberHistory, threadPool, params);
-            transformResources(ResourceType.AllergyIntolerance, threadPool, params);
-            transformResources(ResourceType.DiagnosticOrder, threadPool, params);
-            transformResources(ResourceType.DiagnosticReport, threadPool, params);
-            transformResources(ResourceType.Specimen, threadPool, params);
-            transformResources(ResourceType.Flag, threadPool, params);
-            transformResources(ResourceType.QuestionnaireResponse, threadPool, params); //Note we return null for QuestionnaireResponse as we don't know how to store them yet
+            transformResources(ResourceType.EpisodeOfCare, taskGroup, params);
+            transformResources(ResourceType.Appointment, taskGroup, params);
+            transformResources(ResourceType.Encounter, taskGroup, params);
+            transformResources(ResourceType.Condition, taskGroup, params);
+            transformResources(ResourceType.Procedure, taskGroup, params);
+            transformResources(ResourceType.ReferralRequest, taskGroup, params);
+            transformResources(ResourceType.ProcedureRequest, taskGroup, params);
+            transformResources(ResourceType.Observation, taskGroup, params);
+            transformResources(ResourceType.MedicationStatement, taskGroup, params);
+            transformResources(ResourceType.MedicationOrder, taskGroup, params);
+            transformResources(ResourceType.Immunization, taskGroup, params);
+            transformResources(ResourceType.FamilyMemberHistory, taskGroup, params);
+            transformResources(ResourceType.AllergyIntolerance, taskGroup, params);
+            transformResources(ResourceType.DiagnosticOrder, taskGroup, params);
+            transformResources(ResourceType.DiagnosticReport, taskGroup, params);
+            transformResources(ResourceType.Specimen, taskGroup, params);
+            transformResources(ResourceType.Flag, taskGroup, params);
+            transformResources(ResourceType.QuestionnaireResponse, taskGroup, params); //Note we return null for QuestionnaireResponse as we don't know how to store them yet
 
             //for these resource types, call with a null transformer as they're actually transformed when
             //doing one of the above entities, but we want to remove them from the resources list
-            transformResources(ResourceType.Slot, threadPool, params);
+            transformResources(ResourceType.Slot, taskGroup, params);
 
         } finally {
-            //close the thread pool
-            List<ThreadPoolError> errors = threadPool.waitAndStop();
-            handleErrors(errors);
+            //close the task group
+            taskGroup.waitAndStop();
         }
 
         //if there's anything left in the list, then we've missed a resource type
@@ -318,7 +313,7 @@ public class FhirToEnterpriseCsvTransformer extends FhirToXTransformerBase {
         }
     }
 
-    private static void transformResources(ResourceType resourceType, ThreadPool threadPool, EnterpriseTransformHelper params) throws Exception {
+    private static void transformResources(ResourceType resourceType, OutboundTaskGroupI taskGroup, EnterpriseTransformHelper params) throws Exception {
 
         //find all the ones we want to transform
         List<ResourceWrapper> resourcesToTransform = params.findResourcesForType(resourceType);
@@ -330,43 +325,25 @@ public class FhirToEnterpriseCsvTransformer extends FhirToXTransformerBase {
             batch.add(resource);
 
             if (batch.size() >= params.getBatchSize()) {
-                addBatchToThreadPool(resourceType, csvWriter, batch, threadPool, params);
+                addBatchToTaskGroup(resourceType, csvWriter, batch, taskGroup, params);
                 batch = new ArrayList<>();
             }
         }
 
         //don't forget to do any in the last batch
         if (!batch.isEmpty()) {
-            addBatchToThreadPool(resourceType, csvWriter, batch, threadPool, params);
+            addBatchToTaskGroup(resourceType, csvWriter, batch, taskGroup, params);
         }
     }
 
-    private static void addBatchToThreadPool(ResourceType resourceType,
-                                             AbstractEnterpriseCsvWriter csvWriter,
-                                             List<ResourceWrapper> resources,
-                                             ThreadPool threadPool,
-                                             EnterpriseTransformHelper params) throws Exception {
+    private static void addBatchToTaskGroup(ResourceType resourceType,
+                                            AbstractEnterpriseCsvWriter csvWriter,
+                                            List<ResourceWrapper> resources,
+                                            OutboundTaskGroupI taskGroup,
+                                            EnterpriseTransformHelper params) throws Exception {
 
         Callable callable = new TransformResourceCallable(resourceType, resources, csvWriter, params);
-        List<ThreadPoolError> errors = threadPool.submit(callable);
-        handleErrors(errors);
-    }
-
-    private static void handleErrors(List<ThreadPoolError> errors) throws Exception {
-        if (errors == null || errors.isEmpty()) {
-            return;
-        }
-
-        //if we've had multiple errors, just throw the first one, since they'll most-likely be the same
-        ThreadPoolError first = errors.get(0);
-        Throwable cause = first.getException();
-        //the cause may be an Exception or Error so we need to explicitly
-        //cast to the right type to throw it without changing the method signature
-        if (cause instanceof Exception) {
-            throw (Exception)cause;
-        } else if (cause instanceof Error) {
-            throw (Error)cause;
-        }
+        taskGroup.submit(callable);
     }
 
 
@@ -7,7 +7,9 @@ import org.endeavourhealth.common.cache.ObjectMapperPool;
 import org.endeavourhealth.core.exceptions.TransformException;
 
 import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.List;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
@@ -71,7 +73,34 @@ public class OutputContainer {
 
         //may as well zip the data, since it will compress well
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        ZipOutputStream zos = new ZipOutputStream(baos);
+        writeToZip(baos);
+        return baos.toByteArray();
+    }
+
+    /**
+     * returns the zipped content Base64 encoded, without ever holding the unencoded zip in memory
+     */
+    public String writeToBase64() throws Exception {
+
+        //if empty, return null
+        if (isEmpty()) {
+            return null;
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        OutputStream base64OutputStream = Base64.getEncoder().wrap(baos);
+        writeToZip(base64OutputStream);
+        base64OutputStream.close();
+
+        return baos.toString("US-ASCII");
+    }
+
+    /**
+     * streams the zipped content to the given stream, which isn't closed
+     */
+    public void writeToZip(OutputStream outputStream) throws Exception {
+
+        ZipOutputStream zos = new ZipOutputStream(outputStream);
 
         //the first entry is a json file giving us the target class names for each column
         ObjectNode columnClassMappingJson = new ObjectNode(JsonNodeFactory.instance);
@@ -90,11 +119,8 @@ public class OutputContainer {
             writeZipEntry(csvWriter, zos);
         }
 
-        //close
-        zos.close();
-
-        //return as base64 encoded string
-        return baos.toByteArray();
+        //finish rather than close, so the caller's stream is left open
+        zos.finish();
     }
 
     private boolean isEmpty() {
@@ -1,6 +1,5 @@
 package org.endeavourhealth.transform.enterprise.transforms;
 
-import OpenPseudonymiser.Crypto;
 import com.google.common.base.Strings;
 import org.endeavourhealth.common.fhir.*;
 import org.endeavourhealth.common.fhir.schema.EthnicCategory;
@@ -20,6 +19,7 @@ import org.endeavourhealth.core.database.dal.subscriberTransform.models.PseudoId
 import org.endeavourhealth.core.database.dal.subscriberTransform.models.SubscriberId;
 import org.endeavourhealth.core.fhirStorage.FhirSerializationHelper;
 import org.endeavourhealth.transform.common.PseudoIdBuilder;
+import org.endeavourhealth.transform.common.PseudonymisationEngine;
 import org.endeavourhealth.transform.enterprise.EnterpriseTransformHelper;
 import org.endeavourhealth.transform.enterprise.outputModels.*;
 import org.endeavourhealth.transform.subscriber.IMConstant;
@@ -849,15 +849,12 @@ public class PatientEnterpriseTransformer extends AbstractEnterpriseTransformer
                 JsonNode pseudoNode = config.get("pseudonymisation");
                 JsonNode saltNode = pseudoNode.get("salt");
                 String base64Salt = saltNode.asText();*/
-                byte[] saltBytes = Base64.getDecoder().decode(base64Salt);
 
                 String pseudoUprn = null;
                 TreeMap<String, String> keys = new TreeMap<>();
                 keys.put("UPRN", "" + sUprn);
 
-                Crypto crypto = new Crypto();
-                crypto.SetEncryptedSalt(saltBytes);
-                pseudoUprn = crypto.GetDigest(keys);
+                pseudoUprn = PseudonymisationEngine.digest(base64Salt, keys);
 
                 uprnWriter.writeUpsertPseudonymised(id,
                         personId,
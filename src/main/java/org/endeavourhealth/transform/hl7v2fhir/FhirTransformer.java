@@ -9,6 +9,7 @@ import ca.uhn.hl7v2.parser.PipeParser;
 import org.endeavourhealth.common.utility.SlackHelper;
 import org.endeavourhealth.core.database.dal.audit.models.Exchange;
 import org.endeavourhealth.transform.common.FhirResourceFiler;
+import org.endeavourhealth.transform.hl7v2fhir.helpers.HL7MessageSniffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -49,8 +50,19 @@ public abstract class FhirTransformer {
         }*/
         //get HL7 message from the table based on id
 
+        //work out the message type from the raw MSH segment, so we don't parse messages we don't transform
+        String msgType = HL7MessageSniffer.getMessageCode(HL7Message);
+        if (msgType != null
+                && !"ADT".equalsIgnoreCase(msgType)
+                && !"ORU".equalsIgnoreCase(msgType)) {
+            LOG.debug("Ignoring HL7 message type " + msgType + " for exchange " + exchange.getId());
+            return;
+        }
+
         Message hapiMsg = parseHL7Message(HL7Message);
-        String msgType = (hapiMsg.printStructure()).substring(0, 3);
+        if (msgType == null) {
+            msgType = hapiMsg.getName().substring(0, 3);
+        }
 
         if("ADT".equalsIgnoreCase(msgType)) {
             ImperialHL7FhirADTTransformer.transform(fhirResourceFiler, version, hapiMsg);
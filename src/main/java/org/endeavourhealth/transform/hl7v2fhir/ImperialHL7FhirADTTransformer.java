@@ -1,9 +1,12 @@
 package org.endeavourhealth.transform.hl7v2fhir;
 
+import ca.uhn.hl7v2.HL7Exception;
 import ca.uhn.hl7v2.model.Message;
 import ca.uhn.hl7v2.model.v23.datatype.*;
 import ca.uhn.hl7v2.model.v23.message.*;
 import ca.uhn.hl7v2.model.v23.segment.MSH;
+import ca.uhn.hl7v2.util.Terser;
+import org.apache.commons.lang3.StringUtils;
 import org.endeavourhealth.common.fhir.ReferenceComponents;
 import org.endeavourhealth.common.fhir.ReferenceHelper;
 import org.endeavourhealth.core.database.dal.DalProvider;
@@ -19,6 +22,9 @@ import org.hl7.fhir.instance.model.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public abstract class ImperialHL7FhirADTTransformer {
     private static final Logger LOG = LoggerFactory.getLogger(ImperialHL7FhirADTTransformer.class);
 
@@ -30,9 +36,10 @@ public abstract class ImperialHL7FhirADTTransformer {
      * @throws Exception
      */
     public static void transform(FhirResourceFiler fhirResourceFiler, String version, Message hapiMsg) throws Exception {
-        String msgType = (hapiMsg.printStructure()).substring(0,7);
+        String msgType = hapiMsg.getName();
         ImperialHL7Helper imperialHL7Helper = new ImperialHL7Helper(fhirResourceFiler.getServiceId(), fhirResourceFiler.getSystemId(),
                 fhirResourceFiler.getExchangeId(), null, null);
+        prefetchIds(hapiMsg, imperialHL7Helper);
 
         if("ADT_A01".equalsIgnoreCase(msgType)) {
             transformADT_A01(fhirResourceFiler, (ADT_A01) hapiMsg, imperialHL7Helper);
@@ -69,6 +76,43 @@ public abstract class ImperialHL7FhirADTTransformer {
         }
     }
 
+    /**
+     * all the ADT messages retrieve the patient, its religion and language observations and the episode and
+     * encounter for the visit, so look up all their IDs with one DB call
+     * @param hapiMsg
+     * @param imperialHL7Helper
+     * @throws Exception
+     */
+    private static void prefetchIds(Message hapiMsg, ImperialHL7Helper imperialHL7Helper) throws Exception {
+        Terser terser = new Terser(hapiMsg);
+        String patientGuid = getTerserValue(terser, "/.PID-3-1");
+        String visitId = getTerserValue(terser, "/.PV1-19-1");
+
+        List<Reference> references = new ArrayList<>();
+        if (StringUtils.isNotBlank(patientGuid)) {
+            references.add(ImperialHL7Helper.createReference(ResourceType.Patient, patientGuid));
+            references.add(ImperialHL7Helper.createReference(ResourceType.Observation, patientGuid+"Religion"));
+            references.add(ImperialHL7Helper.createReference(ResourceType.Observation, patientGuid+"Language"));
+        }
+        if (StringUtils.isNotBlank(visitId)) {
+            references.add(ImperialHL7Helper.createReference(ResourceType.EpisodeOfCare, visitId));
+            references.add(ImperialHL7Helper.createReference(ResourceType.Encounter, visitId));
+        }
+
+        imperialHL7Helper.prefetchIds(references);
+    }
+
+    /**
+     * returns null if the field is empty or the segment isn't in this message structure (e.g. there's no PV1 in an A34)
+     */
+    private static String getTerserValue(Terser terser, String path) {
+        try {
+            return terser.get(path);
+        } catch (HL7Exception ex) {
+            return null;
+        }
+    }
+
     /**
      *
      * @param fhirResourceFiler
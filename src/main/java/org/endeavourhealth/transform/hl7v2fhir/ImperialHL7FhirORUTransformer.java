@@ -36,7 +36,7 @@ public abstract class ImperialHL7FhirORUTransformer {
      */
     public static void transform(FhirResourceFiler fhirResourceFiler, String version, Message hapiMsg) throws Exception {
 
-        String msgType = (hapiMsg.printStructure()).substring(0,7);
+        String msgType = hapiMsg.getName();
         ImperialHL7Helper imperialHL7Helper = new ImperialHL7Helper(fhirResourceFiler.getServiceId(), fhirResourceFiler.getSystemId(),
                 fhirResourceFiler.getExchangeId(), null, null);
 
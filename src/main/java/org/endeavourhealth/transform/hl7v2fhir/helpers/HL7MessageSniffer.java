@@ -0,0 +1,94 @@
+package org.endeavourhealth.transform.hl7v2fhir.helpers;
+
+/**
+ * reads the message type (MSH-9) straight from a raw ER7 (pipe-delimited) HL7 message, so we can tell what
+ * a message is without parsing the whole thing or rendering its structure
+ */
+public class HL7MessageSniffer {
+
+    private static final String MSH = "MSH";
+    private static final int MESSAGE_TYPE_FIELD = 9;
+
+    /**
+     * returns the message code (MSH-9.1), e.g. "ADT", or null if it can't be found
+     */
+    public static String getMessageCode(String er7) {
+        return getMessageTypeComponent(er7, 0);
+    }
+
+    /**
+     * returns the trigger event (MSH-9.2), e.g. "A01", or null if it can't be found
+     */
+    public static String getTriggerEvent(String er7) {
+        return getMessageTypeComponent(er7, 1);
+    }
+
+    private static String getMessageTypeComponent(String er7, int componentIndex) {
+        if (er7 == null) {
+            return null;
+        }
+
+        int mshStart = er7.indexOf(MSH);
+        //MSH-1 and MSH-2 are the field separator and the encoding characters
+        if (mshStart < 0
+                || er7.length() < mshStart + 8) {
+            return null;
+        }
+        char fieldSeparator = er7.charAt(mshStart + 3);
+        char componentSeparator = er7.charAt(mshStart + 4);
+
+        //MSH-1 is the field separator itself, so the separator after "MSH" is the one before MSH-2
+        int pos = mshStart + 3;
+        for (int field=2; field<MESSAGE_TYPE_FIELD; field++) {
+            int next = er7.indexOf(fieldSeparator, pos + 1);
+            if (next < 0
+                    || isSegmentEndBefore(er7, pos, next)) {
+                return null;
+            }
+            pos = next;
+        }
+
+        //find the requested component within MSH-9
+        int start = pos + 1;
+        for (int i=0; i<componentIndex; i++) {
+            int next = findEnd(er7, start, fieldSeparator, componentSeparator);
+            if (next >= er7.length()
+                    || er7.charAt(next) != componentSeparator) {
+                return null;
+            }
+            start = next + 1;
+        }
+
+        int end = findEnd(er7, start, fieldSeparator, componentSeparator);
+        if (end == start) {
+            return null;
+        }
+        return er7.substring(start, end);
+    }
+
+    private static int findEnd(String er7, int start, char fieldSeparator, char componentSeparator) {
+        int pos = start;
+        while (pos < er7.length()) {
+            char c = er7.charAt(pos);
+            if (c == fieldSeparator
+                    || c == componentSeparator
+                    || c == '\r'
+                    || c == '\n') {
+                break;
+            }
+            pos ++;
+        }
+        return pos;
+    }
+
+    private static boolean isSegmentEndBefore(String er7, int from, int to) {
+        for (int i=from; i<to; i++) {
+            char c = er7.charAt(i);
+            if (c == '\r'
+                    || c == '\n') {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -1,6 +1,7 @@
 package org.endeavourhealth.transform.hl7v2fhir.helpers;
 
 import org.apache.commons.lang3.StringUtils;
+import org.endeavourhealth.common.fhir.ReferenceHelper;
 import org.endeavourhealth.core.database.dal.DalProvider;
 import org.endeavourhealth.core.database.dal.ehr.ResourceDalI;
 import org.endeavourhealth.core.database.dal.ehr.models.ResourceWrapper;
@@ -17,8 +18,7 @@ import org.hl7.fhir.instance.model.ResourceType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Map;
-import java.util.UUID;
+import java.util.*;
 
 
 public class ImperialHL7Helper implements HasServiceSystemAndExchangeIdI {
@@ -34,6 +34,10 @@ public class ImperialHL7Helper implements HasServiceSystemAndExchangeIdI {
     private final String dataSharingAgreementGuid;
     private final Map<Class, AbstractCsvParser> parsers;
 
+    //EDS IDs found by prefetchIds, keyed by source reference, with null for those not found. Each is only used
+    //by the first retrieval, since the resource may be created while the message is being transformed
+    private final Map<String, UUID> prefetchedIds = new HashMap<>();
+
     public ImperialHL7Helper(UUID serviceId, UUID systemId, UUID exchangeId, String dataSharingAgreementGuid, Map<Class, AbstractCsvParser> parsers) {
         this.serviceId = serviceId;
         this.systemId = systemId;
@@ -65,7 +69,7 @@ public class ImperialHL7Helper implements HasServiceSystemAndExchangeIdI {
      * @throws Exception
      */
     public Resource retrieveResource(String locallyUniqueId, ResourceType resourceType) throws Exception {
-        UUID globallyUniqueId = IdHelper.getEdsResourceId(serviceId, resourceType, locallyUniqueId);
+        UUID globallyUniqueId = findEdsResourceId(resourceType, locallyUniqueId);
 
         //if we've never mapped the local ID to a EDS UI, then we've never heard of this resource before
         if (globallyUniqueId == null) {
@@ -88,6 +92,31 @@ public class ImperialHL7Helper implements HasServiceSystemAndExchangeIdI {
         }
     }
 
+    /**
+     * looks up the EDS IDs for the given source references in a single DB call, so the resources a message
+     * needs can be retrieved without a separate ID lookup for each
+     */
+    public void prefetchIds(List<Reference> sourceReferences) throws Exception {
+        if (sourceReferences.isEmpty()) {
+            return;
+        }
+
+        Map<Reference, UUID> map = IdHelper.getEdsResourceIds(serviceId, new HashSet<>(sourceReferences));
+        for (Reference sourceReference: sourceReferences) {
+            UUID edsId = map.get(sourceReference);
+            prefetchedIds.put(sourceReference.getReference(), edsId);
+        }
+    }
+
+    private UUID findEdsResourceId(ResourceType resourceType, String locallyUniqueId) throws Exception {
+        String sourceReferenceValue = ReferenceHelper.createResourceReference(resourceType, locallyUniqueId);
+        if (prefetchedIds.containsKey(sourceReferenceValue)) {
+            return prefetchedIds.remove(sourceReferenceValue);
+        }
+
+        return IdHelper.getEdsResourceId(serviceId, resourceType, locallyUniqueId);
+    }
+
     /**
      *
      * @param resourceType
@@ -205,7 +234,7 @@ public class ImperialHL7Helper implements HasServiceSystemAndExchangeIdI {
 
     public Resource retrieveResourceForLocalId(ResourceType resourceType, String locallyUniqueId) throws Exception {
 
-        UUID globallyUniqueId = IdHelper.getEdsResourceId(serviceId, resourceType, locallyUniqueId);
+        UUID globallyUniqueId = findEdsResourceId(resourceType, locallyUniqueId);
 
         //if we've never mapped the local ID to a EDS UI, then we've never heard of this resource before
         if (globallyUniqueId == null) {
@@ -0,0 +1,212 @@
+package org.endeavourhealth.transform.subscriber;
+
+import com.google.common.base.Strings;
+import org.endeavourhealth.core.database.dal.DalProvider;
+import org.endeavourhealth.core.database.dal.reference.PostcodeDalI;
+import org.endeavourhealth.core.database.dal.reference.models.PostcodeLookup;
+import org.endeavourhealth.transform.common.TransformConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * looks up the postcode reference data and UPRN match for patient addresses. Postcodes are found in a local
+ * snapshot of the reference table if configured, falling back to the DB for any not in it. If a cache size is configured, the results of
+ * DB postcode lookups and UPRN API calls are kept in LRU caches, and concurrent requests for the same UPRN address
+ * are collapsed into a single API call, since the same address turns up many times in a batch of patients.
+ */
+public class AddressEnricher {
+    private static final Logger LOG = LoggerFactory.getLogger(AddressEnricher.class);
+
+    //singleton
+    private static AddressEnricher instance;
+    private static Object sync = new Object();
+
+    private final PostcodeSnapshot postcodeSnapshot;
+    private final Map<String, PostcodeReference> postcodeCache;
+    private final Map<String, String> uprnCache;
+    private final Map<String, FutureTask<String>> uprnCallsInProgress = new ConcurrentHashMap<>();
+
+    public static AddressEnricher instance() {
+        if (instance == null) {
+            synchronized (sync) {
+                if (instance == null) {
+                    instance = new AddressEnricher();
+                }
+            }
+        }
+        return instance;
+    }
+
+    private AddressEnricher() {
+        TransformConfig config = TransformConfig.instance();
+
+        this.postcodeSnapshot = openPostcodeSnapshot(config.getPostcodeSnapshotFile());
+
+        int cacheSize = config.getAddressCacheSize();
+        if (cacheSize > 0) {
+            this.postcodeCache = new LruCache<>(cacheSize);
+            this.uprnCache = new LruCache<>(cacheSize);
+        } else {
+            this.postcodeCache = null;
+            this.uprnCache = null;
+        }
+    }
+
+    /**
+     * if the snapshot can't be opened, we can still use the DB, so just log the error
+     */
+    private static PostcodeSnapshot openPostcodeSnapshot(String path) {
+        if (Strings.isNullOrEmpty(path)) {
+            return null;
+        }
+
+        try {
+            return PostcodeSnapshot.open(new File(path));
+        } catch (Exception ex) {
+            LOG.error("Failed to open postcode snapshot " + path + " so will look up postcodes in DB", ex);
+            return null;
+        }
+    }
+
+    /**
+     * returns the reference data for the postcode, or null if not known
+     */
+    public PostcodeReference getPostcodeReference(String postcode) throws Exception {
+
+        String key = PostcodeSnapshot.normalisePostcode(postcode);
+        if (key == null) {
+            return null;
+        }
+
+        //the snapshot may be older than the reference table, so anything not in it is looked up in the DB as before
+        if (postcodeSnapshot != null) {
+            PostcodeReference ret = postcodeSnapshot.lookup(postcode);
+            if (ret != null) {
+                return ret;
+            }
+        }
+
+        if (postcodeCache != null) {
+            synchronized (postcodeCache) {
+                if (postcodeCache.containsKey(key)) {
+                    return postcodeCache.get(key);
+                }
+            }
+        }
+
+        PostcodeDalI postcodeDal = DalProvider.factoryPostcodeDal();
+        PostcodeLookup lookup = postcodeDal.getPostcodeReference(postcode);
+        PostcodeReference ret = null;
+        if (lookup != null) {
+            ret = PostcodeReference.fromLookup(lookup);
+        }
+
+        //cache nulls too, so we don't keep looking up postcodes that aren't in the reference table
+        if (postcodeCache != null) {
+            synchronized (postcodeCache) {
+                postcodeCache.put(key, ret);
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * calls the UPRN API for the address, using a cached result for the same address if caching is enabled.
+     * Note that when a cached result is used, the API doesn't receive the IDs for that call.
+     */
+    public String getAdrec(String adrec, String ids) throws Exception {
+
+        if (uprnCache == null) {
+            return UPRN.getAdrec(adrec, ids);
+        }
+
+        String key = normaliseAddress(adrec);
+        synchronized (uprnCache) {
+            String ret = uprnCache.get(key);
+            if (ret != null) {
+                return ret;
+            }
+        }
+
+        //if another thread is already calling the API for the same address, wait for that rather than calling it again
+        //empty results are cached as well as matches, but errors aren't
+        FutureTask<String> task = new FutureTask<>(() -> {
+            String result = UPRN.getAdrec(adrec, ids);
+            if (result != null) {
+                synchronized (uprnCache) {
+                    uprnCache.put(key, result);
+                }
+            }
+            return result;
+        });
+        FutureTask<String> existingTask = uprnCallsInProgress.putIfAbsent(key, task);
+        if (existingTask != null) {
+            task = existingTask;
+        } else {
+            try {
+                task.run();
+            } finally {
+                uprnCallsInProgress.remove(key);
+            }
+        }
+
+        try {
+            return task.get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception)cause;
+            } else {
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * makes the cache key for a comma-separated address, ignoring case, spaces around each part, repeated
+     * spaces and the space in the postcode, none of which affect the UPRN match
+     */
+    public static String normaliseAddress(String adrec) {
+        String[] parts = adrec.split(",", -1);
+        StringBuilder sb = new StringBuilder(adrec.length());
+
+        for (int i=0; i<parts.length; i++) {
+            if (i > 0) {
+                sb.append(",");
+            }
+
+            String part = parts[i].trim().toUpperCase();
+            if (i == parts.length - 1) {
+                part = part.replaceAll("\\s+", "");
+            } else {
+                part = part.replaceAll("\\s+", " ");
+            }
+            sb.append(part);
+        }
+
+        return sb.toString();
+    }
+
+    static class LruCache<K, V> extends LinkedHashMap<K, V> {
+
+        private final int maxSize;
+
+        LruCache(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            return size() > maxSize;
+        }
+    }
+}
@@ -102,13 +102,7 @@ public class BulkHelper {
         filesToKeep.add("patient_address_match");
         params.getOutputContainer().clearDownOutputContainer(filesToKeep);
 
-        byte[] bytes = params.getOutputContainer().writeToZip();
-
-        if (bytes != null) {
-            return Base64.getEncoder().encodeToString(bytes);
-        } else {
-            return null;
-        }
+        return params.getOutputContainer().writeToBase64();
     }
 
     public static String getSubscriberContainerForUPRNData(List<ResourceWrapper> resources, UUID serviceUUID, UUID batchUUID, String subscriberConfigName, UUID patientId) throws Exception {
@@ -140,13 +134,7 @@ public class BulkHelper {
         filesToKeep.add(SubscriberTableId.PATIENT_ADDRESS_RALF);
         params.getOutputContainer().clearDownOutputContainer(filesToKeep);
 
-        byte[] bytes = params.getOutputContainer().writeToZip();
-
-        if (bytes != null) {
-            return Base64.getEncoder().encodeToString(bytes);
-        } else {
-            return null;
-        }
+        return params.getOutputContainer().writeToBase64();
     }
 
     public static String getEnterpriseContainerForPatientData(List<ResourceWrapper> resources, UUID serviceUUID, UUID batchUUID, UUID protocolUUID, String subscriberConfigName, UUID patientId) throws Exception {
@@ -181,12 +169,7 @@ public class BulkHelper {
 
         params.getOutputContainer().clearDownOutputContainer(filesToKeep);
 
-        byte[] bytes = params.getOutputContainer().writeToZip();
-        if (bytes != null) {
-            return Base64.getEncoder().encodeToString(bytes);
-        } else {
-            return null;
-        }
+        return params.getOutputContainer().writeToBase64();
     }
 
     public static String getEnterpriseContainerForEpisodeData(List<ResourceWrapper> resources, UUID serviceUUID, UUID batchUUID, UUID protocolUUID, String subscriberConfigName, UUID patientId) throws Exception {
@@ -221,12 +204,7 @@ public class BulkHelper {
 
         params.getOutputContainer().clearDownOutputContainer(filesToKeep);
 
-        byte[] bytes = params.getOutputContainer().writeToZip();
-        if (bytes != null) {
-            return Base64.getEncoder().encodeToString(bytes);
-        } else {
-            return null;
-        }
+        return params.getOutputContainer().writeToBase64();
     }
 
     public static String getSubscriberContainerForPatientData(List<ResourceWrapper> resources, UUID serviceUUID, UUID batchUUID, UUID protocolUUID, String subscriberConfigName, UUID patientId) throws Exception {
@@ -259,12 +237,7 @@ public class BulkHelper {
 
         params.getOutputContainer().clearDownOutputContainer(filesToKeep);
 
-        byte[] bytes = params.getOutputContainer().writeToZip();
-        if (bytes != null) {
-            return Base64.getEncoder().encodeToString(bytes);
-        } else {
-            return null;
-        }
+        return params.getOutputContainer().writeToBase64();
     }
 
     public static String getSubscriberContainerForEpisodeData(List<ResourceWrapper> resources, UUID serviceUUID, UUID batchUUID, UUID protocolUUID, String subscriberConfigName, UUID patientId) throws Exception {
@@ -298,12 +271,7 @@ public class BulkHelper {
 
         params.getOutputContainer().clearDownOutputContainer(filesToKeep);
 
-        byte[] bytes = params.getOutputContainer().writeToZip();
-        if (bytes != null) {
-            return Base64.getEncoder().encodeToString(bytes);
-        } else {
-            return null;
-        }
+        return params.getOutputContainer().writeToBase64();
     }
 
     public static String getSubscriberContainerForObservationAdditionalData(List<ResourceWrapper> resources, UUID serviceUUID, UUID batchUUID, String subscriberConfigName, UUID patientId) throws Exception {
@@ -335,13 +303,7 @@ public class BulkHelper {
         filesToKeep.add(SubscriberTableId.OBSERVATION_ADDITIONAL);
         params.getOutputContainer().clearDownOutputContainer(filesToKeep);
 
-        byte[] bytes = params.getOutputContainer().writeToZip();
-
-        if (bytes != null) {
-            return Base64.getEncoder().encodeToString(bytes);
-        } else {
-            return null;
-        }
+        return params.getOutputContainer().writeToBase64();
     }
 
     public static String getSubscriberContainerForConditionAdditionalData(List<ResourceWrapper> resources, UUID serviceUUID, UUID batchUUID, String subscriberConfigName, UUID patientId) throws Exception {
@@ -373,12 +335,6 @@ public class BulkHelper {
         filesToKeep.add(SubscriberTableId.OBSERVATION_ADDITIONAL);
         params.getOutputContainer().clearDownOutputContainer(filesToKeep);
 
-        byte[] bytes = params.getOutputContainer().writeToZip();
-
-        if (bytes != null) {
-            return Base64.getEncoder().encodeToString(bytes);
-        } else {
-            return null;
-        }
+        return params.getOutputContainer().writeToBase64();
     }
 }
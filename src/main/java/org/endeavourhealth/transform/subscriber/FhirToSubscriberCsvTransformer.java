@@ -3,8 +3,6 @@ package org.endeavourhealth.transform.subscriber;
 import com.google.common.base.Strings;
 import org.endeavourhealth.common.fhir.ReferenceComponents;
 import org.endeavourhealth.common.fhir.ReferenceHelper;
-import org.endeavourhealth.common.utility.ThreadPool;
-import org.endeavourhealth.common.utility.ThreadPoolError;
 import org.endeavourhealth.core.database.dal.DalProvider;
 import org.endeavourhealth.core.database.dal.eds.PatientLinkDalI;
 import org.endeavourhealth.core.database.dal.ehr.ResourceDalI;
@@ -17,6 +15,8 @@ import org.endeavourhealth.core.fhirStorage.FhirResourceHelper;
 import org.endeavourhealth.transform.common.FhirResourceFiler;
 import org.endeavourhealth.transform.common.FhirToXTransformerBase;
 import org.endeavourhealth.transform.common.IdHelper;
+import org.endeavourhealth.transform.common.OutboundTaskGroupI;
+import org.endeavourhealth.transform.common.OutboundTransformExecutor;
 import org.endeavourhealth.transform.common.exceptions.PatientResourceException;
 import org.endeavourhealth.transform.subscriber.targetTables.OutputContainer;
 import org.endeavourhealth.transform.subscriber.targetTables.SubscriberTableId;
@@ -28,7 +28,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
-import java.util.Base64;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.Callable;
@@ -67,18 +66,14 @@ public class FhirToSubscriberCsvTransformer extends FhirToXTransformerBase {
 
             //LOG.trace("Transform finished, will write to Base64");
             OutputContainer data = params.getOutputContainer();
-            byte[] bytes = data.writeToZip();
+            String ret = data.writeToBase64();
 
             //update the state table so we know the datetime of each resource we just transformed, so the event log is maintained properly
             params.saveDtLastTransformedPatient();
             //updateSubscriberStateTable(params);
 
-            LOG.trace("Transform complete, generating " + (bytes != null ? "" + bytes.length : null) + " bytes");
-            if (bytes != null) {
-                return Base64.getEncoder().encodeToString(bytes);
-            } else {
-                return null;
-            }
+            LOG.trace("Transform complete, generating " + (ret != null ? "" + ret.length() : null) + " Base64 chars");
+            return ret;
 
         } catch (Exception ex) {
             throw new TransformException("Exception transforming batch " + batchId, ex);
@@ -249,56 +244,57 @@ public class FhirToSubscriberCsvTransformer extends FhirToXTransformerBase {
 
     private static void runTransforms(SubscriberTransformHelper params) throws Exception {
 
-        int resourceCount = params.getResourceCount();
-        int threads = Math.min(10, resourceCount/10); //limit to 10 threads, but don't create too many unnecessarily if we only have a few resources
-        threads = Math.max(threads, 1); //make sure we have a min of 1
+        //if configured, look up the IM concepts for the whole batch up front, rather than one at a time as needed
+        IMConceptPrefetcher.prefetch(params);
 
-        ThreadPool threadPool = new ThreadPool(threads, 1000, "FhirToSubscriber");
+        //and the same for the subscriber IDs of everything the batch refers to
+        SubscriberIdPrefetcher.prefetch(params);
+
+        int resourceCount = params.getResourceCount();
+        OutboundTaskGroupI taskGroup = OutboundTransformExecutor.createTaskGroup("FhirToSubscriber", resourceCount);
         try {
 
             //we detect whether we're doing an update or insert, based on whether we're previously mapped
             //a reference to a resource, so we need to transform the resources in a specific order, so
             //that we transform resources before we ones that refer to them
-            transformResources(ResourceType.Organization, threadPool, params);
-            transformResources(ResourceType.Location, threadPool, params);
-            transformResources(ResourceType.Practitioner, threadPool, params);
-            transformResources(ResourceType.Schedule, threadPool, params);
-            transformResources(ResourceType.Patient, threadPool, params);
+            transformResources(ResourceType.Organization, taskGroup, params);
+            transformResources(ResourceType.Location, taskGroup, params);
+            transformResources(ResourceType.Practitioner, taskGroup, params);
+            transformResources(ResourceType.Schedule, taskGroup, params);
+            transformResources(ResourceType.Patient, taskGroup, params);
 
             //if we transformed a patient resource, we need to guarantee that the patient is fully transformed before continuing
             //so we need to let the threadpool empty before doing anything more
-            List<ThreadPoolError> errors = threadPool.waitUntilEmpty();
-            handleErrors(errors);
+            taskGroup.waitUntilEmpty();
 
             //having done any patient resource in our batch, we should have created an enterprise patient ID and person ID that we can use for all remaining resources
             params.populatePatientAndPersonIds();
 
             //order of the transforms is generally in order of dependence
-            transformResources(ResourceType.Appointment, threadPool, params);
-            transformResources(ResourceType.EpisodeOfCare, threadPool, params);
-            transformResources(ResourceType.Encounter, threadPool, params);
-            transformResources(ResourceType.Condition, threadPool, params);
-            transformResources(ResourceType.Procedure, threadPool, params);
-            transformResources(ResourceType.ReferralRequest, threadPool, params);
-            transformResources(ResourceType.ProcedureRequest, threadPool, params);
-            transformResources(ResourceType.Observation, threadPool, params);
-            transformResources(ResourceType.MedicationStatement, threadPool, params);
-            transformResources(ResourceType.MedicationOrder, threadPool, params);
-            transformResources(ResourceType.Immunization, threadPool, params);
-            transformResources(ResourceType.FamilyMemberHistory, threadPool, params);
-            transformResources(ResourceType.AllergyIntolerance, threadPool, params);
-            transformResources(ResourceType.DiagnosticOrder, threadPool, params);
-            transformResources(ResourceType.DiagnosticReport, threadPool, params);
-            transformResources(ResourceType.Specimen, threadPool, params);
-            transformResources(ResourceType.Flag, threadPool, params);
-            transformResources(ResourceType.Slot, threadPool, params);
-            transformResources(ResourceType.QuestionnaireResponse, threadPool, params);
+            transformResources(ResourceType.Appointment, taskGroup, params);
+            transformResources(ResourceType.EpisodeOfCare, taskGroup, params);
+            transformResources(ResourceType.Encounter, taskGroup, params);
+            transformResources(ResourceType.Condition, taskGroup, params);
+            transformResources(ResourceType.Procedure, taskGroup, params);
+            transformResources(ResourceType.ReferralRequest, taskGroup, params);
+            transformResources(ResourceType.ProcedureRequest, taskGroup, params);
+            transformResources(ResourceType.Observation, taskGroup, params);
+            transformResources(ResourceType.MedicationStatement, taskGroup, params);
+            transformResources(ResourceType.MedicationOrder, taskGroup, params);
+            transformResources(ResourceType.Immunization, taskGroup, params);
+            transformResources(ResourceType.FamilyMemberHistory, taskGroup, params);
+            transformResources(ResourceType.AllergyIntolerance, taskGroup, params);
+            transformResources(ResourceType.DiagnosticOrder, taskGroup, params);
+            transformResources(ResourceType.DiagnosticReport, taskGroup, params);
+            transformResources(ResourceType.Specimen, taskGroup, params);
+            transformResources(ResourceType.Flag, taskGroup, params);
+            transformResources(ResourceType.Slot, taskGroup, params);
+            transformResources(ResourceType.QuestionnaireResponse, taskGroup, params);
 
         } finally {
 
-            //close the thread pool
-            List<ThreadPoolError> errors = threadPool.waitAndStop();
-            handleErrors(errors);
+            //close the task group
+            taskGroup.waitAndStop();
         }
 
         //if there's anything left in the list, then we've missed a resource type
@@ -362,7 +358,7 @@ public class FhirToSubscriberCsvTransformer extends FhirToXTransformerBase {
         }
     }
 
-    private static void transformResources(ResourceType resourceType, ThreadPool threadPool, SubscriberTransformHelper params) throws Exception {
+    private static void transformResources(ResourceType resourceType, OutboundTaskGroupI taskGroup, SubscriberTransformHelper params) throws Exception {
 
         //find all the ones we want to transform
         List<ResourceWrapper> resourcesToTransform = params.findResourcesForType(resourceType);
@@ -373,42 +369,24 @@ public class FhirToSubscriberCsvTransformer extends FhirToXTransformerBase {
             batch.add(resource);
 
             if (batch.size() >= params.getBatchSize()) {
-                addBatchToThreadPool(resourceType, batch, threadPool, params);
+                addBatchToTaskGroup(resourceType, batch, taskGroup, params);
                 batch = new ArrayList<>();
             }
         }
 
         //don't forget to do any in the last batch
         if (!batch.isEmpty()) {
-            addBatchToThreadPool(resourceType, batch, threadPool, params);
+            addBatchToTaskGroup(resourceType, batch, taskGroup, params);
         }
     }
 
-    private static void addBatchToThreadPool(ResourceType resourceType,
-                                             List<ResourceWrapper> resources,
-                                             ThreadPool threadPool,
-                                             SubscriberTransformHelper params) throws Exception {
+    private static void addBatchToTaskGroup(ResourceType resourceType,
+                                            List<ResourceWrapper> resources,
+                                            OutboundTaskGroupI taskGroup,
+                                            SubscriberTransformHelper params) throws Exception {
 
         Callable callable = new TransformResourceCallable(resourceType, resources, params);
-        List<ThreadPoolError> errors = threadPool.submit(callable);
-        handleErrors(errors);
-    }
-
-    private static void handleErrors(List<ThreadPoolError> errors) throws Exception {
-        if (errors == null || errors.isEmpty()) {
-            return;
-        }
-
-        //if we've had multiple errors, just throw the first one, since they'll most-likely be the same
-        ThreadPoolError first = errors.get(0);
-        Throwable cause = first.getException();
-        //the cause may be an Exception or Error so we need to explicitly
-        //cast to the right type to throw it without changing the method signature
-        if (cause instanceof Exception) {
-            throw (Exception)cause;
-        } else if (cause instanceof Error) {
-            throw (Error)cause;
-        }
+        taskGroup.submit(callable);
     }
 
 
@@ -0,0 +1,198 @@
+package org.endeavourhealth.transform.subscriber;
+
+import org.endeavourhealth.common.utility.ThreadPool;
+import org.endeavourhealth.common.utility.ThreadPoolError;
+import org.endeavourhealth.core.database.dal.ehr.models.ResourceWrapper;
+import org.endeavourhealth.transform.common.AbstractCsvCallable;
+import org.endeavourhealth.transform.common.TransformConfig;
+import org.endeavourhealth.transform.enterprise.ObservationCodeHelper;
+import org.hl7.fhir.instance.model.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * finds the main code of every clinical resource in a batch and looks up the IM concepts for them all, using
+ * several threads, before the batch is transformed. Without this, each concept not already cached is looked up
+ * one at a time by whichever transformer thread needs it, which is very slow when the caches are cold after a restart.
+ *
+ * Only the main codes are prefetched, as they're the vast majority of distinct concepts. Anything else
+ * (e.g. statuses and types) is still looked up by the transformers when needed.
+ */
+public class IMConceptPrefetcher {
+    private static final Logger LOG = LoggerFactory.getLogger(IMConceptPrefetcher.class);
+
+    private static final ResourceType[] CODED_RESOURCE_TYPES = new ResourceType[]{
+            ResourceType.Condition,
+            ResourceType.Procedure,
+            ResourceType.ReferralRequest,
+            ResourceType.ProcedureRequest,
+            ResourceType.Observation,
+            ResourceType.MedicationStatement,
+            ResourceType.MedicationOrder,
+            ResourceType.Immunization,
+            ResourceType.FamilyMemberHistory,
+            ResourceType.AllergyIntolerance,
+            ResourceType.DiagnosticOrder,
+            ResourceType.DiagnosticReport,
+            ResourceType.Specimen
+    };
+
+    public static void prefetch(SubscriberTransformHelper params) throws Exception {
+
+        int threads = TransformConfig.instance().getImPrefetchThreads();
+        if (threads <= 0) {
+            return;
+        }
+
+        //find the distinct scheme and code of each resource, keeping the first term for each
+        Map<String, PrefetchCallable> concepts = new LinkedHashMap<>();
+        for (ResourceType resourceType: CODED_RESOURCE_TYPES) {
+            List<ResourceWrapper> resources = params.findResourcesForType(resourceType);
+            for (ResourceWrapper resourceWrapper: resources) {
+                addConcept(resourceWrapper, concepts);
+            }
+        }
+
+        if (concepts.isEmpty()) {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+
+        ThreadPool threadPool = new ThreadPool(threads, 1000, "IMConceptPrefetcher");
+        try {
+            for (PrefetchCallable callable: concepts.values()) {
+                List<ThreadPoolError> errors = threadPool.submit(callable);
+                AbstractCsvCallable.handleErrors(errors);
+            }
+
+        } finally {
+            List<ThreadPoolError> errors = threadPool.waitAndStop();
+            AbstractCsvCallable.handleErrors(errors);
+        }
+
+        LOG.debug("Prefetched IM concepts for " + concepts.size() + " codes in " + (System.currentTimeMillis() - start) + "ms");
+
+        IMHelper.saveSnapshot();
+    }
+
+    /**
+     * the prefetch is only an optimisation, so any resource whose code can't be worked out is just skipped,
+     * leaving the transformer to deal with it
+     */
+    private static void addConcept(ResourceWrapper resourceWrapper, Map<String, PrefetchCallable> concepts) {
+
+        if (resourceWrapper.isDeleted()) {
+            return;
+        }
+
+        try {
+            Resource resource = resourceWrapper.getResource();
+            CodeableConcept codeableConcept = findMainCode(resource);
+            if (codeableConcept == null) {
+                return;
+            }
+
+            Coding originalCoding = ObservationCodeHelper.findOriginalCoding(codeableConcept);
+            if (originalCoding == null
+                    || !originalCoding.hasCode()) {
+                return;
+            }
+
+            String scheme = ObservationCodeHelper.mapCodingSystemToImScheme(originalCoding);
+            if (scheme == null) {
+                return;
+            }
+
+            String code = originalCoding.getCode();
+            String key = scheme + ":" + code;
+            if (!concepts.containsKey(key)) {
+                concepts.put(key, new PrefetchCallable(scheme, code, originalCoding.getDisplay()));
+            }
+
+        } catch (Exception ex) {
+            LOG.trace("Failed to find code to prefetch for " + resourceWrapper.getResourceType() + " " + resourceWrapper.getResourceId(), ex);
+        }
+    }
+
+    /**
+     * returns the CodeableConcept used by the subscriber transformer for each resource type
+     */
+    private static CodeableConcept findMainCode(Resource resource) throws Exception {
+
+        if (resource instanceof Condition) {
+            return ((Condition)resource).getCode();
+
+        } else if (resource instanceof Procedure) {
+            return ((Procedure)resource).getCode();
+
+        } else if (resource instanceof ReferralRequest) {
+            ReferralRequest referralRequest = (ReferralRequest)resource;
+            if (referralRequest.hasServiceRequested()) {
+                return referralRequest.getServiceRequested().get(0);
+            }
+
+        } else if (resource instanceof ProcedureRequest) {
+            return ((ProcedureRequest)resource).getCode();
+
+        } else if (resource instanceof Observation) {
+            return ((Observation)resource).getCode();
+
+        } else if (resource instanceof MedicationStatement) {
+            return ((MedicationStatement)resource).getMedicationCodeableConcept();
+
+        } else if (resource instanceof MedicationOrder) {
+            return ((MedicationOrder)resource).getMedicationCodeableConcept();
+
+        } else if (resource instanceof Immunization) {
+            return ((Immunization)resource).getVaccineCode();
+
+        } else if (resource instanceof FamilyMemberHistory) {
+            FamilyMemberHistory familyMemberHistory = (FamilyMemberHistory)resource;
+            if (familyMemberHistory.hasCondition()) {
+                return familyMemberHistory.getCondition().get(0).getCode();
+            }
+
+        } else if (resource instanceof AllergyIntolerance) {
+            return ((AllergyIntolerance)resource).getSubstance();
+
+        } else if (resource instanceof DiagnosticOrder) {
+            DiagnosticOrder diagnosticOrder = (DiagnosticOrder)resource;
+            if (diagnosticOrder.hasItem()) {
+                return diagnosticOrder.getItem().get(0).getCode();
+            }
+
+        } else if (resource instanceof DiagnosticReport) {
+            return ((DiagnosticReport)resource).getCode();
+
+        } else if (resource instanceof Specimen) {
+            return ((Specimen)resource).getType();
+        }
+
+        return null;
+    }
+
+    static class PrefetchCallable implements Callable {
+
+        private final String scheme;
+        private final String code;
+        private final String term;
+
+        PrefetchCallable(String scheme, String code, String term) {
+            this.scheme = scheme;
+            this.code = code;
+            this.term = term;
+        }
+
+        @Override
+        public Object call() throws Exception {
+            IMHelper.prefetchIMConcepts(scheme, code, term);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package org.endeavourhealth.transform.subscriber;
+
+import com.google.common.base.Strings;
+import org.endeavourhealth.common.utility.ExpiringCache;
+import org.endeavourhealth.transform.common.TransformConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * optional file of the mapped and core concept DBIDs found in the IM, so that after a restart the IMHelper caches
+ * can be warmed from it rather than every concept having to be looked up again. Only concepts that were found are
+ * saved, not misses, and the file is ignored if it's too old so changes in the IM are picked up.
+ */
+public class IMConceptSnapshot {
+    private static final Logger LOG = LoggerFactory.getLogger(IMConceptSnapshot.class);
+
+    private static final long MAX_AGE = 1000 * 60 * 60 * 24; //ignore the file if over a day old
+    private static final long SAVE_INTERVAL = 1000 * 60 * 5; //don't write the file more than every 5 mins
+    private static final String TYPE_MAPPED = "M";
+    private static final String TYPE_CORE = "C";
+    private static final String DELIM = "\t";
+
+    private final File file;
+    private final Map<String, Integer> mappedConcepts = new ConcurrentHashMap<>();
+    private final Map<String, Integer> coreConcepts = new ConcurrentHashMap<>();
+    private volatile boolean changed = false;
+    private long lastSaved = System.currentTimeMillis();
+
+    /**
+     * if a snapshot file is configured, loads it into the caches and returns the snapshot, which is also
+     * saved when the application exits. Returns null if not configured.
+     */
+    public static IMConceptSnapshot loadIfConfigured(ExpiringCache<String, Integer> mappedCache, ExpiringCache<String, Integer> coreCache) {
+
+        String path = TransformConfig.instance().getImCacheSnapshotFile();
+        if (Strings.isNullOrEmpty(path)) {
+            return null;
+        }
+
+        IMConceptSnapshot ret = new IMConceptSnapshot(new File(path));
+        ret.load(mappedCache, coreCache);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> ret.save(true), "IMConceptSnapshot"));
+        return ret;
+    }
+
+    private IMConceptSnapshot(File file) {
+        this.file = file;
+    }
+
+    /**
+     * the snapshot is only there to save time, so any problem reading it is logged and the file ignored
+     */
+    private void load(ExpiringCache<String, Integer> mappedCache, ExpiringCache<String, Integer> coreCache) {
+
+        if (!file.exists()) {
+            LOG.info("No IM concept snapshot found at " + file);
+            return;
+        }
+
+        long age = System.currentTimeMillis() - file.lastModified();
+        if (age > MAX_AGE) {
+            LOG.info("Ignoring IM concept snapshot " + file + " as it is " + (age / (1000 * 60)) + " mins old");
+            return;
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+
+                //the key goes last, as it's the only thing that might contain the delimiter
+                String[] toks = line.split(DELIM, 3);
+                if (toks.length != 3) {
+                    continue;
+                }
+                String type = toks[0];
+                Integer conceptDbid = Integer.valueOf(toks[1]);
+                String key = toks[2];
+
+                if (type.equals(TYPE_MAPPED)) {
+                    mappedCache.put(key, conceptDbid);
+                    mappedConcepts.put(key, conceptDbid);
+
+                } else if (type.equals(TYPE_CORE)) {
+                    coreCache.put(key, conceptDbid);
+                    coreConcepts.put(key, conceptDbid);
+                }
+            }
+
+            LOG.info("Loaded " + mappedConcepts.size() + " mapped and " + coreConcepts.size() + " core concepts from IM concept snapshot " + file);
+
+        } catch (Exception ex) {
+            LOG.warn("Failed to read IM concept snapshot " + file, ex);
+        }
+    }
+
+    public void addMapped(String key, Integer conceptDbid) {
+        Integer previous = mappedConcepts.put(key, conceptDbid);
+        if (!conceptDbid.equals(previous)) {
+            changed = true;
+        }
+    }
+
+    public void addCore(String key, Integer conceptDbid) {
+        Integer previous = coreConcepts.put(key, conceptDbid);
+        if (!conceptDbid.equals(previous)) {
+            changed = true;
+        }
+    }
+
+    /**
+     * writes the snapshot to a temp file then moves it over the old one, so a crash mid-way doesn't leave a
+     * partial file. Unless forced, it's only written if it hasn't been for a while.
+     */
+    public synchronized void save(boolean force) {
+
+        if (!changed) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        if (!force
+                && now - lastSaved < SAVE_INTERVAL) {
+            return;
+        }
+
+        changed = false;
+        lastSaved = now;
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(tempFile.toPath(), StandardCharsets.UTF_8)) {
+                writeConcepts(writer, TYPE_MAPPED, mappedConcepts);
+                writeConcepts(writer, TYPE_CORE, coreConcepts);
+            }
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        } catch (Exception ex) {
+            LOG.warn("Failed to write IM concept snapshot " + file, ex);
+            changed = true;
+        }
+    }
+
+    private static void writeConcepts(BufferedWriter writer, String type, Map<String, Integer> concepts) throws IOException {
+
+        for (Map.Entry<String, Integer> entry: concepts.entrySet()) {
+            String key = entry.getKey();
+
+            //a key spanning lines couldn't be read back in, so just leave it to be looked up again
+            if (key.indexOf('\n') > -1
+                    || key.indexOf('\r') > -1) {
+                continue;
+            }
+
+            writer.write(type);
+            writer.write(DELIM);
+            writer.write(entry.getValue().toString());
+            writer.write(DELIM);
+            writer.write(key);
+            writer.newLine();
+        }
+    }
+}
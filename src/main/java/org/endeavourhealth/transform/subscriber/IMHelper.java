@@ -15,11 +15,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class IMHelper {
     private static final Logger LOG = LoggerFactory.getLogger(IMHelper.class);
     private static final long CACHE_DURATION = 1000 * 60 * 60; //cache objects for 2hrs
-    private static final long THREAD_SLEEP_TIME = 1000 * 10; //thread sleep for 10s
+    private static final long RETRY_INITIAL_SLEEP_TIME = 1000; //first retry after about a second
+    private static final long RETRY_MAX_SLEEP_TIME = 1000 * 30; //but never wait more than 30s between retries
     private static final int RETRY_COUNT = 12; //thread retry count
 
 
@@ -50,6 +53,9 @@ public class IMHelper {
     private static ExpiringCache<String, String> conceptIdCache = new ExpiringCache<>(CACHE_DURATION);
     private static Set<String> nullconceptIdCache = new ExpiringSet<>(CACHE_DURATION);
 
+    //optional file to warm the mapped and core caches from after a restart
+    private static IMConceptSnapshot snapshot = IMConceptSnapshot.loadIfConfigured(mappedCache, coreCache);
+
     public static Integer getIMMappedConcept(HasServiceSystemAndExchangeIdI params, Resource fhirResource, String scheme, String code) throws Exception {
 
         if (code == null
@@ -60,48 +66,39 @@ public class IMHelper {
         //check the cache first
         String key = createCacheKey(scheme, code);
         Integer ret = mappedCache.get(key);
-        if (ret != null
-                || nullMappedCache.contains(key)) {
+        if (ret != null) {
             return ret;
         }
 
-        //hit the IM API
-        ret = getIMMappedConceptWithRetry(scheme, code);
+        //a miss may have been cached by the prefetch, so must be treated the same as a miss from the IM API
+        if (!nullMappedCache.contains(key)) {
 
-        //store in the cache
-        if (ret == null) {
-            nullMappedCache.add(key);
+            //hit the IM API
+            ret = getIMMappedConceptWithRetry(scheme, code);
 
-            //if null, we may let it slide if in testing, just logging it out
-            if (!TransformConfig.instance().isAllowMissingConceptIdsInSubscriberTransform()) {
-                throw new TransformException("Null mapped IM concept for scheme " + scheme + " and code " + code + " for resource " + fhirResource.getResourceType() + " " + fhirResource.getId());
+            //store in the cache
+            if (ret == null) {
+                nullMappedCache.add(key);
+
+            } else {
+                cacheMapped(key, ret);
+                return ret;
             }
+        }
 
-        } else {
-            mappedCache.put(key, ret);
+        //if null, we may let it slide if in testing, just logging it out
+        if (!TransformConfig.instance().isAllowMissingConceptIdsInSubscriberTransform()) {
+            throw new TransformException("Null mapped IM concept for scheme " + scheme + " and code " + code + " for resource " + fhirResource.getResourceType() + " " + fhirResource.getId());
         }
 
-        return ret;
+        return null;
     }
 
     private static Integer getIMMappedConceptWithRetry(String scheme, String code) throws Exception {
 
-        //during development, we get fairly frequent timeouts, so give it a couple of attempts
-        int lives = RETRY_COUNT;
-
-        while (true) {
-            lives--;
-            try {
-                LOG.trace("Going to IM API for " + scheme + ", " + code);
-                return IMClient.getMappedCoreConceptDbidForSchemeCode(scheme, code);
-            } catch (Exception ex) {
-                if (lives <= 0) {
-                    throw new Exception("Failed to call getMappedCoreConceptDbidForSchemeCode for scheme [" + scheme + "] code [" + code + "]", ex);
-                }
-                Thread.sleep(THREAD_SLEEP_TIME);
-                LOG.warn("Exception " + ex.getMessage() + " calling into IM - will try " + lives + " more times");
-            }
-        }
+        LOG.trace("Going to IM API for " + scheme + ", " + code);
+        return callWithRetry("getMappedCoreConceptDbidForSchemeCode for scheme [" + scheme + "] code [" + code + "]",
+                () -> IMClient.getMappedCoreConceptDbidForSchemeCode(scheme, code));
     }
 
     public static Integer getIMConcept(HasServiceSystemAndExchangeIdI params, Resource fhirResource, String scheme, String code, String term) throws Exception {
@@ -114,46 +111,37 @@ public class IMHelper {
         //check cache first
         String key = createCacheKey(scheme, code);
         Integer ret = coreCache.get(key);
-        if (ret != null
-                || nullCoreCache.contains(key)) {
+        if (ret != null) {
             return ret;
         }
 
-        //hit the IM API
-        ret = getConceptDbidForSchemeCodeWithRetry(scheme, code, term);
+        //a miss may have been cached by the prefetch, so must be treated the same as a miss from the IM API
+        if (!nullCoreCache.contains(key)) {
 
-        if (ret == null) {
-            nullCoreCache.add(key);
+            //hit the IM API
+            ret = getConceptDbidForSchemeCodeWithRetry(scheme, code, term);
 
-            if (!TransformConfig.instance().isAllowMissingConceptIdsInSubscriberTransform()) {
-                throw new TransformException("Null IM concept for scheme " + scheme + " and code " + code + " for resource " + fhirResource.getResourceType() + " " + fhirResource.getId());
+            if (ret == null) {
+                nullCoreCache.add(key);
+
+            } else {
+                cacheCore(key, ret);
+                return ret;
             }
+        }
 
-        } else {
-            coreCache.put(key, ret);
+        if (!TransformConfig.instance().isAllowMissingConceptIdsInSubscriberTransform()) {
+            throw new TransformException("Null IM concept for scheme " + scheme + " and code " + code + " for resource " + fhirResource.getResourceType() + " " + fhirResource.getId());
         }
 
-        return ret;
+        return null;
     }
 
     private static Integer getConceptDbidForSchemeCodeWithRetry(String scheme, String code, String term) throws Exception {
 
-        //during development, we get fairly frequent timeouts, so give it a couple of attempts
-        int lives = RETRY_COUNT;
-
-        while (true) {
-            lives--;
-            try {
-                LOG.trace("Going to IM API for " + scheme + ", " + code + ", " + term);
-                return IMClient.getConceptDbidForSchemeCode(scheme, code, term, true);
-            } catch (Exception ex) {
-                if (lives <= 0) {
-                    throw new Exception("Failed to call getConceptDbidForSchemeCode with scheme [" + scheme + "] code [" + code + "] term [" + term + "]", ex);
-                }
-                Thread.sleep(THREAD_SLEEP_TIME);
-                LOG.warn("Exception " + ex.getMessage() + " calling into IM - will try " + lives + " more times");
-            }
-        }
+        LOG.trace("Going to IM API for " + scheme + ", " + code + ", " + term);
+        return callWithRetry("getConceptDbidForSchemeCode with scheme [" + scheme + "] code [" + code + "] term [" + term + "]",
+                () -> IMClient.getConceptDbidForSchemeCode(scheme, code, term, true));
     }
 
     public static Integer getIMConcept(String scheme, String code) throws Exception {
@@ -166,46 +154,37 @@ public class IMHelper {
         //check cache first
         String key = createCacheKey(scheme, code);
         Integer ret = coreCache.get(key);
-        if (ret != null
-                || nullCoreCache.contains(key)) {
+        if (ret != null) {
             return ret;
         }
 
-        //hit the IM API
-        ret = getConceptDbidForSchemeCodeWithRetry(scheme, code);
+        //a miss may have been cached by the prefetch, so must be treated the same as a miss from the IM API
+        if (!nullCoreCache.contains(key)) {
 
-        if (ret == null) {
-            nullCoreCache.add(key);
+            //hit the IM API
+            ret = getConceptDbidForSchemeCodeWithRetry(scheme, code);
 
-            if (!TransformConfig.instance().isAllowMissingConceptIdsInSubscriberTransform()) {
-                throw new TransformException("Null IM concept for scheme " + scheme + " and code " + code);
+            if (ret == null) {
+                nullCoreCache.add(key);
+
+            } else {
+                cacheCore(key, ret);
+                return ret;
             }
+        }
 
-        } else {
-            coreCache.put(key, ret);
+        if (!TransformConfig.instance().isAllowMissingConceptIdsInSubscriberTransform()) {
+            throw new TransformException("Null IM concept for scheme " + scheme + " and code " + code);
         }
 
-        return ret;
+        return null;
     }
 
     private static Integer getConceptDbidForSchemeCodeWithRetry(String scheme, String code) throws Exception {
 
-        //during development, we get fairly frequent timeouts, so give it a couple of attempts
-        int lives = RETRY_COUNT;
-
-        while (true) {
-            lives--;
-            try {
-                LOG.trace("Going to IM API for " + scheme + ", " + code);
-                return IMClient.getConceptDbidForSchemeCode(scheme, code);
-            } catch (Exception ex) {
-                if (lives <= 0) {
-                    throw new Exception("Failed to call getConceptDbidForSchemeCode with scheme [" + scheme + "] code [" + code + "]", ex);
-                }
-                Thread.sleep(THREAD_SLEEP_TIME);
-                LOG.warn("Exception " + ex.getMessage() + " calling into IM - will try " + lives + " more times");
-            }
-        }
+        LOG.trace("Going to IM API for " + scheme + ", " + code);
+        return callWithRetry("getConceptDbidForSchemeCode with scheme [" + scheme + "] code [" + code + "]",
+                () -> IMClient.getConceptDbidForSchemeCode(scheme, code));
     }
 
     //specifically used to lookup IM concept Id (String) using the scheme and code - compass v1 only
@@ -243,22 +222,9 @@ public class IMHelper {
 
     private static String getConceptIdForSchemeCodeWithRetry(String scheme, String code) throws Exception {
 
-        //during development, we get fairly frequent timeouts, so give it a couple of attempts
-        int lives = RETRY_COUNT;
-
-        while (true) {
-            lives--;
-            try {
-                LOG.trace("Going to IM API for " + scheme + ", " + code);
-                return IMClient.getConceptIdForSchemeCode(scheme, code);
-            } catch (Exception ex) {
-                if (lives <= 0) {
-                    throw new Exception("Failed to call getConceptIdForSchemeCode with scheme [" + scheme + "] code [" + code + "]", ex);
-                }
-                Thread.sleep(THREAD_SLEEP_TIME);
-                LOG.warn("Exception " + ex.getMessage() + " calling into IM - will try " + lives + " more times");
-            }
-        }
+        LOG.trace("Going to IM API for " + scheme + ", " + code);
+        return callWithRetry("getConceptIdForSchemeCode with scheme [" + scheme + "] code [" + code + "]",
+                () -> IMClient.getConceptIdForSchemeCode(scheme, code));
     }
 
     public static Integer getIMMappedConceptForTypeTerm(Resource fhirResource, String type, String term) throws Exception {
@@ -287,7 +253,7 @@ public class IMHelper {
             }
 
         } else {
-            mappedCache.put(key, ret);
+            cacheMapped(key, ret);
         }
 
         return ret;
@@ -295,22 +261,9 @@ public class IMHelper {
 
     private static Integer getIMMappedConceptForTypeTermWithRetry(String type, String term) throws Exception {
 
-        //during development, we get fairly frequent timeouts, so give it a couple of attempts
-        int lives = RETRY_COUNT;
-
-        while (true) {
-            lives--;
-            try {
-                LOG.trace("Going to IM API for " + type + ", " + term);
-                return IMClient.getMappedCoreConceptDbidForTypeTerm(type, term);
-            } catch (Exception ex) {
-                if (lives <= 0) {
-                    throw new Exception("Failed to call getMappedCoreConceptDbidForTypeTerm for type [" + type + "] term [" + term + "]", ex);
-                }
-                Thread.sleep(THREAD_SLEEP_TIME);
-                LOG.warn("Exception " + ex.getMessage() + " calling into IM - will try " + lives + " more times");
-            }
-        }
+        LOG.trace("Going to IM API for " + type + ", " + term);
+        return callWithRetry("getMappedCoreConceptDbidForTypeTerm for type [" + type + "] term [" + term + "]",
+                () -> IMClient.getMappedCoreConceptDbidForTypeTerm(type, term));
     }
 
     public static Integer getConceptDbidForTypeTerm(Resource fhirResource, String type, String term) throws Exception {
@@ -339,7 +292,7 @@ public class IMHelper {
             }
 
         } else {
-            coreCache.put(key, ret);
+            cacheCore(key, ret);
         }
 
         return ret;
@@ -347,22 +300,9 @@ public class IMHelper {
 
     private static Integer getConceptDbidForTypeTermWithRetry(String type, String term) throws Exception {
 
-        //during development, we get fairly frequent timeouts, so give it a couple of attempts
-        int lives = RETRY_COUNT;
-
-        while (true) {
-            lives--;
-            try {
-                LOG.trace("Going to IM API for " + type + ", " + term);
-                return IMClient.getConceptDbidForTypeTerm(type, term, true);
-            } catch (Exception ex) {
-                if (lives <= 0) {
-                    throw new Exception("Failed to call getConceptDbidForTypeTerm for type [" + type + "] term [" + term + "]", ex);
-                }
-                Thread.sleep(THREAD_SLEEP_TIME);
-                LOG.warn("Exception " + ex.getMessage() + " calling into IM - will try " + lives + " more times");
-            }
-        }
+        LOG.trace("Going to IM API for " + type + ", " + term);
+        return callWithRetry("getConceptDbidForTypeTerm for type [" + type + "] term [" + term + "]",
+                () -> IMClient.getConceptDbidForTypeTerm(type, term, true));
     }
 
     /**
@@ -402,22 +342,9 @@ public class IMHelper {
 
     private static String getSnomedConceptIdForCoreDBIDWithRetry(Integer conceptId) throws Exception {
 
-        //during development, we get fairly frequent timeouts, so give it a couple of attempts
-        int lives = RETRY_COUNT;
-
-        while (true) {
-            lives--;
-            try {
-                LOG.trace("Going to IM API for " + conceptId);
-                return IMClient.getCodeForConceptDbid(conceptId);
-            } catch (Exception ex) {
-                if (lives <= 0) {
-                    throw new Exception("Failed to call getCodeForConceptDbid for conceptId [" + conceptId + "]", ex);
-                }
-                Thread.sleep(THREAD_SLEEP_TIME);
-                LOG.warn("Exception " + ex.getMessage() + " calling into IM - will try " + lives + " more times");
-            }
-        }
+        LOG.trace("Going to IM API for " + conceptId);
+        return callWithRetry("getCodeForConceptDbid for conceptId [" + conceptId + "]",
+                () -> IMClient.getCodeForConceptDbid(conceptId));
     }
 
     /**
@@ -455,22 +382,9 @@ public class IMHelper {
 
     private static String getMappedSnomedConceptForSchemeCodeWithRetry(String scheme, String code) throws Exception {
 
-        //during development, we get fairly frequent timeouts, so give it a couple of attempts
-        int lives = RETRY_COUNT;
-
-        while (true) {
-            lives--;
-            try {
-                LOG.trace("Going to IM API for " + scheme + ", " + code);
-                return IMClient.getMappedCoreCodeForSchemeCode(scheme, code);
-            } catch (Exception ex) {
-                if (lives <= 0) {
-                    throw new Exception("Failed to call getMappedCoreCodeForSchemeCode for scheme [" + scheme + "] code [" + code + "]", ex);
-                }
-                Thread.sleep(THREAD_SLEEP_TIME);
-                LOG.warn("Exception " + ex.getMessage() + " calling into IM - will try " + lives + " more times");
-            }
-        }
+        LOG.trace("Going to IM API for " + scheme + ", " + code);
+        return callWithRetry("getMappedCoreCodeForSchemeCode for scheme [" + scheme + "] code [" + code + "]",
+                () -> IMClient.getMappedCoreCodeForSchemeCode(scheme, code));
     }
 
     /**
@@ -515,19 +429,87 @@ public class IMHelper {
 
     private static String getMappedLegacyCodeForLegacyCodeAndTermWithRetry(String scheme, String context, String term) throws Exception {
 
+        LOG.trace("Going to IM API for " + scheme + ", " + context + ", " + term);
+        return callWithRetry("getCodeForTypeTerm for scheme [" + scheme + "] context [" + context + "] term [" + term + "]",
+                () -> IMClient.getCodeForTypeTerm(scheme, context, term, true));
+    }
+
+    /**
+     * looks up the mapped and core concepts for a scheme and code if not already cached, so that
+     * getIMMappedConcept and getIMConcept find them in the cache. Missing concepts are cached as missing
+     * but not reported here, as that's left to the transform that needs them.
+     */
+    public static void prefetchIMConcepts(String scheme, String code, String term) throws Exception {
+
+        String key = createCacheKey(scheme, code);
+
+        if (mappedCache.get(key) == null
+                && !nullMappedCache.contains(key)) {
+
+            Integer mapped = getIMMappedConceptWithRetry(scheme, code);
+            if (mapped == null) {
+                nullMappedCache.add(key);
+            } else {
+                cacheMapped(key, mapped);
+            }
+        }
+
+        if (coreCache.get(key) == null
+                && !nullCoreCache.contains(key)) {
+
+            Integer core = getConceptDbidForSchemeCodeWithRetry(scheme, code, term);
+            if (core == null) {
+                nullCoreCache.add(key);
+            } else {
+                cacheCore(key, core);
+            }
+        }
+    }
+
+    /**
+     * writes the warm-start snapshot file, if configured and enough has changed since it was last written
+     */
+    public static void saveSnapshot() {
+        if (snapshot != null) {
+            snapshot.save(false);
+        }
+    }
+
+    private static void cacheMapped(String key, Integer conceptDbid) {
+        mappedCache.put(key, conceptDbid);
+        if (snapshot != null) {
+            snapshot.addMapped(key, conceptDbid);
+        }
+    }
+
+    private static void cacheCore(String key, Integer conceptDbid) {
+        coreCache.put(key, conceptDbid);
+        if (snapshot != null) {
+            snapshot.addCore(key, conceptDbid);
+        }
+    }
+
+    /**
+     * calls the IM API, retrying with an exponential backoff if it fails. The sleep between retries is randomised
+     * so that when the IM is briefly unavailable, all the threads that were waiting on it don't retry at once.
+     */
+    private static <T> T callWithRetry(String description, Callable<T> callable) throws Exception {
+
         //during development, we get fairly frequent timeouts, so give it a couple of attempts
         int lives = RETRY_COUNT;
+        long sleepTime = RETRY_INITIAL_SLEEP_TIME;
 
         while (true) {
             lives--;
             try {
-                LOG.trace("Going to IM API for " + scheme + ", " + context + ", " + term);
-                return IMClient.getCodeForTypeTerm(scheme, context, term, true);
+                return callable.call();
             } catch (Exception ex) {
                 if (lives <= 0) {
-                    throw new Exception("Failed to call getCodeForTypeTerm for scheme [" + scheme + "] context [" + context + "] term [" + term + "]", ex);
+                    throw new Exception("Failed to call " + description, ex);
                 }
-                Thread.sleep(THREAD_SLEEP_TIME);
+                long jitteredSleepTime = (sleepTime / 2) + ThreadLocalRandom.current().nextLong((sleepTime / 2) + 1);
+                Thread.sleep(jitteredSleepTime);
+                sleepTime = Math.min(sleepTime * 2, RETRY_MAX_SLEEP_TIME);
                 LOG.warn("Exception " + ex.getMessage() + " calling into IM - will try " + lives + " more times");
             }
         }
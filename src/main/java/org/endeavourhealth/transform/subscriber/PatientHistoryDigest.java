@@ -0,0 +1,353 @@
+package org.endeavourhealth.transform.subscriber;
+
+import com.google.common.base.Strings;
+import org.endeavourhealth.common.config.ConfigManager;
+import org.endeavourhealth.common.fhir.IdentifierHelper;
+import org.endeavourhealth.core.database.dal.DalProvider;
+import org.endeavourhealth.core.database.dal.eds.PatientSearchDalI;
+import org.endeavourhealth.core.database.dal.ehr.ResourceDalI;
+import org.endeavourhealth.core.database.dal.ehr.models.ResourceWrapper;
+import org.endeavourhealth.core.database.dal.publisherTransform.InternalIdDalI;
+import org.endeavourhealth.core.database.dal.publisherTransform.models.InternalIdMap;
+import org.endeavourhealth.transform.common.TransformConfig;
+import org.hl7.fhir.instance.model.Patient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+/**
+ * compact summary of the history of a patient resource, holding what the subscriber PatientTransformer needs
+ * from the past versions - the max number of addresses and telecoms in any version (so it knows how many
+ * address and telecom records may need deleting) and the NHS number and DoB of recent versions (so it can tell
+ * if they've changed since the version last sent).
+ *
+ * If enabled in config, the digest is saved to the internal ID map table and updated with each new version that's
+ * transformed, so the full history doesn't need retrieving and deserialising each time. If not enabled, or no digest
+ * has been saved for a patient yet, it's built from the full history.
+ *
+ * Versions transformed while patient_history_digest is turned off aren't added to saved digests, so if it's turned
+ * off and back on, those digests will be missing versions. This is spotted when the version last sent to the
+ * subscriber isn't in the saved digest, and the digest is rebuilt from the full history then. The digests can also be
+ * rebuilt up front by running this class with a service ID (and optionally a patient ID), or by deleting the
+ * SubscriberPatientHistoryDigest rows from the internal ID map table for the service.
+ */
+public class PatientHistoryDigest {
+    private static final Logger LOG = LoggerFactory.getLogger(PatientHistoryDigest.class);
+
+    private static final String ID_TYPE = "SubscriberPatientHistoryDigest";
+    private static final String FORMAT_VERSION = "1";
+    private static final String DELIM = "|";
+    private static final String VERSION_DELIM = ";";
+
+    //only recent versions are saved, to keep the saved digest small. The version last sent is almost always
+    //the one before the current, and if it can't be found in the digest we just fall back on the full history
+    private static final int MAX_VERSIONS_SAVED = 3;
+
+    private static final InternalIdDalI internalIdDal = DalProvider.factoryInternalIdDal();
+
+    private final UUID serviceId;
+    private final UUID patientId;
+    private int maxAddresses;
+    private int maxTelecoms;
+    private final List<DigestVersion> versions; //most-recent-first
+
+    private PatientHistoryDigest(UUID serviceId, UUID patientId) {
+        this.serviceId = serviceId;
+        this.patientId = patientId;
+        this.versions = new ArrayList<>();
+    }
+
+    /**
+     * rebuilds the saved digests for all patients at a service, or a single patient, from the full resource history
+     *
+     * Usage: PatientHistoryDigest <service ID> [<patient ID>]
+     */
+    public static void main(String[] args) throws Exception {
+
+        if (args.length < 1 || args.length > 2) {
+            LOG.error("Usage: PatientHistoryDigest <service ID> [<patient ID>]");
+            System.exit(-1);
+        }
+
+        //the digests are used by the subscriber transforms run by the queue reader, so use its config
+        ConfigManager.Initialize("queuereader");
+
+        UUID serviceId = UUID.fromString(args[0]);
+        if (args.length > 1) {
+            UUID patientId = UUID.fromString(args[1]);
+            rebuild(serviceId, patientId);
+            LOG.info("Rebuilt history digest for patient " + patientId);
+
+        } else {
+            rebuildForService(serviceId);
+        }
+
+        System.exit(0);
+    }
+
+    /**
+     * rebuilds the saved digest of every patient at the service, including deleted ones
+     */
+    public static void rebuildForService(UUID serviceId) throws Exception {
+
+        PatientSearchDalI patientSearchDal = DalProvider.factoryPatientSearchDal();
+        List<UUID> patientIds = patientSearchDal.getPatientIds(serviceId, true);
+        LOG.info("Rebuilding history digests for " + patientIds.size() + " patients at service " + serviceId);
+
+        int done = 0;
+        for (UUID patientId: patientIds) {
+            rebuild(serviceId, patientId);
+
+            done ++;
+            if (done % 1000 == 0) {
+                LOG.info("Done " + done + " history digests");
+            }
+        }
+
+        LOG.info("Finished rebuilding " + done + " history digests at service " + serviceId);
+    }
+
+    /**
+     * returns the digest for the patient resource, making sure that the given version is included in it. If the
+     * version of the patient last sent to the subscriber (given as the date it was created) isn't in the saved
+     * digest, then the digest wasn't updated with every version sent, so is rebuilt from the full history.
+     */
+    public static PatientHistoryDigest findOrBuild(ResourceWrapper currentWrapper, Date dtLastSent) throws Exception {
+
+        UUID serviceId = currentWrapper.getServiceId();
+        UUID patientId = currentWrapper.getResourceId();
+
+        if (!TransformConfig.instance().isPatientHistoryDigest()) {
+            return buildFromHistory(serviceId, patientId);
+        }
+
+        String str = internalIdDal.getDestinationId(serviceId, ID_TYPE, patientId.toString());
+        PatientHistoryDigest ret = null;
+        if (!Strings.isNullOrEmpty(str)) {
+            ret = parse(serviceId, patientId, str);
+        }
+
+        //if we've never saved one, or it's from an older format, build it from the full history, which
+        //will include the current version
+        if (ret == null) {
+            return rebuild(serviceId, patientId);
+        }
+
+        //if versions were sent without the digest being updated (e.g. while it was turned off), it may be missing
+        //addresses and telecoms, so rebuild it
+        if (dtLastSent != null
+                && ret.findVersionCreatedAt(dtLastSent) == null) {
+            LOG.info("Version last sent of patient " + patientId + " not in history digest, so will rebuild");
+            return rebuild(serviceId, patientId);
+        }
+
+        if (ret.findVersion(currentWrapper.getVersion()) == null) {
+            ret.addVersion(currentWrapper);
+            ret.save();
+        }
+
+        return ret;
+    }
+
+    /**
+     * builds the digest from the full resource history and saves it, for when a saved digest is missing or is
+     * suspected of being wrong (e.g. if patient versions were saved while the subscriber transform was not running)
+     */
+    public static PatientHistoryDigest rebuild(UUID serviceId, UUID patientId) throws Exception {
+        PatientHistoryDigest ret = buildFromHistory(serviceId, patientId);
+        ret.save();
+        return ret;
+    }
+
+    public static PatientHistoryDigest buildFromHistory(UUID serviceId, UUID patientId) throws Exception {
+        ResourceDalI resourceDal = DalProvider.factoryResourceDal();
+        List<ResourceWrapper> history = resourceDal.getResourceHistory(serviceId, "Patient", patientId);
+        return buildFromHistory(serviceId, patientId, history);
+    }
+
+    public static PatientHistoryDigest buildFromHistory(UUID serviceId, UUID patientId, List<ResourceWrapper> history) throws Exception {
+        PatientHistoryDigest ret = new PatientHistoryDigest(serviceId, patientId);
+
+        //history is most-recent-first, so go backwards so each version is added to the front
+        for (int i=history.size()-1; i>=0; i--) {
+            ResourceWrapper wrapper = history.get(i);
+            ret.addVersion(wrapper);
+        }
+
+        return ret;
+    }
+
+    private void addVersion(ResourceWrapper wrapper) throws Exception {
+
+        String nhsNumber = null;
+        Date dateOfBirth = null;
+        if (!wrapper.isDeleted() && wrapper.getResourceData() != null) {
+            Patient patient = (Patient)wrapper.getResource();
+            if (patient.hasTelecom()) {
+                maxTelecoms = Math.max(maxTelecoms, patient.getTelecom().size());
+            }
+            if (patient.hasAddress()) {
+                maxAddresses = Math.max(maxAddresses, patient.getAddress().size());
+            }
+            nhsNumber = IdentifierHelper.findNhsNumber(patient);
+            dateOfBirth = patient.getBirthDate();
+        }
+
+        DigestVersion version = new DigestVersion(wrapper.getVersion(), wrapper.getCreatedAt(), wrapper.isDeleted(), nhsNumber, dateOfBirth);
+        versions.add(0, version);
+    }
+
+    private DigestVersion findVersion(UUID versionId) {
+        for (DigestVersion version: versions) {
+            if (version.getVersionId().equals(versionId)) {
+                return version;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * finds the non-deleted version created at the given time, or null if not found
+     */
+    public DigestVersion findVersionCreatedAt(Date dtCreatedAt) {
+        for (DigestVersion version: versions) {
+            if (version.getCreatedAt().getTime() == dtCreatedAt.getTime()
+                    && !version.isDeleted()) {
+                return version;
+            }
+        }
+        return null;
+    }
+
+    public int getMaxAddresses() {
+        return maxAddresses;
+    }
+
+    public int getMaxTelecoms() {
+        return maxTelecoms;
+    }
+
+    public UUID getPatientId() {
+        return patientId;
+    }
+
+    private void save() throws Exception {
+
+        InternalIdMap mapping = new InternalIdMap();
+        mapping.setServiceId(serviceId);
+        mapping.setIdType(ID_TYPE);
+        mapping.setSourceId(patientId.toString());
+        mapping.setDestinationId(format());
+
+        List<InternalIdMap> list = new ArrayList<>();
+        list.add(mapping);
+        internalIdDal.save(list);
+    }
+
+    /**
+     * saved as format|max addresses|max telecoms|version;created;deleted;NHS number;DoB|...
+     */
+    private String format() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(FORMAT_VERSION);
+        sb.append(DELIM);
+        sb.append(maxAddresses);
+        sb.append(DELIM);
+        sb.append(maxTelecoms);
+
+        for (int i=0; i<versions.size() && i<MAX_VERSIONS_SAVED; i++) {
+            DigestVersion version = versions.get(i);
+            sb.append(DELIM);
+            sb.append(version.getVersionId());
+            sb.append(VERSION_DELIM);
+            sb.append(version.getCreatedAt().getTime());
+            sb.append(VERSION_DELIM);
+            sb.append(version.isDeleted() ? "1" : "0");
+            sb.append(VERSION_DELIM);
+            if (version.getNhsNumber() != null) {
+                sb.append(version.getNhsNumber());
+            }
+            sb.append(VERSION_DELIM);
+            if (version.getDateOfBirth() != null) {
+                sb.append(version.getDateOfBirth().getTime());
+            }
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * returns null if the string is in a format we don't recognise, so it gets rebuilt
+     */
+    private static PatientHistoryDigest parse(UUID serviceId, UUID patientId, String str) {
+
+        String[] toks = str.split("\\" + DELIM);
+        if (toks.length < 3
+                || !toks[0].equals(FORMAT_VERSION)) {
+            LOG.warn("Unrecognised history digest for patient " + patientId + " [" + str + "] so will rebuild");
+            return null;
+        }
+
+        PatientHistoryDigest ret = new PatientHistoryDigest(serviceId, patientId);
+        ret.maxAddresses = Integer.parseInt(toks[1]);
+        ret.maxTelecoms = Integer.parseInt(toks[2]);
+
+        for (int i=3; i<toks.length; i++) {
+            String[] versionToks = toks[i].split(VERSION_DELIM, -1);
+            UUID versionId = UUID.fromString(versionToks[0]);
+            Date createdAt = new Date(Long.parseLong(versionToks[1]));
+            boolean deleted = versionToks[2].equals("1");
+            String nhsNumber = null;
+            if (!Strings.isNullOrEmpty(versionToks[3])) {
+                nhsNumber = versionToks[3];
+            }
+            Date dateOfBirth = null;
+            if (!Strings.isNullOrEmpty(versionToks[4])) {
+                dateOfBirth = new Date(Long.parseLong(versionToks[4]));
+            }
+            ret.versions.add(new DigestVersion(versionId, createdAt, deleted, nhsNumber, dateOfBirth));
+        }
+
+        return ret;
+    }
+
+    /**
+     * the parts of a single patient version that are compared against the current version
+     */
+    public static class DigestVersion {
+        private final UUID versionId;
+        private final Date createdAt;
+        private final boolean deleted;
+        private final String nhsNumber;
+        private final Date dateOfBirth;
+
+        public DigestVersion(UUID versionId, Date createdAt, boolean deleted, String nhsNumber, Date dateOfBirth) {
+            this.versionId = versionId;
+            this.createdAt = createdAt;
+            this.deleted = deleted;
+            this.nhsNumber = nhsNumber;
+            this.dateOfBirth = dateOfBirth;
+        }
+
+        public UUID getVersionId() {
+            return versionId;
+        }
+
+        public Date getCreatedAt() {
+            return createdAt;
+        }
+
+        public boolean isDeleted() {
+            return deleted;
+        }
+
+        public String getNhsNumber() {
+            return nhsNumber;
+        }
+
+        public Date getDateOfBirth() {
+            return dateOfBirth;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package org.endeavourhealth.transform.subscriber;
+
+import org.endeavourhealth.core.database.dal.reference.models.PostcodeLookup;
+
+/**
+ * the geographic codes for a postcode that the subscriber transform uses, whether from
+ * the postcode reference table or a local snapshot of it
+ */
+public class PostcodeReference {
+
+    private final String lsoa2001Code;
+    private final String lsoa2011Code;
+    private final String msoa2001Code;
+    private final String msoa2011Code;
+    private final String wardCode;
+    private final String localAuthorityCode;
+
+    public PostcodeReference(String lsoa2001Code, String lsoa2011Code, String msoa2001Code, String msoa2011Code,
+                             String wardCode, String localAuthorityCode) {
+        this.lsoa2001Code = lsoa2001Code;
+        this.lsoa2011Code = lsoa2011Code;
+        this.msoa2001Code = msoa2001Code;
+        this.msoa2011Code = msoa2011Code;
+        this.wardCode = wardCode;
+        this.localAuthorityCode = localAuthorityCode;
+    }
+
+    public static PostcodeReference fromLookup(PostcodeLookup lookup) {
+        return new PostcodeReference(lookup.getLsoa2001Code(),
+                lookup.getLsoa2011Code(),
+                lookup.getMsoa2001Code(),
+                lookup.getMsoa2011Code(),
+                lookup.getWardCode(),
+                lookup.getLocalAuthorityCode());
+    }
+
+    public String getLsoa2001Code() {
+        return lsoa2001Code;
+    }
+
+    public String getLsoa2011Code() {
+        return lsoa2011Code;
+    }
+
+    public String getMsoa2001Code() {
+        return msoa2001Code;
+    }
+
+    public String getMsoa2011Code() {
+        return msoa2011Code;
+    }
+
+    public String getWardCode() {
+        return wardCode;
+    }
+
+    public String getLocalAuthorityCode() {
+        return localAuthorityCode;
+    }
+}
@@ -0,0 +1,230 @@
+package org.endeavourhealth.transform.subscriber;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * read-only local copy of the postcode reference table, so postcodes can be looked up without a DB query each.
+ * The file is created offline from the reference table and has one tab-separated line per postcode of:
+ *
+ *      postcode, LSOA 2001, LSOA 2011, MSOA 2001, MSOA 2011, ward, local authority
+ *
+ * with postcodes normalised (see normalisePostcode) and lines sorted by them. The file is memory-mapped and
+ * only the start of each line is held on the heap, so lookups are a binary search over the mapped file.
+ */
+public class PostcodeSnapshot {
+    private static final Logger LOG = LoggerFactory.getLogger(PostcodeSnapshot.class);
+
+    private static final byte DELIM = '\t';
+    private static final byte NEW_LINE = '\n';
+    private static final int FIELD_COUNT = 7;
+
+    private final MappedByteBuffer buffer;
+    private final int[] lineStarts;
+    private final int lineCount;
+
+    private PostcodeSnapshot(MappedByteBuffer buffer, int[] lineStarts, int lineCount) {
+        this.buffer = buffer;
+        this.lineStarts = lineStarts;
+        this.lineCount = lineCount;
+    }
+
+    public static PostcodeSnapshot open(File file) throws Exception {
+
+        long start = System.currentTimeMillis();
+
+        MappedByteBuffer buffer;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new Exception("Postcode snapshot " + file + " is too large at " + size + " bytes");
+            }
+            //the mapping stays valid after the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+
+        int[] lineStarts = new int[1024];
+        int lineCount = 0;
+        int limit = buffer.limit();
+        int pos = 0;
+        while (pos < limit) {
+            if (lineCount == lineStarts.length) {
+                lineStarts = Arrays.copyOf(lineStarts, lineCount * 2);
+            }
+            lineStarts[lineCount] = pos;
+            lineCount ++;
+
+            while (pos < limit
+                    && buffer.get(pos) != NEW_LINE) {
+                pos ++;
+            }
+            pos ++;
+        }
+
+        PostcodeSnapshot ret = new PostcodeSnapshot(buffer, lineStarts, lineCount);
+        ret.validateSorted(file);
+
+        LOG.info("Opened postcode snapshot " + file + " with " + lineCount + " postcodes in " + (System.currentTimeMillis() - start) + "ms");
+        return ret;
+    }
+
+    /**
+     * the binary search only works if the file is sorted, so check it is rather than silently missing postcodes
+     */
+    private void validateSorted(File file) throws Exception {
+        for (int i=1; i<lineCount; i++) {
+            byte[] key = readKey(lineStarts[i]);
+            if (compareLineToKey(lineStarts[i-1], key) >= 0) {
+                throw new Exception("Postcode snapshot " + file + " is not sorted or has duplicates at line " + (i+1));
+            }
+        }
+    }
+
+    public int size() {
+        return lineCount;
+    }
+
+    /**
+     * returns the reference data for the postcode, or null if not found
+     */
+    public PostcodeReference lookup(String postcode) {
+
+        String normalised = normalisePostcode(postcode);
+        if (normalised == null) {
+            return null;
+        }
+        byte[] key = normalised.getBytes(StandardCharsets.US_ASCII);
+
+        int low = 0;
+        int high = lineCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareLineToKey(lineStarts[mid], key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return readReference(lineStarts[mid]);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * postcodes are looked up in upper case with all whitespace removed, so "ls1 1aa" matches "LS11AA"
+     */
+    public static String normalisePostcode(String postcode) {
+        if (postcode == null) {
+            return null;
+        }
+
+        StringBuilder sb = new StringBuilder(postcode.length());
+        for (int i=0; i<postcode.length(); i++) {
+            char c = postcode.charAt(i);
+            if (!Character.isWhitespace(c)) {
+                sb.append(Character.toUpperCase(c));
+            }
+        }
+
+        if (sb.length() == 0) {
+            return null;
+        }
+        return sb.toString();
+    }
+
+    /**
+     * only uses absolute gets on the buffer, so is safe for multiple threads to call at once
+     */
+    private int compareLineToKey(int lineStart, byte[] key) {
+        int limit = buffer.limit();
+        for (int i=0; i<key.length; i++) {
+            int pos = lineStart + i;
+            if (pos >= limit) {
+                return -1;
+            }
+            byte b = buffer.get(pos);
+            if (b == DELIM
+                    || b == NEW_LINE) {
+                //line key is a prefix of the one we want, so is before it
+                return -1;
+            }
+            if (b != key[i]) {
+                return b < key[i] ? -1 : 1;
+            }
+        }
+
+        //all of our key matched, so the line is the same if its key ends here, otherwise it's after ours
+        int pos = lineStart + key.length;
+        if (pos >= limit) {
+            return 0;
+        }
+        byte b = buffer.get(pos);
+        if (b == DELIM
+                || b == NEW_LINE
+                || b == '\r') {
+            return 0;
+        }
+        return 1;
+    }
+
+    private byte[] readKey(int lineStart) {
+        int end = findFieldEnd(lineStart);
+        byte[] ret = new byte[end - lineStart];
+        for (int i=0; i<ret.length; i++) {
+            ret[i] = buffer.get(lineStart + i);
+        }
+        return ret;
+    }
+
+    private int findFieldEnd(int pos) {
+        int limit = buffer.limit();
+        while (pos < limit) {
+            byte b = buffer.get(pos);
+            if (b == DELIM
+                    || b == NEW_LINE
+                    || b == '\r') {
+                break;
+            }
+            pos ++;
+        }
+        return pos;
+    }
+
+    private PostcodeReference readReference(int lineStart) {
+
+        String[] fields = new String[FIELD_COUNT];
+        int pos = lineStart;
+        int limit = buffer.limit();
+        for (int i=0; i<FIELD_COUNT; i++) {
+            if (pos >= limit) {
+                break;
+            }
+            int end = findFieldEnd(pos);
+            if (end > pos) {
+                byte[] bytes = new byte[end - pos];
+                for (int j=0; j<bytes.length; j++) {
+                    bytes[j] = buffer.get(pos + j);
+                }
+                fields[i] = new String(bytes, StandardCharsets.US_ASCII);
+            }
+
+            if (end >= limit
+                    || buffer.get(end) != DELIM) {
+                break;
+            }
+            pos = end + 1;
+        }
+
+        return new PostcodeReference(fields[1], fields[2], fields[3], fields[4], fields[5], fields[6]);
+    }
+}
@@ -5,9 +5,12 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.apache.commons.csv.CSVFormat;
 import org.endeavourhealth.common.cache.ObjectMapperPool;
 import org.endeavourhealth.core.exceptions.TransformException;
+import org.endeavourhealth.transform.common.TransformConfig;
 
 import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.List;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
@@ -70,6 +73,14 @@ public class OutputContainer {
         csvWriters.add(new Address_v2(csvFormat, dateFormat, timeFormat));
         csvWriters.add(new UprnMatchEvent_v2(csvFormat, dateFormat, timeFormat));
         csvWriters.add(new OrganizationAdditional(csvFormat, dateFormat, timeFormat));
+
+        //for large batches, let each CSV file go to disk rather than holding them all in memory
+        long spillBytes = TransformConfig.instance().getSubscriberCsvSpillBytes();
+        if (spillBytes > 0) {
+            for (AbstractTargetTable csvWriter : csvWriters) {
+                csvWriter.setSpillThreshold(spillBytes);
+            }
+        }
     }
 
     public byte[] writeToZip() throws Exception {
@@ -81,30 +92,63 @@ public class OutputContainer {
 
         //may as well zip the data, since it will compress well
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        ZipOutputStream zos = new ZipOutputStream(baos);
+        writeToZip(baos);
+        return baos.toByteArray();
+    }
 
-        //the first entry is a json file giving us the target class names for each column
-        ObjectNode columnClassMappingJson = new ObjectNode(JsonNodeFactory.instance);
+    /**
+     * returns the zipped content Base64 encoded, without ever holding the unencoded zip in memory
+     */
+    public String writeToBase64() throws Exception {
 
-        for (AbstractTargetTable csvWriter : csvWriters) {
-            writeColumnClassMappings(csvWriter, columnClassMappingJson);
+        //if empty, return null
+        if (isEmpty()) {
+            return null;
         }
 
-        String jsonStr = ObjectMapperPool.getInstance().writeValueAsString(columnClassMappingJson);
-        zos.putNextEntry(new ZipEntry(COLUMN_CLASS_MAPPINGS));
-        zos.write(jsonStr.getBytes());
-        zos.flush();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        OutputStream base64OutputStream = Base64.getEncoder().wrap(baos);
+        writeToZip(base64OutputStream);
+        base64OutputStream.close();
 
-        //then write the CSV files
-        for (AbstractTargetTable csvWriter : csvWriters) {
-            writeZipEntry(csvWriter, zos);
-        }
+        return baos.toString("US-ASCII");
+    }
 
-        //close
-        zos.close();
+    /**
+     * streams the zipped content to the given stream, which isn't closed. Each CSV file is copied
+     * straight into the zip, so is never held in memory if it has been spilled to disk.
+     */
+    public void writeToZip(OutputStream outputStream) throws Exception {
 
-        //return as base64 encoded string
-        return baos.toByteArray();
+        //make sure any CSV files spilled to disk are deleted if we fail part way
+        try {
+            ZipOutputStream zos = new ZipOutputStream(outputStream);
+
+            //the first entry is a json file giving us the target class names for each column
+            ObjectNode columnClassMappingJson = new ObjectNode(JsonNodeFactory.instance);
+
+            for (AbstractTargetTable csvWriter : csvWriters) {
+                writeColumnClassMappings(csvWriter, columnClassMappingJson);
+            }
+
+            String jsonStr = ObjectMapperPool.getInstance().writeValueAsString(columnClassMappingJson);
+            zos.putNextEntry(new ZipEntry(COLUMN_CLASS_MAPPINGS));
+            zos.write(jsonStr.getBytes());
+            zos.flush();
+
+            //then write the CSV files
+            for (AbstractTargetTable csvWriter : csvWriters) {
+                writeZipEntry(csvWriter, zos);
+            }
+
+            //finish rather than close, so the caller's stream is left open
+            zos.finish();
+
+        } finally {
+            for (AbstractTargetTable csvWriter : csvWriters) {
+                csvWriter.discard();
+            }
+        }
     }
 
     private boolean isEmpty() {
@@ -155,11 +199,10 @@ public class OutputContainer {
             return;
         }
 
-        byte[] bytes = csvWriter.close();
         String fileName = csvWriter.getFileName();
 
         zipOutputStream.putNextEntry(new ZipEntry(fileName));
-        zipOutputStream.write(bytes);
+        csvWriter.closeTo(zipOutputStream);
         zipOutputStream.flush();
     }
 
@@ -37,7 +37,9 @@ public abstract class AbstractSubscriberTransformer {
     private static JCS cachedInstanceCache = null;
     private static final ReentrantLock jcsLock = new ReentrantLock();
 
-    private static final ReentrantLock onDemandLock = new ReentrantLock();
+    //on-demand transforms lock on the resource being transformed, so different resources can be done at the same time
+    private static final Map<String, OnDemandLock> onDemandLocks = new HashMap<>();
+    private static final ReentrantLock instanceMappingLock = new ReentrantLock();
 
     /**
      * change JCS initialisation to happen only when required, and not when the class is loaded,
@@ -543,60 +545,31 @@ public abstract class AbstractSubscriberTransformer {
             return new Long(existingEnterpriseId.getSubscriberId());
         }
 
-        //we've have multiple threads potentially trying to transform the same dependent resource (e.g. practitioner)
-        //so we need to sync on something to ensure we only
-        try {
-            onDemandLock.lock();
-
-            //see if this resource is mapped to another instance of the same concept (e.g. organisation),
-            //in which case we want to use the enterprise ID for that OTHER instance
-            if (resourceType == ResourceType.Organization
-                    || resourceType == ResourceType.Practitioner) {
-
-                UUID mappedResourceId = checkInstanceMapCache(params.getSubscriberConfigName(), resourceType, resourceId);
-                if (mappedResourceId == null) {
-
-                    SubscriberInstanceMappingDalI instanceMappingDal = DalProvider.factorySubscriberInstanceMappingDal(params.getSubscriberConfigName());
-                    mappedResourceId = instanceMappingDal.findInstanceMappedId(resourceType, resourceId);
-
-                    //if we've not got a mapping, then we need to create one from our resource data
-                    if (mappedResourceId == null) {
-
-                        Resource fhirResource = params.findOrRetrieveResource(reference);
-                        if (fhirResource == null) {
-                            //if it's deleted then just return null since there's no point assigning an ID
-                            //LOG.trace("Resource deleted for reference " + reference.getReference());
-                            return null;
-                        }
+        //see if this resource is mapped to another instance of the same concept (e.g. organisation),
+        //in which case we want to use the enterprise ID for that OTHER instance
+        if (resourceType == ResourceType.Organization
+                || resourceType == ResourceType.Practitioner) {
 
-                        String mappingValue = findInstanceMappingValue(fhirResource, params);
-                        mappedResourceId = instanceMappingDal.findOrCreateInstanceMappedId(resourceType, resourceId, mappingValue);
-                    }
+            UUID mappedResourceId = findOrCreateInstanceMappedId(reference, resourceType, resourceId, params);
+            if (mappedResourceId == null) {
+                //if it's deleted then just return null since there's no point assigning an ID
+                return null;
+            }
 
-                    addToInstanceMapCache(params.getSubscriberConfigName(), resourceType, resourceId, mappedResourceId);
-                }
+            //if our mapped ID is different to our proper ID, then we don't need to transform that
+            //other resource, as it will already have been done, so we can just return its Subscriber ID
+            if (!mappedResourceId.equals(resourceId)) {
 
-                //if our mapped ID is different to our proper ID, then we don't need to transform that
-                //other resource, as it will already have been done, so we can just return its Subscriber ID
-                if (!mappedResourceId.equals(resourceId)) {
-
-                    //source ID needs changing to reflected the new ID
-                    String mappedSourceId = ReferenceHelper.createResourceReference(resourceType, mappedResourceId.toString());
-
-                    SubscriberId mappedInstanceEnterpriseId = findSubscriberId(params, targetTable, mappedSourceId);
-                    if (mappedInstanceEnterpriseId == null) {
-                        //if we've just started processing the first exchange for an org that's taking over the
-                        //instance map, there's a chance we'll catch it mid-way through taking over, in which
-                        //case we should just give a second and try again, throwing an error if we fail
-                        Thread.sleep(1000);
-                        mappedInstanceEnterpriseId = findSubscriberId(params, targetTable, mappedSourceId);
-                        if (mappedInstanceEnterpriseId == null) {
-                            throw new TransformException("Failed to find subscriber ID for mapped instance " + resourceType.toString() + " " + mappedResourceId.toString() + " and original ID " + resourceId);
-                        }
-                    }
-                    return new Long(mappedInstanceEnterpriseId.getSubscriberId());
-                }
+                //source ID needs changing to reflected the new ID
+                String mappedSourceId = ReferenceHelper.createResourceReference(resourceType, mappedResourceId.toString());
+                return findMappedInstanceSubscriberId(params, targetTable, mappedSourceId, resourceType, mappedResourceId, resourceId);
             }
+        }
+
+        //we've have multiple threads potentially trying to transform the same dependent resource (e.g. practitioner)
+        //so we need to sync on something to ensure we only
+        OnDemandLock onDemandLock = lockOnDemand(sourceId);
+        try {
 
             //if we've already transformed the resource, which could happen because the transform is multi-threaded,
             //then have another look for the enterprise ID as it must exist by now
@@ -641,8 +614,118 @@ public abstract class AbstractSubscriberTransformer {
             return new Long(subscriberId.getSubscriberId());
 
         } finally {
-            onDemandLock.unlock();
+            unlockOnDemand(sourceId, onDemandLock);
+        }
+    }
+
+    /**
+     * finds or creates the instance mapping for an organisation or practitioner, under one lock for all of them so
+     * that two instances of the same concept being transformed at the same time can't both be made the mapped one.
+     * Nothing else is locked while this is held, so it can't be part of a deadlock.
+     */
+    private static UUID findOrCreateInstanceMappedId(Reference reference, ResourceType resourceType, UUID resourceId, SubscriberTransformHelper params) throws Exception {
+
+        UUID mappedResourceId = checkInstanceMapCache(params.getSubscriberConfigName(), resourceType, resourceId);
+        if (mappedResourceId != null) {
+            return mappedResourceId;
+        }
+
+        try {
+            instanceMappingLock.lock();
+
+            SubscriberInstanceMappingDalI instanceMappingDal = DalProvider.factorySubscriberInstanceMappingDal(params.getSubscriberConfigName());
+            mappedResourceId = instanceMappingDal.findInstanceMappedId(resourceType, resourceId);
+
+            //if we've not got a mapping, then we need to create one from our resource data
+            if (mappedResourceId == null) {
+
+                Resource fhirResource = params.findOrRetrieveResource(reference);
+                if (fhirResource == null) {
+                    //LOG.trace("Resource deleted for reference " + reference.getReference());
+                    return null;
+                }
+
+                String mappingValue = findInstanceMappingValue(fhirResource, params);
+                mappedResourceId = instanceMappingDal.findOrCreateInstanceMappedId(resourceType, resourceId, mappingValue);
+            }
+
+            addToInstanceMapCache(params.getSubscriberConfigName(), resourceType, resourceId, mappedResourceId);
+            return mappedResourceId;
+
+        } finally {
+            instanceMappingLock.unlock();
+        }
+    }
+
+    /**
+     * returns the subscriber ID of the instance an organisation or practitioner is mapped to, locking on that
+     * instance so we wait for any on-demand transform of it that's in progress
+     */
+    private static Long findMappedInstanceSubscriberId(SubscriberTransformHelper params, SubscriberTableId targetTable, String mappedSourceId,
+                                                       ResourceType resourceType, UUID mappedResourceId, UUID resourceId) throws Exception {
+
+        SubscriberId mappedInstanceEnterpriseId = findSubscriberId(params, targetTable, mappedSourceId);
+        if (mappedInstanceEnterpriseId != null) {
+            return new Long(mappedInstanceEnterpriseId.getSubscriberId());
+        }
+
+        OnDemandLock onDemandLock = lockOnDemand(mappedSourceId);
+        try {
+            mappedInstanceEnterpriseId = findSubscriberId(params, targetTable, mappedSourceId);
+            if (mappedInstanceEnterpriseId == null) {
+                //if we've just started processing the first exchange for an org that's taking over the
+                //instance map, there's a chance we'll catch it mid-way through taking over, in which
+                //case we should just give a second and try again, throwing an error if we fail
+                Thread.sleep(1000);
+                mappedInstanceEnterpriseId = findSubscriberId(params, targetTable, mappedSourceId);
+                if (mappedInstanceEnterpriseId == null) {
+                    throw new TransformException("Failed to find subscriber ID for mapped instance " + resourceType.toString() + " " + mappedResourceId.toString() + " and original ID " + resourceId);
+                }
+            }
+            return new Long(mappedInstanceEnterpriseId.getSubscriberId());
+
+        } finally {
+            unlockOnDemand(mappedSourceId, onDemandLock);
+        }
+    }
+
+    /**
+     * on-demand transforms can be nested (e.g. a practitioner transforming its organisation) so a thread may
+     * already hold the lock for one resource when it needs another. Each resource has its own lock, and a resource's
+     * subscriber ID is always created before it's transformed and so before any nested transform, so any thread
+     * holding a lock and waiting for another is only holding locks on resources with IDs. Another thread needing
+     * one of those finds the ID without locking, so the two can never be waiting on each other.
+     */
+    private static OnDemandLock lockOnDemand(String sourceId) {
+        OnDemandLock ret = null;
+        synchronized (onDemandLocks) {
+            ret = onDemandLocks.get(sourceId);
+            if (ret == null) {
+                ret = new OnDemandLock();
+                onDemandLocks.put(sourceId, ret);
+            }
+            ret.users ++;
         }
+
+        ret.lock.lock();
+        return ret;
+    }
+
+    private static void unlockOnDemand(String sourceId, OnDemandLock onDemandLock) {
+        onDemandLock.lock.unlock();
+
+        //remove once nothing else is using or waiting on it, so we don't keep a lock for every resource
+        synchronized (onDemandLocks) {
+            onDemandLock.users --;
+            if (onDemandLock.users == 0) {
+                onDemandLocks.remove(sourceId);
+            }
+        }
+    }
+
+    static class OnDemandLock {
+        private final ReentrantLock lock = new ReentrantLock();
+        private int users = 0;
     }
 
     private static void addToInstanceMapCache(String enterpriseConfigName, ResourceType resourceType, UUID resourceId, UUID mappedResourceId) throws Exception {
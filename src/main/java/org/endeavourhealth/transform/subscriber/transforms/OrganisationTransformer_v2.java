@@ -12,6 +12,7 @@ import org.endeavourhealth.core.database.dal.subscriberTransform.models.Subscrib
 import org.endeavourhealth.core.fhirStorage.FhirResourceHelper;
 import org.endeavourhealth.core.fhirStorage.FhirSerializationHelper;
 import org.endeavourhealth.im.client.IMClient;
+import org.endeavourhealth.transform.common.PseudonymisationEngine;
 import org.endeavourhealth.transform.common.resourceBuilders.OrganizationBuilder;
 import org.endeavourhealth.transform.subscriber.SubscriberTransformHelper;
 import org.endeavourhealth.transform.subscriber.UPRN;
@@ -40,7 +41,6 @@ import org.endeavourhealth.core.database.rdbms.ConnectionManager;
 import org.endeavourhealth.transform.subscriber.json.LinkDistributorConfig;
 import org.endeavourhealth.transform.subscriber.*;
 import java.util.*;
-import OpenPseudonymiser.Crypto;
 
 public class OrganisationTransformer_v2 extends AbstractSubscriberTransformer {
     private static final Logger LOG = LoggerFactory.getLogger(OrganisationTransformer.class);
@@ -668,14 +668,11 @@ public class OrganisationTransformer_v2 extends AbstractSubscriberTransformer {
             List<LinkDistributorConfig> salts = c.getRalfSalts();
             LinkDistributorConfig firstSalt = salts.get(0);
             String base64Salt = firstSalt.getSalt();
-            byte[] saltBytes = Base64.getDecoder().decode(base64Salt);
 
             TreeMap<String, String> keys = new TreeMap<>();
             keys.put("UPRN", "" + uprn);
 
-            Crypto crypto = new Crypto();
-            crypto.SetEncryptedSalt(saltBytes);
-            uprn_ralf00 = crypto.GetDigest(keys);
+            uprn_ralf00 = PseudonymisationEngine.digest(base64Salt, keys);
         }
         return uprn_ralf00;
     }
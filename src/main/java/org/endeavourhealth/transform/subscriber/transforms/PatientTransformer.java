@@ -1,6 +1,5 @@
 package org.endeavourhealth.transform.subscriber.transforms;
 
-import OpenPseudonymiser.Crypto;
 import com.google.common.base.Strings;
 import org.endeavourhealth.common.fhir.*;
 import org.endeavourhealth.common.fhir.schema.NhsNumberVerificationStatus;
@@ -9,14 +8,13 @@ import org.endeavourhealth.core.database.dal.eds.PatientLinkDalI;
 import org.endeavourhealth.core.database.dal.eds.models.PatientLinkPair;
 import org.endeavourhealth.core.database.dal.ehr.ResourceDalI;
 import org.endeavourhealth.core.database.dal.ehr.models.ResourceWrapper;
-import org.endeavourhealth.core.database.dal.reference.PostcodeDalI;
-import org.endeavourhealth.core.database.dal.reference.models.PostcodeLookup;
 import org.endeavourhealth.core.database.dal.subscriberTransform.PseudoIdDalI;
 import org.endeavourhealth.core.database.dal.subscriberTransform.SubscriberPersonMappingDalI;
 import org.endeavourhealth.core.database.dal.subscriberTransform.models.PseudoIdAudit;
 import org.endeavourhealth.core.database.dal.subscriberTransform.models.SubscriberId;
 import org.endeavourhealth.im.client.IMClient;
 import org.endeavourhealth.transform.common.PseudoIdBuilder;
+import org.endeavourhealth.transform.common.PseudonymisationEngine;
 import org.endeavourhealth.transform.common.RalfBuilder;
 import org.endeavourhealth.transform.common.TransformConfig;
 import org.endeavourhealth.transform.common.TransformConstant;
@@ -67,10 +65,11 @@ public class PatientTransformer extends AbstractSubscriberTransformer {
         params.setDtLastTransformedPatient(resourceWrapper);
 
         //work out if something has changed that means we'll need to process the full patient record
-        List<ResourceWrapper> fullHistory = getFullHistory(resourceWrapper);
-        Patient previousVersion = findPreviousVersionSent(resourceWrapper, fullHistory, params);
+        Date dtLastSent = findDtLastSent(resourceWrapper, params);
+        PatientHistoryDigest historyDigest = PatientHistoryDigest.findOrBuild(resourceWrapper, dtLastSent);
+        PatientHistoryDigest.DigestVersion previousVersion = findPreviousVersionSent(resourceWrapper, dtLastSent, historyDigest);
         if (previousVersion != null) {
-            processChangesFromPreviousVersion(params.getServiceId(), fhirPatient, previousVersion, params);
+            processChangesFromPreviousVersion(params.getServiceId(), resourceWrapper.getResourceId(), fhirPatient, previousVersion, params);
         }
 
         //check if the patient is deleted, is confidential, has no NHS number etc.
@@ -85,8 +84,8 @@ public class PatientTransformer extends AbstractSubscriberTransformer {
             deletePseudoIdsNewWay(resourceWrapper, params);
 
             //we'll need a previous instance to delete any dependent addresses and telecoms
-            deleteAddresses(resourceWrapper, fullHistory, params);
-            deleteTelecoms(resourceWrapper, fullHistory, params);
+            deleteAddresses(resourceWrapper, historyDigest, params);
+            deleteTelecoms(resourceWrapper, historyDigest, params);
             patientWriterAdditional.writeDelete(subscriberId);
             return;
         }
@@ -127,8 +126,8 @@ public class PatientTransformer extends AbstractSubscriberTransformer {
         transformPseudoIdsNewWay(organizationId, subscriberId.getSubscriberId(), personId, fhirPatient, resourceWrapper, params);
         //transformPseudoIdsOldWay(subscriberId.getSubscriberId(), personId, fhirPatient, resourceWrapper, params);
 
-        currentAddressId = transformAddresses(subscriberId.getSubscriberId(), personId, fhirPatient, fullHistory, resourceWrapper, params);
-        transformTelecoms(subscriberId.getSubscriberId(), personId, fhirPatient, fullHistory, resourceWrapper, params);
+        currentAddressId = transformAddresses(subscriberId.getSubscriberId(), personId, fhirPatient, historyDigest, resourceWrapper, params);
+        transformTelecoms(subscriberId.getSubscriberId(), personId, fhirPatient, historyDigest, resourceWrapper, params);
 
 
         if (fhirPatient.hasDeceasedDateTimeType()) {
@@ -257,11 +256,11 @@ public class PatientTransformer extends AbstractSubscriberTransformer {
 
     }
 
-    private void transformTelecoms(long subscriberPatientId, long subscriberPersonId, Patient currentPatient, List<ResourceWrapper> fullHistory, ResourceWrapper resourceWrapper, SubscriberTransformHelper params) throws Exception {
+    private void transformTelecoms(long subscriberPatientId, long subscriberPersonId, Patient currentPatient, PatientHistoryDigest historyDigest, ResourceWrapper resourceWrapper, SubscriberTransformHelper params) throws Exception {
 
         PatientContact writer = params.getOutputContainer().getPatientContacts();
 
-        int maxTelecoms = getMaxNumberOfTelecoms(fullHistory);
+        int maxTelecoms = historyDigest.getMaxTelecoms();
 
         Map<Integer, SubscriberId> hmIds = findTelecomIds(maxTelecoms, params.getSubscriberConfigName(), resourceWrapper, true);
 
@@ -326,10 +325,10 @@ public class PatientTransformer extends AbstractSubscriberTransformer {
         }
     }
 
-    private void deleteTelecoms(ResourceWrapper resourceWrapper, List<ResourceWrapper> fullHistory, SubscriberTransformHelper params) throws Exception {
+    private void deleteTelecoms(ResourceWrapper resourceWrapper, PatientHistoryDigest historyDigest, SubscriberTransformHelper params) throws Exception {
 
         PatientContact writer = params.getOutputContainer().getPatientContacts();
-        int maxTelecoms = getMaxNumberOfTelecoms(fullHistory);
+        int maxTelecoms = historyDigest.getMaxTelecoms();
 
         Map<Integer, SubscriberId> hmIds = findTelecomIds(maxTelecoms, params.getSubscriberConfigName(), resourceWrapper, false);
 
@@ -342,12 +341,12 @@ public class PatientTransformer extends AbstractSubscriberTransformer {
         }
     }
 
-    private void deleteAddresses(ResourceWrapper resourceWrapper, List<ResourceWrapper> fullHistory, SubscriberTransformHelper params) throws Exception {
+    private void deleteAddresses(ResourceWrapper resourceWrapper, PatientHistoryDigest historyDigest, SubscriberTransformHelper params) throws Exception {
 
         //PatientAddressMatch uprnwriter = params.getOutputContainer().getPatientAddressMatch();
 
         PatientAddress writer = params.getOutputContainer().getPatientAddresses();
-        int maxAddresses = getMaxNumberOfAddresses(fullHistory);
+        int maxAddresses = historyDigest.getMaxAddresses();
 
         Map<Integer, SubscriberId> hmIds = findAddressIds(maxAddresses, params.getSubscriberConfigName(), resourceWrapper, false);
 
@@ -397,7 +396,7 @@ public class PatientTransformer extends AbstractSubscriberTransformer {
         // adrec="201,Darkes Lane,Potters Bar,EN6 1BX";
 
         String ids = Long.toString(subTableId.getSubscriberId()) + "`" + configName;
-        String csv = UPRN.getAdrec(adrec, ids);
+        String csv = AddressEnricher.instance().getAdrec(adrec, ids);
         if (Strings.isNullOrEmpty(csv)) {
             LOG.debug("Unable to get address from UPRN API");
             return null;
@@ -486,14 +485,10 @@ public class PatientTransformer extends AbstractSubscriberTransformer {
 
             //LOG.debug(base64Salt);
 
-            byte[] saltBytes = Base64.getDecoder().decode(base64Salt);
-
             TreeMap<String, String> keys = new TreeMap<>();
             keys.put("UPRN", "" + sUprn);
 
-            Crypto crypto = new Crypto();
-            crypto.SetEncryptedSalt(saltBytes);
-            String pseudoUprn = crypto.GetDigest(keys);
+            String pseudoUprn = PseudonymisationEngine.digest(base64Salt, keys);
             sUprn = pseudoUprn;
             // nullify fields
             znumber = null;
@@ -548,11 +543,11 @@ public class PatientTransformer extends AbstractSubscriberTransformer {
         return data != null && index >= 0 && index < data.length;
     }
 
-    private Long transformAddresses(long subscriberPatientId, long subscriberPersonId, Patient currentPatient, List<ResourceWrapper> fullHistory, ResourceWrapper resourceWrapper, SubscriberTransformHelper params) throws Exception {
+    private Long transformAddresses(long subscriberPatientId, long subscriberPersonId, Patient currentPatient, PatientHistoryDigest historyDigest, ResourceWrapper resourceWrapper, SubscriberTransformHelper params) throws Exception {
 
         PatientAddress writer = params.getOutputContainer().getPatientAddresses();
 
-        int maxAddresses = getMaxNumberOfAddresses(fullHistory);
+        int maxAddresses = historyDigest.getMaxAddresses();
 
         Map<Integer, SubscriberId> hmIds = findAddressIds(maxAddresses, params.getSubscriberConfigName(), resourceWrapper, true);
 
@@ -618,8 +613,7 @@ public class PatientTransformer extends AbstractSubscriberTransformer {
                     endDate = address.getPeriod().getEnd();
                 }
 
-                PostcodeDalI postcodeDal = DalProvider.factoryPostcodeDal();
-                PostcodeLookup postcodeReference = postcodeDal.getPostcodeReference(address.getPostalCode());
+                PostcodeReference postcodeReference = AddressEnricher.instance().getPostcodeReference(address.getPostalCode());
                 if (postcodeReference != null) {
                     lsoa2001 = postcodeReference.getLsoa2001Code();
                     lsoa2011 = postcodeReference.getLsoa2011Code();
@@ -697,14 +691,6 @@ public class PatientTransformer extends AbstractSubscriberTransformer {
         }
     }
 
-    private static List<ResourceWrapper> getFullHistory(ResourceWrapper resourceWrapper) throws Exception {
-        ResourceDalI resourceDal = DalProvider.factoryResourceDal();
-        UUID serviceId = resourceWrapper.getServiceId();
-        String resourceType = resourceWrapper.getResourceType();
-        UUID resourceId = resourceWrapper.getResourceId();
-        return resourceDal.getResourceHistory(serviceId, resourceType, resourceId);
-    }
-
     public static int getMaxNumberOfTelecoms(List<ResourceWrapper> history) throws Exception {
         int max = 0;
         for (ResourceWrapper wrapper : history) {
@@ -731,7 +717,10 @@ public class PatientTransformer extends AbstractSubscriberTransformer {
         return max;
     }
 
-    private Patient findPreviousVersionSent(ResourceWrapper currentWrapper, List<ResourceWrapper> history, SubscriberTransformHelper helper) throws Exception {
+    /**
+     * returns when the version of the patient last sent to this subscriber was created, or null if never sent
+     */
+    private Date findDtLastSent(ResourceWrapper currentWrapper, SubscriberTransformHelper helper) throws Exception {
 
         //if the helper has a null exchange ID we're invoking the transform from some one-off routine (e.g. bulk
         //populating the patient_pseudo_id table), so don't return any previous version so we don't end up trying
@@ -740,32 +729,31 @@ public class PatientTransformer extends AbstractSubscriberTransformer {
             return null;
         }
 
-        //if we've a null datetime, it means we've never sent for this patient
-        Date dtLastSent = helper.getDtLastTransformedPatient(currentWrapper.getResourceId());
+        return helper.getDtLastTransformedPatient(currentWrapper.getResourceId());
         //Date dtLastSent = subscriberId.getDtUpdatedPreviouslySent();
+    }
 
+    private PatientHistoryDigest.DigestVersion findPreviousVersionSent(ResourceWrapper currentWrapper, Date dtLastSent, PatientHistoryDigest historyDigest) throws Exception {
+
+        //if we've a null datetime, it means we've never sent for this patient
         if (dtLastSent == null) {
             //LOG.debug("" + currentWrapper.getReferenceString() + " has dt_last_sent of null, so this must be first time it is being transformed (or was previously deleted)");
             return null;
         }
 
-        //history is most-recent-first
-        for (ResourceWrapper wrapper : history) {
-            Date dtCreatedAt = wrapper.getCreatedAt();
-            //LOG.debug("Compare dt_last_sent " + dtLastSent + " (" + dtLastSent.getTime() + ") against dtCreatedAt " + dtCreatedAt + " (" + dtCreatedAt.getTime() + ")");
-            if (dtCreatedAt.equals(dtLastSent) && wrapper.getResourceData() != null) {
-                //LOG.debug("" + currentWrapper.getReferenceString() + " has dt_last_sent of " + dtLastSent + " so using version from that date");
-                return (Patient) wrapper.getResource();
-            }
+        PatientHistoryDigest.DigestVersion ret = historyDigest.findVersionCreatedAt(dtLastSent);
+        if (ret != null) {
+            return ret;
         }
 
+        //if the version wasn't in a saved digest, the digest will have been rebuilt from the full history, so
+        //it's definitely not there
+
         //in cases where we've deleted and re-bulked everything then the past audit of which version we sent is useless
-        //and we aren't able to match to the new version. In that case, we should return an empty FHIR Patient
+        //and we aren't able to match to the new version. In that case, we should return an empty version
         //which will trigger the thing to send all the data again.
         LOG.warn("Failed to find previous version of " + currentWrapper.getReferenceString() + " for dtLastSent " + dtLastSent + ", will send all data again");
-        Patient p = new Patient();
-        p.setId(currentWrapper.getResourceId().toString());
-        return p;
+        return new PatientHistoryDigest.DigestVersion(null, dtLastSent, false, null, null);
         //throw new Exception("Failed to find previous version of " + currentWrapper.getReferenceString() + " for dtLastSent " + dtLastSent);
     }
 
@@ -929,7 +917,7 @@ public class PatientTransformer extends AbstractSubscriberTransformer {
     }
 
 
-    private void processChangesFromPreviousVersion(UUID serviceId, Patient current, Patient previous, SubscriberTransformHelper params) throws Exception {
+    private void processChangesFromPreviousVersion(UUID serviceId, UUID patientUuid, Patient current, PatientHistoryDigest.DigestVersion previous, SubscriberTransformHelper params) throws Exception {
 
         //if the present status has changed then we need to either bulk-add or bulk-delete all data for the patient
         //and if the NHS number has changed, the person ID on each table will need updating
@@ -940,7 +928,6 @@ public class PatientTransformer extends AbstractSubscriberTransformer {
             //retrieve all resources and add them to the current transform. This will ensure they then get transformed
             //back in FhirToEnterpriseCsvTransformer. Each individual transform will know if the patient is confidential
             //or not, which will result in either a delete or insert being sent
-            UUID patientUuid = UUID.fromString(previous.getId()); //current may be null, so get ID from previous
             ResourceDalI resourceDal = DalProvider.factoryResourceDal();
             List<ResourceWrapper> allPatientResources = resourceDal.getResourcesByPatient(serviceId, patientUuid);
             for (ResourceWrapper wrapper : allPatientResources) {
@@ -957,7 +944,7 @@ public class PatientTransformer extends AbstractSubscriberTransformer {
         return nowShouldBePresent != previousShouldBePresent;
     }*/
 
-    private boolean hasNhsNumberChanged(Patient current, Patient previous) {
+    private boolean hasNhsNumberChanged(Patient current, PatientHistoryDigest.DigestVersion previous) {
 
         String nowNhsNumber = null;
         if (current != null) {
@@ -966,7 +953,7 @@ public class PatientTransformer extends AbstractSubscriberTransformer {
 
         String previousNhsNumber = null;
         if (previous != null) {
-            previousNhsNumber = IdentifierHelper.findNhsNumber(previous);
+            previousNhsNumber = previous.getNhsNumber();
         }
 
         if (nowNhsNumber == null && previousNhsNumber == null) {
@@ -981,7 +968,7 @@ public class PatientTransformer extends AbstractSubscriberTransformer {
         }
     }
 
-    private static boolean hasDobChanged(Patient current, Patient previous) {
+    private static boolean hasDobChanged(Patient current, PatientHistoryDigest.DigestVersion previous) {
 
         Date nowDoB = null;
         if (current != null) {
@@ -990,7 +977,7 @@ public class PatientTransformer extends AbstractSubscriberTransformer {
 
         Date previousDoB = null;
         if (previous != null) {
-            previousDoB = previous.getBirthDate();
+            previousDoB = previous.getDateOfBirth();
         }
 
         if (nowDoB == null && previousDoB == null) {
@@ -1270,14 +1257,10 @@ public class PatientTransformer extends AbstractSubscriberTransformer {
         LinkDistributorConfig firstSalt = salts.get(0);
         String base64Salt = firstSalt.getSalt();
 
-        byte[] saltBytes = Base64.getDecoder().decode(base64Salt);
-
         TreeMap<String, String> keys = new TreeMap<>();
         keys.put("UPRN", "" + uprn);
 
-        Crypto crypto = new Crypto();
-        crypto.SetEncryptedSalt(saltBytes);
-        String patientAddressMatchUprnRalf00 = crypto.GetDigest(keys);
+        String patientAddressMatchUprnRalf00 = PseudonymisationEngine.digest(base64Salt, keys);
 
         List<PseudoIdAudit> toAudit = new ArrayList<>();
 
@@ -0,0 +1,137 @@
+package org.endeavourhealth.transform.subscriber.transforms;
+
+import org.endeavourhealth.common.fhir.ReferenceComponents;
+import org.endeavourhealth.common.fhir.ReferenceHelper;
+import org.endeavourhealth.core.database.dal.ehr.models.ResourceWrapper;
+import org.endeavourhealth.transform.common.TransformConfig;
+import org.endeavourhealth.transform.subscriber.FhirToSubscriberCsvTransformer;
+import org.endeavourhealth.transform.subscriber.SubscriberTransformHelper;
+import org.endeavourhealth.transform.subscriber.targetTables.SubscriberTableId;
+import org.hl7.fhir.instance.model.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+/**
+ * finds the subscriber IDs for every resource referenced by a batch before it's transformed, with one DB query
+ * per target table, so the transformers find them in the ID cache rather than each reference being looked up
+ * by itself when transformOnDemandAndMapId is called for it. References that have no subscriber ID yet are
+ * left for the transformers to deal with.
+ */
+public class SubscriberIdPrefetcher {
+    private static final Logger LOG = LoggerFactory.getLogger(SubscriberIdPrefetcher.class);
+
+    //the resource types that transformOnDemandAndMapId is used for
+    private static final ResourceType[] ON_DEMAND_RESOURCE_TYPES = new ResourceType[]{
+            ResourceType.Organization,
+            ResourceType.Location,
+            ResourceType.Practitioner,
+            ResourceType.Schedule,
+            ResourceType.Appointment,
+            ResourceType.EpisodeOfCare,
+            ResourceType.Encounter,
+            ResourceType.ReferralRequest,
+            ResourceType.Observation,
+            ResourceType.MedicationStatement,
+            ResourceType.AllergyIntolerance,
+            ResourceType.DiagnosticOrder
+    };
+
+    private static Map<ResourceType, SubscriberTableId> targetTables = null;
+
+    public static void prefetch(SubscriberTransformHelper params) throws Exception {
+
+        if (!TransformConfig.instance().isSubscriberIdPrefetch()) {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        Map<ResourceType, SubscriberTableId> tables = getTargetTables();
+
+        //find all distinct references in the batch, by the table they'll be mapped to
+        Map<SubscriberTableId, Set<String>> sourceIdsByTable = new HashMap<>();
+        for (ResourceType resourceType: ResourceType.values()) {
+            List<ResourceWrapper> resources = params.findResourcesForType(resourceType);
+            for (ResourceWrapper resourceWrapper: resources) {
+                if (resourceWrapper.isDeleted()) {
+                    continue;
+                }
+                Resource resource = resourceWrapper.getResource();
+                findReferences(resource, tables, sourceIdsByTable);
+            }
+        }
+
+        int count = 0;
+        for (SubscriberTableId table: sourceIdsByTable.keySet()) {
+            Set<String> sourceIds = sourceIdsByTable.get(table);
+            count += sourceIds.size();
+
+            //this only looks up IDs not already cached, and caches what it finds
+            AbstractSubscriberTransformer.findOrCreateSubscriberIds(params.getSubscriberConfigName(), table, sourceIds, false);
+        }
+
+        LOG.debug("Prefetched subscriber IDs for " + count + " references in " + sourceIdsByTable.size() + " tables in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    private static Map<ResourceType, SubscriberTableId> getTargetTables() throws Exception {
+        if (targetTables == null) {
+            Map<ResourceType, SubscriberTableId> map = new HashMap<>();
+            for (ResourceType resourceType: ON_DEMAND_RESOURCE_TYPES) {
+                AbstractSubscriberTransformer transformer = FhirToSubscriberCsvTransformer.createTransformerForResourceType(resourceType);
+                map.put(resourceType, transformer.getMainSubscriberTableId());
+            }
+            targetTables = map;
+        }
+        return targetTables;
+    }
+
+    /**
+     * walks the whole resource, since references can be anywhere, including in extensions
+     */
+    private static void findReferences(Base element, Map<ResourceType, SubscriberTableId> tables, Map<SubscriberTableId, Set<String>> sourceIdsByTable) {
+
+        if (element instanceof Reference) {
+            addReference((Reference)element, tables, sourceIdsByTable);
+        }
+
+        for (Property property: element.children()) {
+            for (Base child: property.getValues()) {
+                if (child != null) {
+                    findReferences(child, tables, sourceIdsByTable);
+                }
+            }
+        }
+    }
+
+    private static void addReference(Reference reference, Map<ResourceType, SubscriberTableId> tables, Map<SubscriberTableId, Set<String>> sourceIdsByTable) {
+
+        if (!reference.hasReference()) {
+            return;
+        }
+
+        //contained or external references aren't in the form we need, so just skip anything that can't be parsed
+        ResourceType resourceType;
+        try {
+            ReferenceComponents comps = ReferenceHelper.getReferenceComponents(reference);
+            if (comps == null) {
+                return;
+            }
+            resourceType = comps.getResourceType();
+        } catch (Exception ex) {
+            return;
+        }
+
+        SubscriberTableId table = tables.get(resourceType);
+        if (table == null) {
+            return;
+        }
+
+        Set<String> sourceIds = sourceIdsByTable.get(table);
+        if (sourceIds == null) {
+            sourceIds = new HashSet<>();
+            sourceIdsByTable.put(table, sourceIds);
+        }
+        sourceIds.add(reference.getReference());
+    }
+}
@@ -83,6 +83,8 @@ public abstract class TppCsvToFhirTransformer {
         } finally {
             closeParsers(parsers.values());
         }
+
+        ReferenceDataCache.logStats();
     }
 
 
@@ -532,21 +534,10 @@ public abstract class TppCsvToFhirTransformer {
         LOG.info("Starting practitioners transforms");
         SRStaffMemberProfileTransformer.transform(parsers, fhirResourceFiler, csvHelper);
         SRStaffMemberTransformer.transform(parsers, fhirResourceFiler, csvHelper); //must be after the above
+        csvHelper.getStaffMemberCache().preResolveExtractProfiles(csvHelper); //must be after the staging tables are updated
 
         LOG.info("Starting pre-transforms to cache patient data");
-        SREventPreTransformer.transform(parsers, fhirResourceFiler, csvHelper); //caches existing links to consultations
-        SRCodePreTransformer.transform(parsers, fhirResourceFiler, csvHelper); //caches ethnicities, marital status and new links to consultation
-        SRImmunisationPreTransformer.transform(parsers, fhirResourceFiler, csvHelper); //caches new links to consultation
-        SRReferralOutPreTransformer.transform(parsers, fhirResourceFiler, csvHelper); //caches new links to consultation
-        SRDrugSensitivityPreTransformer.transform(parsers, fhirResourceFiler, csvHelper); //caches new links to consultation
-        SRPrimaryCareMedicationPreTransformer.transform(parsers, fhirResourceFiler, csvHelper); //caches new links to consultation
-        SRRecallPreTransformer.transform(parsers, fhirResourceFiler, csvHelper); //caches new links to consultation
-        SRRepeatTemplatePreTransformer.transform(parsers, fhirResourceFiler, csvHelper); //caches new links to consultation
-
-        SRRotaPreTransformer.transform(parsers, fhirResourceFiler, csvHelper); //retrieves existing rota data off the DB and caches
-        SRAppointmentPreTransformer.transform(parsers, fhirResourceFiler, csvHelper); //caches staff and start for rotas
-        SRRotaTransformer.transform(parsers, fhirResourceFiler, csvHelper);
-        csvHelper.getRotaDateAndStaffCache().processRemainingRotaDetails(fhirResourceFiler, csvHelper); //make updates to rotas NOT in SRRota
+        runPreTransforms(parsers, fhirResourceFiler, csvHelper);
 
         if (processPatientData) {
 
@@ -616,6 +607,55 @@ public abstract class TppCsvToFhirTransformer {
     }
 
 
+    /**
+     * the pre-transforms each read a separate file into caches on the TppCsvHelper, so those that don't share
+     * a cache can be run at the same time if configured. Those that do share one (e.g. all those that cache new
+     * links to consultations) are still run in the order below, so the caches end up the same either way.
+     */
+    private static void runPreTransforms(Map<Class, AbstractCsvParser> parsers,
+                                         FhirResourceFiler fhirResourceFiler,
+                                         TppCsvHelper csvHelper) throws Exception {
+
+        TransformPhaseScheduler scheduler = new TransformPhaseScheduler("TPP pre-transforms");
+
+        //parsers aren't thread safe, so file keys are declared as writes to keep any phases sharing a file in order
+        scheduler.addPhase("SREventPreTransformer", () -> SREventPreTransformer.transform(parsers, fhirResourceFiler, csvHelper)) //caches existing links to consultations
+                .writes("file:SREvent", "cache:consultationExistingChildren", "cache:utilityThreadPool");
+        scheduler.addPhase("SRCodePreTransformer", () -> SRCodePreTransformer.transform(parsers, fhirResourceFiler, csvHelper)) //caches ethnicities, marital status and new links to consultation
+                .reads("cache:conditions")
+                .writes("file:SRCode", "cache:consultationNewChildren", "cache:ethnicityAndMaritalStatus", "cache:codeResourceTypes");
+        scheduler.addPhase("SRImmunisationPreTransformer", () -> SRImmunisationPreTransformer.transform(parsers, fhirResourceFiler, csvHelper)) //caches new links to consultation
+                .writes("file:SRImmunisation", "cache:consultationNewChildren");
+        scheduler.addPhase("SRReferralOutPreTransformer", () -> SRReferralOutPreTransformer.transform(parsers, fhirResourceFiler, csvHelper)) //caches new links to consultation
+                .writes("file:SRReferralOut", "cache:consultationNewChildren");
+        scheduler.addPhase("SRDrugSensitivityPreTransformer", () -> SRDrugSensitivityPreTransformer.transform(parsers, fhirResourceFiler, csvHelper)) //caches new links to consultation
+                .writes("file:SRDrugSensitivity", "cache:consultationNewChildren");
+        scheduler.addPhase("SRPrimaryCareMedicationPreTransformer", () -> SRPrimaryCareMedicationPreTransformer.transform(parsers, fhirResourceFiler, csvHelper)) //caches new links to consultation
+                .writes("file:SRPrimaryCareMedication", "cache:consultationNewChildren");
+        scheduler.addPhase("SRRecallPreTransformer", () -> SRRecallPreTransformer.transform(parsers, fhirResourceFiler, csvHelper)) //caches new links to consultation
+                .writes("file:SRRecall", "cache:consultationNewChildren");
+        scheduler.addPhase("SRRepeatTemplatePreTransformer", () -> SRRepeatTemplatePreTransformer.transform(parsers, fhirResourceFiler, csvHelper)) //caches new links to consultation
+                .writes("file:SRRepeatTemplate", "cache:consultationNewChildren");
+
+        scheduler.addPhase("SRRotaPreTransformer", () -> SRRotaPreTransformer.transform(parsers, fhirResourceFiler, csvHelper)) //retrieves existing rota data off the DB and caches
+                .writes("file:SRRota", "cache:rotaDetails", "cache:utilityThreadPool");
+        scheduler.addPhase("SRAppointmentPreTransformer", () -> SRAppointmentPreTransformer.transform(parsers, fhirResourceFiler, csvHelper)) //caches staff and start for rotas
+                .writes("file:SRAppointment", "cache:rotaDetails", "cache:utilityThreadPool");
+        scheduler.addPhase("SRRotaTransformer", () -> SRRotaTransformer.transform(parsers, fhirResourceFiler, csvHelper))
+                .writes("file:SRRota", "cache:rotaDetails", "cache:staffMembers");
+        scheduler.addPhase("processRemainingRotaDetails", () -> csvHelper.getRotaDateAndStaffCache().processRemainingRotaDetails(fhirResourceFiler, csvHelper)) //make updates to rotas NOT in SRRota
+                .writes("cache:rotaDetails", "cache:staffMembers");
+
+        int threads = TransformConfig.instance().getTppPreTransformThreads();
+        if (threads > 1) {
+            scheduler.logPlan();
+            scheduler.run(threads);
+        } else {
+            scheduler.runSequentially();
+        }
+    }
+
+
     /*private static void auditSkippingAdminData(HasServiceSystemAndExchangeIdI fhirFiler) throws Exception {
 
         LOG.info("Skipping admin data for exchange " + fhirFiler.getExchangeId());
@@ -7,21 +7,20 @@ import org.endeavourhealth.core.database.dal.publisherCommon.models.TppCtv3Looku
 import org.endeavourhealth.core.exceptions.TransformException;
 import org.endeavourhealth.core.terminology.SnomedCode;
 import org.endeavourhealth.core.terminology.TerminologyService;
+import org.endeavourhealth.transform.common.CodeMappingFile;
 import org.endeavourhealth.transform.common.CsvCell;
+import org.endeavourhealth.transform.common.ReferenceDataCache;
 import org.endeavourhealth.transform.common.SnomedCache;
 import org.endeavourhealth.transform.common.StringMemorySaver;
 import org.endeavourhealth.transform.common.resourceBuilders.CodeableConceptBuilder;
 import org.hl7.fhir.instance.model.CodeableConcept;
 import org.hl7.fhir.instance.model.Coding;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-
 public class TppCodingHelper {
 
     private static TppCtv3LookupDalI tppCtv3LookupRefDal = DalProvider.factoryTppCtv3LookupDal();
-    private static Map<StringMemorySaver, StringMemorySaver> hmCtv3CodeToTerm = new ConcurrentHashMap<>();
-    private static Map<StringMemorySaver, Long> hmCtv3CodeToSnomedConcept = new ConcurrentHashMap<>();
+    private static ReferenceDataCache<StringMemorySaver, StringMemorySaver> hmCtv3CodeToTerm = new ReferenceDataCache<>("TppCtv3Term");
+    private static ReferenceDataCache<StringMemorySaver, Long> hmCtv3CodeToSnomedConcept = new ReferenceDataCache<>("TppCtv3ToSnomedConcept");
 
     /**
      * adds CTV3 and/or Snomed codes to a CodeableConcept.
@@ -99,19 +98,23 @@ public class TppCodingHelper {
 
     private static Long lookUpSnomedConceptForCtv3Code(String ctv3Code) throws Exception {
 
-        StringMemorySaver cacheKey = new StringMemorySaver(ctv3Code);
-        Long cached = hmCtv3CodeToSnomedConcept.get(cacheKey);
-        if (cached != null) {
-            return cached;
-        }
-
-        SnomedCode snomedCode = TerminologyService.translateCtv3ToSnomed(ctv3Code);
-        if (snomedCode == null) {
-            return null;
+        //if we've a code mapping file, check that first
+        CodeMappingFile codeMappingFile = CodeMappingFile.instance();
+        if (codeMappingFile != null) {
+            Long conceptId = codeMappingFile.getSnomedConceptForCtv3(ctv3Code);
+            if (conceptId != null) {
+                return conceptId;
+            }
         }
 
-        Long ret = Long.valueOf(snomedCode.getConceptCode());
-        hmCtv3CodeToSnomedConcept.put(cacheKey, ret);
+        StringMemorySaver cacheKey = new StringMemorySaver(ctv3Code);
+        Long ret = hmCtv3CodeToSnomedConcept.get(cacheKey, k -> {
+            SnomedCode snomedCode = TerminologyService.translateCtv3ToSnomed(ctv3Code);
+            if (snomedCode == null) {
+                return null;
+            }
+            return Long.valueOf(snomedCode.getConceptCode());
+        });
 
         //add to the other cache, since the snomed code object already has its term populated too
         //snomed term cache has moved to a separate class, so keep things simple and just skip this
@@ -145,20 +148,18 @@ public class TppCodingHelper {
     private static String lookUpTppCtv3Term(String ctv3Code) throws Exception {
 
         StringMemorySaver cacheKey = new StringMemorySaver(ctv3Code);
-        StringMemorySaver cached = hmCtv3CodeToTerm.get(cacheKey);
-        if (cached != null) {
-            return cached.toString();
-        }
+        StringMemorySaver cached = hmCtv3CodeToTerm.get(cacheKey, k -> {
+            TppCtv3Lookup lookup = tppCtv3LookupRefDal.getContentFromCtv3Code(ctv3Code);
+            if (lookup == null) {
+                return null;
+            }
+            return new StringMemorySaver(lookup.getCtv3Text());
+        });
 
-        TppCtv3Lookup lookup = tppCtv3LookupRefDal.getContentFromCtv3Code(ctv3Code);
-        if (lookup == null) {
+        if (cached == null) {
             throw new TransformException("Failed to look up CTV3 term for code [" + ctv3Code + "]");
         }
-
-        // Add to the cache
-        String term = lookup.getCtv3Text();
-        hmCtv3CodeToTerm.put(cacheKey, new StringMemorySaver(term));
-        return term;
+        return cached.toString();
     }
 
 }
\ No newline at end of file
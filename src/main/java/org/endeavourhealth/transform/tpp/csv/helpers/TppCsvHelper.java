@@ -49,13 +49,13 @@ public class TppCsvHelper implements HasServiceSystemAndExchangeIdI {
     private static TppCtv3HierarchyRefDalI ctv3HierarchyRefDalI = DalProvider.factoryTppCtv3HierarchyRefDal();
     private static ResourceDalI resourceRepository = DalProvider.factoryResourceDal();
 
-    //note the below are static maps so they will apply to all transforms until the app is restarted
-    private static Map<Integer, TppMappingRef> hmTppMappingRefs = new ConcurrentHashMap<>();
-    private static Map<Integer, TppConfigListOption> hmTppConfigListOptions = new ConcurrentHashMap<>();
-    private static Map<Integer, TppImmunisationContent> hmTppImmunisationContents = new ConcurrentHashMap<>();
-    private static Map<Integer, TppMultilexProductToCtv3Map> hmMultiLexProductIdToCTV3Map = new ConcurrentHashMap<>();
-    private static Map<Integer, String> hmMultilexActionGroupNames = new ConcurrentHashMap<>();
-    private static Map<StringMemorySaver, StringMemorySaver> hmInternalIdMapCache = new ConcurrentHashMap<>();
+    //note the below are static caches so they will apply to all transforms until the app is restarted, limited in size
+    private static ReferenceDataCache<Integer, TppMappingRef> hmTppMappingRefs = new ReferenceDataCache<>("TppMappingRef");
+    private static ReferenceDataCache<Integer, TppConfigListOption> hmTppConfigListOptions = new ReferenceDataCache<>("TppConfigListOption");
+    private static ReferenceDataCache<Integer, TppImmunisationContent> hmTppImmunisationContents = new ReferenceDataCache<>("TppImmunisationContent");
+    private static ReferenceDataCache<Integer, TppMultilexProductToCtv3Map> hmMultiLexProductIdToCTV3Map = new ReferenceDataCache<>("TppMultilexProductToCtv3Map");
+    private static ReferenceDataCache<Integer, String> hmMultilexActionGroupNames = new ReferenceDataCache<>("TppMultilexActionGroupName");
+    private static ReferenceDataCache<StringMemorySaver, StringMemorySaver> hmInternalIdMapCache = new ReferenceDataCache<>("TppInternalIdMap");
 
     private Map<Long, ReferenceList> consultationNewChildMap = new ConcurrentHashMap<>();
     private Map<Long, ReferenceList> consultationExistingChildMap = new ConcurrentHashMap<>();
@@ -363,15 +363,10 @@ public class TppCsvHelper implements HasServiceSystemAndExchangeIdI {
         Integer rowId = cell.getInt();
 
         //Find the code in the cache
-        TppMappingRef ret = hmTppMappingRefs.get(rowId);
+        TppMappingRef ret = hmTppMappingRefs.get(rowId, k -> tppMappingRefDalI.getMappingFromRowId(k.intValue()));
         if (ret == null) {
-            ret = tppMappingRefDalI.getMappingFromRowId(rowId.intValue());
-            if (ret == null) {
-                TransformWarnings.log(LOG, this, "Failed to find TPP mapping for {}", cell);
-                return null;
-            }
-
-            hmTppMappingRefs.put(rowId, ret);
+            TransformWarnings.log(LOG, this, "Failed to find TPP mapping for {}", cell);
+            return null;
         }
 
         return ret;
@@ -388,17 +383,12 @@ public class TppCsvHelper implements HasServiceSystemAndExchangeIdI {
 
         //Find the code in the cache
         Integer rowId = cell.getInt();
-        TppConfigListOption ret = hmTppConfigListOptions.get(rowId);
-        if (ret == null) {
-            ret = tppConfigListOptionDalI.getListOptionFromRowId(rowId.intValue());
+        TppConfigListOption ret = hmTppConfigListOptions.get(rowId, k -> tppConfigListOptionDalI.getListOptionFromRowId(k.intValue()));
 
-            //we've done about 100 TPP practices and haven't had any unexplained missing records, so
-            //now treat this as a hard fail rather than something to pick up after the fact
-            if (ret == null) {
-                throw new Exception("Failed to find Configured List option for ID " + rowId);
-            }
-
-            hmTppConfigListOptions.put(rowId, ret);
+        //we've done about 100 TPP practices and haven't had any unexplained missing records, so
+        //now treat this as a hard fail rather than something to pick up after the fact
+        if (ret == null) {
+            throw new Exception("Failed to find Configured List option for ID " + rowId);
         }
 
         return ret;
@@ -416,14 +406,9 @@ public class TppCsvHelper implements HasServiceSystemAndExchangeIdI {
 
         Integer rowId = immContentCell.getInt();
 
-        TppImmunisationContent ret = hmTppImmunisationContents.get(rowId);
+        TppImmunisationContent ret = hmTppImmunisationContents.get(rowId, k -> tppImmunisationContentDalI.getContentFromRowId(k.intValue()));
         if (ret == null) {
-            ret = tppImmunisationContentDalI.getContentFromRowId(rowId.intValue());
-            if (ret == null) {
-                throw new Exception("Failed to find Immunisation Content record for ID " + rowId);
-            }
-
-            hmTppImmunisationContents.put(rowId, ret);
+            throw new Exception("Failed to find Immunisation Content record for ID " + rowId);
         }
 
         return ret;
@@ -441,16 +426,10 @@ public class TppCsvHelper implements HasServiceSystemAndExchangeIdI {
 
         Integer productId = multiLexProductIdCell.getInt();
 
-        TppMultilexProductToCtv3Map ret = hmMultiLexProductIdToCTV3Map.get(productId);
+        TppMultilexProductToCtv3Map ret = hmMultiLexProductIdToCTV3Map.get(productId, k -> multiLexToCTV3MapDalI.getMultilexToCtv3MapForProductId(k.intValue()));
         if (ret == null) {
-            ret = multiLexToCTV3MapDalI.getMultilexToCtv3MapForProductId(productId.intValue());
-            if (ret == null) {
-                TransformWarnings.log(LOG, this, "TPP Multilex lookup failed for product ID {}", multiLexProductIdCell);
-                return null;
-            }
-
-            // Add to the cache
-            hmMultiLexProductIdToCTV3Map.put(productId, ret);
+            TransformWarnings.log(LOG, this, "TPP Multilex lookup failed for product ID {}", multiLexProductIdCell);
+            return null;
         }
 
         return ret;
@@ -466,15 +445,10 @@ public class TppCsvHelper implements HasServiceSystemAndExchangeIdI {
         }
 
         Integer id = multilexActionIdCell.getInt();
-        String ret = hmMultilexActionGroupNames.get(id);
+        String ret = hmMultilexActionGroupNames.get(id, k -> multiLexToCTV3MapDalI.getMultilexActionGroupNameForId(k.intValue()));
         if (ret == null) {
-            ret = multiLexToCTV3MapDalI.getMultilexActionGroupNameForId(id.intValue());
-            if (ret == null) {
-                TransformWarnings.log(LOG, this, "TPP Action Group lookup failed for ID {}", multilexActionIdCell);
-                return null;
-            }
-
-            hmMultilexActionGroupNames.put(id, ret);
+            TransformWarnings.log(LOG, this, "TPP Action Group lookup failed for ID {}", multilexActionIdCell);
+            return null;
         }
 
         return ret;
@@ -517,7 +491,8 @@ public class TppCsvHelper implements HasServiceSystemAndExchangeIdI {
 
     public String getInternalId(String idType, String sourceId) throws Exception {
         StringMemorySaver cacheKey = new StringMemorySaver(idType + "|" + sourceId);
-        StringMemorySaver cached = hmInternalIdMapCache.get(cacheKey);
+        //IDs not found aren't cached, as they may be saved without going through the cache
+        StringMemorySaver cached = hmInternalIdMapCache.getIfPresent(cacheKey);
 
         if (cached != null) {
             return cached.toString();
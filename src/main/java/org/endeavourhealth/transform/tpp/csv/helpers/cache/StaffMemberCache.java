@@ -32,10 +32,13 @@ public class StaffMemberCache {
     private Set<Integer> hsChangedProfileIds = ConcurrentHashMap.newKeySet(); //profile IDs that have changed in the extract we're processing
 
     private Map<Integer, Boolean> hmRequiredProfileIds = new HashMap<>(); //profile IDs we need to create practitioners for
+    private Set<Integer> hsNeverTransformedProfileIds = new HashSet<>(); //profile IDs in the extract known to have no ID mapping
     private Map<String, Boolean> hmRequiredOrgIds = new HashMap<>(); //org IDs we need to create practitioners for
 
     private Map<StaffAndOrgCacheKey, Integer> hmCachedStaffToProfileIds = new HashMap<>(); //cached lookup of staff and org to profile ID
 
+    private StaffProfileIndex extractProfileIndex = new StaffProfileIndex(); //staff and org combinations in the extract we're processing
+
     /**
      * called during the SRStaffMemberProfile transformer to log which profile IDs have changed
      */
@@ -45,6 +48,77 @@ public class StaffMemberCache {
         this.hsChangedProfileIds.add(profileId);
     }
 
+    /**
+     * called during the SRStaffMemberProfile transformer to index the staff and org each profile is for, so
+     * the profile IDs can be resolved in bulk before the clinical transforms need them
+     */
+    public void addExtractProfile(CsvCell staffMemberIdCell, CsvCell orgIdCell) {
+
+        //seems to be some bad data in this file, where we have a record that doesn't link to a staff member record
+        if (TppCsvHelper.isEmptyOrNegative(staffMemberIdCell)
+                || orgIdCell.isEmpty()) {
+            return;
+        }
+
+        extractProfileIndex.add(staffMemberIdCell.getInt().intValue(), orgIdCell.getString());
+    }
+
+    /**
+     * called after the staff and profile staging tables have been updated to resolve the profile IDs for the
+     * staff and orgs in the extract, one DB call per batch of staff at each org rather than one per staff member,
+     * and to find in bulk which of those profiles have never been transformed. Profiles are still only marked as
+     * required when a clinical transform uses them, but those never transformed don't need checking against the DB.
+     * Anything not resolved here is still looked up individually as the clinical transforms need it.
+     */
+    public void preResolveExtractProfiles(TppCsvHelper csvHelper) throws Exception {
+
+        if (extractProfileIndex.size() == 0) {
+            return;
+        }
+
+        LOG.debug("Going to pre-resolve profile IDs for " + extractProfileIndex.size() + " staff profiles");
+
+        Map<StaffAndOrgCacheKey, Integer> resolved = new ConcurrentHashMap<>();
+
+        Map<String, int[]> hmStaffIdsByOrg = extractProfileIndex.getStaffMemberIdsByOrg();
+        for (String orgId: hmStaffIdsByOrg.keySet()) {
+            int[] staffIds = hmStaffIdsByOrg.get(orgId);
+
+            Set<Integer> batch = new HashSet<>();
+            for (int staffId: staffIds) {
+                batch.add(new Integer(staffId));
+                if (batch.size() > TransformConfig.instance().getResourceSaveBatchSize()) {
+                    csvHelper.submitToThreadPool(new FindProfileIdsForStaff(orgId, batch, resolved));
+                    batch.clear();
+                }
+            }
+
+            if (!batch.isEmpty()) {
+                csvHelper.submitToThreadPool(new FindProfileIdsForStaff(orgId, batch, resolved));
+                batch.clear();
+            }
+        }
+
+        //block until all runnables are done
+        csvHelper.waitUntilThreadPoolIsEmpty();
+
+        //any profile without an ID mapping has never been transformed, so if it's used we know it's required without
+        //checking the FHIR DB. Those with mappings are still checked individually if they're used.
+        Set<Integer> profileIds = new HashSet<>(resolved.values());
+        Set<Integer> profileIdsWithMappings = findProfileIdsWithMappings(profileIds, csvHelper);
+        for (Integer profileId: profileIds) {
+            if (!profileIdsWithMappings.contains(profileId)) {
+                hsNeverTransformedProfileIds.add(profileId);
+            }
+        }
+
+        hmCachedStaffToProfileIds.putAll(resolved);
+        LOG.debug("Pre-resolved " + resolved.size() + " staff and org profile IDs, " + (profileIds.size() - profileIdsWithMappings.size()) + " not previously transformed");
+
+        //release memory, as the index isn't needed again
+        extractProfileIndex = new StaffProfileIndex();
+    }
+
     /**
      * if a clinical (e.g. SREvent) record references a staff ID, we call this fn to log that we definitely want to transform that record
      */
@@ -331,6 +405,12 @@ public class StaffMemberCache {
 
         if (!hmRequiredProfileIds.containsKey(profileId)) {
 
+            //if we found it had no ID mapping when pre-resolving the extract, we know we've never transformed it
+            if (hsNeverTransformedProfileIds.contains(profileId)) {
+                hmRequiredProfileIds.put(profileId, Boolean.TRUE);
+                return;
+            }
+
             //work out if we've ignored it before by simply looking to see if there's an ID for it
             boolean exists = practitionerExistsForSourceId(serviceId, "" + profileId);
             Boolean required = Boolean.valueOf(!exists);
@@ -561,7 +641,7 @@ public class StaffMemberCache {
         }
     }
 
-    /*private static class FindProfileIdsForStaff implements Callable {
+    private static class FindProfileIdsForStaff implements Callable {
 
         private String orgId;
         private Set<Integer> staffIds;
@@ -569,7 +649,7 @@ public class StaffMemberCache {
 
         public FindProfileIdsForStaff(String orgId, Set<Integer> staffIds, Map<StaffAndOrgCacheKey, Integer> resultSet) {
             this.orgId = orgId;
-            this.staffIds = staffIds;
+            this.staffIds = new HashSet<>(staffIds); //create copy because original will be changed
             this.resultSet = resultSet;
         }
 
@@ -582,6 +662,9 @@ public class StaffMemberCache {
                 Map<Integer, Integer> hmStaffAndProfileIds = dal.findProfileIdsForStaffMemberIdsAtOrg(orgId, staffIds);
                 for (Integer staffId: hmStaffAndProfileIds.keySet()) {
                     Integer profileId = hmStaffAndProfileIds.get(staffId);
+                    if (profileId == null) {
+                        continue;
+                    }
                     resultSet.put(new StaffAndOrgCacheKey(staffId.intValue(), orgId), profileId);
                 }
 
@@ -592,7 +675,7 @@ public class StaffMemberCache {
 
             return null;
         }
-    }*/
+    }
 
     private static class StaffAndOrgCacheKey {
         private int staffId;
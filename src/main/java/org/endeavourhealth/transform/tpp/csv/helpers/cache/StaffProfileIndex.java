@@ -0,0 +1,99 @@
+package org.endeavourhealth.transform.tpp.csv.helpers.cache;
+
+import java.util.*;
+
+/**
+ * compact index of the staff member and org combinations in an SRStaffMemberProfile file. Records are appended
+ * to a primitive array while the file is read, then build() sorts and de-duplicates them so the index can be
+ * walked in order of org without holding an object per record.
+ *
+ * The profile IDs in the file aren't kept, as the file is a delta and a staff member may have other profiles at
+ * the same org from earlier extracts, so which profile to use is always left to the DAL.
+ */
+public class StaffProfileIndex {
+
+    private final Map<String, Integer> hmOrgIndexes = new HashMap<>();
+    private final List<String> orgIds = new ArrayList<>();
+
+    //raw records, in file order
+    private long[] recordKeys = new long[1024];
+    private int recordCount = 0;
+
+    //built from the above, sorted with no duplicates
+    private long[] keys;
+
+    public void add(int staffMemberId, String orgId) {
+
+        Integer orgIndex = hmOrgIndexes.get(orgId);
+        if (orgIndex == null) {
+            orgIndex = new Integer(orgIds.size());
+            orgIds.add(orgId);
+            hmOrgIndexes.put(orgId, orgIndex);
+        }
+
+        if (recordCount == recordKeys.length) {
+            recordKeys = Arrays.copyOf(recordKeys, recordCount * 2);
+        }
+
+        recordKeys[recordCount] = createKey(orgIndex.intValue(), staffMemberId);
+        recordCount ++;
+
+        //any new record means the index needs building again
+        keys = null;
+    }
+
+    private static long createKey(int orgIndex, int staffMemberId) {
+        return ((long)orgIndex << 32) | (staffMemberId & 0xFFFFFFFFL);
+    }
+
+    private void build() {
+        if (keys != null) {
+            return;
+        }
+
+        //sort and de-duplicate the keys
+        long[] sorted = Arrays.copyOf(recordKeys, recordCount);
+        Arrays.sort(sorted);
+        int unique = 0;
+        for (int i=0; i<sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i-1]) {
+                sorted[unique] = sorted[i];
+                unique ++;
+            }
+        }
+        this.keys = Arrays.copyOf(sorted, unique);
+    }
+
+    /**
+     * returns the distinct staff member IDs in the index for each org
+     */
+    public Map<String, int[]> getStaffMemberIdsByOrg() {
+        build();
+
+        Map<String, int[]> ret = new HashMap<>();
+
+        //keys are sorted by org first, so each org's staff are together
+        int start = 0;
+        while (start < keys.length) {
+            int orgIndex = (int)(keys[start] >>> 32);
+            int end = start;
+            while (end < keys.length
+                    && (int)(keys[end] >>> 32) == orgIndex) {
+                end ++;
+            }
+
+            int[] staffMemberIds = new int[end - start];
+            for (int i=start; i<end; i++) {
+                staffMemberIds[i - start] = (int)keys[i];
+            }
+            ret.put(orgIds.get(orgIndex), staffMemberIds);
+            start = end;
+        }
+
+        return ret;
+    }
+
+    public int size() {
+        return recordCount;
+    }
+}
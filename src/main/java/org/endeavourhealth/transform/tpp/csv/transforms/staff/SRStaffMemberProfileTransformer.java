@@ -23,11 +23,12 @@ public class SRStaffMemberProfileTransformer {
         if (parser != null) {
 
             //we need to go through the file records to make sure it's audited and to find the RowIds
-            //of the records that have changed
+            //of the records that have changed, indexing the staff and org of each as we go
             while (parser.nextRecord()) {
 
                 CsvCell profileId = parser.getRowIdentifier();
                 csvHelper.getStaffMemberCache().addChangedProfileId(profileId);
+                csvHelper.getStaffMemberCache().addExtractProfile(parser.getIDStaffMember(), parser.getIDOrganisation());
             }
 
             //bulk load the file into the DB
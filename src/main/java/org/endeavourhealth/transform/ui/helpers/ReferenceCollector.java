@@ -0,0 +1,94 @@
+package org.endeavourhealth.transform.ui.helpers;
+
+import org.endeavourhealth.common.fhir.ReferenceComponents;
+import org.endeavourhealth.common.fhir.ReferenceHelper;
+import org.hl7.fhir.instance.model.*;
+
+import java.util.*;
+
+/**
+ * walks a patient record once and collects the IDs of everything it references, by resource type, so the
+ * referenced resources can be retrieved in one query per type and passed to ReferencedResources.
+ *
+ * Nothing in this library calls this, as the referenced resources are retrieved by the application calling
+ * UITransform. That application would use it like:
+ *
+ *     ReferenceCollector collector = new ReferenceCollector().add(patientResources);
+ *     Set<String> organisationIds = collector.getReferencedIds(ResourceType.Organization);
+ *     //retrieve the organisations in one query, then
+ *     referencedResources.setOrganisations(organisations);
+ */
+public class ReferenceCollector {
+
+	private final Map<ResourceType, Set<String>> referencedIds = new HashMap<>();
+
+	public ReferenceCollector add(Collection<? extends Resource> resources) {
+		for (Resource resource : resources)
+			add(resource);
+
+		return this;
+	}
+
+	public ReferenceCollector add(Resource resource) {
+		if (resource != null)
+			collect(resource);
+
+		return this;
+	}
+
+	/**
+	 * returns the referenced IDs for the given type, or an empty set if none
+	 */
+	public Set<String> getReferencedIds(ResourceType resourceType) {
+		Set<String> ids = referencedIds.get(resourceType);
+
+		if (ids == null)
+			return new HashSet<>();
+
+		return ids;
+	}
+
+	public Map<ResourceType, Set<String>> getReferencedIds() {
+		return referencedIds;
+	}
+
+	/**
+	 * references can be anywhere in a resource, including nested extensions, so this walks the whole thing
+	 */
+	private void collect(Base element) {
+		if (element instanceof Reference)
+			addReference((Reference) element);
+
+		for (Property property : element.children()) {
+			for (Base child : property.getValues()) {
+				if (child != null)
+					collect(child);
+			}
+		}
+	}
+
+	private void addReference(Reference reference) {
+		if (!reference.hasReference())
+			return;
+
+		//contained and external references can't be retrieved by ID, so are skipped
+		ReferenceComponents comps;
+		try {
+			comps = ReferenceHelper.getReferenceComponents(reference);
+		} catch (Exception e) {
+			return;
+		}
+
+		if (comps == null
+				|| comps.getResourceType() == null
+				|| comps.getId() == null)
+			return;
+
+		Set<String> ids = referencedIds.get(comps.getResourceType());
+		if (ids == null) {
+			ids = new HashSet<>();
+			referencedIds.put(comps.getResourceType(), ids);
+		}
+		ids.add(comps.getId());
+	}
+}
@@ -2,7 +2,7 @@ package org.endeavourhealth.transform.ui.helpers;
 
 import org.apache.commons.lang3.StringUtils;
 import org.endeavourhealth.common.fhir.ReferenceHelper;
-import org.endeavourhealth.common.utility.StreamExtension;
+import org.endeavourhealth.transform.ui.models.resources.UIResource;
 import org.endeavourhealth.transform.ui.models.resources.admin.UILocation;
 import org.endeavourhealth.transform.ui.models.resources.admin.UIOrganisation;
 import org.endeavourhealth.transform.ui.models.resources.admin.UIPractitioner;
@@ -17,22 +17,24 @@ import org.endeavourhealth.transform.ui.transforms.clinical.UIMedicationTransfor
 import org.endeavourhealth.transform.ui.transforms.clinical.UIObservationTransform;
 import org.hl7.fhir.instance.model.*;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.UUID;
-import java.util.stream.Collectors;
+import java.util.*;
+import java.util.stream.Collector;
 
+/**
+ * holds the resources referenced by the clinical resources being transformed, indexed by ID so each
+ * reference can be resolved without scanning the full list
+ */
 public class ReferencedResources {
 	private List<Organization> organisations = new ArrayList<>();
-	private List<UIOrganisation> uiOrganisations = new ArrayList<>();
+	private Map<String, UIOrganisation> uiOrganisations = new HashMap<>();
 	private List<Location> locations = new ArrayList<>();
-	private List<UILocation> uiLocations = new ArrayList<>();
+	private Map<String, UILocation> uiLocations = new HashMap<>();
 	private List<Medication> medications = new ArrayList<>();
-	private List<UIMedication> uiMedications = new ArrayList<>();
+	private Map<String, UIMedication> uiMedications = new HashMap<>();
 	private List<MedicationStatement> medicationStatements = new ArrayList<>();
-	private List<UIMedicationStatement> uiMedicationStatements = new ArrayList<>();
+	private Map<String, UIMedicationStatement> uiMedicationStatements = new HashMap<>();
 	private List<Observation> observations = new ArrayList<>();
-	private List<UIObservation> uiObservations = new ArrayList<>();
+	private Map<String, UIObservation> uiObservations = new HashMap<>();
 
 	public UIOrganisation getUIOrganisation(Reference reference) {
 		String referenceId = ReferenceHelper.getReferenceId(reference, ResourceType.Organization);
@@ -40,11 +42,7 @@ public class ReferencedResources {
 		if (StringUtils.isEmpty(referenceId))
 			return null;
 
-		return this
-				.uiOrganisations
-				.stream()
-				.filter(t -> t.getId().equals(referenceId))
-				.collect(StreamExtension.firstOrNullCollector());
+		return this.uiOrganisations.get(referenceId);
 	}
 
 	public void setOrganisations(List<Organization> organisations) {
@@ -53,7 +51,7 @@ public class ReferencedResources {
 		this.uiOrganisations = organisations
 				.stream()
 				.map(t -> UIOrganisationTransform.transform(t))
-				.collect(Collectors.toList());
+				.collect(toIndex());
 	}
 
 	public UILocation getUILocation(Reference reference) {
@@ -62,11 +60,7 @@ public class ReferencedResources {
 		if (StringUtils.isEmpty(referenceId))
 			return null;
 
-		return this
-				.uiLocations
-				.stream()
-				.filter(t -> t.getId().equals(referenceId))
-				.collect(StreamExtension.firstOrNullCollector());
+		return this.uiLocations.get(referenceId);
 	}
 
 	public void setLocations(List<Location> locations) {
@@ -75,7 +69,7 @@ public class ReferencedResources {
 		this.uiLocations = locations
 				.stream()
 				.map(t -> UILocationTransform.transform(t))
-				.collect(Collectors.toList());
+				.collect(toIndex());
 	}
 
 	public void setMedications(List<Medication> medications) {
@@ -84,7 +78,7 @@ public class ReferencedResources {
 		this.uiMedications = medications
 				.stream()
 				.map(t -> UIMedicationTransform.transform(t))
-				.collect(Collectors.toList());
+				.collect(toIndex());
 	}
 
 	public UIMedication getUIMedication(Reference reference) {
@@ -93,11 +87,7 @@ public class ReferencedResources {
 		if (StringUtils.isEmpty(referenceId))
 			return null;
 
-		return this
-				.uiMedications
-				.stream()
-				.filter(t -> t.getId().equals(referenceId))
-				.collect(StreamExtension.firstOrNullCollector());
+		return this.uiMedications.get(referenceId);
 	}
 
 	public void setMedicationStatements(UUID serviceId, List<MedicationStatement> medicationStatements, ReferencedResources referencedResources) {
@@ -106,7 +96,7 @@ public class ReferencedResources {
 		this.uiMedicationStatements = medicationStatements
 				.stream()
 				.map(t -> UIMedicationStatementTransform.transform(serviceId, t, referencedResources))
-				.collect(Collectors.toList());
+				.collect(toIndex());
 	}
 
 	public UIMedicationStatement getUIMedicationStatement(Reference reference) {
@@ -115,11 +105,7 @@ public class ReferencedResources {
 		if (StringUtils.isEmpty(referenceId))
 			return null;
 
-		return this
-				.uiMedicationStatements
-				.stream()
-				.filter(t -> t.getId().equals(referenceId))
-				.collect(StreamExtension.firstOrNullCollector());
+		return this.uiMedicationStatements.get(referenceId);
 	}
 
 	public void setObservations(UUID serviceId, List<Observation> observations, ReferencedResources referencedResources) {
@@ -127,7 +113,7 @@ public class ReferencedResources {
 		this.uiObservations = observations
 				.stream()
 				.map(t -> UIObservationTransform.transform(serviceId, t, referencedResources))
-				.collect(Collectors.toList());
+				.collect(toIndex());
 	}
 
 	public UIObservation getUIObservation(Reference reference) {
@@ -136,10 +122,22 @@ public class ReferencedResources {
 		if (StringUtils.isEmpty(referenceId))
 			return null;
 
-		return this
-				.uiObservations
-				.stream()
-				.filter(t -> t.getId().equals(referenceId))
-				.collect(StreamExtension.firstOrNullCollector());
+		return this.uiObservations.get(referenceId);
+	}
+
+	/**
+	 * indexes by ID, keeping the first if there are duplicates as the lookups used to do
+	 */
+	private static <T extends UIResource> Collector<T, ?, Map<String, T>> toIndex() {
+		return Collector.of(
+				HashMap::new,
+				(map, t) -> {
+					if (t != null && t.getId() != null)
+						map.putIfAbsent(t.getId(), t);
+				},
+				(first, second) -> {
+					second.forEach(first::putIfAbsent);
+					return first;
+				});
 	}
-}
\ No newline at end of file
+}
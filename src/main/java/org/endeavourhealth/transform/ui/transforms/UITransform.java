@@ -15,51 +15,46 @@ import org.endeavourhealth.transform.ui.transforms.admin.UIPatientTransform;
 import org.endeavourhealth.transform.ui.transforms.clinical.*;
 import org.hl7.fhir.instance.model.*;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.UUID;
+import java.util.*;
 
 public class UITransform {
+
+    //the clinical transforms hold no state, so a single instance of each is shared
+    private static final Map<Class<? extends UIResource>, UIClinicalTransform> clinicalTransformers = createClinicalTransformers();
+
+    private static Map<Class<? extends UIResource>, UIClinicalTransform> createClinicalTransformers() {
+        Map<Class<? extends UIResource>, UIClinicalTransform> ret = new HashMap<>();
+        ret.put(UICondition.class, new UIConditionTransform());
+        ret.put(UIProblem.class, new UIProblemTransform());
+        ret.put(UIEncounter.class, new UIEncounterTransform());
+        ret.put(UIObservation.class, new UIObservationTransform());
+        ret.put(UIAllergyIntolerance.class, new UIAllergyIntoleranceTransform());
+        ret.put(UIImmunisation.class, new UIImmunisationTransform());
+        ret.put(UIProcedure.class, new UIProcedureTransform());
+        ret.put(UIDiary.class, new UIDiaryTransform());
+        ret.put(UIMedicationStatement.class, new UIMedicationStatementTransform());
+        ret.put(UIMedicationOrder.class, new UIMedicationOrderTransform());
+        ret.put(UIFamilyMemberHistory.class, new UIFamilyMemberHistoryTransform());
+        ret.put(UIEpisodeOfCare.class, new UIEpisodeOfCareTransform());
+        ret.put(UIDiagnosticReport.class, new UIDiagnosticReportTransform());
+        ret.put(UIDiagnosticOrder.class, new UIDiagnosticOrderTransform());
+        ret.put(UIReferral.class, new UIReferralTransform());
+        ret.put(UISpecimen.class, new UISpecimenTransform());
+        return Collections.unmodifiableMap(ret);
+    }
+
     public static UIPatient transformPatient(UUID serviceId, Patient patient, ReferencedResources referencedResources) {
         return UIPatientTransform.transform(serviceId, patient, referencedResources);
     }
 
     public static <T extends UIResource> UIClinicalTransform getClinicalTransformer(Class<T> resourceType) {
 
-        if (resourceType == UICondition.class)
-            return new UIConditionTransform();
-        else if (resourceType == UIProblem.class)
-            return new UIProblemTransform();
-        else if (resourceType == UIEncounter.class)
-            return new UIEncounterTransform();
-        else if (resourceType == UIObservation.class)
-            return new UIObservationTransform();
-        else if (resourceType == UIAllergyIntolerance.class)
-            return new UIAllergyIntoleranceTransform();
-        else if (resourceType == UIImmunisation.class)
-            return new UIImmunisationTransform();
-        else if (resourceType == UIProcedure.class)
-            return new UIProcedureTransform();
-        else if (resourceType == UIDiary.class)
-            return new UIDiaryTransform();
-        else if (resourceType == UIMedicationStatement.class)
-            return new UIMedicationStatementTransform();
-        else if (resourceType == UIMedicationOrder.class)
-        		return new UIMedicationOrderTransform();
-        else if (resourceType == UIFamilyMemberHistory.class)
-            return new UIFamilyMemberHistoryTransform();
-        else if (resourceType == UIEpisodeOfCare.class)
-            return new UIEpisodeOfCareTransform();
-        else if (resourceType == UIDiagnosticReport.class)
-            return new UIDiagnosticReportTransform();
-        else if (resourceType == UIDiagnosticOrder.class)
-            return new UIDiagnosticOrderTransform();
-        else if (resourceType == UIReferral.class)
-            return new UIReferralTransform();
-        else if (resourceType == UISpecimen.class)
-            return new UISpecimenTransform();
+        UIClinicalTransform transform = clinicalTransformers.get(resourceType);
+
+        if (transform == null)
+            throw new NotImplementedException(resourceType.getSimpleName());
 
-        throw new NotImplementedException(resourceType.getSimpleName());
+        return transform;
     }
 
     public static List<UIService> transformServices(List<Service> services) throws TransformException {
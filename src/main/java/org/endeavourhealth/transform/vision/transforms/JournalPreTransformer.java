@@ -22,16 +22,15 @@ import org.hl7.fhir.instance.model.ResourceType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Date;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
 import java.util.concurrent.Callable;
 
 public class JournalPreTransformer {
 
     private static final Logger LOG = LoggerFactory.getLogger(JournalPreTransformer.class);
 
+    private static final int BLOCK_SIZE = 1000; //rows to look up Read2 codes for at once
+
     public static void transform(Map<Class, AbstractCsvParser> parsers,
                                  FhirResourceFiler fhirResourceFiler,
                                  VisionCsvHelper csvHelper) throws Exception {
@@ -42,13 +41,24 @@ public class JournalPreTransformer {
             AbstractCsvParser parser = parsers.get(Journal.class);
 
             if (parser != null) {
+                List<JournalRow> block = new ArrayList<>();
                 while (parser.nextRecord()) {
 
                     try {
-                        processLine((Journal) parser, csvHelper, fhirResourceFiler);
+                        block.add(new JournalRow((Journal) parser));
                     } catch (Exception ex) {
                         throw new TransformException(parser.getCurrentState().toString(), ex);
                     }
+
+                    if (block.size() >= BLOCK_SIZE) {
+                        processBlock(block, csvHelper, fhirResourceFiler);
+                        block.clear();
+                    }
+                }
+
+                if (!block.isEmpty()) {
+                    processBlock(block, csvHelper, fhirResourceFiler);
+                    block.clear();
                 }
             }
 
@@ -61,17 +71,45 @@ public class JournalPreTransformer {
     }
 
 
-    private static void processLine(Journal parser, VisionCsvHelper csvHelper, FhirResourceFiler fhirResourceFiler) throws Exception {
+    /**
+     * rows are processed in blocks so the Read2 codes for the whole block can be looked up in one go first, rather
+     * than going to the DB for each new code as each row is classified
+     */
+    private static void processBlock(List<JournalRow> block, VisionCsvHelper csvHelper, FhirResourceFiler fhirResourceFiler) throws Exception {
+
+        //formatting a code checks if its first five chars are a real Read2 code, and a five-character code is
+        //looked up as it is, so the first five chars of anything at least that long are the ones to look up
+        Set<String> codes = new HashSet<>();
+        for (JournalRow row: block) {
+            CsvCell readCodeCell = row.getReadCode();
+            if (!row.getAction().getString().equalsIgnoreCase("D")
+                    && !readCodeCell.isEmpty()
+                    && readCodeCell.getString().length() >= 5) {
+                codes.add(readCodeCell.getString().substring(0, 5));
+            }
+        }
+        Read2Cache.prefetchRead2Codes(codes);
+
+        for (JournalRow row: block) {
+            try {
+                processLine(row, csvHelper, fhirResourceFiler);
+            } catch (Exception ex) {
+                throw new TransformException(row.getParserState().toString(), ex);
+            }
+        }
+    }
 
-        CsvCell actionCell = parser.getAction();
+    private static void processLine(JournalRow row, VisionCsvHelper csvHelper, FhirResourceFiler fhirResourceFiler) throws Exception {
+
+        CsvCell actionCell = row.getAction();
         if (actionCell.getString().equalsIgnoreCase("D")) {
             return;
         }
 
 
-        ResourceType resourceType = JournalTransformer.getTargetResourceType(parser, csvHelper);
-        CsvCell observationIdCell = parser.getObservationID();
-        CsvCell patientIdCell = parser.getPatientID();
+        ResourceType resourceType = JournalTransformer.getTargetResourceType(row.getSubset(), row.getReadCode(), row.getValue1(), csvHelper);
+        CsvCell observationIdCell = row.getObservationID();
+        CsvCell patientIdCell = row.getPatientID();
 
         //all we are interested in are Drug records (non issues)
         //this was used to track the records that represented medication being prescribed, so the
@@ -86,7 +124,7 @@ public class JournalPreTransformer {
         }*/
 
         //linked consultation encounter record
-        CsvCell linkCell = parser.getLinks();
+        CsvCell linkCell = row.getLinks();
         String consultationId = JournalTransformer.extractEncounterLinkId(linkCell);
         if (!Strings.isNullOrEmpty(consultationId)) {
 
@@ -125,7 +163,7 @@ public class JournalPreTransformer {
             }
         }*/
 
-        CsvCell readCodeCell = parser.getReadCode();
+        CsvCell readCodeCell = row.getReadCode();
         String readCode = VisionCodeHelper.formatReadCode(readCodeCell, csvHelper); //use this fn to format the cell into a regular Read2 code
         if (!Strings.isNullOrEmpty(readCode)) {
 
@@ -133,8 +171,8 @@ public class JournalPreTransformer {
             if (VisionMappingHelper.isPotentialEthnicity(readCode)) {
 
                 EthnicCategory ethnicCategory = VisionMappingHelper.findEthnicityCode(readCode); //note this might be null if it's an ethnicity code we can't map
-                CsvCell dateCell = parser.getEffectiveDate();
-                CsvCell timeCell = parser.getEffectiveTime();
+                CsvCell dateCell = row.getEffectiveDate();
+                CsvCell timeCell = row.getEffectiveTime();
                 Date effectiveDateTime = CsvCell.getDateTimeFromTwoCells(dateCell, timeCell);
 
                 csvHelper.cacheEthnicity(patientIdCell, effectiveDateTime, ethnicCategory, readCodeCell);
@@ -145,29 +183,29 @@ public class JournalPreTransformer {
         }
 
         //audit the Read2/Local codes and their term
-        CsvCell termCell = parser.getRubric();
+        CsvCell termCell = row.getRubric();
         csvHelper.cacheCodeAndTermUsed(readCodeCell, termCell);
 
         //audit the Read2/Local code to Snomed mappings too
         if (resourceType == ResourceType.MedicationOrder
                 || resourceType == ResourceType.MedicationStatement) {
 
-            CsvCell dmdCell = parser.getDrugDMDCode();
-            CsvCell recordedDateCell = parser.getEnteredDate();
+            CsvCell dmdCell = row.getDrugDMDCode();
+            CsvCell recordedDateCell = row.getEnteredDate();
             csvHelper.cacheReadToSnomedMapping(readCodeCell, dmdCell, recordedDateCell);
 
         } else {
-            CsvCell snomedCell = parser.getSnomedCode();
-            CsvCell recordedDateCell = parser.getEnteredDate();
+            CsvCell snomedCell = row.getSnomedCode();
+            CsvCell recordedDateCell = row.getEnteredDate();
             csvHelper.cacheReadToSnomedMapping(readCodeCell, snomedCell, recordedDateCell);
         }
 
         //only concerned with Problems in this pre-transformer
         if (resourceType == ResourceType.Condition) {
 
-            CsvCell patientID = parser.getPatientID();
-            CsvCell observationID = parser.getObservationID();
-            CsvCurrentState parserState = parser.getCurrentState();
+            CsvCell patientID = row.getPatientID();
+            CsvCell observationID = row.getObservationID();
+            CsvCurrentState parserState = row.getParserState();
 
             //cache the observation IDs of problems, so
             //that we know what is a problem when we run the observation pre-transformer
@@ -256,6 +294,100 @@ public class JournalPreTransformer {
     }*/
 
 
+    /**
+     * the cells of a journal row this pre-transformer needs, so rows can be held in a block once the parser has
+     * moved on
+     */
+    static class JournalRow {
+        private final CsvCell action;
+        private final CsvCell subset;
+        private final CsvCell readCode;
+        private final CsvCell value1;
+        private final CsvCell observationID;
+        private final CsvCell patientID;
+        private final CsvCell links;
+        private final CsvCell effectiveDate;
+        private final CsvCell effectiveTime;
+        private final CsvCell rubric;
+        private final CsvCell drugDMDCode;
+        private final CsvCell snomedCode;
+        private final CsvCell enteredDate;
+        private final CsvCurrentState parserState;
+
+        public JournalRow(Journal parser) throws Exception {
+            this.action = parser.getAction();
+            this.subset = parser.getSubset();
+            this.readCode = parser.getReadCode();
+            this.value1 = parser.getValue1();
+            this.observationID = parser.getObservationID();
+            this.patientID = parser.getPatientID();
+            this.links = parser.getLinks();
+            this.effectiveDate = parser.getEffectiveDate();
+            this.effectiveTime = parser.getEffectiveTime();
+            this.rubric = parser.getRubric();
+            this.drugDMDCode = parser.getDrugDMDCode();
+            this.snomedCode = parser.getSnomedCode();
+            this.enteredDate = parser.getEnteredDate();
+            this.parserState = parser.getCurrentState();
+        }
+
+        public CsvCell getAction() {
+            return action;
+        }
+
+        public CsvCell getSubset() {
+            return subset;
+        }
+
+        public CsvCell getReadCode() {
+            return readCode;
+        }
+
+        public CsvCell getValue1() {
+            return value1;
+        }
+
+        public CsvCell getObservationID() {
+            return observationID;
+        }
+
+        public CsvCell getPatientID() {
+            return patientID;
+        }
+
+        public CsvCell getLinks() {
+            return links;
+        }
+
+        public CsvCell getEffectiveDate() {
+            return effectiveDate;
+        }
+
+        public CsvCell getEffectiveTime() {
+            return effectiveTime;
+        }
+
+        public CsvCell getRubric() {
+            return rubric;
+        }
+
+        public CsvCell getDrugDMDCode() {
+            return drugDMDCode;
+        }
+
+        public CsvCell getSnomedCode() {
+            return snomedCode;
+        }
+
+        public CsvCell getEnteredDate() {
+            return enteredDate;
+        }
+
+        public CsvCurrentState getParserState() {
+            return parserState;
+        }
+    }
+
     static class LookupTask extends AbstractCsvCallable {
 
         private CsvCell patientID;
@@ -1529,7 +1529,11 @@ public class JournalTransformer {
 
     //the FHIR resource type is roughly derived from the code subset and ReadCode
     public static ResourceType getTargetResourceType(Journal parser, VisionCsvHelper csvHelper) throws Exception {
-        String subset = parser.getSubset().getString();
+        return getTargetResourceType(parser.getSubset(), parser.getReadCode(), parser.getValue1(), csvHelper);
+    }
+
+    public static ResourceType getTargetResourceType(CsvCell subsetCell, CsvCell readCodeCell, CsvCell value1Cell, VisionCsvHelper csvHelper) throws Exception {
+        String subset = subsetCell.getString();
         /*  A = Acute (Therapy)
             R = Repeat
             S = Repeat Issue
@@ -1539,13 +1543,12 @@ public class JournalTransformer {
             T = Test
             L = Allergy
         */
-        CsvCell readCodeCell = parser.getReadCode();
         String readCode = VisionCodeHelper.formatReadCode(readCodeCell, csvHelper);
 
         if (!Strings.isNullOrEmpty(readCode)
                 && Read2.isProcedure(readCode)
                 && !Read2.isBPCode(readCode)
-                && Strings.isNullOrEmpty(parser.getValue1().getString())
+                && Strings.isNullOrEmpty(value1Cell.getString())
                 && !subset.equalsIgnoreCase("T")
                 && !subset.equalsIgnoreCase("I")) {
             return ResourceType.Procedure;